@@ -1,20 +1,21 @@
 package net.stemmaweb.exporter;
 
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.text.DecimalFormat;
 import java.util.*;
 import java.util.stream.Collectors;
 
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
 
 import net.stemmaweb.model.DisplayOptionModel;
-import net.stemmaweb.printer.GraphViz;
+import net.stemmaweb.model.RelationTypeModel;
 import net.stemmaweb.rest.ERelations;
 
 import net.stemmaweb.rest.Nodes;
@@ -25,7 +26,9 @@ import static net.stemmaweb.parser.Util.getExpander;
 import static org.apache.commons.text.StringEscapeUtils.escapeHtml4;
 
 import net.stemmaweb.services.DatabaseService;
+import net.stemmaweb.services.NormalizedSection;
 import net.stemmaweb.services.VariantGraphService;
+import net.stemmaweb.services.WitnessIndex;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.traversal.Uniqueness;
 
@@ -39,7 +42,7 @@ public class DotExporter
 {
     private final GraphDatabaseService db;
 
-    private OutputStream out = null;
+    private Writer out = null;
 
     private static final DecimalFormat df2 = new DecimalFormat(".##");
 
@@ -51,32 +54,99 @@ public class DotExporter
         return writeNeo4J(tradId, null, dm);
     }
 
+    /**
+     * Return the variant graph of a tradition, or of one of its sections, in dot format. The
+     * request is checked before anything is written; the dot itself is then streamed to the
+     * response as it is made.
+     *
+     * @param tradId    - the ID of the tradition in question
+     * @param sectionId - the ID of the section to write, or null for the whole tradition
+     * @param dm        - the display options for the graph
+     * @return a Response whose entity streams the dot
+     */
     public Response writeNeo4J(String tradId, String sectionId, DisplayOptionModel dm)
     {
-        // Get the start and end node of the whole tradition
+        // Check that the tradition, and any requested section, exist before we start to stream
         Node traditionNode = VariantGraphService.getTraditionNode(tradId, db);
         Node startNode = VariantGraphService.getStartNode(tradId, db);
         Node endNode = VariantGraphService.getEndNode(tradId, db);
         if(startNode==null || endNode==null || traditionNode==null) {
             return Response.status(Status.NOT_FOUND).build();
         }
+        if (sectionId != null) {
+            try (Transaction tx = db.beginTx()) {
+                Node requestedSection = db.getNodeById(Long.parseLong(sectionId));
+                if (!VariantGraphService.getSectionNodes(tradId, db).contains(requestedSection))
+                    return Response.status(Status.BAD_REQUEST)
+                            .entity(jsonerror(String.format("Section %s not found in tradition %s", sectionId, tradId)))
+                            .build();
+                tx.success();
+            } catch (Exception e) {
+                e.printStackTrace();
+                return Response.serverError().entity(jsonerror(e.getMessage())).build();
+            }
+        }
+        // ...and that the relation type we are to normalise on exists
+        if (dm.getNormaliseOn() != null && new RelationTypeModel(dm.getNormaliseOn()).lookup(traditionNode) == null)
+            return Response.serverError().entity(jsonerror(String.format(
+                    "Relation type %s does not exist in this tradition", dm.getNormaliseOn()))).build();
+
+        StreamingOutput stream = output -> {
+            Writer sink = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+            writeNeo4J(tradId, sectionId, dm, sink);
+            // Flush rather than close the writer; the container owns the response stream
+            sink.flush();
+        };
+        return Response.ok(stream).build();
+    }
+
+    /**
+     * Return the variant graph of a tradition, or of one of its sections, as a dot string.
+     *
+     * @param tradId    - the ID of the tradition in question
+     * @param sectionId - the ID of the section to write, or null for the whole tradition
+     * @param dm        - the display options for the graph
+     * @return the dot
+     * @throws IOException if the dot cannot be written
+     */
+    public String getDot(String tradId, String sectionId, DisplayOptionModel dm) throws IOException {
+        StringWriter sw = new StringWriter();
+        writeNeo4J(tradId, sectionId, dm, sw);
+        return sw.toString();
+    }
+
+    /**
+     * Write the variant graph of a tradition, or of one of its sections, in dot format to
+     * the given sink.
+     *
+     * @param tradId    - the ID of the tradition in question
+     * @param sectionId - the ID of the section to write, or null for the whole tradition
+     * @param dm        - the display options for the graph
+     * @param sink      - the Writer that the dot should go to
+     * @throws IOException if the sink cannot be written to
+     */
+    public void writeNeo4J(String tradId, String sectionId, DisplayOptionModel dm, Writer sink)
+            throws IOException
+    {
+        // Get the start and end node of the whole tradition
+        Node traditionNode = VariantGraphService.getTraditionNode(tradId, db);
+        Node startNode = VariantGraphService.getStartNode(tradId, db);
+        Node endNode = VariantGraphService.getEndNode(tradId, db);
+        if(startNode==null || endNode==null || traditionNode==null)
+            throw new NotFoundException(String.format("Tradition %s not found", tradId));
 
         // Get the list of section nodes
         ArrayList<Node> sections = VariantGraphService.getSectionNodes(tradId, db);
-        File output;
-        String result;
         try (Transaction tx = db.beginTx()) {
-            output = File.createTempFile("graph_", ".dot");
-            out = new FileOutputStream(output);
+            out = sink;
 
             Node requestedSection = null;
             if (sectionId != null)
                 requestedSection = db.getNodeById(Long.parseLong(sectionId));
             if (requestedSection != null) {
                 if (!sections.contains(requestedSection))
-                    return Response.status(Status.BAD_REQUEST)
-                            .entity(jsonerror(String.format("Section %s not found in tradition %s", sectionId, tradId)))
-                            .build();
+                    throw new IllegalArgumentException(
+                            String.format("Section %s not found in tradition %s", sectionId, tradId));
                 sections.clear();
                 sections.add(requestedSection);
             }
@@ -104,6 +174,9 @@ public class DotExporter
             // relations should therefore be written out
             HashSet<Node> writtenNodes = new HashSet<>();
             ArrayList<Relationship> relsToWrite = new ArrayList<>();
+            // Work out which witness bits the witness filter excludes
+            WitnessIndex witnessIndex = new WitnessIndex(traditionNode);
+            long[] excludedBits = witnessIndex.bitsFor(dm.getExcludeWitnesses());
 
             for (Node sectionNode: sections) {
                 // Get the number of witnesses we have
@@ -131,8 +204,14 @@ public class DotExporter
                 }
 
                 // Find our representative nodes, in case we are producing a normalised form of the graph
-                HashMap<Node, Node> representatives = getRepresentatives(sectionNode, dm.getNormaliseOn());
-                RelationshipType seqLabel = dm.getNormaliseOn() == null ? ERelations.SEQUENCE : ERelations.NSEQUENCE;
+                NormalizedSection normalized = null;
+                if (dm.getNormaliseOn() != null) try {
+                    normalized = new NormalizedSection(sectionNode, dm.getNormaliseOn());
+                } catch (Exception e) {
+                    throw new IOException(e.getMessage(), e);
+                }
+                HashMap<Node, Node> representatives = normalized == null
+                        ? getRepresentatives(sectionNode) : normalized.getRepresentatives();
 
                 // Collect any lemma edge pairs. We need to be able to search by start node, but want to note
                 // both the end node and the link ID.
@@ -178,7 +257,10 @@ public class DotExporter
                     // This node is automatically in a requested witness if it is the start node, or if there
                     // is no witness filter.
                     boolean inRequestedWitness = node.equals(sectionStartNode) || dm.getExcludeWitnesses().size() == 0;
-                    for (Relationship rel : node.getRelationships(Direction.INCOMING, seqLabel)) {
+                    Iterable<Relationship> incomingSeqs = normalized == null
+                            ? node.getRelationships(Direction.INCOMING, ERelations.SEQUENCE)
+                            : normalized.getSequences(node, Direction.INCOMING);
+                    for (Relationship rel : incomingSeqs) {
                         if (rel == null)
                             continue;
                         Node relStartNode = rel.getStartNode();
@@ -188,12 +270,7 @@ public class DotExporter
                         if (node.equals(sectionStartNode) || dm.getExcludeWitnesses().size() == 0)
                             witnessLink = true;
                         else
-                            for (Object v : rel.getAllProperties().values())
-                                for (String s : (String[]) v)
-                                    if (!dm.getExcludeWitnesses().contains(s)) {
-                                        witnessLink = true;
-                                        break;
-                                    }
+                            witnessLink = WitnessIndex.hasBitsOutside(witnessIndex.bitsOf(rel), excludedBits);
 
                         if (witnessLink)
                             inRequestedWitness = true;
@@ -264,37 +341,11 @@ public class DotExporter
                 // Write any emendation links
                 for (Relationship r : emendationAnchors)
                     write(String.format("\t%d->%d [color=white,penwidth=0,arrowhead=none];\n", r.getStartNodeId(), r.getEndNodeId()));
-
-                // Clean up after ourselves
-                if (seqLabel.equals(ERelations.NSEQUENCE))
-                    VariantGraphService.clearNormalization(sectionNode);
             }
 
             write("}\n");
-
-            out.flush();
-            out.close();
-
-            // Now pull the string back out of the output file.
-            byte[] encDot = Files.readAllBytes(output.toPath());
-            result = new String(encDot, StandardCharsets.UTF_8);
-
-            // Remove the following line, if you want to keep the created file
-            Files.deleteIfExists(output.toPath());
-
             tx.success();
-        } catch (IOException e) {
-            e.printStackTrace();
-            return Response.serverError().entity(jsonerror("Could not write file for export")).build();
-        } catch (Exception e) {
-            e.printStackTrace();
-            return Response.serverError().entity(jsonerror(e.getMessage())).build();
         }
-
-        // Here is where to generate pictures from the file for debugging.
-        // writeFromDot(output, "svg");
-
-        return Response.ok().entity(result).build();
     }
 
     // A private class to represent the information we need for lemma links
@@ -315,19 +366,14 @@ public class DotExporter
      * Helper functions for variant graph production
      */
 
-    private static HashMap<Node, Node> getRepresentatives(Node sectionNode, String normaliseOn)
-            throws Exception {
-        if (normaliseOn == null) {
-            HashMap<Node, Node> representatives = new HashMap<>();
-            List<Node> sectionNodes = VariantGraphService.returnTraditionSection(sectionNode).nodes().stream()
-                    .filter(x -> x.hasLabel(Label.label("READING"))).collect(Collectors.toList());
-            for (Node n: sectionNodes) {
-                representatives.put(n, n);
-            }
-            return representatives;
-        } else {
-            return VariantGraphService.normalizeGraph(sectionNode, normaliseOn);
+    private static HashMap<Node, Node> getRepresentatives(Node sectionNode) {
+        HashMap<Node, Node> representatives = new HashMap<>();
+        List<Node> sectionNodes = VariantGraphService.returnTraditionSection(sectionNode).nodes().stream()
+                .filter(x -> x.hasLabel(Label.label("READING"))).collect(Collectors.toList());
+        for (Node n: sectionNodes) {
+            representatives.put(n, n);
         }
+        return representatives;
     }
 
     private static String nodeSpec(Node node, DisplayOptionModel dm) {
@@ -442,7 +488,7 @@ public class DotExporter
 
     private static Map<String, String[]> convertProps(Relationship rel) {
         Map<String, String[]> result = new HashMap<>();
-        for (String prop : rel.getPropertyKeys()) {
+        for (String prop : WitnessIndex.witnessClasses(rel)) {
             String[] witList = (String[]) rel.getProperty(prop);
             result.put(prop, witList);
         }
@@ -524,7 +570,6 @@ public class DotExporter
 
         String joinString = singleLine ? "  " : "\n";
         String output = String.join(joinString, outputLines);
-        writeFromDot(output);
 
         return Response.ok(output).build();
     }
@@ -601,22 +646,7 @@ public class DotExporter
 
     private void write(String str) throws IOException
     {
-        out.write(str.getBytes(StandardCharsets.UTF_8));
-    }
-
-
-    private void writeFromDot(String dot)
-    {
-        GraphViz gv = new GraphViz();
-        gv.add(dot);
-        File result;
-        try {
-            result = File.createTempFile("graph_", ".svg");
-        } catch (Exception e) {
-            System.out.println("Could not write " + "svg" + " to temporary file");
-            return;
-        }
-        gv.writeGraphToFile(gv.getGraph(gv.getDotSource(), "svg"), result);
+        out.write(str);
     }
 
 }
\ No newline at end of file
@@ -1,14 +1,19 @@
 package net.stemmaweb.exporter;
 
 import java.io.*;
-import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
 import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
@@ -17,7 +22,7 @@ import net.stemmaweb.rest.ERelations;
 import net.stemmaweb.rest.Nodes;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
 import net.stemmaweb.services.VariantGraphService;
-import org.apache.commons.compress.utils.IOUtils;
+import net.stemmaweb.services.WitnessIndex;
 import org.neo4j.graphdb.*;
 
 import com.sun.xml.txw2.output.IndentingXMLStreamWriter;
@@ -31,8 +36,18 @@ public class GraphMLExporter {
     private final GraphDatabaseServiceProvider dbServiceProvider = new GraphDatabaseServiceProvider();
     private final GraphDatabaseService db = dbServiceProvider.getDatabase();
 
-    private HashMap<String,String[]> nodeMap;
-    private HashMap<String,String[]> edgeMap;
+    // Each export keeps no more than this many of its sections in progress at once, to bound
+    // the memory it uses; the sections of all exports are built by one pool of this many threads.
+    private static final int SECTION_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final ThreadPoolExecutor SECTION_POOL = new ThreadPoolExecutor(
+            SECTION_THREADS, SECTION_THREADS, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+        Thread t = new Thread(r, "stemmarest-graphml");
+        t.setDaemon(true);
+        return t;
+    });
+    static {
+        SECTION_POOL.allowCoreThreadTimeOut(true);
+    }
 
     private void writeKeys(XMLStreamWriter writer, HashMap<String, String[]> currentMap, String kind)
             throws XMLStreamException{
@@ -47,7 +62,7 @@ public class GraphMLExporter {
             }
     }
 
-    private void writeNode(XMLStreamWriter writer, Node node) {
+    private void writeNode(XMLStreamWriter writer, Node node, HashMap<String, String[]> nodeMap) {
         try {
             writer.writeStartElement("node");
             writer.writeAttribute("id", String.valueOf(node.getId()));
@@ -59,7 +74,7 @@ public class GraphMLExporter {
             writer.writeEndElement();
 
             // Write out the properties
-            writeProperties(writer, node, nodeMap);
+            writeProperties(writer, node, nodeMap, "dn");
             // End the node
             writer.writeEndElement();
         } catch (XMLStreamException e) {
@@ -67,7 +82,7 @@ public class GraphMLExporter {
         }
     }
 
-    private void writeEdge(XMLStreamWriter writer, Relationship edge) {
+    private void writeEdge(XMLStreamWriter writer, Relationship edge, HashMap<String, String[]> edgeMap) {
         try {
             writer.writeStartElement("edge");
             writer.writeAttribute("id", String.valueOf(edge.getId()));
@@ -81,7 +96,7 @@ public class GraphMLExporter {
             writer.writeEndElement();
 
             // Write out the properties
-            writeProperties(writer, edge, edgeMap);
+            writeProperties(writer, edge, edgeMap, "de");
             // End the node
             writer.writeEndElement();
         } catch (XMLStreamException e) {
@@ -90,11 +105,10 @@ public class GraphMLExporter {
     }
 
     // TODO check for cases where the same property name has different types in different containers
-    private void writeProperties(XMLStreamWriter writer, PropertyContainer ent, HashMap<String, String[]> collection)
-            throws XMLStreamException {
-        String prefix = collection.equals(nodeMap) ? "dn" : "de";
+    private void writeProperties(XMLStreamWriter writer, PropertyContainer ent, HashMap<String, String[]> collection,
+                                 String prefix) throws XMLStreamException {
         for (String prop : ent.getPropertyKeys()) {
-            if (collection.containsKey(prop)) {
+            if (collection.containsKey(prop) && !WitnessIndex.isIndexProperty(prop)) {
                 writer.writeStartElement("data");
                 writer.writeAttribute("key", prefix + collection.get(prop)[0]);
                 String propValue;
@@ -114,6 +128,8 @@ public class GraphMLExporter {
     private void collectProperties (PropertyContainer ent, HashMap<String, String[]> collection) {
         int ctr = collection.size();
         for (String p : ent.getPropertyKeys()) {
+            // The witness index is rebuilt on import
+            if (WitnessIndex.isIndexProperty(p)) continue;
             String type = "string";
             Object prop = ent.getProperty(p);
             if (prop instanceof Long) type = "long";
@@ -133,9 +149,9 @@ public class GraphMLExporter {
         try (Transaction tx = db.beginTx()) {
             // First we have to go through all nodes and edges in the tradition or section we want,
             // compiling a list of node and edge attributes.
-            nodeMap = new HashMap<>();
+            HashMap<String, String[]> nodeMap = new HashMap<>();
             nodeMap.put("neolabel", new String[]{"0", "string"});
-            edgeMap = new HashMap<>();
+            HashMap<String, String[]> edgeMap = new HashMap<>();
             edgeMap.put("neolabel", new String[]{"0", "string"});
             int nodeCount = 0;
             int edgeCount = 0;
@@ -178,12 +194,12 @@ public class GraphMLExporter {
             HashSet<Long> addedNodes = new HashSet<>();
             for (Node n : collectionNodes)
                 if (!addedNodes.contains(n.getId())) {
-                    writeNode(writer, n);
+                    writeNode(writer, n, nodeMap);
                     addedNodes.add(n.getId());
                 }
 
             // And list out all the edges, which should already be unique in the traversal
-            collectionEdges.forEach(x -> writeEdge(writer, x));
+            collectionEdges.forEach(x -> writeEdge(writer, x, edgeMap));
 
             writer.writeEndElement(); // graph
             writer.writeEndElement(); // end graphml
@@ -195,7 +211,9 @@ public class GraphMLExporter {
 
     /**
      * Write a tradition, or a single section thereof, out to GraphML format. The result will be
-     * a zip file of XML files, one for the tradition metadata and one for each section.
+     * a zip file of XML files, one for the tradition metadata and one for each section. The zip
+     * is streamed to the response as it is made; the section files are made in parallel, each
+     * in its own transaction, and added to the zip in section order.
      *
      * @param tradId - The tradition to export
      * @param sectionId - The section to export; 'null' means export the whole tradition.
@@ -208,26 +226,18 @@ public class GraphMLExporter {
         if (traditionNode == null)
             return Response.status(Status.NOT_FOUND).build();
 
-        // Set up our output directory and the initial XML file stream
-        File tmpdirfh;
-        String tmpdir;
-        try {
-            tmpdirfh = Files.createTempDirectory(tradId).toFile();
-            tmpdir = tmpdirfh.getAbsolutePath();
-        } catch (IOException e) {
-            e.printStackTrace();
-            return Response.serverError().build();
-        }
-        ArrayList<String> outputFiles = new ArrayList<>();
         // Get the tradition meta-info
         ResourceIterable<Node> cn = VariantGraphService.returnTraditionMeta(traditionNode).nodes();
         ResourceIterable<Relationship> ce =
                 VariantGraphService.returnTraditionMeta(traditionNode).relationships();
 
-        List<Node> collectionNodes;
-        List<Relationship> collectionEdges;
+        // Write the tradition file before we start, so that any failure can still be reported.
+        byte[] traditionXML;
+        List<Node> allSections = new ArrayList<>();
         try (Transaction tx = db.beginTx()) {
             // Convert our ResourceIterables to Lists and filter out any unwanted sections
+            List<Node> collectionNodes;
+            List<Relationship> collectionEdges;
             if (sectionId == null) {
                 collectionNodes = cn.stream().collect(Collectors.toList());
                 collectionEdges = ce.stream().collect(Collectors.toList());
@@ -241,107 +251,83 @@ public class GraphMLExporter {
             }
             // Get any annotations pertaining to the tradition node itself and its metadata
             collectExtraNodesAndEdges(collectionNodes, collectionEdges);
-            tx.success();
-        } catch (Exception e) {
-            e.printStackTrace();
-            cleanup(tmpdirfh);
-            return Response.serverError().build();
-        }
+            traditionXML = toXML(tradId, collectionNodes, collectionEdges);
 
-        // Set up the XML output stream to the first file
-        XMLOutputFactory output = XMLOutputFactory.newInstance();
-        try {
-            String fileName = "tradition.xml";
-            FileWriter traditionMeta = new FileWriter(tmpdir + "/" + fileName);
-            XMLStreamWriter writer = new IndentingXMLStreamWriter(output.createXMLStreamWriter(traditionMeta));
-            outputXMLToStream(writer, tradId, collectionNodes, collectionEdges);
-            outputFiles.add(fileName);
+            // Work out which sections we want to output
+            if (sectionId != null)
+                allSections.add(db.getNodeById(Long.parseLong(sectionId)));
+            tx.success();
         } catch (Exception e) {
             e.printStackTrace();
-            cleanup(tmpdirfh);
             return Response.serverError().build();
         }
-
-        // Now do it all over again for each section we want to output.
-        List<Node> allSections = new ArrayList<>();
-        if (sectionId != null) {
-            try (Transaction tx = db.beginTx()) {
-                allSections.add(db.getNodeById(Long.parseLong(sectionId)));
-                tx.success();
-            } catch (Exception e) {
-                e.printStackTrace();
-                cleanup(tmpdirfh);
-                return Response.serverError().build();
-            }
-        } else {
+        if (sectionId == null)
             allSections = VariantGraphService.getSectionNodes(tradId, db);
-        }
-        for (Node s : allSections) {
-            String sectId = String.valueOf(s.getId());
-            // Gather the section-relevant nodes
-            ResourceIterable<Node> sectionNodes = VariantGraphService.returnTraditionSection(s).nodes();
-            ResourceIterable<Relationship> sectionEdges = VariantGraphService.returnTraditionSection(s).relationships();
-
-            // Convert ResourceIterables to lists and collect relevant annotations
-            List<Node> allSectNodes;
-            List<Relationship> allSectEdges;
-            try (Transaction tx = db.beginTx()) {
-                allSectNodes = sectionNodes.stream().collect(Collectors.toList());
-                allSectEdges = sectionEdges.stream().collect(Collectors.toList());
-                collectExtraNodesAndEdges(allSectNodes, allSectEdges);
-                tx.success();
-            } catch (Exception e) {
-                e.printStackTrace();
-                cleanup(tmpdirfh);
-                return Response.serverError().build();
-            }
-
-            // Set up the file stream and write out to it
-            XMLOutputFactory sectionOutput = XMLOutputFactory.newInstance();
-            try {
-                String fileName = String.format("section-%s.xml", sectId);
-                FileWriter traditionSection = new FileWriter(tmpdir + "/" + fileName);
-                XMLStreamWriter writer = new IndentingXMLStreamWriter(sectionOutput.createXMLStreamWriter(traditionSection));
-                outputXMLToStream(writer, sectId, allSectNodes, allSectEdges);
-                outputFiles.add(fileName);
-            } catch (Exception e) {
-                e.printStackTrace();
-                cleanup(tmpdirfh);
-                return Response.serverError().build();
-            }
+        final List<Node> sections = allSections;
 
-        }
+        StreamingOutput stream = out -> {
+            ZipOutputStream zipOut = new ZipOutputStream(new BufferedOutputStream(out));
+            addEntry(zipOut, "tradition.xml", traditionXML);
 
-        // Finally, assemble the contents of tmpdir into a zip file.
-        ByteArrayOutputStream result;
-        try {
-            result = new ByteArrayOutputStream();
-            BufferedOutputStream bos = new BufferedOutputStream(result);
-            ZipOutputStream zipOut = new ZipOutputStream(bos);
-            for (String fn : outputFiles) {
-                zipOut.putNextEntry(new ZipEntry(fn));
-                FileInputStream fis = new FileInputStream(tmpdir + "/" + fn);
-
-                IOUtils.copy(fis, zipOut);
-                fis.close();
-                zipOut.closeEntry();
+            // Keep a window of sections in progress, and add each to the zip as soon as it and
+            // all the sections before it are done.
+            ArrayDeque<Future<byte[]>> inProgress = new ArrayDeque<>();
+            try {
+                Iterator<Node> toDo = sections.iterator();
+                for (Node s : sections) {
+                    while (toDo.hasNext() && inProgress.size() < SECTION_THREADS) {
+                        Node next = toDo.next();
+                        inProgress.add(SECTION_POOL.submit(() -> sectionToXML(next)));
+                    }
+                    addEntry(zipOut, String.format("section-%d.xml", s.getId()), inProgress.remove().get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while exporting GraphML", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Could not export section to GraphML", e.getCause());
+            } finally {
+                // The pool is shared, so drop only our own sections if we stop early
+                inProgress.forEach(f -> f.cancel(true));
             }
             zipOut.finish();
             zipOut.flush();
-            IOUtils.closeQuietly(zipOut);
-            IOUtils.closeQuietly(bos);
-            IOUtils.closeQuietly(result);
-        } catch (Exception e) {
-            e.printStackTrace();
-            cleanup(tmpdirfh);
-            return Response.serverError().build();
-        }
-
-        cleanup(tmpdirfh);
+        };
 
         String sectionAppend = sectionId != null ? "-section-" + sectionId : "";
         String cdisp = String.format("attachment; filename=\"%s%s.zip\"", tradId, sectionAppend);
-        return Response.ok(result.toByteArray(), "application/zip").header("Content-Disposition", cdisp).build();
+        return Response.ok(stream, "application/zip").header("Content-Disposition", cdisp).build();
+    }
+
+    // Make the GraphML file for a section, in a transaction of its own
+    private byte[] sectionToXML(Node s) throws XMLStreamException {
+        try (Transaction tx = db.beginTx()) {
+            // Gather the section-relevant nodes and collect relevant annotations
+            List<Node> allSectNodes = VariantGraphService.returnTraditionSection(s).nodes().stream()
+                    .collect(Collectors.toList());
+            List<Relationship> allSectEdges = VariantGraphService.returnTraditionSection(s).relationships().stream()
+                    .collect(Collectors.toList());
+            collectExtraNodesAndEdges(allSectNodes, allSectEdges);
+            byte[] result = toXML(String.valueOf(s.getId()), allSectNodes, allSectEdges);
+            tx.success();
+            return result;
+        }
+    }
+
+    private byte[] toXML(String idLabel, List<Node> collectionNodes, List<Relationship> collectionEdges)
+            throws XMLStreamException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        XMLStreamWriter writer = new IndentingXMLStreamWriter(
+                XMLOutputFactory.newInstance().createXMLStreamWriter(result, "UTF-8"));
+        outputXMLToStream(writer, idLabel, collectionNodes, collectionEdges);
+        writer.close();
+        return result.toByteArray();
+    }
+
+    private static void addEntry(ZipOutputStream zipOut, String fileName, byte[] contents) throws IOException {
+        zipOut.putNextEntry(new ZipEntry(fileName));
+        zipOut.write(contents);
+        zipOut.closeEntry();
     }
 
     private void collectExtraNodesAndEdges(List<Node> startingNodes, List<Relationship> startingEdges) {
@@ -350,21 +336,11 @@ public class GraphMLExporter {
         startingNodes.addAll(extraNodes);
         // Add the relationships pointing from the annotations to the section and to each other
         List<Relationship> extraSectRels = new ArrayList<>();
+        Set<Node> included = new HashSet<>(startingNodes);
         for (Node n : extraNodes)
             for (Relationship r : n.getRelationships(Direction.OUTGOING))
-                if (startingNodes.contains(r.getEndNode()))
+                if (included.contains(r.getEndNode()))
                     extraSectRels.add(r);
         startingEdges.addAll(extraSectRels);
     }
-
-    private static void cleanup(File tmpdirfh) {
-        try {
-            for (File f : Objects.requireNonNull(tmpdirfh.listFiles()))
-                Files.delete(f.toPath());
-            Files.delete(tmpdirfh.toPath());
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-    }
-}
\ No newline at end of file
+}
@@ -22,6 +22,7 @@ import net.stemmaweb.rest.ERelations;
 
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
 import net.stemmaweb.services.VariantGraphService;
+import net.stemmaweb.services.WitnessIndex;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
@@ -171,7 +172,8 @@ public class StemmawebExporter {
 
             props = traditionNode.getPropertyKeys();
             for(String prop : props) {
-                if(prop !=null && !prop.equals("id") && !prop.equals("section_id")) {
+                if(prop !=null && !prop.equals("id") && !prop.equals("section_id")
+                        && !WitnessIndex.isIndexProperty(prop)) {
                     writer.writeStartElement("data");
                     writer.writeAttribute("key", graphMap.get(prop)[0]);
                     writer.writeCharacters(traditionNode.getProperty(prop).toString());
@@ -228,7 +230,7 @@ public class StemmawebExporter {
                     .relationships() ) {
                 if(rel!=null) {
                     edgeCountGraph1++;
-                    for (String property : rel.getPropertyKeys()) {
+                    for (String property : WitnessIndex.witnessClasses(rel)) {
                         String[] witnesses = (String[]) rel.getProperty(property);
                         for (String witness : witnesses) {
                             writer.writeStartElement("edge");
@@ -1,10 +1,18 @@
 package net.stemmaweb.exporter;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import com.opencsv.CSVWriterBuilder;
 import com.opencsv.ICSVWriter;
 import net.stemmaweb.model.AlignmentModel;
+import net.stemmaweb.model.RelationTypeModel;
 import net.stemmaweb.model.WitnessTokensModel;
 import net.stemmaweb.model.ReadingModel;
+import net.stemmaweb.rest.Nodes;
+import net.stemmaweb.services.NormalizedSection;
+import net.stemmaweb.services.SectionAlignment;
 import net.stemmaweb.services.VariantGraphService;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
@@ -13,11 +21,16 @@ import org.neo4j.graphdb.Transaction;
 
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static net.stemmaweb.Util.jsonerror;
 
@@ -49,48 +62,198 @@ public class TabularExporter {
     }
 
 
-    public Response exportAsCSV(String tradId, char separator, String conflate, List<String> sectionList,
-                                boolean excludeLayers) {
-        AlignmentModel wholeTradition;
+    /**
+     * Write out the JSON alignment of the given sections without building the tradition-wide
+     * AlignmentModel first. The output has the same structure as that of exportAsJSON, and the
+     * rows are the same, since both come from a SectionAlignment; if brief tokens are asked for,
+     * each token gives only the reading ID, text, normal form, and those of its flags that are set.
+     * <p>
+     * Each witness row spans every section, so the rows of all the sections are worked out
+     * before the response begins, and any failure to do so is returned as an error. The reading
+     * tokens are then made and written out one at a time. Should the output still fail partway,
+     * it is left unclosed, so that the client sees broken JSON rather than a short alignment.
+     *
+     * @param tradId        - the tradition to export
+     * @param conflate      - the relation type whose readings should be treated as identical, or null
+     * @param sectionList   - the sections to export, or an empty list for all of them
+     * @param excludeLayers - if true, leave out the witness layers
+     * @param briefTokens   - if true, write brief tokens rather than full reading models
+     * @return a Response whose entity streams the alignment
+     */
+    public Response streamAsJSON(String tradId, String conflate, List<String> sectionList,
+                                 boolean excludeLayers, boolean briefTokens) {
+        List<SectionAlignment> tables = new ArrayList<>();
         try {
-            wholeTradition = returnFullAlignment(tradId, conflate, sectionList, excludeLayers);
+            ArrayList<Node> traditionSections = getSections(tradId, sectionList);
+            if (traditionSections == null) return Response.status(Response.Status.NOT_FOUND).build();
+            try (Transaction tx = db.beginTx()) {
+                for (Node sectionNode : traditionSections)
+                    tables.add(sectionAlignment(sectionNode, conflate, excludeLayers));
+                tx.success();
+            }
         } catch (TabularExporterException e) {
             return Response.status(Response.Status.BAD_REQUEST).entity(jsonerror(e.getMessage())).build();
         } catch (Exception e) {
             return Response.serverError().entity(jsonerror(e.getMessage())).build();
         }
-        if (wholeTradition == null) return Response.status(Response.Status.NOT_FOUND).build();
 
-        // Got this far? Turn it into CSV.
-        // The CSV will go into a string that we can return.
-        StringWriter sw = new StringWriter();
-        ICSVWriter writer = new CSVWriterBuilder(sw)
-                .withSeparator(separator)
-                .withQuoteChar(separator == ',' ? ICSVWriter.DEFAULT_QUOTE_CHARACTER : ICSVWriter.NO_QUOTE_CHARACTER)
-                .build();
+        StreamingOutput stream = out -> {
+            // Each token is written out as soon as it is made, and nothing is kept of it
+            ObjectMapper mapper = new ObjectMapper().disable(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+            JsonGenerator gen = mapper.getFactory().createGenerator(out, JsonEncoding.UTF8)
+                    .disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+            try (Transaction tx = db.beginTx()) {
+                gen.writeStartObject();
+                gen.writeNumberField("length", tables.stream().mapToLong(SectionAlignment::getLength).sum());
+                gen.writeArrayFieldStart("alignment");
+                for (String sigil : allSigla(tables.stream().map(SectionAlignment::getSigla))) {
+                    String[] parsed = WitnessTokensModel.parseSigil(sigil);
+                    gen.writeStartObject();
+                    gen.writeStringField("witness", parsed[0]);
+                    if (parsed[1] != null) gen.writeStringField("layer", parsed[1]);
+                    gen.writeArrayFieldStart("tokens");
+                    for (SectionAlignment table : tables) {
+                        for (Node token : tokensFor(table, sigil, parsed[0])) {
+                            if (token == null)
+                                gen.writeNull();
+                            else if (briefTokens)
+                                writeBriefToken(gen, token);
+                            else
+                                mapper.writeValue(gen, table.getNormalized() == null
+                                        ? new ReadingModel(token) : new ReadingModel(token, table.getNormalized()));
+                        }
+                    }
+                    gen.writeEndArray();
+                    gen.writeEndObject();
+                }
+                gen.writeEndArray();
+                gen.writeEndObject();
+                tx.success();
+            } finally {
+                gen.close();
+            }
+        };
+        return Response.ok(stream, MediaType.APPLICATION_JSON_TYPE).build();
+    }
 
-        // First write out the witness list
-        writer.writeNext(wholeTradition.getAlignment().stream()
-                .map(WitnessTokensModel::constructSigil).toArray(String[]::new));
+    // A token with just enough information to identify and display the reading
+    private static void writeBriefToken(JsonGenerator gen, Node reading) throws IOException {
+        gen.writeStartObject();
+        gen.writeStringField("id", String.valueOf(reading.getId()));
+        if (reading.hasProperty("text"))
+            gen.writeStringField("text", reading.getProperty("text").toString());
+        if (reading.hasProperty("normal_form"))
+            gen.writeStringField("normal_form", reading.getProperty("normal_form").toString());
+        for (String flag : new String[]{"is_lacuna", "is_lemma", "is_nonsense", "join_next", "join_prior"})
+            if (reading.getProperty(flag, false).equals(true))
+                gen.writeBooleanField(flag, true);
+        if (reading.hasLabel(Nodes.EMENDATION))
+            gen.writeBooleanField("is_emendation", true);
+        gen.writeEndObject();
+    }
+
+    // The rows of the tradition-wide table, i.e. every row that appears in any section, sorted
+    private static List<String> allSigla(Stream<Set<String>> sectionSigla) {
+        TreeSet<String> sigla = new TreeSet<>();
+        sectionSigla.forEach(sigla::addAll);
+        return new ArrayList<>(sigla);
+    }
+
+    // The tokens of a row in one section. A witness layer that does not appear in the section
+    // takes the tokens of its base witness, and a witness that does not appear at all is empty.
+    private static List<Node> tokensFor(SectionAlignment table, String sigil, String baseSigil) {
+        if (table.hasRow(sigil)) return table.row(sigil);
+        if (table.hasRow(baseSigil)) return table.row(baseSigil);
+        return Collections.nCopies((int) table.getLength(), null);
+    }
+
+    // The alignment table of a section, normalized if asked for
+    private static SectionAlignment sectionAlignment(Node sectionNode, String conflate, boolean excludeLayers)
+            throws Exception {
+        return new SectionAlignment(sectionNode, conflate == null
+                ? null : new NormalizedSection(sectionNode, conflate), excludeLayers);
+    }
 
-        // Now write out the normal_form or text for the reading in each "row"
-        for (int i = 0; i < wholeTradition.getLength(); i++) {
-            AtomicInteger ai = new AtomicInteger(i);
-            writer.writeNext(wholeTradition.getAlignment().stream()
-                    .map(x -> {
-                        ReadingModel rm = x.getTokens().get(ai.get());
-                        return rm == null ? null : rm.normalized();
-                    }).toArray(String[]::new));
-        }
 
-        // Close off the CSV writer and return
+    /**
+     * Write out the alignment of the given sections as comma- or tab-separated values. Only
+     * the witness list is worked out before the response begins; the alignment of each section
+     * is then made in turn, its rows written out, and let go before the next is begun, so that
+     * neither the whole table nor the text of the file is ever held in memory. The rows are the
+     * same as those of the JSON alignment.
+     *
+     * @param tradId        - the tradition to export
+     * @param separator     - the field separator, either ',' or '\t'
+     * @param conflate      - the relation type whose readings should be treated as identical, or null
+     * @param sectionList   - the sections to export, or an empty list for all of them
+     * @param excludeLayers - if true, leave out the witness layers
+     * @return a Response whose entity streams the table
+     */
+    public Response exportAsCSV(String tradId, char separator, String conflate, List<String> sectionList,
+                                boolean excludeLayers) {
+        ArrayList<Node> traditionSections;
+        List<String> sigla;
         try {
-            writer.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+            traditionSections = getSections(tradId, sectionList);
+            if (traditionSections == null) return Response.status(Response.Status.NOT_FOUND).build();
+            try (Transaction tx = db.beginTx()) {
+                // A normalized section has the same rows as the section itself, so we need only
+                // make sure that the normalization can be done
+                if (conflate != null) {
+                    Node traditionNode = VariantGraphService.getTraditionNode(traditionSections.get(0));
+                    if (new RelationTypeModel(conflate).lookup(traditionNode) == null)
+                        throw new Exception("Relation type " + conflate + " does not exist in this tradition");
+                }
+                sigla = allSigla(traditionSections.stream().map(x -> SectionAlignment.sigla(x, excludeLayers)));
+                tx.success();
+            }
+        } catch (TabularExporterException e) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(jsonerror(e.getMessage())).build();
+        } catch (Exception e) {
             return Response.serverError().entity(jsonerror(e.getMessage())).build();
         }
-        return Response.ok(sw.toString()).build();
+
+        StreamingOutput stream = out -> {
+            Writer sink = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            ICSVWriter writer = new CSVWriterBuilder(sink)
+                    .withSeparator(separator)
+                    .withQuoteChar(separator == ',' ? ICSVWriter.DEFAULT_QUOTE_CHARACTER : ICSVWriter.NO_QUOTE_CHARACTER)
+                    .build();
+            try (Transaction tx = db.beginTx()) {
+                // First write out the witness list
+                writer.writeNext(sigla.toArray(new String[0]));
+
+                // Now write out the normal_form or text for the reading in each "row", one
+                // section at a time
+                String[] row = new String[sigla.size()];
+                for (Node sectionNode : traditionSections) {
+                    SectionAlignment table = sectionAlignment(sectionNode, conflate, excludeLayers);
+                    List<List<Node>> columns = new ArrayList<>();
+                    for (String sigil : sigla)
+                        columns.add(tokensFor(table, sigil, WitnessTokensModel.parseSigil(sigil)[0]));
+                    for (int i = 0; i < table.getLength(); i++) {
+                        for (int w = 0; w < row.length; w++)
+                            row[w] = normalizedText(columns.get(w).get(i));
+                        writer.writeNext(row);
+                    }
+                }
+                tx.success();
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException("Could not align section for export", e);
+            }
+            // Flush rather than close the writer; the container owns the response stream
+            writer.flush();
+        };
+        return Response.ok(stream).build();
+    }
+
+    // The text of a reading as it goes into a table cell, just as ReadingModel.normalized() gives it
+    private static String normalizedText(Node reading) {
+        if (reading == null) return null;
+        Object text = reading.getProperty("normal_form", reading.getProperty("text", null));
+        return text == null ? null : text.toString();
     }
 
 
@@ -218,9 +381,9 @@ public class TabularExporter {
         ArrayList<AlignmentModel> tables = new ArrayList<>();
         int length = 0;
         for (Node sectionNode : traditionSections) {
-            if (collapseRelated != null) VariantGraphService.normalizeGraph(sectionNode, collapseRelated);
-            AlignmentModel asJson = new AlignmentModel(sectionNode, excludeLayers);
-            if (collapseRelated != null) VariantGraphService.clearNormalization(sectionNode);
+            AlignmentModel asJson = collapseRelated == null
+                    ? new AlignmentModel(sectionNode, excludeLayers)
+                    : new AlignmentModel(new NormalizedSection(sectionNode, collapseRelated), excludeLayers);
             // Save the alignment to our tables list
             tables.add(asJson);
             length += asJson.getLength();
@@ -1,12 +1,11 @@
 package net.stemmaweb.model;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
-import net.stemmaweb.rest.ERelations;
-import net.stemmaweb.services.DatabaseService;
-import net.stemmaweb.services.VariantGraphService;
-import net.stemmaweb.services.WitnessPath;
-import org.neo4j.graphdb.*;
-import org.neo4j.graphdb.traversal.*;
+import net.stemmaweb.services.NormalizedSection;
+import net.stemmaweb.services.SectionAlignment;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
 
 import javax.xml.bind.annotation.XmlRootElement;
 import java.util.*;
@@ -40,101 +39,47 @@ public class AlignmentModel {
 
     // Get an alignment table
     public AlignmentModel(Node sectionNode, boolean excludeLayers) {
+        this(sectionNode, null, excludeLayers);
+    }
+
+    public AlignmentModel(NormalizedSection normalized) {
+        this(normalized, false);
+    }
+
+    // Get an alignment table of the normalized view of a section
+    public AlignmentModel(NormalizedSection normalized, boolean excludeLayers) {
+        this(normalized.getSectionNode(), normalized, excludeLayers);
+    }
+
+    // Get the rows of the alignment from a SectionAlignment, and make a token of each reading in them
+    private AlignmentModel(Node sectionNode, NormalizedSection normalized, boolean excludeLayers) {
         GraphDatabaseService db = sectionNode.getGraphDatabase();
 
         try (Transaction tx = db.beginTx()) {
-            String sectId = String.valueOf(sectionNode.getId());
-            Node traditionNode = VariantGraphService.getTraditionNode(sectionNode);
-            Node startNode = VariantGraphService.getStartNode(sectId, db);
-            Node endNode = VariantGraphService.getEndNode(sectId, db);
-
-            // First get the length, that's the easy part.
-            length = (long) endNode.getProperty("rank") - 1;
-
-            // See if we are computing a normalized table
-            RelationshipType seqType = ERelations.SEQUENCE;
-            if (startNode.hasRelationship(ERelations.NSEQUENCE, Direction.OUTGOING))
-                seqType = ERelations.NSEQUENCE;
-
-            // Get the traverser for the tradition readings
-            Traverser traversedTradition = db.traversalDescription().depthFirst()
-                    .relationships(seqType, Direction.OUTGOING)
-                    .evaluator(Evaluators.all())
-                    .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL).traverse(startNode);
-
-            // Now make the alignment.
+            SectionAlignment table = new SectionAlignment(sectionNode, normalized, excludeLayers);
+            length = table.getLength();
+
+            // Now make the alignment, whose rows come already sorted by sigil. A reading
+            // appears in many cells, but we only need to read it from the graph once; each
+            // cell then gets its own copy, so that changing one token changes no other.
             alignment = new ArrayList<>();
-            // For each witness, we make a 'tokens' array of the length of the tradition
-            // Get the witnesses in the database
-            ArrayList<Node> witnesses = DatabaseService.getRelated(traditionNode, ERelations.HAS_WITNESS);
-            for (Node w : witnesses) {
-                String sigil = w.getProperty("sigil").toString();
-                // Find out which witness layers we need to deal with
-                HashSet<String> layers = new HashSet<>();
-                layers.add("base");
-                if (!excludeLayers) {
-                    for (Relationship seq : traversedTradition.relationships()) {
-                        for (String layer : seq.getPropertyKeys()) {
-                            if (!layer.equals("witnesses")) {
-                                ArrayList<String> layerwits = new ArrayList<>(Arrays.asList((String[]) seq.getProperty(layer)));
-                                if (layerwits.contains(sigil)) layers.add(layer);
-                            }
-                        }
-                    }
-                }
-
-                // Now for each layer iteration, produce a set of tokens.
-                for (String layer : layers) {
-                    WitnessTokensModel witnessRow = new WitnessTokensModel();
-                    witnessRow.setWitness(sigil);
-                    if (!layer.equals("base")) {
-                        witnessRow.setLayer(layer);
-                    }
-
-                    // Make the object for the JSON token array
-                    ArrayList<ReadingModel> tokens = new ArrayList<>();
-
-                    // Get the witness readings for the given layer
-                    ArrayList<String> alternatives = new ArrayList<>();
-                    if (!layer.equals("base")) alternatives.add(layer);
-                    Evaluator e = new WitnessPath(sigil, alternatives, seqType).getEvalForWitness();
-                    ReadingModel filler;
-                    for (Node r : db.traversalDescription().depthFirst()
-                            .relationships(seqType, Direction.OUTGOING)
-                            .evaluator(e)
-                            .uniqueness(Uniqueness.NODE_PATH)
-                            .traverse(startNode)
-                            .nodes()) {
-                        if (r.hasProperty("is_end"))
-                            continue;
-
-                        // Make the reading token
-                        ReadingModel readingToken = new ReadingModel(r);
-                        // Check whether it was a lacuna
-                        if (readingToken.getIs_lacuna())
-                            filler = readingToken;
-                        else filler = null;
-
-                        // Put it at its proper rank, filling null bzw. lacuna tokens into the gap
-                        long currRankIndex = (long) r.getProperty("rank") - 1;
-                        for (int i = tokens.size(); i < currRankIndex; i++)
-                            tokens.add(filler);
-                        tokens.add(readingToken);
-                    }
-                    // Skip this witness if it is empty
-                    if (tokens.size() == 0) continue;
-
-                    // Fill in any empty ranks at the end
-                    for (int i = tokens.size(); i < length; i++)
-                        tokens.add(null);
-
-                    // Store the witness row and add it to the alignment
-                    witnessRow.setTokens(tokens);
-                    alignment.add(witnessRow);
-                }
+            Map<Node, ReadingModel> readingTokens = new HashMap<>();
+            for (String sigil : table.getSigla()) {
+                // Make the object for the JSON token array
+                ArrayList<ReadingModel> tokens = new ArrayList<>();
+                for (Node r : table.row(sigil))
+                    tokens.add(r == null ? null : new ReadingModel(readingTokens.computeIfAbsent(r,
+                            k -> normalized == null ? new ReadingModel(k) : new ReadingModel(k, normalized))));
+
+                // Store the witness row and add it to the alignment
+                String[] parsed = WitnessTokensModel.parseSigil(sigil);
+                WitnessTokensModel witnessRow = new WitnessTokensModel();
+                witnessRow.setWitness(parsed[0]);
+                if (parsed[1] != null)
+                    witnessRow.setLayer(parsed[1]);
+                witnessRow.setTokens(tokens);
+                alignment.add(witnessRow);
             }
-            Comparator<WitnessTokensModel> bySigil = Comparator.comparing(WitnessTokensModel::constructSigil);
-            alignment.sort(bySigil);
             tx.success();
         }
     }
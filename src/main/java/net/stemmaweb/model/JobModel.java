@@ -0,0 +1,166 @@
+package net.stemmaweb.model;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import net.stemmaweb.services.DeletionService;
+import net.stemmaweb.services.ImportJobService;
+
+/**
+ * This model reports on the progress of an import or a deletion that runs in the background.
+ * @author tla
+ */
+
+@XmlRootElement
+@JsonInclude(Include.NON_NULL)
+public class JobModel {
+    /**
+     * The ID of the job
+     */
+    private String id;
+    /**
+     * One of 'queued', 'running', 'succeeded' or 'failed'
+     */
+    private String status;
+    /**
+     * What the job is doing: 'waiting', 'parsing', 'cleaning up', 'deleting' or 'finished'
+     */
+    private String phase;
+    /**
+     * How much of the upload has been parsed, in bytes
+     */
+    private Long bytesRead;
+    /**
+     * The size of the upload in bytes
+     */
+    private Long bytesTotal;
+    /**
+     * Roughly how many nodes and relationships the import has created so far
+     */
+    private Long created;
+    /**
+     * How many nodes and relationships a deletion has removed so far
+     */
+    private Long deleted;
+    /**
+     * The ID of the tradition that the data is going into. For a new tradition, this is the
+     * final ID once the job has succeeded.
+     */
+    private String traditionId;
+    /**
+     * The ID of the new section, once the job has succeeded, if a section was uploaded;
+     * or the ID of the section being deleted
+     */
+    private String sectionId;
+    /**
+     * Why the job failed, if it did
+     */
+    private String error;
+
+    public JobModel() {}
+
+    public JobModel(ImportJobService.Job job) {
+        this.id = job.getId();
+        this.status = job.getStatus();
+        this.phase = job.getPhase();
+        this.bytesRead = job.getBytesRead();
+        this.bytesTotal = job.getBytesTotal();
+        this.created = job.getCreated();
+        this.traditionId = job.getTraditionId();
+        if (job.getSectionId() != null)
+            this.sectionId = String.valueOf(job.getSectionId());
+        this.error = job.getError();
+    }
+
+    public JobModel(DeletionService.Job job) {
+        this.id = job.getId();
+        this.status = job.getStatus();
+        this.phase = job.getPhase();
+        this.deleted = job.getDeleted();
+        this.traditionId = job.getTraditionId();
+        if (job.getSectionId() != null)
+            this.sectionId = String.valueOf(job.getSectionId());
+        this.error = job.getError();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public String getPhase() {
+        return phase;
+    }
+
+    public void setPhase(String phase) {
+        this.phase = phase;
+    }
+
+    public Long getBytesRead() {
+        return bytesRead;
+    }
+
+    public void setBytesRead(Long bytesRead) {
+        this.bytesRead = bytesRead;
+    }
+
+    public Long getBytesTotal() {
+        return bytesTotal;
+    }
+
+    public void setBytesTotal(Long bytesTotal) {
+        this.bytesTotal = bytesTotal;
+    }
+
+    public Long getCreated() {
+        return created;
+    }
+
+    public void setCreated(Long created) {
+        this.created = created;
+    }
+
+    public Long getDeleted() {
+        return deleted;
+    }
+
+    public void setDeleted(Long deleted) {
+        this.deleted = deleted;
+    }
+
+    public String getTraditionId() {
+        return traditionId;
+    }
+
+    public void setTraditionId(String traditionId) {
+        this.traditionId = traditionId;
+    }
+
+    public String getSectionId() {
+        return sectionId;
+    }
+
+    public void setSectionId(String sectionId) {
+        this.sectionId = sectionId;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+}
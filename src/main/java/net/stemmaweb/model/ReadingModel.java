@@ -3,6 +3,8 @@ package net.stemmaweb.model;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import net.stemmaweb.rest.ERelations;
 import net.stemmaweb.rest.Nodes;
+import net.stemmaweb.services.NormalizedSection;
+import net.stemmaweb.services.WitnessIndex;
 import org.checkerframework.checker.nullness.qual.NonNull;
 import javax.xml.bind.annotation.XmlRootElement;
 
@@ -129,14 +131,23 @@ public class ReadingModel implements Comparable<ReadingModel> {
      * @param node - The node with label READING from which the model should take its values
      */
     public ReadingModel(Node node) {
+        this(node, null);
+    }
+
+    /**
+     * Generates a model from a Neo4j Node, as it appears in the given normalized view of its section
+     * @param node - The node with label READING from which the model should take its values
+     * @param normalized - The normalized view of the section, or null for the un-normalized graph
+     */
+    public ReadingModel(Node node, NormalizedSection normalized) {
         try (Transaction tx = node.getGraphDatabase().beginTx()) {
             if (node.hasProperty("grammar_invalid"))
                 this.setGrammar_invalid((Boolean) node.getProperty("grammar_invalid"));
             this.setId(String.valueOf(node.getId()));
             this.setSection(node.getProperty("section_id").toString());
-            // If there is an "ncommon" property, use this in preference to "is_common"
-            // because it means we are in normalized mode
-            this.setIs_common(node.getProperty("ncommon", node.getProperty("is_common", false)).equals(true));
+            // If we are in normalized mode, use its idea of commonality in preference to "is_common"
+            Boolean ncommon = normalized == null ? null : normalized.isCommon(node);
+            this.setIs_common(ncommon != null ? ncommon : node.getProperty("is_common", false).equals(true));
             if (node.hasProperty("is_end"))
                 this.setIs_end((Boolean) node.getProperty("is_end"));
             if (node.hasProperty("is_lacuna"))
@@ -186,13 +197,14 @@ public class ReadingModel implements Comparable<ReadingModel> {
             // Get the witnesses
             HashSet<String> collectedWits = new HashSet<>();
             List<Relationship> seq = new ArrayList<>();
-            // If we are operating under normalization, we need to look at the NSEQUENCE links rather than
+            // If we are operating under normalization, we need to look at the normalized links rather than
             // the SEQUENCE links, but in this case the SEQUENCE links will be redundant so there is no
             // harm in looking at them anyway.
             node.getRelationships(ERelations.SEQUENCE, Direction.BOTH).forEach(seq::add);
-            node.getRelationships(ERelations.NSEQUENCE, Direction.BOTH).forEach(seq::add);
+            if (normalized != null)
+                seq.addAll(normalized.getSequences(node, Direction.BOTH));
             for (Relationship r : seq) {
-                for (String prop : r.getPropertyKeys()) {
+                for (String prop : WitnessIndex.witnessClasses(r)) {
                     String[] sigla = (String[]) r.getProperty(prop);
                     if (prop.equals("witnesses")) {
                         collectedWits.addAll(Arrays.asList(sigla));
@@ -204,13 +216,47 @@ public class ReadingModel implements Comparable<ReadingModel> {
             this.witnesses = new ArrayList<>(collectedWits);
             this.witnesses.sort(String::compareTo);
             // Get any represented readings
-            for (Relationship r : node.getRelationships(ERelations.REPRESENTS, Direction.OUTGOING)) {
-                this.addRepresented(new ReadingModel(r.getEndNode()));
-            }
+            if (normalized != null)
+                for (Node n : normalized.getRepresented(node))
+                    this.addRepresented(new ReadingModel(n));
             tx.success();
         }
     }
 
+    /**
+     * Makes a copy of another model, which shares no mutable state with it
+     * @param other - The model to copy
+     */
+    public ReadingModel(ReadingModel other) {
+        this.id = other.id;
+        this.section = other.section;
+        this.is_common = other.is_common;
+        this.is_end = other.is_end;
+        this.is_lacuna = other.is_lacuna;
+        this.is_lemma = other.is_lemma;
+        this.is_emendation = other.is_emendation;
+        this.is_nonsense = other.is_nonsense;
+        this.is_ph = other.is_ph;
+        this.is_start = other.is_start;
+        this.grammar_invalid = other.grammar_invalid;
+        this.join_next = other.join_next;
+        this.join_prior = other.join_prior;
+        this.language = other.language;
+        this.lexemes = other.lexemes;
+        this.normal_form = other.normal_form;
+        this.rank = other.rank;
+        this.text = other.text;
+        this.orig_reading = other.orig_reading;
+        this.display = other.display;
+        this.annotation = other.annotation;
+        this.extra = other.extra;
+        this.authority = other.authority;
+        if (other.witnesses != null)
+            this.witnesses = new ArrayList<>(other.witnesses);
+        if (other.represented != null)
+            other.represented.forEach(x -> this.addRepresented(new ReadingModel(x)));
+    }
+
     public ReadingModel() {
     }
 
@@ -0,0 +1,83 @@
+package net.stemmaweb.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+/**
+ * This model contains the result of creating a batch of relations: the relations created and
+ * the readings whose ranks changed, as for a single relation, together with a list of the
+ * requested relations that could not be made.
+ * @author tla
+ */
+
+@XmlRootElement
+@JsonInclude(Include.NON_NULL)
+public class RelationBatchModel extends GraphModel {
+    /**
+     * The requested relations that were not created, and why
+     */
+    private List<Conflict> conflicts = new ArrayList<>();
+
+    public List<Conflict> getConflicts() {
+        return conflicts;
+    }
+
+    public void setConflicts(List<Conflict> conflicts) {
+        this.conflicts = conflicts;
+    }
+
+    public void addConflict(Conflict conflict) { this.conflicts.add(conflict); }
+
+    /**
+     * A relation from the batch that was not created.
+     */
+    @JsonInclude(Include.NON_NULL)
+    public static class Conflict {
+        /**
+         * The position of the relation in the request, counting from zero
+         */
+        private int index;
+        /**
+         * The relation as it was requested
+         */
+        private RelationModel relation;
+        /**
+         * The HTTP status that a single request for this relation would have returned
+         */
+        private int status;
+        /**
+         * The reason the relation was not created
+         */
+        private String error;
+
+        public Conflict() {}
+
+        public Conflict(int index, RelationModel relation, int status, String error) {
+            this.index = index;
+            this.relation = relation;
+            this.status = status;
+            this.error = error;
+        }
+
+        public int getIndex() { return index; }
+
+        public void setIndex(int index) { this.index = index; }
+
+        public RelationModel getRelation() { return relation; }
+
+        public void setRelation(RelationModel relation) { this.relation = relation; }
+
+        public int getStatus() { return status; }
+
+        public void setStatus(int status) { this.status = status; }
+
+        public String getError() { return error; }
+
+        public void setError(String error) { this.error = error; }
+    }
+}
@@ -3,6 +3,7 @@ package net.stemmaweb.model;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import net.stemmaweb.rest.ERelations;
 import net.stemmaweb.rest.Nodes;
+import net.stemmaweb.services.RelationTypeRegistry;
 import org.checkerframework.checker.nullness.qual.NonNull;
 import org.neo4j.graphdb.*;
 
@@ -197,13 +198,10 @@ public class RelationTypeModel implements Comparable<RelationTypeModel> {
         GraphDatabaseService db = traditionNode.getGraphDatabase();
         Node relTypeNode = null;
         try (Transaction tx = db.beginTx()) {
-            // First see if there is a type with this name
-            for (Relationship r : traditionNode.getRelationships(ERelations.HAS_RELATION_TYPE, Direction.OUTGOING)) {
-                if (r.getEndNode().getProperty("name").toString().equals(this.thename)) {
-                    relTypeNode = r.getEndNode();
-                    break;
-                }
-            }
+            // See if there is a type with this name
+            Long relTypeId = RelationTypeRegistry.forTradition(traditionNode).nodeIdOf(this.thename);
+            if (relTypeId != null)
+                relTypeNode = db.getNodeById(relTypeId);
             tx.success();
         } catch (Exception e) {
             e.printStackTrace();
@@ -221,6 +219,7 @@ public class RelationTypeModel implements Comparable<RelationTypeModel> {
                 relType = db.createNode(Nodes.RELATION_TYPE);
                 this.update_reltype(relType);
                 traditionNode.createRelationshipTo(relType, ERelations.HAS_RELATION_TYPE);
+                RelationTypeRegistry.invalidate(traditionNode);
             } else {
                 // Check that the node matches our values, if it does exist
                 if (!(this.description.equals(relType.getProperty("description"))
@@ -230,8 +229,10 @@ public class RelationTypeModel implements Comparable<RelationTypeModel> {
                         && this.is_transitive == relType.getProperty("is_transitive")
                         && this.is_generalizable == relType.getProperty("is_generalizable")
                         && this.use_regular == relType.getProperty("use_regular"))) {
-                    if (allow_update) this.update_reltype(relType);
-                    else throw new Exception("Another relation type by this name already exists");
+                    if (!allow_update)
+                        throw new Exception("Another relation type by this name already exists");
+                    this.update_reltype(relType);
+                    RelationTypeRegistry.invalidate(traditionNode);
                 }
             }
             tx.success();
@@ -1,6 +1,7 @@
 package net.stemmaweb.model;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
+import net.stemmaweb.services.WitnessIndex;
 import org.neo4j.graphdb.Relationship;
 
 import javax.xml.bind.annotation.XmlRootElement;
@@ -56,7 +57,7 @@ public class SequenceModel {
         target = rel.getEndNode().getId() + "";
         id = Long.toString(rel.getId());
 
-        for (String p : rel.getPropertyKeys()) {
+        for (String p : WitnessIndex.witnessClasses(rel)) {
             if (p.equals("witnesses"))
                 setWitnesses(Arrays.asList((String[]) rel.getProperty("witnesses")));
             else {
@@ -2,10 +2,11 @@ package net.stemmaweb.model;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
 import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.services.NormalizedSection;
 import net.stemmaweb.services.RelationService;
 import net.stemmaweb.services.VariantCrawler;
 import net.stemmaweb.services.VariantGraphService;
-import net.stemmaweb.services.WitnessPath;
+import net.stemmaweb.services.WitnessCursor;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.traversal.TraversalDescription;
 import org.neo4j.graphdb.traversal.Uniqueness;
@@ -75,7 +76,7 @@ public class VariantListModel {
      *                    values are "no", "maybe" and "yes".
      * @param combine     - whether to move variants marked as dislocations to the variant location of
      *                    their corresponding base readings
-     * @throws Exception (anything thrown by clearNormalization)
+     * @throws Exception (anything thrown by the section normalization)
      */
     public VariantListModel(Node sectionNode, String baseWitness, List<String> excludeWitnesses, String conflate,
                             String suppress, Boolean filterNonsense, Boolean filterTypeOne, String significant,
@@ -97,11 +98,7 @@ public class VariantListModel {
         if (conflate == null) conflate = "";
         GraphDatabaseService db = sectionNode.getGraphDatabase();
         try (Transaction tx = db.beginTx()) {
-            RelationshipType follow = ERelations.SEQUENCE;
-            if (!conflate.equals("")) {
-                VariantGraphService.normalizeGraph(sectionNode, conflate);
-                follow = ERelations.NSEQUENCE;
-            }
+            NormalizedSection normalized = conflate.equals("") ? null : new NormalizedSection(sectionNode, conflate);
 
             // Figure out which types are dislocation types in this tradition
             this.dislocationTypes = new ArrayList<>();
@@ -115,13 +112,12 @@ public class VariantListModel {
             TraversalDescription baseWalker = db.traversalDescription().depthFirst();
             List<Relationship> baseText;
             if (baseWitness != null) {
-                // We use the requested witness text, which is connected via SEQUENCE or NSEQUENCE
+                // We use the requested witness text, which is connected via SEQUENCE or normalized
                 // links and so unproblematic.
-                baseWalker = baseWalker.evaluator(new WitnessPath(baseWitness, follow).getEvalForWitness());
-                baseText = baseWalker.traverse(startNode).relationships().stream().collect(Collectors.toList());
+                baseText = new WitnessCursor(startNode, baseWitness, new ArrayList<>(), normalized).links();
                 this.basisText = baseWitness;
             } else {
-                // We collect the readings, but count their SEQUENCE or NSEQUENCE links in the base text.
+                // We collect the readings, but count their SEQUENCE or normalized links in the base text.
                 List<Node> baseReadings;
                 if (startNode.hasRelationship(ERelations.LEMMA_TEXT, Direction.OUTGOING)) {
                     // We traverse the lemma text
@@ -130,24 +126,29 @@ public class VariantListModel {
                     this.basisText = "lemma";
                 } else {
                     // We calculate and use the majority text
-                    baseReadings = VariantGraphService.calculateMajorityText(sectionNode);
+                    baseReadings = normalized == null
+                            ? VariantGraphService.calculateMajorityText(sectionNode)
+                            : VariantGraphService.calculateMajorityText(normalized);
                     this.basisText = "majority";
                 }
                 baseText = new ArrayList<>();
                 Node prior = baseReadings.remove(0);
                 for (Node curr : baseReadings) {
-                    prior.getRelationships(follow, Direction.OUTGOING).forEach(x -> {
+                    Iterable<Relationship> priorLinks = normalized == null
+                            ? prior.getRelationships(ERelations.SEQUENCE, Direction.OUTGOING)
+                            : normalized.getSequences(prior, Direction.OUTGOING);
+                    priorLinks.forEach(x -> {
                         if (x.getEndNode().equals(curr)) baseText.add(x);});
                     prior = curr;
                 }
             }
 
-            this.findVariants(db, baseText, excludeWitnesses, follow);
+            this.findVariants(db, baseText, excludeWitnesses, normalized);
 
             // Filter readings by regex / nonsense flag as needed. Pass the base text in case
             // any before/after reading settings need to be altered.
-            List<ReadingModel> baseChain = baseText.stream().map(x -> new ReadingModel(x.getEndNode())).collect(Collectors.toList());
-            baseChain.add(0, new ReadingModel(baseText.get(0).getStartNode()));
+            List<ReadingModel> baseChain = baseText.stream().map(x -> new ReadingModel(x.getEndNode(), normalized)).collect(Collectors.toList());
+            baseChain.add(0, new ReadingModel(baseText.get(0).getStartNode(), normalized));
             this.filterReadings(baseChain);
 
             // Filter for type1 variants
@@ -161,18 +162,14 @@ public class VariantListModel {
             // Combine dislocations if we were asked to
             if (combine) this.combineDisplacements();
 
-            // Clean up if we normalised
-            if (!conflate.equals(""))
-                VariantGraphService.clearNormalization(sectionNode);
-
             tx.success();
         }
     }
 
     private void findVariants (GraphDatabaseService db, List<Relationship> sequence, List<String> excludeWitnesses,
-                               RelationshipType follow) {
+                               NormalizedSection normalized) {
         // Create the evaluator we need
-        VariantCrawler crawler = new VariantCrawler(sequence, follow, excludeWitnesses);
+        VariantCrawler crawler = new VariantCrawler(sequence, normalized, excludeWitnesses);
         // Set up the traversal for the path segments we want
         try (Transaction tx = db.beginTx()) {
             TraversalDescription traverser = db.traversalDescription().depthFirst()
@@ -185,12 +182,12 @@ public class VariantListModel {
             // We have to run the traverser from each node in the base chain, to get any variants that start there.
             for (Node n : baseChain) {
                 for (org.neo4j.graphdb.Path v : traverser.traverse(n)) {
-                    VariantModel vm = new VariantModel(v, crawler.getWitnessesForPath(v));
+                    VariantModel vm = new VariantModel(v, crawler.getWitnessesForPath(v), normalized);
                     // Sanity check
                     // if (!baseChain.contains(v.startNode()) || !baseChain.contains(v.endNode()))
                     //     throw new Exception("Variant chain disconnected from base chain");
                     if (!vm.isEmpty()) {
-                        VariantLocationModel vloc = this.getVLM(baseChain, v.startNode(), v.endNode());
+                        VariantLocationModel vloc = this.getVLM(baseChain, v.startNode(), v.endNode(), normalized);
                         vloc.addVariant(vm);
                     }
                 }
@@ -208,7 +205,8 @@ public class VariantListModel {
 
     private VariantLocationModel getVLM(List<Node> baseChain,
                                         Node vStart,
-                                        Node vEnd) {
+                                        Node vEnd,
+                                        NormalizedSection normalized) {
         // Retrieve any existing VariantLocationModel, or create a new one
         VariantLocationModel vlm = new VariantLocationModel();
         String key = String.format("%d -- %d", vStart.getId(), vEnd.getId());
@@ -222,7 +220,7 @@ public class VariantListModel {
             // Turn our sub-chain into reading models
             List<ReadingModel> baseReadings = baseChain
                     .subList(baseChain.indexOf(vStart), baseChain.indexOf(vEnd)+1)
-                    .stream().map(ReadingModel::new).collect(Collectors.toList());
+                    .stream().map(x -> new ReadingModel(x, normalized)).collect(Collectors.toList());
             // Set the reading models in place in the VLM
             vlm.setBefore(baseReadings.remove(0));
             vlm.setAfter(baseReadings.remove(baseReadings.size() - 1));
@@ -232,7 +230,7 @@ public class VariantListModel {
                 vlm.setRankIndex(baseReadings.get(0).getRank());
             else
                 vlm.setRankIndex(vlm.getBefore().getRank() + 1);
-            vlm.setNormalised(vStart.hasRelationship(ERelations.NSEQUENCE, Direction.OUTGOING));
+            vlm.setNormalised(normalized != null);
             this.variantlist.add(vlm);
         }
         return vlm;
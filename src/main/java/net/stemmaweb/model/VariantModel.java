@@ -3,6 +3,7 @@ package net.stemmaweb.model;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.services.NormalizedSection;
 import net.stemmaweb.services.ReadingService;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Path;
@@ -34,18 +35,20 @@ public class VariantModel {
     /**
      * Initialize a variant model from a given Neo4J path, assumed to be a valid variant path.
      * @param p - the Neo4J path to initialize from
+     * @param vWits - the witnesses, by layer, that follow the path
+     * @param normalized - the normalized section view that the path was found in, if any
      */
-    VariantModel (Path p, Map<String,Set<String>> vWits) {
+    VariantModel (Path p, Map<String,Set<String>> vWits, NormalizedSection normalized) {
         // Get the readings
         List<ReadingModel> vReadings = new ArrayList<>();
-        p.nodes().forEach(x -> vReadings.add(new ReadingModel(x)));
+        p.nodes().forEach(x -> vReadings.add(new ReadingModel(x, normalized)));
         // Remove the first and last (common) readings
         vReadings.remove(0);
         vReadings.remove(vReadings.size()-1);
         this.setReadings(vReadings);
 
         // Set the "normal" flag appropriately
-        this.setNormal(p.startNode().hasRelationship(ERelations.NSEQUENCE, Direction.OUTGOING));
+        this.setNormal(normalized != null);
 
         // Now add the witnesses / layers that belong to the path, making sure to keep the sigla sorted.
         Map<String, List<String>> endWitnesses = new HashMap<>();
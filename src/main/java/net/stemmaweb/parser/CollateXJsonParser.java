@@ -1,22 +1,22 @@
 package net.stemmaweb.parser;
 
-import net.stemmaweb.model.ReadingModel;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import net.stemmaweb.rest.Nodes;
 import net.stemmaweb.services.VariantGraphService;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.ImportBatch;
 import net.stemmaweb.services.ReadingService;
-import org.apache.commons.io.IOUtils;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
-import org.neo4j.graphdb.Transaction;
 
 import javax.ws.rs.core.Response;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 import static net.stemmaweb.Util.jsonerror;
@@ -26,169 +26,81 @@ public class CollateXJsonParser {
 
     private final GraphDatabaseServiceProvider dbServiceProvider = new GraphDatabaseServiceProvider();
     private final GraphDatabaseService db = dbServiceProvider.getDatabase();
+    private final ImportBatch batch;
+
+    public CollateXJsonParser(ImportBatch batch) {
+        this.batch = batch;
+    }
 
     /**
      * Parse a CollateX JSON input stream and attach it to the given (section) parentNode.
+     * <p>
+     * The JSON is read as a stream, and the readings of each row of the alignment table are
+     * created as soon as the row has been read, so that no more than one row of the collation
+     * is held in memory at a time. This depends on the witness list coming before the table,
+     * as it does in the CollateX output; if it doesn't, the table has to be read in whole first.
      *
      * @param filestream - The data to parse
      * @param parentNode - The section node that will carry the parsed data
      * @return a Response to indicate the result
      */
     public Response parseCollateXJson(InputStream filestream, Node parentNode) {
-        // parse the JSON
-        ArrayList<String> collationWitnesses = new ArrayList<>();
-        ArrayList<ArrayList<ReadingModel>> collationTable = new ArrayList<>();
-
-        // JSON parsing block; turn CollateX JSON into our model classes.
-        // Needs its own try/catch for JSON exceptions
-        try {
-            JSONObject table = new JSONObject(IOUtils.toString(filestream, StandardCharsets.UTF_8));
-            // get the witness list from the clunky JSON interface
-            JSONArray jWit = table.getJSONArray("witnesses");
-            // Is the list of witnesses a list of sigla, or a list of id/token objects? If the latter,
-            // tell the user they are trying to use CollateX input.
-            Object firstWit = jWit.get(0);
-            if (firstWit instanceof JSONObject)
-                return Response.status(Response.Status.BAD_REQUEST)
-                        .entity(jsonerror("Bad format: is this CollateX JSON input instead of output?")).build();
-            for (int i = 0; i < jWit.length(); i++) collationWitnesses.add(jWit.getString(i));
-
-            // get the table data from the clunky JSON interface
-            JSONArray jAlign = table.getJSONArray("table");
-            for (int i = 0; i < jAlign.length(); i++) {
-                ArrayList<ReadingModel> row = new ArrayList<>();
-                JSONArray jrow = jAlign.getJSONArray(i);
-                for (int j = 0; j < jrow.length(); j++) {
-                    String rtext = "";
-                    String rnormal = "";
-                    String rdisplay = "";
-                    boolean joinPrior = false;
-                    Boolean joinNext = false;
-                    JSONArray jcell = jrow.getJSONArray(j);
-                    JSONArray rownames = new JSONArray();
-                    JSONArray rowsource = new JSONArray();
-                    for (int k = 0; k < jcell.length(); k++) {
-                        JSONObject jtoken = jcell.getJSONObject(k);
-                        if (k == 0) {
-                            joinPrior = jtoken.has("join_prior") && jtoken.getBoolean("join_prior");
-                            jtoken.remove("join_prior");
-                        }
-                        // Patch together reading attributes from the CollateX token object:
-                        // Reading text
-                        String thisToken = jtoken.getString("t");
-                        rtext = readingAppend(rtext, jtoken, "t", joinNext);
-                        // Normal form
-                        if (jtoken.has("normal_form"))
-                            rnormal = readingAppend(rnormal, jtoken, "normal_form", joinNext);
-                        else
-                            rnormal = readingAppend(rnormal, jtoken, "t", joinNext);
-                        if (jtoken.has("display"))
-                            rdisplay = readingAppend(rdisplay, jtoken, "display", joinNext);
-                        else
-                            rdisplay = readingAppend(rdisplay, jtoken, "t", joinNext);
-                        jtoken.remove("t");
-                        jtoken.remove("normal_form");
-                        jtoken.remove("display");
-                        // Join_next attribute; the last value will prevail
-                        joinNext = jtoken.has("join_next") && jtoken.getBoolean("join_next");
-                        jtoken.remove("join_next");
-                        // Save the remaining token contents as a string in the annotation field, for future reference
-                        if (jtoken.length() > 0) {
-                            rownames.put(thisToken);
-                            rowsource.put(jtoken);
-                        }
-                    }
-                    ReadingModel rdg = new ReadingModel();
-                    // These might all be blank
-                    rdg.setText(rtext);
-                    rdg.setNormal_form(rnormal);
-                    // Only set the display value if it differs from the token itself
-                    if (!rdisplay.equals(rtext))
-                        rdg.setDisplay(rdisplay);
-                    rdg.setJoin_next(joinNext);
-                    rdg.setJoin_prior(joinPrior);
-                    if (rowsource.length() > 1)
-                        rdg.setExtra(rowsource.toJSONObject(rownames).toString());
-                    else if (rowsource.length() == 1)
-                        rdg.setExtra(rowsource.getJSONObject(0).toString());
-                    row.add(rdg);
-                }
-                collationTable.add(row);
-            }
-        } catch (JSONException|IOException e) {
-            e.printStackTrace();
-            return Response.serverError().entity(jsonerror(e.getMessage())).build();
-        }
-
-        // Now we have the data in our own model classes; proceed.
+        ObjectMapper mapper = new ObjectMapper();
         Node traditionNode = VariantGraphService.getTraditionNode(parentNode);
-        try (Transaction tx = db.beginTx()) {
-            // Check that we have all the witnesses
-            for (String witString : collationWitnesses) {
-                List<String> wit = parseWitnessSigil(witString);
-                String sigil = wit.get(0);
-                Util.findOrCreateExtant(traditionNode, sigil);
-            }
-
-            // Create the start node for the section
-            Node startNode = Util.createStartNode(parentNode);
+        try (JsonParser json = mapper.getFactory().createParser(filestream);
+             ImportBatch.Scope tx = batch.begin()) {
+            if (json.nextToken() != JsonToken.START_OBJECT)
+                return Response.serverError().entity(jsonerror("No collation object found")).build();
+            ArrayList<String> collationWitnesses = null;
             HashMap<String, Node> lastWitnessReading = new HashMap<>();
-            collationWitnesses.forEach(x -> lastWitnessReading.put(x, startNode));
-
-            // Now create all the readings from our models
+            // A table that came before its witness list, and so had to be read in whole
+            JsonNode heldTable = null;
+            boolean seenTable = false;
             long rank = 1L;
-            for (ArrayList<ReadingModel> row : collationTable) {
-                HashMap<String, Node> createdReadings = new HashMap<>();
-                int distinct = 0;
-                for (int w = 0; w < row.size(); w++) {
-                    ReadingModel rm = row.get(w);
-                    String thisWitness = collationWitnesses.get(w);
-                    List<String> witParts = parseWitnessSigil(thisWitness);
-                    String lookupKey = String.join(rm.getText(), rm.getNormal_form(), rm.getDisplay(),
-                            rm.getJoin_next().toString(), rm.getJoin_prior().toString());
-                    if (lookupKey.equals("nullfalsefalse")) {
-                        distinct++;
-                        continue;  // Don't add blank readings
+            while (json.nextToken() == JsonToken.FIELD_NAME) {
+                String field = json.getCurrentName();
+                json.nextToken();
+                if (field.equals("witnesses")) {
+                    JsonNode jWit = mapper.readTree(json);
+                    if (!jWit.isArray() || jWit.size() == 0)
+                        return Response.serverError().entity(jsonerror("No witnesses found")).build();
+                    // Is the list of witnesses a list of sigla, or a list of id/token objects? If the latter,
+                    // tell the user they are trying to use CollateX input.
+                    if (jWit.get(0).isObject())
+                        return Response.status(Response.Status.BAD_REQUEST)
+                                .entity(jsonerror("Bad format: is this CollateX JSON input instead of output?")).build();
+                    collationWitnesses = new ArrayList<>();
+                    for (JsonNode w : jWit) collationWitnesses.add(w.asText());
+
+                    // Check that we have all the witnesses
+                    for (String witString : collationWitnesses) {
+                        List<String> wit = parseWitnessSigil(witString);
+                        String sigil = wit.get(0);
+                        Util.findOrCreateExtant(traditionNode, sigil);
                     }
-                    Node thisReading;
-                    if (createdReadings.containsKey(lookupKey)) {
-                        thisReading = createdReadings.get(lookupKey);
-                        thisReading.setProperty("extra",
-                                expandExtraField(thisReading.getProperty("extra").toString(),
-                                        witParts, rm.getExtra()));
-                    } else {
-                        thisReading = db.createNode(Nodes.READING);
-                        thisReading.setProperty("text", rm.getText());
-                        thisReading.setProperty("normal_form", rm.getNormal_form());
-                        if (rm.getDisplay() != null)
-                            thisReading.setProperty("display", rm.getDisplay());
-                        thisReading.setProperty("join_prior", rm.getJoin_prior());
-                        thisReading.setProperty("join_next", rm.getJoin_next());
-                        if (rm.getAnnotation() != null)
-                            thisReading.setProperty("annotation", rm.getAnnotation());
-                        if (rm.getExtra() != null) {
-                            // Wrap the reading's "extra" value in a hash value keyed on the witness.
-                            JSONObject thisExtra = new JSONObject();
-                            thisExtra.put(thisWitness, new JSONObject(rm.getExtra()));
-                            thisReading.setProperty("extra", thisExtra.toString());
-                        }
-                        thisReading.setProperty("rank", rank);
-                        thisReading.setProperty("section_id", parentNode.getId());
-                        createdReadings.put(lookupKey, thisReading);
-                        distinct++;
+                    // Create the start node for the section
+                    Node startNode = Util.createStartNode(parentNode);
+                    collationWitnesses.forEach(x -> lastWitnessReading.put(x, startNode));
+                } else if (field.equals("table")) {
+                    if (json.currentToken() != JsonToken.START_ARRAY)
+                        return Response.serverError().entity(jsonerror("The collation table is not a list")).build();
+                    seenTable = true;
+                    if (collationWitnesses == null) {
+                        heldTable = mapper.readTree(json);
+                        continue;
                     }
-                    Node lastReading = lastWitnessReading.get(thisWitness);
-                    ReadingService.addWitnessLink(lastReading, thisReading, witParts.get(0), witParts.get(1));
-                    lastWitnessReading.put(thisWitness, thisReading);
-                }
-                if (createdReadings.size() > 0) {
-                    // Increment the rank
-                    rank++;
-                    // Set commonality attribute on all readings created
-                    boolean common = distinct == 1;
-                    createdReadings.values().forEach(x -> x.setProperty("is_common", common));
-                }
+                    // Read the table a row at a time
+                    while (json.nextToken() == JsonToken.START_ARRAY)
+                        rank = addRow(mapper.readTree(json), collationWitnesses, lastWitnessReading, rank,
+                                parentNode, tx);
+                } else
+                    json.skipChildren();
             }
+            if (collationWitnesses == null || !seenTable)
+                return Response.serverError().entity(jsonerror("No witnesses or table found")).build();
+            if (heldTable != null)
+                for (JsonNode row : heldTable)
+                    rank = addRow(row, collationWitnesses, lastWitnessReading, rank, parentNode, tx);
 
             Node endNode = Util.createEndNode(parentNode);
             endNode.setProperty("rank", rank);
@@ -199,6 +111,10 @@ public class CollateXJsonParser {
             }
             tx.success();
             return Response.status(Response.Status.CREATED).entity(jsonresp("parentId", parentNode.getId())).build();
+        } catch (IOException e) {
+            // The JSON is malformed
+            e.printStackTrace();
+            return Response.serverError().entity(jsonerror(e.getMessage())).build();
         } catch (IllegalArgumentException e) {
             return Response.status(Response.Status.BAD_REQUEST).entity(jsonerror(e.getMessage())).build();
         } catch (Exception e) {
@@ -208,22 +124,81 @@ public class CollateXJsonParser {
 
     }
 
-    private static String expandExtraField (String origJson, List<String> witness, String newJSON) throws JSONException {
-        JSONObject currvalue = new JSONObject(origJson);
-        JSONObject newValue = new JSONObject(newJSON);
+    // Create the readings for one row of the alignment table, and link each witness to its reading.
+    // Returns the rank that the next row should have.
+    private long addRow(JsonNode jrow, List<String> collationWitnesses, HashMap<String, Node> lastWitnessReading,
+                        long rank, Node parentNode, ImportBatch.Scope tx) {
+        if (jrow.size() > collationWitnesses.size())
+            throw new IllegalArgumentException(String.format(
+                    "Table row has %d cells for %d witnesses", jrow.size(), collationWitnesses.size()));
+        HashMap<String, Node> createdReadings = new HashMap<>();
+        // The "extra" values of the new readings, which are stored once the row is done
+        HashMap<String, ObjectNode> createdExtras = new HashMap<>();
+        int distinct = 0;
+        for (int w = 0; w < jrow.size(); w++) {
+            Cell rm = new Cell(jrow.get(w));
+            String thisWitness = collationWitnesses.get(w);
+            List<String> witParts = parseWitnessSigil(thisWitness);
+            String lookupKey = String.join(rm.text, rm.normalForm, rm.display,
+                    String.valueOf(rm.joinNext), String.valueOf(rm.joinPrior));
+            if (lookupKey.equals("nullfalsefalse")) {
+                distinct++;
+                continue;  // Don't add blank readings
+            }
+            Node thisReading;
+            if (createdReadings.containsKey(lookupKey)) {
+                thisReading = createdReadings.get(lookupKey);
+                if (rm.extra != null)
+                    expandExtraField(createdExtras.computeIfAbsent(lookupKey, k -> JsonNodeFactory.instance.objectNode()),
+                            witParts, rm.extra);
+            } else {
+                thisReading = db.createNode(Nodes.READING);
+                thisReading.setProperty("text", rm.text);
+                thisReading.setProperty("normal_form", rm.normalForm);
+                if (rm.display != null)
+                    thisReading.setProperty("display", rm.display);
+                thisReading.setProperty("join_prior", rm.joinPrior);
+                thisReading.setProperty("join_next", rm.joinNext);
+                if (rm.extra != null) {
+                    // Wrap the reading's "extra" value in a hash value keyed on the witness.
+                    ObjectNode thisExtra = JsonNodeFactory.instance.objectNode();
+                    thisExtra.set(thisWitness, rm.extra);
+                    createdExtras.put(lookupKey, thisExtra);
+                }
+                thisReading.setProperty("rank", rank);
+                thisReading.setProperty("section_id", parentNode.getId());
+                createdReadings.put(lookupKey, thisReading);
+                distinct++;
+            }
+            Node lastReading = lastWitnessReading.get(thisWitness);
+            ReadingService.addWitnessLink(lastReading, thisReading, witParts.get(0), witParts.get(1));
+            lastWitnessReading.put(thisWitness, thisReading);
+        }
+        createdExtras.forEach((k, v) -> createdReadings.get(k).setProperty("extra", v.toString()));
+        if (createdReadings.size() > 0) {
+            // Increment the rank
+            rank++;
+            // Set commonality attribute on all readings created
+            boolean common = distinct == 1;
+            createdReadings.values().forEach(x -> x.setProperty("is_common", common));
+        }
+        // Roughly one new link per witness, plus the new readings
+        tx.checkpoint(createdReadings.size() + jrow.size());
+        return rank;
+    }
+
+    private static void expandExtraField(ObjectNode currvalue, List<String> witness, ObjectNode newValue) {
         // Check to see whether we are adding a redundant line
         String sigil;
         if (!witness.get(1).equals("witnesses")) {
             // We are in a witness layer
-            if (currvalue.has(witness.get(0))
-                    && currvalue.getJSONObject(witness.get(0)).toString().equals(newValue.toString()))
-                return currvalue.toString();
+            if (newValue.equals(currvalue.get(witness.get(0))))
+                return;
             sigil = String.format("%s (%s)", witness.get(0), witness.get(1));
         } else { // ...we are assuming for our own sanity that layers are declared after main witnesses.
             sigil = witness.get(0);
         }
-        currvalue.put(sigil, newValue);
-        return currvalue.toString();
+        currvalue.set(sigil, newValue);
     }
 
     private static List<String> parseWitnessSigil (String sigil) {
@@ -243,16 +218,72 @@ public class CollateXJsonParser {
         return parts;
     }
 
-    private static String readingAppend (String current, JSONObject token, String key, Boolean joinNext)
-            throws JSONException {
-        StringBuilder prior = new StringBuilder(current);
-        boolean noSpace = prior.length() == 0 || joinNext;
-        if (token.has("join_prior") && token.getBoolean("join_prior"))
-            noSpace = true;
-        if (!noSpace)
-            prior.append(" ");
-        prior.append(token.get(key));
-        return prior.toString();
+    // One cell of the alignment table, i.e. the CollateX tokens that a witness has at that point,
+    // patched together into the attributes of a single reading
+    private static class Cell {
+        String text;
+        String normalForm;
+        // Only set if it differs from the token itself
+        String display = null;
+        boolean joinPrior = false;
+        boolean joinNext = false;
+        // Whatever else was in the token(s), kept for future reference
+        ObjectNode extra = null;
+
+        Cell(JsonNode jcell) {
+            StringBuilder rtext = new StringBuilder();
+            StringBuilder rnormal = new StringBuilder();
+            StringBuilder rdisplay = new StringBuilder();
+            LinkedHashMap<String, ObjectNode> rowsource = new LinkedHashMap<>();
+            int withExtra = 0;
+            int k = 0;
+            for (JsonNode t : jcell) {
+                if (!t.isObject() || !t.has("t"))
+                    throw new IllegalArgumentException("Token without text found");
+                ObjectNode jtoken = (ObjectNode) t;
+                if (k++ == 0) {
+                    joinPrior = jtoken.path("join_prior").asBoolean(false);
+                    jtoken.remove("join_prior");
+                }
+                // Patch together reading attributes from the CollateX token object:
+                // Reading text
+                boolean noSpace = joinNext || jtoken.path("join_prior").asBoolean(false);
+                String thisToken = value(jtoken.get("t"));
+                readingAppend(rtext, thisToken, noSpace);
+                // Normal form
+                readingAppend(rnormal, jtoken.has("normal_form") ? value(jtoken.get("normal_form")) : thisToken, noSpace);
+                readingAppend(rdisplay, jtoken.has("display") ? value(jtoken.get("display")) : thisToken, noSpace);
+                jtoken.remove(Arrays.asList("t", "normal_form", "display"));
+                // Join_next attribute; the last value will prevail
+                joinNext = jtoken.path("join_next").asBoolean(false);
+                jtoken.remove("join_next");
+                // Save the remaining token contents in the extra field
+                if (jtoken.size() > 0) {
+                    rowsource.put(thisToken, jtoken);
+                    withExtra++;
+                }
+            }
+            // These might all be blank
+            text = rtext.toString();
+            normalForm = rnormal.toString();
+            if (!rdisplay.toString().equals(text))
+                display = rdisplay.toString();
+            if (withExtra > 1) {
+                extra = JsonNodeFactory.instance.objectNode();
+                rowsource.forEach(extra::set);
+            } else if (withExtra == 1)
+                extra = rowsource.values().iterator().next();
+        }
+
+        private static String value(JsonNode node) {
+            return node.isValueNode() ? node.asText() : node.toString();
+        }
+
+        private static void readingAppend(StringBuilder prior, String token, boolean noSpace) {
+            if (prior.length() > 0 && !noSpace)
+                prior.append(" ");
+            prior.append(token);
+        }
     }
 
 }
@@ -6,6 +6,7 @@ import net.stemmaweb.rest.Nodes;
 import net.stemmaweb.rest.RelationType;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
 import net.stemmaweb.services.VariantGraphService;
+import net.stemmaweb.services.WitnessIndex;
 import org.neo4j.graphdb.*;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -145,7 +146,8 @@ public class CollateXParser {
             }
             // Create all the witnesses
             seenWitnesses.forEach(x -> Util.findOrCreateExtant(traditionNode, x));
-            // Calculate the common readings
+            // Index the witnesses on the sequences and calculate the common readings
+            WitnessIndex.indexSection(parentNode);
             VariantGraphService.calculateCommon(parentNode);
 
             // Create the 'transposition' relation type if it occurred in the data
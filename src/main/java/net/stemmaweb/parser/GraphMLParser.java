@@ -4,17 +4,33 @@ import net.stemmaweb.model.*;
 import net.stemmaweb.rest.*;
 import net.stemmaweb.services.DatabaseService;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.ImportBatch;
 import net.stemmaweb.services.RelationService;
 import net.stemmaweb.services.VariantGraphService;
+import net.stemmaweb.services.WitnessIndex;
+import org.apache.commons.io.input.CloseShieldInputStream;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.Node;
-import org.w3c.dom.*;
 
 import javax.ws.rs.core.Response;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
 import static net.stemmaweb.Util.jsonerror;
 import static net.stemmaweb.Util.jsonresp;
@@ -25,8 +41,16 @@ import static net.stemmaweb.Util.jsonresp;
  * Created by tla on 17/02/2017.
  */
 public class GraphMLParser {
+    // How many section files of a zip may be read at once
+    private static final int SECTION_THREADS = Runtime.getRuntime().availableProcessors();
+
     private final GraphDatabaseServiceProvider dbServiceProvider = new GraphDatabaseServiceProvider();
     private final GraphDatabaseService db = dbServiceProvider.getDatabase();
+    private final ImportBatch batch;
+
+    public GraphMLParser(ImportBatch batch) {
+        this.batch = batch;
+    }
 
     /**
      * Parses a single GraphML file (the old style) representing either an entire tradition or a single
@@ -44,13 +68,14 @@ public class GraphMLParser {
         // We won't use this, but the new parser expects it
         HashMap<String, Long> idMap = new HashMap<>();
         Response result;
-        try (Transaction tx = db.beginTx()) {
+        // A batched import commits as it goes, so must not be wrapped in a transaction of our own
+        try (Transaction tx = batch.isBatched() ? null : db.beginTx()) {
             // Mimic whether this is a tradition or a section file
             result = parseGraphML(filestream, filename, parentNode, idMap, isSingleSection);
             // Did something go wrong? If so, exit now
             if (result.getStatus() != Response.Status.CREATED.getStatusCode())
                 return result;
-            tx.success();
+            if (tx != null) tx.success();
         } catch (Exception e) {
             e.printStackTrace();
             return Response.serverError().build();
@@ -61,6 +86,13 @@ public class GraphMLParser {
     /**
      * Parses a zipped set of GraphML files representing either an entire tradition, or a single
      * tradition section. Returns the ID of the object (either tradition or section) that was created.
+     * <p>
+     * The sections of an entire tradition are parsed in parallel. The tradition.xml file is imported
+     * and committed first, and then each section file is read into the database in a transaction of
+     * its own on a pool of worker threads. Whatever ties a section to the rest of the tradition - its
+     * place in the section order, its witnesses and relation types, its annotations, and any edge to a
+     * node outside the file - is held back for a final linking pass, which goes through the sections
+     * one at a time in the order of the zip file.
      *
      * @param filestream      - an InputStream with the XML data
      * @param parentNode      - a Node to represent the parent of this data, either a tradition or a section
@@ -70,24 +102,28 @@ public class GraphMLParser {
      */
 
     public Response parseGraphMLZip(InputStream filestream, Node parentNode, boolean isSingleSection) {
+        if (!isSingleSection && SECTION_THREADS > 1)
+            return parseGraphMLZipParallel(filestream, parentNode);
         // Keep track of GraphML ID -> created node ID
         HashMap<String, Long> idMap = new HashMap<>();
         // Initialise our response
         String ret = null;
-        // Unzip the file and send each XML file therein to the "real" parser
-        try (Transaction tx = db.beginTx()) {
-            // Get the XML files out of the zip stream
-            LinkedHashMap<String, File> inputXML = Util.extractGraphMLZip(filestream);
+        // Read each XML file straight out of the zip stream and send it to the "real" parser
+        // A batched import commits as it goes, so must not be wrapped in a transaction of our own
+        try (Transaction tx = batch.isBatched() ? null : db.beginTx();
+             ZipInputStream zipIn = new ZipInputStream(new BufferedInputStream(filestream))) {
             // Make sure the tradition.xml file is first
             boolean seenTrad = false;
-            for (String filename : inputXML.keySet()) {
+            ZipEntry ze;
+            while ((ze = zipIn.getNextEntry()) != null) {
+                String filename = ze.getName();
                 seenTrad = seenTrad || filename.equals("tradition.xml");
                 if (!seenTrad)
                     return Response.status(Response.Status.BAD_REQUEST)
                             .entity(jsonerror("Bad zipfile input - is tradition.xml not first?")).build();
-                File infile = inputXML.get(filename);
-                FileInputStream fi = new FileInputStream(infile.getAbsolutePath());
-                Response result = parseGraphML(fi, filename, parentNode, idMap, isSingleSection);
+                // The XML parser may close its input when it reaches the end of the document, and that
+                // must not close the rest of the zip stream
+                Response result = parseGraphML(CloseShieldInputStream.wrap(zipIn), filename, parentNode, idMap, isSingleSection);
                 // Did something go wrong? If so, exit now
                 if (result.getStatus() != Response.Status.CREATED.getStatusCode())
                     return result;
@@ -95,9 +131,9 @@ public class GraphMLParser {
                 // tradition ID, or the last pass if we want to return the section ID
                 if (ret == null || isSingleSection)
                     ret = (String) result.getEntity();
+                zipIn.closeEntry();
             }
-            Util.cleanupExtractedZip(inputXML);
-            tx.success();
+            if (tx != null) tx.success();
         } catch (Exception e) {
             e.printStackTrace();
             return Response.serverError().build();
@@ -105,8 +141,125 @@ public class GraphMLParser {
         return Response.status(Response.Status.CREATED).entity(ret).build();
     }
 
+    private Response parseGraphMLZipParallel(InputStream filestream, Node traditionNode) {
+        // The workers commit their sections as they go, so we need to know what they made in
+        // case the import fails
+        batch.track();
+        File spool = null;
+        ExecutorService pool = null;
+        try {
+            // The section files are read in no particular order, so the zip must be on disk
+            spool = File.createTempFile("stemmarest-import", ".zip");
+            Files.copy(filestream, spool.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            try (ZipFile zip = new ZipFile(spool)) {
+                List<? extends ZipEntry> entries = Collections.list(zip.entries());
+                if (entries.isEmpty())
+                    return Response.status(Response.Status.CREATED).build();
+                if (!entries.get(0).getName().equals("tradition.xml"))
+                    return Response.status(Response.Status.BAD_REQUEST)
+                            .entity(jsonerror("Bad zipfile input - is tradition.xml not first?")).build();
+
+                // The tradition and its metadata come first, and are committed before the sections start
+                HashMap<String, Long> traditionIds = new HashMap<>();
+                Response result;
+                try (InputStream in = zip.getInputStream(entries.get(0))) {
+                    result = parseGraphML(in, "tradition.xml", traditionNode, traditionIds, false);
+                }
+                if (result.getStatus() != Response.Status.CREATED.getStatusCode())
+                    return result;
+                String ret = (String) result.getEntity();
+
+                // Now the sections, side by side. Once one of them has failed, the rest are skipped.
+                List<? extends ZipEntry> sectionEntries = entries.subList(1, entries.size());
+                pool = Executors.newFixedThreadPool(Math.max(1, Math.min(SECTION_THREADS, sectionEntries.size())));
+                AtomicBoolean failed = new AtomicBoolean(false);
+                List<Future<FileState>> parsing = new ArrayList<>();
+                for (ZipEntry ze : sectionEntries)
+                    parsing.add(pool.submit(() -> failed.get() ? null
+                            : parseSectionFile(zip, ze, traditionNode, traditionIds, failed)));
+                // Wait for all of them, so that nothing is still being written if we have to back out
+                List<FileState> sections = new ArrayList<>();
+                Response failure = null;
+                for (Future<FileState> f : parsing) {
+                    try {
+                        FileState state = f.get();
+                        if (state == null) continue;
+                        if (state.failure != null && failure == null) failure = state.failure;
+                        sections.add(state);
+                    } catch (ExecutionException e) {
+                        e.getCause().printStackTrace();
+                        if (failure == null) failure = Response.serverError().build();
+                    }
+                }
+                if (failure != null)
+                    return failure;
+
+                // Finally, tie the sections into the tradition in the order of the zip file
+                HashMap<String, Long> idMap = new HashMap<>(traditionIds);
+                sections.forEach(x -> idMap.putAll(x.localIds));
+                try (ImportBatch.Scope tx = batch.begin()) {
+                    for (FileState state : sections) {
+                        for (HeldEdge e : state.deferredEdges) {
+                            if (!idMap.containsKey(e.source) || !idMap.containsKey(e.target))
+                                return Response.status(Response.Status.BAD_REQUEST).entity(jsonerror(String.format(
+                                        "Edge from %s to %s refers to an unknown node", e.source, e.target))).build();
+                            Response r = createEdge(e, idMap, state, Collections.emptyList());
+                            if (r != null) return r;
+                            tx.checkpoint();
+                        }
+                        Response r = finishFile(state, traditionNode, idMap, tx);
+                        if (r != null) return r;
+                    }
+                    removeOrphans(idMap);
+                    tx.success();
+                }
+                return Response.status(Response.Status.CREATED).entity(ret).build();
+            }
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(jsonerror(e.getMessage())).build();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.serverError().build();
+        } finally {
+            if (pool != null) pool.shutdown();
+            if (spool != null && !spool.delete())
+                spool.deleteOnExit();
+        }
+    }
+
+    // Read one section file of a zip into the database, on a worker thread and in a transaction of its
+    // own. Anything that reaches outside the file is kept in the returned state for the linking pass.
+    private FileState parseSectionFile(ZipFile zip, ZipEntry entry, Node traditionNode,
+                                       Map<String, Long> traditionIds, AtomicBoolean failed) throws Exception {
+        FileState state = new FileState(entry.getName(), traditionNode);
+        batch.enlist();
+        XMLStreamReader reader = null;
+        try (InputStream in = zip.getInputStream(entry); ImportBatch.Scope tx = batch.begin()) {
+            reader = XMLInputFactory.newInstance().createXMLStreamReader(in);
+            state.failure = readGraph(reader, state, traditionNode, state.localIds, traditionIds, false, tx);
+            if (state.failure == null)
+                tx.success();
+        } catch (IllegalArgumentException e) {
+            state.failure = Response.status(Response.Status.BAD_REQUEST).entity(jsonerror(e.getMessage())).build();
+        } catch (XMLStreamException e) {
+            e.printStackTrace();
+            state.failure = Response.status(Response.Status.BAD_REQUEST)
+                    .entity(jsonerror("Could not parse the GraphML")).build();
+        } finally {
+            if (state.failure != null) failed.set(true);
+            if (reader != null) reader.close();
+            batch.release();
+        }
+        return state;
+    }
+
     /**
      * Parses the contents of the XML file stream, returning ...something
+     * <p>
+     * The file is read as a stream of StAX events, and each node and edge is created as soon as its
+     * element has been read, so that the document as a whole is never held in memory. This depends on
+     * the keys being declared before the graph, and the nodes coming before the edges, which is how
+     * GraphMLExporter writes its files.
      *
      * @param filestream      - The unzipped XML file stream
      * @param fileName        - The name of the XML file we are working on
@@ -117,334 +270,392 @@ public class GraphMLParser {
      */
     private Response parseGraphML(InputStream filestream, String fileName, Node parentNode,
                                   Map<String, Long> idMap, boolean isSingleSection) {
-        // We will use a DOM parser for this
-        Document doc = Util.openFileStream(filestream);
-        if (doc == null)
+        // We will use a StAX parser for this
+        XMLStreamReader reader;
+        try {
+            reader = XMLInputFactory.newInstance().createXMLStreamReader(filestream);
+        } catch (XMLStreamException e) {
+            e.printStackTrace();
             return Response.serverError().entity(jsonerror("No document found")).build();
-
-        Element rootEl = doc.getDocumentElement();
-        rootEl.normalize();
-
-        // Get the data keys and their types; the map entries are e.g.
-        // "dn0" -> ["neolabel", "string"]
-        HashMap<String, String[]> dataKeys = new HashMap<>();
-        NodeList keyNodes = rootEl.getElementsByTagName("key");
-        for (int i = 0; i < keyNodes.getLength(); i++) {
-            NamedNodeMap keyAttrs = keyNodes.item(i).getAttributes();
-            String[] dataInfo = new String[]{keyAttrs.getNamedItem("attr.name").getNodeValue(),
-                    keyAttrs.getNamedItem("attr.type").getNodeValue()};
-            dataKeys.put(keyAttrs.getNamedItem("id").getNodeValue(), dataInfo);
         }
 
         // Get the tradition node
         Node traditionNode = isSingleSection ? VariantGraphService.getTraditionNode(parentNode) : parentNode;
-        String parentId;
+        FileState state = new FileState(fileName, traditionNode);
 
         // Now get to work with node and relationship creation.
-        try (Transaction tx = db.beginTx()) {
-            // The UUID of the tradition node that was passed in to receive the parsed data
-            String tradId = traditionNode.getProperty("id").toString();
-            // The Neo4J node that contains our section, if we are parsing a section
-            Node thisSection = null;
-            // The list of readings that come out of this file, so that we can update their section
-            ArrayList<Node> thisReadings = new ArrayList<>();
-            // The <node/> elements in the XML
-            NodeList entityNodes = rootEl.getElementsByTagName("node");
+        try (ImportBatch.Scope tx = batch.begin()) {
             // The parentId we return should be the ID of the parent node for whatever we just processed –
             // either the tradition ID if we are parsing a new tradition, or the section ID if we are
             // parsing a new section into a tradition. LATER does this make sense??
-            parentId = fileName.equals("tradition.xml") ? tradId : String.valueOf(parentNode.getId());
-            // If we are parsing a new section into an existing tradition, get the tradition metadata nodes
-            // to make sure we don't duplicate them. This should only happen if we have isSingleSection set,
-            // since otherwise the relevant nodes should already be in idMap.
-            List<Node> existingMeta = isSingleSection ?
-                    VariantGraphService.returnTraditionMeta(traditionNode).nodes().stream().collect(Collectors.toList()) :
-                    new ArrayList<>();
-            List<Relationship> existingMetaRel = isSingleSection ?
-                    VariantGraphService.returnTraditionMeta(traditionNode).relationships().stream().collect(Collectors.toList()) :
-                    new ArrayList<>();
-
-            // We will hold back nodes that were labeled by the user rather than the system, such as annotations,
-            // so that we can add them to the graph with the existing verification / sanity checks.
-            HashMap<String, org.w3c.dom.Node> userLabeledNodes = new HashMap<>();
-            ArrayList<org.w3c.dom.Node> userLabeledEdges = new ArrayList<>();
-
-            // Now process the XML 'node' elements.
-            for (int i = 0; i < entityNodes.getLength(); i++) {
-                org.w3c.dom.Node entityXML = entityNodes.item(i);
-                NamedNodeMap entityAttrs = entityXML.getAttributes();
-                String xmlId = entityAttrs.getNamedItem("id").getNodeValue();
-                NodeList dataNodes = ((Element) entityXML).getElementsByTagName("data");
-                HashMap<String, Object> nodeProperties = returnProperties(dataNodes, dataKeys);
-                if (!nodeProperties.containsKey("neolabel"))
-                    return Response.status(Response.Status.BAD_REQUEST).entity(jsonerror("Node without label found")).build();
-                String neolabel = nodeProperties.remove("neolabel").toString();
-                String[] entityLabel = neolabel.replace("[", "").replace("]", "").split(",\\s+");
-
-                if (neolabel.contains("TRADITION")) {
-                    if (fileName.equals("tradition.xml") && !isSingleSection) {
-                        // If there is already a different tradition with this tradition ID, we are making a duplicate
-                        // and the effective UUID of this one was already set in Root.java. If there is not yet a
-                        // different tradition with this UUID, we need to retain the UUID in the GraphML.
-
-                        String fileTraditionId = nodeProperties.get("id").toString();
-                        Node existingTradition = db.findNode(Nodes.TRADITION, "id", fileTraditionId);
-                        if (existingTradition != null) // There is another tradition with this UUID; don't re-use it.
-                            nodeProperties.remove("id");
-                        else { // There is no other tradition with this UUID; update the tradId to match the XML.
-                            tradId = fileTraditionId;
-                            parentId = tradId;
-                        }
-                        // This node is already created, but we need to reset its properties according to
-                        // what is in the GraphML file. We also save this ID as the parent ID that was created.
-                        for (String p : nodeProperties.keySet())
-                            traditionNode.setProperty(p, nodeProperties.get(p));
-                    } // else
-                        // If we are parsing the tradition meta-info for a single section, or if we are parsing a
-                        // section XML file, we ignore the data for this node and we will keep the parent ID as the
-                        // ID of the section node.
-                    // Now set the tradition node to be our real tradition node, whether from this file or
-                    // from the existing tradition for this section
-                    idMap.put(xmlId, traditionNode.getId());
-
-                } else {
-                    // Now we have the information of the XML, we can create the new node if we need to.
-                    // We don't need to...
-                    // - if it is already in the idMap
-                    // - if it is the SECTION node
-                    // - if this is a single section upload, we are in the tradition.xml file, and a node
-                    //   with identical properties already exists
-                    Node entity = null;
-                    if (idMap.containsKey(xmlId)) {
-                        entity = db.getNodeById(idMap.get(xmlId));
+            if (!fileName.equals("tradition.xml"))
+                state.parentId = String.valueOf(parentNode.getId());
+            Response result = readGraph(reader, state, parentNode, idMap, null, isSingleSection, tx);
+            if (result == null)
+                result = finishFile(state, traditionNode, idMap, tx);
+            if (result != null)
+                return result;
+
+            // Sanity check: if we created any relationship-less nodes, delete them again.
+            removeOrphans(idMap);
+
+            tx.success();
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(jsonerror(e.getMessage())).build();
+        } catch (XMLStreamException e) {
+            e.printStackTrace();
+            return Response.status(Response.Status.BAD_REQUEST).entity(jsonerror("Could not parse the GraphML")).build();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.serverError().build();
+        } finally {
+            try {
+                reader.close();
+            } catch (XMLStreamException ignored) {
+            }
+        }
+
+        return Response.status(Response.Status.CREATED).entity(jsonresp("parentId", state.parentId)).build();
+    }
+
+    // Create the nodes and edges of a file as they are read. Returns an error response if the file is
+    // bad, or null if all went well. If the file is one of several being read at once, 'shared' holds
+    // the IDs of the tradition-level nodes; these are used but not touched, and any edge that does not
+    // lie wholly within the file is kept back for the linking pass.
+    private Response readGraph(XMLStreamReader reader, FileState state, Node parentNode,
+                               Map<String, Long> idMap, Map<String, Long> shared, boolean isSingleSection,
+                               ImportBatch.Scope tx) throws XMLStreamException {
+        // The data keys and their types; the map entries are e.g.
+        // "dn0" -> ["neolabel", "string"]
+        HashMap<String, String[]> dataKeys = new HashMap<>();
+        Node traditionNode = state.traditionNode;
+        // Any readings that come out of this file before its section node does, so that we can
+        // update their section once we know it
+        ArrayList<Node> thisReadings = new ArrayList<>();
+        // If we are parsing a new section into an existing tradition, get the tradition metadata nodes
+        // to make sure we don't duplicate them. This should only happen if we have isSingleSection set,
+        // since otherwise the relevant nodes should already be in idMap.
+        List<Node> existingMeta = isSingleSection ?
+                VariantGraphService.returnTraditionMeta(traditionNode).nodes().stream().collect(Collectors.toList()) :
+                new ArrayList<>();
+        List<Relationship> existingMetaRel = isSingleSection ?
+                VariantGraphService.returnTraditionMeta(traditionNode).relationships().stream().collect(Collectors.toList()) :
+                new ArrayList<>();
+
+        while (reader.hasNext()) {
+            if (reader.next() != XMLStreamConstants.START_ELEMENT)
+                continue;
+            switch (reader.getLocalName()) {
+                case "key":
+                    dataKeys.put(reader.getAttributeValue("", "id"), new String[]{
+                            reader.getAttributeValue("", "attr.name"),
+                            reader.getAttributeValue("", "attr.type")});
+                    break;
+
+                case "node": {
+                    String xmlId = reader.getAttributeValue("", "id");
+                    HashMap<String, Object> nodeProperties = readProperties(reader, "node", dataKeys);
+                    if (!nodeProperties.containsKey("neolabel"))
+                        return Response.status(Response.Status.BAD_REQUEST).entity(jsonerror("Node without label found")).build();
+                    String neolabel = nodeProperties.remove("neolabel").toString();
+                    String[] entityLabel = neolabel.replace("[", "").replace("]", "").split(",\\s+");
+
+                    if (neolabel.contains("TRADITION")) {
+                        if (state.fileName.equals("tradition.xml") && !isSingleSection) {
+                            // If there is already a different tradition with this tradition ID, we are making a duplicate
+                            // and the effective UUID of this one was already set in Root.java. If there is not yet a
+                            // different tradition with this UUID, we need to retain the UUID in the GraphML.
+
+                            String fileTraditionId = nodeProperties.get("id").toString();
+                            Node existingTradition = db.findNode(Nodes.TRADITION, "id", fileTraditionId);
+                            if (existingTradition != null) // There is another tradition with this UUID; don't re-use it.
+                                nodeProperties.remove("id");
+                            else { // There is no other tradition with this UUID; update the tradId to match the XML.
+                                state.tradId = fileTraditionId;
+                                state.parentId = state.tradId;
+                            }
+                            // This node is already created, but we need to reset its properties according to
+                            // what is in the GraphML file. We also save this ID as the parent ID that was created.
+                            for (String p : nodeProperties.keySet())
+                                traditionNode.setProperty(p, nodeProperties.get(p));
+                        } // else
+                            // If we are parsing the tradition meta-info for a single section, or if we are parsing a
+                            // section XML file, we ignore the data for this node and we will keep the parent ID as the
+                            // ID of the section node.
+                        // Now set the tradition node to be our real tradition node, whether from this file or
+                        // from the existing tradition for this section. A file read alongside others has it
+                        // among the shared nodes already.
+                        if (shared == null)
+                            idMap.put(xmlId, traditionNode.getId());
+
                     } else {
-                        // Is this the single-section section node?
-                        boolean exists = false;
-                        if (neolabel.contains("SECTION") && isSingleSection)
-                            entity = parentNode;
-                        else if (!existingMeta.isEmpty()) {
-                            // Does the node already exist in the tradition's metadata?
-                            for (Node ex : existingMeta) {
-                                exists = true;
-                                for (String p : nodeProperties.keySet()) {
-                                    exists = exists && nodeProperties.get(p).equals(ex.getProperty(p, null));
-                                }
-                                if (exists) {
-                                    // The node already exists, so we add it to the idMap and move on.
-                                    entity = ex;
-                                    break;
+                        // Now we have the information of the XML, we can create the new node if we need to.
+                        // We don't need to...
+                        // - if it is already in the idMap
+                        // - if it is the SECTION node
+                        // - if this is a single section upload, we are in the tradition.xml file, and a node
+                        //   with identical properties already exists
+                        Node entity = null;
+                        if (idMap.containsKey(xmlId)) {
+                            entity = db.getNodeById(idMap.get(xmlId));
+                        } else if (shared != null && shared.containsKey(xmlId)) {
+                            entity = db.getNodeById(shared.get(xmlId));
+                        } else {
+                            // Is this the single-section section node?
+                            boolean exists = false;
+                            if (neolabel.contains("SECTION") && isSingleSection)
+                                entity = parentNode;
+                            else if (!existingMeta.isEmpty()) {
+                                // Does the node already exist in the tradition's metadata?
+                                for (Node ex : existingMeta) {
+                                    exists = true;
+                                    for (String p : nodeProperties.keySet()) {
+                                        exists = exists && nodeProperties.get(p).equals(ex.getProperty(p, null));
+                                    }
+                                    if (exists) {
+                                        // The node already exists, so we add it to the idMap and move on.
+                                        entity = ex;
+                                        break;
+                                    }
                                 }
                             }
-                        }
-                        // If we haven't found a Neo4J node to match this XML node, we need to create one.
-                        if (entity == null) entity = db.createNode();
-                        // Record the XML -> n4j correlation
-                        idMap.put(xmlId, entity.getId());
-                        // and, if the node didn't already exist, update its labels and properties.
-                        if (!exists)
-                            for (String l : entityLabel) {
-                                try {
-                                    entity.addLabel(Nodes.valueOf(l));
-                                    nodeProperties.forEach(entity::setProperty);
-                                } catch (IllegalArgumentException e) {
-                                    // This is an annotation node, which we will deal with in a separate pass.
-                                    // Remove the node and its entry in the idMap.
-                                    userLabeledNodes.put(xmlId, entityXML);
-                                    idMap.remove(xmlId);
-                                    entity.delete();
+                            // If we haven't found a Neo4J node to match this XML node, we need to create one.
+                            if (entity == null) entity = db.createNode();
+                            // Record the XML -> n4j correlation
+                            idMap.put(xmlId, entity.getId());
+                            // and, if the node didn't already exist, update its labels and properties.
+                            if (!exists)
+                                for (String l : entityLabel) {
+                                    try {
+                                        entity.addLabel(Nodes.valueOf(l));
+                                        nodeProperties.forEach(entity::setProperty);
+                                    } catch (IllegalArgumentException e) {
+                                        // This is an annotation node, which we will deal with in a separate pass.
+                                        // Remove the node and its entry in the idMap, and keep its data.
+                                        nodeProperties.put("neolabel", neolabel);
+                                        state.userLabeledNodes.put(xmlId, nodeProperties);
+                                        idMap.remove(xmlId);
+                                        entity.delete();
+                                        entity = null;
+                                        break;
+                                    }
                                 }
-                            }
-                    }
-                    // Notice if it is a section node
-                    if (neolabel.contains("SECTION")) thisSection = entity;
-                    if (neolabel.contains("READING")) thisReadings.add(entity);
-                }
-            }
-
-            // Next go through all the edges and create them between the nodes. Keep track of the
-            // relation types we have seen.
-            HashSet<String> relationTypesUsed = new HashSet<>();
-            // Any witness sigla found herein, so that we can ensure that the witnesses exist. This
-            // is mostly useful when we are creating a tradition from a single exported section.
-            HashSet<String> witnessSigla = new HashSet<>();
-            NodeList edgeNodes = rootEl.getElementsByTagName("edge");
-            for (int i = 0; i < edgeNodes.getLength(); i++) {
-                NamedNodeMap edgeAttrs = edgeNodes.item(i).getAttributes();
-                String sourceXmlId = edgeAttrs.getNamedItem("source").getNodeValue();
-                String targetXmlId = edgeAttrs.getNamedItem("target").getNodeValue();
-                // Is this an annotation edge? If so, add it to userLabeledEdges for later processing
-                Node source;
-                Node target;
-                try {
-                    source = db.getNodeById(idMap.get(sourceXmlId));
-                    target = db.getNodeById(idMap.get(targetXmlId));
-                } catch (NullPointerException e) {
-                    // If the source or the target is in userLabeledNodes, we know this is a userLabeledEdge, i.e.
-                    // an annotation edge. Skip it for later addition through the annotation framework
-                    if (userLabeledNodes.containsKey(sourceXmlId) || userLabeledNodes.containsKey(targetXmlId)) {
-                        userLabeledEdges.add(edgeNodes.item(i));
-                        continue;
-                    } else
-                        throw e;
-                }
-
-                NodeList dataNodes = ((Element) edgeNodes.item(i)).getElementsByTagName("data");
-                HashMap<String, Object> edgeProperties = returnProperties(dataNodes, dataKeys);
-                if (!edgeProperties.containsKey("neolabel"))
-                    return Response.serverError().entity(jsonerror("Node without label found")).build();
-                String neolabel = edgeProperties.remove("neolabel").toString();
-
-                // If we are parsing the tradition meta for a new section, check whether the relationship
-                // in question already exists
-                Relationship newRel = null;
-                if (!existingMetaRel.isEmpty()) {
-                    // Does the node already exist in the tradition's metadata?
-                    boolean exists = true;
-                    for (Relationship ex : existingMetaRel.stream()
-                            .filter(x -> x.getStartNode().equals(source) && x.getEndNode().equals(target))
-                            .collect(Collectors.toList())) {
-                        for (String p : edgeProperties.keySet()) {
-                            exists = exists && edgeProperties.get(p).equals(ex.getProperty(p, null));
                         }
-                        if (exists) {
-                            // The node already exists, so we add it to the idMap and move on.
-                            newRel = ex;
-                            break;
+                        // Notice if it is a section node, and set the section on its readings
+                        if (neolabel.contains("SECTION")) {
+                            state.thisSection = entity;
+                            // Only a batched or parallel import commits the section before it is complete
+                            if (batch.isTracking()) batch.markImporting(entity);
+                            for (Node r : thisReadings)
+                                r.setProperty("section_id", entity.getId());
+                            thisReadings.clear();
+                        }
+                        if (neolabel.contains("READING") && entity != null) {
+                            if (state.thisSection == null) thisReadings.add(entity);
+                            else entity.setProperty("section_id", state.thisSection.getId());
                         }
                     }
+                    tx.checkpoint();
+                    break;
                 }
-                if (newRel == null && !relationshipExists(source, neolabel, Direction.OUTGOING)) { // If it exists already we don't touch it.
-                    try {
-                    	newRel = source.createRelationshipTo(target, ERelations.valueOf(neolabel));
-                        edgeProperties.forEach(newRel::setProperty);
-                        // Catch any relation types and witnesses that were used, so that we can ensure
-                        // their existence when we are done
-                        if (neolabel.equals("RELATED"))
-                            relationTypesUsed.add(edgeProperties.get("type").toString());
-                        else if (neolabel.equals("SEQUENCE")) {
-                            SequenceModel sm = new SequenceModel(newRel);
-                            witnessSigla.addAll(sm.getWitnesses());
-                            if (sm.getLayers() != null)
-                                sm.getLayers().values().forEach(witnessSigla::addAll);
-                        }
-                    } catch (IllegalArgumentException e) {
-                        // We are either here because we tried to link an annotation (which doesn't yet exist)
-                        // to the tradition via a HAS_ANNOTATION link, or because we tried to use a user-defined
-                        // relationship label in the context of an annotation where both nodes already existed.
-                        // If the former, ignore it (we will add these links below  `); if the latter, it is a case
-                        // where the annotation node was already created (e.g. the same annotation is present in
-                        // multiple sections) but we still need to link it through proper channels below.
-                        if (!neolabel.equals("HAS_ANNOTATION"))
-                            userLabeledEdges.add(edgeNodes.item(i));
+
+                case "edge": {
+                    // Now create the edges between the nodes we have made.
+                    String sourceXmlId = reader.getAttributeValue("", "source");
+                    String targetXmlId = reader.getAttributeValue("", "target");
+                    HashMap<String, Object> edgeProperties = readProperties(reader, "edge", dataKeys);
+                    HeldEdge edge = new HeldEdge(sourceXmlId, targetXmlId, edgeProperties);
+                    // Is this an annotation edge? If so, add it to userLabeledEdges for later processing
+                    if (!idMap.containsKey(sourceXmlId) || !idMap.containsKey(targetXmlId)) {
+                        // If the source or the target is in userLabeledNodes, we know this is a userLabeledEdge, i.e.
+                        // an annotation edge. Skip it for later addition through the annotation framework
+                        if (state.userLabeledNodes.containsKey(sourceXmlId) || state.userLabeledNodes.containsKey(targetXmlId)) {
+                            state.userLabeledEdges.add(edge);
+                            break;
+                        } else if (shared != null) {
+                            // It leads out of this file, so must wait for the linking pass
+                            state.deferredEdges.add(edge);
+                            break;
+                        } else
+                            return Response.status(Response.Status.BAD_REQUEST).entity(jsonerror(String.format(
+                                    "Edge from %s to %s refers to an unknown node", sourceXmlId, targetXmlId))).build();
                     }
+                    Response result = createEdge(edge, idMap, state, existingMetaRel);
+                    if (result != null)
+                        return result;
+                    tx.checkpoint();
+                    break;
                 }
+
+
+                default:
+                    break;
             }
+        }
 
-            // Reset the section IDs stored on each reading to the ID of the newly created node
-            for (Node r : thisReadings) {
-                if (thisSection == null) {
-                    return Response.status(Response.Status.BAD_REQUEST).entity(
-                            jsonerror("Reading nodes found in a file without a section")).build();
+        // Any readings still waiting for their section were in a file without one
+        if (!thisReadings.isEmpty())
+            return Response.status(Response.Status.BAD_REQUEST).entity(
+                    jsonerror("Reading nodes found in a file without a section")).build();
+        return null;
+    }
+
+    // Create the given edge, whose ends are both known. Returns an error response if the edge is bad,
+    // or null if all went well.
+    private Response createEdge(HeldEdge edge, Map<String, Long> idMap, FileState state,
+                                List<Relationship> existingMetaRel) {
+        Node source = db.getNodeById(idMap.get(edge.source));
+        Node target = db.getNodeById(idMap.get(edge.target));
+
+        HashMap<String, Object> edgeProperties = new HashMap<>(edge.properties);
+        if (!edgeProperties.containsKey("neolabel"))
+            return Response.serverError().entity(jsonerror("Node without label found")).build();
+        String neolabel = edgeProperties.remove("neolabel").toString();
+
+        // If we are parsing the tradition meta for a new section, check whether the relationship
+        // in question already exists
+        Relationship newRel = null;
+        if (!existingMetaRel.isEmpty()) {
+            // Does the node already exist in the tradition's metadata?
+            boolean exists = true;
+            for (Relationship ex : existingMetaRel.stream()
+                    .filter(x -> x.getStartNode().equals(source) && x.getEndNode().equals(target))
+                    .collect(Collectors.toList())) {
+                for (String p : edgeProperties.keySet()) {
+                    exists = exists && edgeProperties.get(p).equals(ex.getProperty(p, null));
+                }
+                if (exists) {
+                    // The node already exists, so we add it to the idMap and move on.
+                    newRel = ex;
+                    break;
+                }
+            }
+        }
+        if (newRel == null && !relationshipExists(source, neolabel, Direction.OUTGOING)) { // If it exists already we don't touch it.
+            try {
+                newRel = source.createRelationshipTo(target, ERelations.valueOf(neolabel));
+                edgeProperties.forEach(newRel::setProperty);
+                // Catch any relation types and witnesses that were used, so that we can ensure
+                // their existence when we are done
+                if (neolabel.equals("RELATED"))
+                    state.relationTypesUsed.add(edgeProperties.get("type").toString());
+                else if (neolabel.equals("SEQUENCE")) {
+                    SequenceModel sm = new SequenceModel(newRel);
+                    state.witnessSigla.addAll(sm.getWitnesses());
+                    if (sm.getLayers() != null)
+                        sm.getLayers().values().forEach(state.witnessSigla::addAll);
                 }
-                r.setProperty("section_id", thisSection.getId());
+            } catch (IllegalArgumentException e) {
+                // We are either here because we tried to link an annotation (which doesn't yet exist)
+                // to the tradition via a HAS_ANNOTATION link, or because we tried to use a user-defined
+                // relationship label in the context of an annotation where both nodes already existed.
+                // If the former, ignore it (we will add these links below  `); if the latter, it is a case
+                // where the annotation node was already created (e.g. the same annotation is present in
+                // multiple sections) but we still need to link it through proper channels below.
+                if (!neolabel.equals("HAS_ANNOTATION"))
+                    state.userLabeledEdges.add(edge);
             }
+        }
+        return null;
+    }
 
-            // Ensure that the tradition and section are linked
-            if (thisSection != null)
-                Util.ensureSectionLink(traditionNode, thisSection);
-
-            // Ensure that all witnesses exist
-            witnessSigla.forEach(x -> Util.findOrCreateExtant(traditionNode, x));
-
-            // Ensure that all relation types exist
-            for (String rt : relationTypesUsed)
-                RelationService.returnRelationType(tradId, rt);
-
-            // Now add user-labeled nodes separately, via the existing validation infrastructure.
-            HashMap<String,AnnotationModel> annotationsToAdd = new HashMap<>();
-            for (org.w3c.dom.Node xn : userLabeledNodes.values()) {
-                AnnotationModel am = new AnnotationModel();
-                // Get the properties on this annotation node.
-                HashMap<String, Object> props = returnProperties(((Element) xn).getElementsByTagName("data"), dataKeys);
-                // We already know from the first pass that this label exists
-                String annLabel = props.remove("neolabel").toString();
-                annLabel = annLabel.substring(1, annLabel.length() - 1);
-                // Is it marked as a primary annotation?
-                boolean isPrimary = props.containsKey("__primary")
-                        && props.remove("__primary").toString().equals("true");
-                // Fill out the annotation model
-
-                am.setLabel(annLabel);
-                am.setPrimary(isPrimary);
-                am.setProperties(props);
-                // Add the links, from our collected edges
-                for (org.w3c.dom.Node xe : userLabeledEdges) {
-                    NamedNodeMap edgeAttrs = xe.getAttributes();
-                    String sourceXmlId = edgeAttrs.getNamedItem("source").getNodeValue();
-                    String targetXmlId = edgeAttrs.getNamedItem("target").getNodeValue();
-                    HashMap<String, Object> edgeProps = returnProperties(((Element) xe).getElementsByTagName("data"), dataKeys);
-                    if (sourceXmlId.equals(((Element) xn).getAttribute("id"))) {
-                        // It is a link that belongs to this source. For now set the XML element ID as the
-                        // target; this will need to be converted progressively into real node IDs.
-                        AnnotationLinkModel alm = new AnnotationLinkModel();
-                        alm.setTarget(Long.valueOf(targetXmlId));
-                        alm.setType(edgeProps.get("neolabel").toString());
-                        if (edgeProps.containsKey("follow")) alm.setFollow(edgeProps.get("follow").toString());
-                        am.addLink(alm);
-                    }
+    // Do what has to wait until all the nodes and edges of a file are in place: link its section into
+    // the tradition, make sure that its witnesses and relation types exist, and add its annotations.
+    // Returns an error response if something is wrong, or null if all went well.
+    private Response finishFile(FileState state, Node traditionNode, Map<String, Long> idMap,
+                                ImportBatch.Scope tx) {
+        // Ensure that the tradition and section are linked, and index the witnesses
+        // on the section sequences
+        if (state.thisSection != null) {
+            Util.ensureSectionLink(traditionNode, state.thisSection);
+            WitnessIndex.indexSection(state.thisSection, tx);
+        }
+
+        // Ensure that all witnesses exist
+        state.witnessSigla.forEach(x -> Util.findOrCreateExtant(traditionNode, x));
+
+        // Ensure that all relation types exist
+        for (String rt : state.relationTypesUsed)
+            RelationService.returnRelationType(state.tradId, rt);
+
+        // Now add user-labeled nodes separately, via the existing validation infrastructure.
+        HashMap<String,AnnotationModel> annotationsToAdd = new HashMap<>();
+        for (String xnId : state.userLabeledNodes.keySet()) {
+            // If the file was read alongside others, the annotation may have been made already from
+            // one of the files before it
+            if (idMap.containsKey(xnId)) continue;
+            AnnotationModel am = new AnnotationModel();
+            // Get the properties on this annotation node.
+            HashMap<String, Object> props = state.userLabeledNodes.get(xnId);
+            // We already know from the first pass that this label exists
+            String annLabel = props.remove("neolabel").toString();
+            annLabel = annLabel.substring(1, annLabel.length() - 1);
+            // Is it marked as a primary annotation?
+            boolean isPrimary = props.containsKey("__primary")
+                    && props.remove("__primary").toString().equals("true");
+            // Fill out the annotation model
+
+            am.setLabel(annLabel);
+            am.setPrimary(isPrimary);
+            am.setProperties(props);
+            // Add the links, from our collected edges
+            for (HeldEdge xe : state.userLabeledEdges) {
+                if (xe.source.equals(xnId)) {
+                    // It is a link that belongs to this source. For now set the XML element ID as the
+                    // target; this will need to be converted progressively into real node IDs.
+                    AnnotationLinkModel alm = new AnnotationLinkModel();
+                    alm.setTarget(Long.valueOf(xe.target));
+                    alm.setType(xe.properties.get("neolabel").toString());
+                    if (xe.properties.containsKey("follow")) alm.setFollow(xe.properties.get("follow").toString());
+                    am.addLink(alm);
                 }
-                annotationsToAdd.put(((Element) xn).getAttribute("id"), am);
             }
-            while (annotationsToAdd.size() > 0) {
-                Tradition tradService = new Tradition(tradId);
-                List<String> toRemove = new ArrayList<>();
-                for (String amid : annotationsToAdd.keySet()) {
-                    AnnotationModel am = annotationsToAdd.get(amid);
-                    // Look at the links and see if the targets exist yet
-                    boolean targetsExist = true;
-                    for (Long target : am.getLinks().stream().map(AnnotationLinkModel::getTarget).collect(Collectors.toList())) {
-                        targetsExist = targetsExist && idMap.containsKey(target.toString());
+            annotationsToAdd.put(xnId, am);
+        }
+        while (annotationsToAdd.size() > 0) {
+            Tradition tradService = new Tradition(state.tradId);
+            List<String> toRemove = new ArrayList<>();
+            for (String amid : annotationsToAdd.keySet()) {
+                AnnotationModel am = annotationsToAdd.get(amid);
+                // Look at the links and see if the targets exist yet
+                boolean targetsExist = true;
+                for (Long target : am.getLinks().stream().map(AnnotationLinkModel::getTarget).collect(Collectors.toList())) {
+                    targetsExist = targetsExist && idMap.containsKey(target.toString());
+                }
+                if (targetsExist) {
+                    // We can update the links with the "real" nodes and create the annotation.
+                    for (AnnotationLinkModel alm : am.getLinks()) {
+                        Node nodeTarget = db.getNodeById(idMap.get(alm.getTarget().toString()));
+                        alm.setTarget(nodeTarget.getId());
                     }
-                    if (targetsExist) {
-                        // We can update the links with the "real" nodes and create the annotation.
-                        for (AnnotationLinkModel alm : am.getLinks()) {
-                            Node nodeTarget = db.getNodeById(idMap.get(alm.getTarget().toString()));
-                            alm.setTarget(nodeTarget.getId());
-                        }
-                        Response result = tradService.addAnnotation(am);
-                        if (result.getStatus() != Response.Status.CREATED.getStatusCode()) {
-                            throw new UnsupportedOperationException(String.format(
-                                    "Error on adding user annotation %s/%s: %s",
-                                    am.getId(), am.getLabel(), result.getEntity()));
-                        }
-                        // Add the new annotation node to the idMap so that it is there for any
-                        // dependent annotations
-                        AnnotationModel newAnno = (AnnotationModel) result.getEntity();
-                        idMap.put(amid, Long.parseLong(newAnno.getId()));
-                        // Mark this annotation to be removed from the queue
-                        toRemove.add(amid);
+                    Response result = tradService.addAnnotation(am);
+                    if (result.getStatus() != Response.Status.CREATED.getStatusCode()) {
+                        throw new UnsupportedOperationException(String.format(
+                                "Error on adding user annotation %s/%s: %s",
+                                am.getId(), am.getLabel(), result.getEntity()));
                     }
+                    // Add the new annotation node to the idMap so that it is there for any
+                    // dependent annotations
+                    AnnotationModel newAnno = (AnnotationModel) result.getEntity();
+                    idMap.put(amid, Long.parseLong(newAnno.getId()));
+                    // Mark this annotation to be removed from the queue
+                    toRemove.add(amid);
                 }
-                // Guard against infinite loops
-                if (toRemove.isEmpty())
-                    return Response.status(Response.Status.BAD_REQUEST)
-                            .entity(jsonerror("Annotations in XML could not all be resolved")).build();
-                toRemove.forEach(annotationsToAdd::remove);
             }
-
-            // Sanity check: if we created any relationship-less nodes, delete them again.
-            idMap.values().stream().map(db::getNodeById)
-                    .filter(n -> !n.hasRelationship()).forEach(Node::delete);
-
-            tx.success();
-        } catch (IllegalArgumentException e) {
-            return Response.status(Response.Status.BAD_REQUEST).entity(jsonerror(e.getMessage())).build();
-        } catch (Exception e) {
-            e.printStackTrace();
-            return Response.serverError().build();
+            // Guard against infinite loops
+            if (toRemove.isEmpty())
+                return Response.status(Response.Status.BAD_REQUEST)
+                        .entity(jsonerror("Annotations in XML could not all be resolved")).build();
+            toRemove.forEach(annotationsToAdd::remove);
         }
 
-        return Response.status(Response.Status.CREATED).entity(jsonresp("parentId", parentId)).build();
+        return null;
+    }
+
+    // Sanity check: if we created any relationship-less nodes, delete them again.
+    private void removeOrphans(Map<String, Long> idMap) {
+        idMap.values().stream().map(db::getNodeById)
+                .filter(n -> !n.hasRelationship()).forEach(Node::delete);
     }
 
     /**
@@ -501,13 +712,22 @@ public class GraphMLParser {
         return true;
     }
 
-    private HashMap<String, Object> returnProperties(NodeList dataNodes, HashMap<String, String[]> dataKeys) {
-        HashMap<String, Object> nodeProperties = new HashMap<>();
-        for (int j = 0; j < dataNodes.getLength(); j++) {
-            org.w3c.dom.Node datumXML = dataNodes.item(j);
-            String keyCode = datumXML.getAttributes().getNamedItem("key").getNodeValue();
-            String keyVal = datumXML.getTextContent();
+    // Read the <data/> children of the node or edge element at which the reader stands, leaving
+    // the reader at the end of that element.
+    private HashMap<String, Object> readProperties(XMLStreamReader reader, String element,
+                                                   HashMap<String, String[]> dataKeys) throws XMLStreamException {
+        HashMap<String, Object> properties = new HashMap<>();
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals(element))
+                break;
+            if (event != XMLStreamConstants.START_ELEMENT || !reader.getLocalName().equals("data"))
+                continue;
+            String keyCode = reader.getAttributeValue("", "key");
+            String keyVal = reader.getElementText();
             String[] keyInfo = dataKeys.get(keyCode);
+            if (keyInfo == null)
+                throw new IllegalArgumentException("Undeclared data key " + keyCode);
             Object propValue;
             // These datatypes need to be kept in sync with exporter.GraphMLExporter
             switch (keyInfo[1]) {
@@ -527,9 +747,60 @@ public class GraphMLParser {
                     propValue = keyVal;
 
             }
-            nodeProperties.put(keyInfo[0], propValue);
+            properties.put(keyInfo[0], propValue);
+        }
+        return properties;
+    }
+
+    // An edge that has to wait, either for the annotation framework or for the linking pass of
+    // a parallel import, with its properties (including its neolabel) as read from the XML.
+    private static class HeldEdge {
+        final String source;
+        final String target;
+        final HashMap<String, Object> properties;
+
+        HeldEdge(String source, String target, HashMap<String, Object> properties) {
+            this.source = source;
+            this.target = target;
+            this.properties = properties;
+        }
+    }
+
+    // What we learn from one XML file as it is read, and what must be done once it has been.
+    private class FileState {
+        final String fileName;
+        final Node traditionNode;
+        // The UUID of the tradition node that was passed in to receive the parsed data
+        String tradId;
+        // The ID that the file's import reports, either the tradition ID or the section node ID
+        String parentId;
+        // The Neo4J node that contains our section, if we are parsing a section
+        Node thisSection = null;
+        // The IDs of the nodes created from this file, when it is read alongside others
+        final HashMap<String, Long> localIds = new HashMap<>();
+        // We will hold back nodes that were labeled by the user rather than the system, such as annotations,
+        // so that we can add them to the graph with the existing verification / sanity checks.
+        final HashMap<String, HashMap<String, Object>> userLabeledNodes = new HashMap<>();
+        final ArrayList<HeldEdge> userLabeledEdges = new ArrayList<>();
+        // Keep track of the relation types we have seen.
+        final HashSet<String> relationTypesUsed = new HashSet<>();
+        // Any witness sigla found herein, so that we can ensure that the witnesses exist. This
+        // is mostly useful when we are creating a tradition from a single exported section.
+        final HashSet<String> witnessSigla = new HashSet<>();
+        // Edges to nodes in other files, which wait for the linking pass
+        final ArrayList<HeldEdge> deferredEdges = new ArrayList<>();
+        // Why the file could not be read, if it couldn't
+        Response failure = null;
+
+        FileState(String fileName, Node traditionNode) {
+            this.fileName = fileName;
+            this.traditionNode = traditionNode;
+            try (Transaction tx = db.beginTx()) {
+                tradId = traditionNode.getProperty("id").toString();
+                tx.success();
+            }
+            parentId = tradId;
         }
-        return nodeProperties;
     }
 
 }
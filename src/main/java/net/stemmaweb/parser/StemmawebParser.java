@@ -17,8 +17,10 @@ import net.stemmaweb.rest.Nodes;
 
 import net.stemmaweb.rest.RelationType;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.ImportBatch;
 import net.stemmaweb.services.ReadingService;
 import net.stemmaweb.services.VariantGraphService;
+import net.stemmaweb.services.WitnessIndex;
 import org.neo4j.graphdb.*;
 
 import static net.stemmaweb.Util.jsonerror;
@@ -32,6 +34,11 @@ import static net.stemmaweb.Util.jsonresp;
 public class StemmawebParser {
     private final GraphDatabaseServiceProvider dbServiceProvider = new GraphDatabaseServiceProvider();
     private final GraphDatabaseService db = dbServiceProvider.getDatabase();
+    private final ImportBatch batch;
+
+    public StemmawebParser(ImportBatch batch) {
+        this.batch = batch;
+    }
 
     /* public Response parseGraphML(String filename, Node parentNode)
         throws FileNotFoundException {
@@ -79,7 +86,7 @@ public class StemmawebParser {
         String edgeWitness = null;
         String witnessClass = "witnesses";
 
-        try (Transaction tx = db.beginTx()) {
+        try (ImportBatch.Scope tx = batch.begin()) {
             tradId = traditionNode.getProperty("id").toString();
             outer:
             while (true) {
@@ -96,6 +103,7 @@ public class StemmawebParser {
                             case "node":
                                 // Finished working on currentNode
                                 currentNode = null;
+                                tx.checkpoint();
                                 break;
                             case "edge":
                                 assert currentRelModel != null;
@@ -171,6 +179,7 @@ public class StemmawebParser {
                                 // Finished working on currentRel
                                 witnessClass = "witnesses";
                                 currentRelModel = null;
+                                tx.checkpoint();
                                 break;
                         }
                         break;
@@ -319,6 +328,8 @@ public class StemmawebParser {
             // Re-rank the entire tradition
             Node sectionStart = VariantGraphService.getStartNode(String.valueOf(parentNode.getId()), db);
             ReadingService.recalculateRank(sectionStart, true);
+            // Index the witnesses on the sequences we made
+            WitnessIndex.indexSection(parentNode, tx);
             // Calculate the common nodes; don't trust the old format for this.
             VariantGraphService.calculateCommon(parentNode);
 
@@ -3,7 +3,9 @@ package net.stemmaweb.parser;
 import net.stemmaweb.model.ReadingModel;
 import net.stemmaweb.rest.*;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.ImportBatch;
 import net.stemmaweb.services.VariantGraphService;
+import net.stemmaweb.services.WitnessIndex;
 import org.neo4j.graphdb.*;
 
 import javax.ws.rs.core.Response;
@@ -26,6 +28,7 @@ import static net.stemmaweb.services.ReadingService.removePlaceholder;
  */
 public class TEIParallelSegParser {
     private final GraphDatabaseService db = new GraphDatabaseServiceProvider().getDatabase();
+    private final ImportBatch batch;
 
     // Global variables needed for the parsing
     // Keep track of which witnesses are "active" at any given time
@@ -35,6 +38,12 @@ public class TEIParallelSegParser {
     // Note whether the witStart / witEnd tags are being used
     private Boolean appSiglorumPresent = false;
     private Boolean spaceSignificant = false;
+    // Roughly how many nodes and links we have made since the last checkpoint
+    private int created = 0;
+
+    public TEIParallelSegParser(ImportBatch batch) {
+        this.batch = batch;
+    }
 
     /**
      * Parse a TEI XML input stream with parallel-segmentation representation of variant text
@@ -63,7 +72,7 @@ public class TEIParallelSegParser {
         String parentId;
         Node startNode;
         Node endNode = null;
-        try (Transaction tx = db.beginTx()) {
+        try (ImportBatch.Scope tx = batch.begin()) {
             parentId = String.valueOf(parentNode.getId());
             tradId = traditionNode.getProperty("id").toString();
             // Set up the start node
@@ -183,10 +192,15 @@ public class TEIParallelSegParser {
                         }
                         break;
                 }
+                // We are back at the top level, so this is a safe place to commit
+                tx.checkpoint(created);
+                created = 0;
             } // end parseloop
 
             // Now try re-ranking the nodes.
             recalculateRank(startNode);
+            // Index the witnesses on the sequences we made
+            WitnessIndex.indexSection(parentNode, tx);
             // Calculate which nodes are common
             VariantGraphService.calculateCommon(parentNode);
             tx.success();
@@ -408,6 +422,7 @@ public class TEIParallelSegParser {
                 seq.setProperty(witClass, readingWitnesses.toArray(new String[0]));
             }
             chain.add(wordNode);
+            created += 2;
         }
         // Set join_prior / join_next on the first & last readings
         // if there was a significant lack of whitespace
@@ -424,6 +439,7 @@ public class TEIParallelSegParser {
         ph.setProperty("is_placeholder", true);
         if (name != null) ph.setProperty("text", name);
         placeholderNodes.add(ph);
+        created++;
         return ph;
     }
 
@@ -12,18 +12,37 @@ import net.stemmaweb.rest.Nodes;
 import net.stemmaweb.rest.Relation;
 import net.stemmaweb.rest.RelationType;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.ImportBatch;
 import net.stemmaweb.services.VariantGraphService;
+import net.stemmaweb.services.WitnessIndex;
 import org.apache.poi.hssf.usermodel.HSSFWorkbook;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.DataFormatter;
 import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
+import org.apache.poi.xssf.usermodel.XSSFComment;
 import org.neo4j.graphdb.*;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.XMLFilterImpl;
 
 import javax.ws.rs.core.Response;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import static net.stemmaweb.Util.jsonerror;
@@ -35,6 +54,11 @@ import static net.stemmaweb.Util.jsonresp;
  */
 public class TabularParser {
     private final GraphDatabaseService db = new GraphDatabaseServiceProvider().getDatabase();
+    private final ImportBatch batch;
+
+    public TabularParser(ImportBatch batch) {
+        this.batch = batch;
+    }
 
     /**
      * Parse a comma- or tab-separated file stream into a graph.
@@ -46,25 +70,22 @@ public class TabularParser {
      * @return Response
      */
     public Response parseCSV(InputStream fileData, Node sectionNode, char sepChar) {
-        // Parse the CSV file
-        ArrayList<String[]> csvRows = new ArrayList<>();
-        try {
+        // Parse the CSV file a line at a time
+        return parseTableToCollation(rows -> {
             final CSVParser parser = new CSVParserBuilder().withSeparator(sepChar).build();
             final CSVReader reader = new CSVReaderBuilder(new InputStreamReader(fileData))
                     .withCSVParser(parser)
                     .build();
             String[] nextLine;
             while ((nextLine = reader.readNext()) != null)
-                csvRows.add(nextLine);
-        } catch (Exception e) {
-            return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
-                .entity(jsonerror(e.getMessage())).build();
-        }
-        return parseTableToCollation(csvRows, sectionNode);
+                rows.accept(nextLine);
+        }, sectionNode);
     }
 
     /**
-     * Parse an Excel file stream into a graph.
+     * Parse an Excel file stream into a graph. An XLSX file is read as a stream of events from
+     * the first sheet, and each row goes into the collation as soon as it has been read; the
+     * older XLS format must be read into memory in full.
      *
      * @param fileData - an InputStream containing the CSV/TSV data
      * @param sectionNode - the section of the tradition to which this collation belongs
@@ -73,20 +94,32 @@ public class TabularParser {
      * @return Response
      */
     public Response parseExcel(InputStream fileData, Node sectionNode, String excelType) {
-        ArrayList<String[]> excelRows;
-        try {
-            Workbook workbook;
-            if (excelType.equals("xls")) {
-                workbook = new HSSFWorkbook(fileData);
-            } else { // it must be xlsx
-                workbook = new XSSFWorkbook(fileData);
+        if (excelType.equals("xls")) {
+            ArrayList<String[]> excelRows;
+            try {
+                excelRows = getTableFromWorkbook(new HSSFWorkbook(fileData));
+            } catch (Exception e) {
+                return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
+                        .entity(jsonerror(e.getMessage())).build();
             }
-            excelRows = getTableFromWorkbook(workbook);
-        } catch (Exception e) {
+            return parseTableToCollation(excelRows::forEach, sectionNode);
+        }
+
+        // It must be xlsx. The package has to be opened from a file if it is not to be held in
+        // memory, so store the data first.
+        File spool = null;
+        try {
+            spool = File.createTempFile("stemmarest-import", ".xlsx");
+            Files.copy(fileData, spool.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            final File xlsx = spool;
+            return parseTableToCollation(rows -> readFirstSheet(xlsx, rows), sectionNode);
+        } catch (IOException e) {
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
                     .entity(jsonerror(e.getMessage())).build();
+        } finally {
+            if (spool != null && !spool.delete())
+                spool.deleteOnExit();
         }
-        return parseTableToCollation(excelRows, sectionNode);
     }
 
     // Extract a table from the first sheet of an Excel workbook.
@@ -111,17 +144,47 @@ public class TabularParser {
         return excelRows;
     }
 
-    private Response parseTableToCollation(ArrayList<String[]> tableData, Node parentNode) {
+    // Send the rows of the first sheet of an XLSX file to the given consumer, as the sheet is read.
+    private static void readFirstSheet(File xlsx, Consumer<String[]> rows) throws Exception {
+        OPCPackage pkg = OPCPackage.open(xlsx, PackageAccess.READ);
+        try {
+            XSSFReader reader = new XSSFReader(pkg);
+            Iterator<InputStream> sheets = reader.getSheetsData();
+            if (!sheets.hasNext())
+                throw new Exception("The spreadsheet has no sheets");
+            try (InputStream sheet = sheets.next()) {
+                SheetRows sheetRows = new SheetRows(rows);
+                // The sheet handler only reports cells that have a value, so count the cells
+                // on their way to it, as the old workbook reader did
+                XMLFilterImpl parser = new XMLFilterImpl(XMLHelper.newXMLReader()) {
+                    @Override
+                    public void startElement(String uri, String localName, String qName, Attributes atts)
+                            throws SAXException {
+                        if (localName.equals("c")) sheetRows.countCell();
+                        super.startElement(uri, localName, qName, atts);
+                    }
+                };
+                parser.setContentHandler(new XSSFSheetXMLHandler(reader.getStylesTable(),
+                        new ReadOnlySharedStringsTable(pkg), sheetRows, new DataFormatter(), false));
+                parser.parse(new InputSource(sheet));
+            }
+        } finally {
+            pkg.revert();
+        }
+    }
+
+    // Something that can send the rows of a table, one at a time, to a consumer
+    @FunctionalInterface
+    private interface RowSource {
+        void feed(Consumer<String[]> rows) throws Exception;
+    }
+
+    private Response parseTableToCollation(RowSource tableData, Node parentNode) {
         String response;
         Response.Status result = Response.Status.OK;
         Node traditionNode = VariantGraphService.getTraditionNode(parentNode);
 
-        try (Transaction tx = db.beginTx()) {
-            // Make the start node
-            Node startNode = Util.createStartNode(parentNode);
-            Node endNode = Util.createEndNode(parentNode);
-            endNode.setProperty("rank", (long) tableData.size());
-
+        try (ImportBatch.Scope tx = batch.begin()) {
             // Make the COLLATED relation type
             RelationTypeModel rtm = new RelationTypeModel();
             rtm.setName("collated");
@@ -131,13 +194,73 @@ public class TabularParser {
             if (rtResult.getStatus() == Response.Status.INTERNAL_SERVER_ERROR.getStatusCode())
                 return rtResult;
 
-            // Get the witnesses from the first row of the table
-            String[] witnessList = tableData.get(0);
-            // Keep a table of the last-spotted reading for each witness
-            HashMap<String, Node> lastReading = new HashMap<>();
+            // Build the collation from the rows as they come
+            CollationBuilder builder = new CollationBuilder(traditionNode, parentNode, tx);
+            tableData.feed(builder::addRow);
+            builder.finish();
+
+            // Index the witnesses on the sequences we made, and we are done!
+            WitnessIndex.indexSection(parentNode, tx);
+            result = Response.Status.CREATED;
+            response = jsonresp("parentId", parentNode.getId());
+            tx.success();
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(jsonerror(e.getMessage())).build();
+        } catch (Exception e) {
+            e.printStackTrace();
+            if (result.equals(Response.Status.OK))
+                result = Response.Status.INTERNAL_SERVER_ERROR;
+            response = jsonerror(e.getMessage());
+        }
+
+        return Response.status(result).entity(response).build();
+
+    }
+
+    // Turns the rows of a collation table into readings, one row at a time. The first row
+    // holds the witness sigla.
+    private class CollationBuilder {
+        private final Node traditionNode;
+        private final Node parentNode;
+        private final ImportBatch.Scope tx;
+        private final Node startNode;
+        private final Node endNode;
+        private final Relation relRest;
+        private String[] witnessList = null;
+        // Keep a table of the last-spotted reading for each witness
+        private final HashMap<String, Node> lastReading = new HashMap<>();
+        // The layer witnesses, with a ref to their base
+        private final HashMap<String, String[]> layerWitnesses = new HashMap<>();
+        // The index of the next row
+        private int idx = 0;
+        private int distinct = 0;
+
+        CollationBuilder(Node traditionNode, Node parentNode, ImportBatch.Scope tx) {
+            this.traditionNode = traditionNode;
+            this.parentNode = parentNode;
+            this.tx = tx;
+            this.relRest = new Relation(traditionNode.getProperty("id").toString());
+            // Make the start and end nodes
+            startNode = Util.createStartNode(parentNode);
+            endNode = Util.createEndNode(parentNode);
+        }
+
+        void addRow(String[] row) {
+            if (witnessList == null)
+                addWitnesses(row);
+            else
+                addReadings(row);
+            idx++;
+        }
+
+        // Get the witnesses from the first row of the table
+        private void addWitnesses(String[] row) {
+            witnessList = row;
             // Add the non-layer witnesses to the graph
-            HashMap<String, String[]> layerWitnesses = new HashMap<>();
-            for (String sigil: witnessList) {
+            for (int j = 0; j < witnessList.length; j++) {
+                String sigil = witnessList[j];
+                if (sigil == null || sigil.trim().isEmpty())
+                    throw new IllegalArgumentException(String.format("No sigil given for column %d", j + 1));
                 // See if it is a layered witness, of the form XX (YY)
                 String[] sigilParts = sigil.split("\\s+\\(");  // now we have ["XX", "YY)"]
                 if (sigilParts.length == 1) // it is not a layered witness
@@ -145,114 +268,114 @@ public class TabularParser {
                 else if (sigilParts.length == 2) // it is a layered witness; store a ref to its base
                     layerWitnesses.put(sigil, sigilParts);
                 else   // what is this i don't even
-                    return Response.status(Response.Status.BAD_REQUEST)
-                        .entity(jsonerror("Malformed sigil " + sigil)).build();
+                    throw new IllegalArgumentException("Malformed sigil " + sigil);
 
                 lastReading.put(sigil, startNode);
             }
+        }
 
-            // Go through the remaining rows and create the readings
-            int distinct = 0;
-            for (int idx = 1; idx < tableData.size(); idx++) { // for each row
-                String[] collationRow = tableData.get(idx);
-                HashMap<String, Node> createdReadings = new HashMap<>();
-                HashMap<Relationship, ArrayList<String>> linkWitnesses = new HashMap<>();
-                for (int j = 0; j < collationRow.length; j++) {
-                    String reading = collationRow[j];
-                    String sigil = witnessList[j];
-                    Node lastNode = lastReading.get(sigil);
-                    // Is it an empty reading?
-                    if (reading == null || reading.equals("")) {
-                        distinct++;
+        // Go through a subsequent row and create the readings
+        private void addReadings(String[] collationRow) {
+            HashMap<String, Node> createdReadings = new HashMap<>();
+            HashMap<Relationship, ArrayList<String>> linkWitnesses = new HashMap<>();
+            for (int j = 0; j < collationRow.length; j++) {
+                String reading = collationRow[j];
+                String sigil = witnessList[j];
+                Node lastNode = lastReading.get(sigil);
+                // Is it an empty reading?
+                if (reading == null || reading.equals("")) {
+                    distinct++;
+                    continue;
+                }
+                // Is it a continuation of a lacuna?
+                if (reading.equals("#LACUNA#"))
+                    if (lastNode.hasProperty("is_lacuna"))
                         continue;
-                    }
-                    // Is it a continuation of a lacuna?
-                    if (reading.equals("#LACUNA#"))
-                        if (lastNode.hasProperty("is_lacuna"))
-                            continue;
 
-                    // Does the reading exist?
-                    Node readingNode = createdReadings.getOrDefault(reading, null);
-                    if (readingNode == null) {
-                        readingNode = db.createNode(Nodes.READING);
-                        readingNode.setProperty("section_id", parentNode.getId());
-                        readingNode.setProperty("rank", (long) idx);
-                        readingNode.setProperty("text", reading);
-                        if (reading.equals("#LACUNA#"))
-                            readingNode.setProperty("is_lacuna", true);
-                        else {
-                            distinct++;
-                        }
-                        createdReadings.put(reading, readingNode);
-                    }
-                    // Does the reading have a relationship with lastNode? If not, create it.
-                    Relationship existingSeq = Util.getSequenceIfExists(lastNode, readingNode);
-                    if (existingSeq == null)
-                        existingSeq = lastNode.createRelationshipTo(readingNode, ERelations.SEQUENCE);
-
-                    // Get that relationship's witnesses list, or create it if it doesn't exist.
-                    ArrayList<String> seqWitnesses = linkWitnesses.getOrDefault(existingSeq, null);
-                    if (seqWitnesses == null) {
-                        seqWitnesses = new ArrayList<>();
-                        linkWitnesses.put(existingSeq, seqWitnesses);
+                // Does the reading exist?
+                Node readingNode = createdReadings.getOrDefault(reading, null);
+                if (readingNode == null) {
+                    readingNode = db.createNode(Nodes.READING);
+                    readingNode.setProperty("section_id", parentNode.getId());
+                    readingNode.setProperty("rank", (long) idx);
+                    readingNode.setProperty("text", reading);
+                    if (reading.equals("#LACUNA#"))
+                        readingNode.setProperty("is_lacuna", true);
+                    else {
+                        distinct++;
                     }
-                    // Add this sigil to the list and store the reading as its last
-                    seqWitnesses.add(sigil);
-                    lastReading.put(sigil, readingNode);
-                }
-                // Did we create only one reading (and no gaps?) If so it is a common reading.
-                boolean common = distinct == 1;
-                createdReadings.values().forEach(x -> x.setProperty("is_common", common));
-                // Now that we have been through the row, create the witness / layer attributes
-                // for the created relationships.
-                for (Relationship r : linkWitnesses.keySet()) {
-                    ArrayList<String> witList = linkWitnesses.get(r);
-                    HashMap<String, ArrayList<String>> layerMap = new HashMap<>();
-                    layerMap.put("witnesses", new ArrayList<>());
-                    for (String w : witList)
-                        if (layerWitnesses.containsKey(w)) {
-                            // It's a layer witness. Get the layer label and the base witness
-                            String baseWit = layerWitnesses.get(w)[0];
-                            String ll = layerWitnesses.get(w)[1];
-                            String layerLabel = ll.substring(0, ll.indexOf(')'));
-                            // See if the base witness is already in the list
-                            if (witList.contains(baseWit))
-                                continue;
-                            // Add the layer label key and the witness.
-                            if (!layerMap.containsKey(layerLabel))
-                                layerMap.put(layerLabel, new ArrayList<>());
-                            layerMap.get(layerLabel).add(baseWit);
-                        } else layerMap.get("witnesses").add(w);
-                    // Finally, set the properties for each layer label
-                    layerMap.forEach((x, y) -> r.setProperty(x, y.toArray(new String[0])));
+                    createdReadings.put(reading, readingNode);
                 }
-                // Create a COLLATED link between all non-meta readings created at the same rank, to preserve
-                // the collation as it was uploaded.
-                List<ReadingModel> collatedReadings = createdReadings.values().stream().map(ReadingModel::new)
-                        .filter(x -> !x.isMeta()).collect(Collectors.toList());
-                int i = collatedReadings.size();
-                Relation relRest = new Relation(traditionNode.getProperty("id").toString());
-                RelationModel rm = new RelationModel();
-                rm.setType("collated");
-                rm.setAnnotation("Aligned in tabular input");
-                while (i > 1) {
-                    ReadingModel srdg = collatedReadings.get(i-1);
-                    ReadingModel trdg = collatedReadings.get(i-2);
-                    // Make sure the readings aren't the same and aren't linked yet
-                    if (srdg.equals(trdg))
-                        throw new Exception("Same reading twice in createdReadings?!");
-                    rm.setSource(srdg.getId());
-                    rm.setTarget(trdg.getId());
-                    Response resp = relRest.create(rm);
-                    if (resp.getStatus() > 399)
-                        throw new Exception("Problem collating aligned readings: " + resp.getEntity().toString());
-                    i--;
-                }
-
+                // Does the reading have a relationship with lastNode? If not, create it.
+                Relationship existingSeq = Util.getSequenceIfExists(lastNode, readingNode);
+                if (existingSeq == null)
+                    existingSeq = lastNode.createRelationshipTo(readingNode, ERelations.SEQUENCE);
 
+                // Get that relationship's witnesses list, or create it if it doesn't exist.
+                ArrayList<String> seqWitnesses = linkWitnesses.getOrDefault(existingSeq, null);
+                if (seqWitnesses == null) {
+                    seqWitnesses = new ArrayList<>();
+                    linkWitnesses.put(existingSeq, seqWitnesses);
+                }
+                // Add this sigil to the list and store the reading as its last
+                seqWitnesses.add(sigil);
+                lastReading.put(sigil, readingNode);
+            }
+            // Did we create only one reading (and no gaps?) If so it is a common reading.
+            boolean common = distinct == 1;
+            createdReadings.values().forEach(x -> x.setProperty("is_common", common));
+            // Now that we have been through the row, create the witness / layer attributes
+            // for the created relationships.
+            for (Relationship r : linkWitnesses.keySet()) {
+                ArrayList<String> witList = linkWitnesses.get(r);
+                HashMap<String, ArrayList<String>> layerMap = new HashMap<>();
+                layerMap.put("witnesses", new ArrayList<>());
+                for (String w : witList)
+                    if (layerWitnesses.containsKey(w)) {
+                        // It's a layer witness. Get the layer label and the base witness
+                        String baseWit = layerWitnesses.get(w)[0];
+                        String ll = layerWitnesses.get(w)[1];
+                        String layerLabel = ll.substring(0, ll.indexOf(')'));
+                        // See if the base witness is already in the list
+                        if (witList.contains(baseWit))
+                            continue;
+                        // Add the layer label key and the witness.
+                        if (!layerMap.containsKey(layerLabel))
+                            layerMap.put(layerLabel, new ArrayList<>());
+                        layerMap.get(layerLabel).add(baseWit);
+                    } else layerMap.get("witnesses").add(w);
+                // Finally, set the properties for each layer label
+                layerMap.forEach((x, y) -> r.setProperty(x, y.toArray(new String[0])));
             }
+            // Create a COLLATED link between all non-meta readings created at the same rank, to preserve
+            // the collation as it was uploaded.
+            List<ReadingModel> collatedReadings = createdReadings.values().stream().map(ReadingModel::new)
+                    .filter(x -> !x.isMeta()).collect(Collectors.toList());
+            int i = collatedReadings.size();
+            RelationModel rm = new RelationModel();
+            rm.setType("collated");
+            rm.setAnnotation("Aligned in tabular input");
+            while (i > 1) {
+                ReadingModel srdg = collatedReadings.get(i-1);
+                ReadingModel trdg = collatedReadings.get(i-2);
+                // Make sure the readings aren't the same and aren't linked yet
+                if (srdg.equals(trdg))
+                    throw new IllegalStateException("Same reading twice in createdReadings?!");
+                rm.setSource(srdg.getId());
+                rm.setTarget(trdg.getId());
+                Response resp = relRest.create(rm);
+                if (resp.getStatus() > 399)
+                    throw new IllegalStateException("Problem collating aligned readings: " + resp.getEntity().toString());
+                i--;
+            }
+            tx.checkpoint(createdReadings.size() + linkWitnesses.size());
+        }
 
-            // Tie all the last readings to the end node.
+        // Tie all the last readings to the end node.
+        void finish() {
+            if (witnessList == null)
+                throw new IllegalStateException("No witnesses found in the table");
+            endNode.setProperty("rank", (long) idx);
             for (Node readingNode : lastReading.values()) {
                 Relationship endRelation = Util.getSequenceIfExists(readingNode, endNode);
                 if (endRelation == null) {
@@ -265,21 +388,78 @@ public class TabularParser {
                     endRelation.setProperty("witnesses", readingWits.toArray(new String[0]));
                 } // else we've already connected this reading.
             }
+        }
+    }
 
-            // We are done!
-            result = Response.Status.CREATED;
-            response = jsonresp("parentId", parentNode.getId());
-            tx.success();
-        } catch (IllegalArgumentException e) {
-            return Response.status(Response.Status.BAD_REQUEST).entity(jsonerror(e.getMessage())).build();
-        } catch (Exception e) {
-            e.printStackTrace();
-            if (result.equals(Response.Status.OK))
-                result = Response.Status.INTERNAL_SERVER_ERROR;
-            response = jsonerror(e.getMessage());
+    // Collects the cells of each row of a sheet as its events are read, placing each cell
+    // in the column it belongs to, and passes the rows on as they are completed. As with the
+    // old workbook reader, a row may not have more cells than the first row has, nor may it
+    // reach past the first row's last column. The first row is held back until the second
+    // has been read, so that a sheet with too many columns is refused as such, rather than
+    // for whatever is wrong with its sigla.
+    private static class SheetRows implements XSSFSheetXMLHandler.SheetContentsHandler {
+        private final Consumer<String[]> rows;
+        // The number of columns, and the number of cells, of the first row
+        private int width = -1;
+        private int headerCells = -1;
+        private String[] header;
+        private ArrayList<String> cells;
+        private int filled;
+        private int lastColumn;
+        private int rowNum;
+
+        SheetRows(Consumer<String[]> rows) {
+            this.rows = rows;
         }
 
-        return Response.status(result).entity(response).build();
+        @Override
+        public void startRow(int rowNum) {
+            this.rowNum = rowNum;
+            cells = new ArrayList<>();
+            filled = 0;
+            lastColumn = -1;
+        }
 
+        // Note a cell of the current row, whether or not it has a value
+        void countCell() {
+            filled++;
+            if (width >= 0 && filled > headerCells)
+                throw tooManyColumns();
+        }
+
+        @Override
+        public void cell(String cellReference, String formattedValue, XSSFComment comment) {
+            int column = cellReference == null ? lastColumn + 1 : new CellReference(cellReference).getCol();
+            if (width >= 0 && column >= width)
+                throw tooManyColumns();
+            while (cells.size() < column) cells.add(null);
+            cells.add(formattedValue);
+            lastColumn = column;
+        }
+
+        @Override
+        public void endRow(int rowNum) {
+            if (width < 0) {
+                width = cells.size();
+                headerCells = filled;
+                header = cells.toArray(new String[0]);
+                return;
+            }
+            while (cells.size() < width) cells.add(null);
+            endSheet();
+            rows.accept(cells.toArray(new String[0]));
+        }
+
+        private IllegalStateException tooManyColumns() {
+            return new IllegalStateException(String.format("Spreadsheet row %d has too many columns!", rowNum));
+        }
+
+        @Override
+        public void endSheet() {
+            if (header != null) {
+                rows.accept(header);
+                header = null;
+            }
+        }
     }
 }
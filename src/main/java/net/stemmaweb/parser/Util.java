@@ -1,21 +1,19 @@
 package net.stemmaweb.parser;
 
-import net.stemmaweb.model.RelationTypeModel;
 import net.stemmaweb.rest.ERelations;
 import net.stemmaweb.rest.Nodes;
 import net.stemmaweb.services.DatabaseService;
+import net.stemmaweb.services.RelationTypeRegistry;
 import net.stemmaweb.services.VariantGraphService;
 import org.apache.commons.compress.utils.IOUtils;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.traversal.BranchState;
-import org.w3c.dom.Document;
 
-import javax.xml.parsers.DocumentBuilderFactory;
 import java.io.*;
 import java.nio.file.Files;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
@@ -83,7 +81,7 @@ public class Util {
         GraphDatabaseService db = traditionNode.getGraphDatabase();
         try (Transaction tx = db.beginTx()) {
             String tradId = traditionNode.getProperty("id").toString();
-            ArrayList<Node> tsections = VariantGraphService.getSectionNodes(tradId, db);
+            ArrayList<Node> tsections = VariantGraphService.getSectionNodes(tradId, db, true);
             if (!tsections.contains(sectionNode)) {
                 traditionNode.createRelationshipTo(sectionNode, ERelations.PART);
                 if (!tsections.isEmpty())
@@ -98,16 +96,6 @@ public class Util {
                 || nodeid.matches("^-?(\\.\\d+|\\d+\\.\\d+)$");
     }
 
-    // XML parsing utilities
-    static Document openFileStream(InputStream filestream) {
-        try {
-            return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(filestream);
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
-        }
-    }
-
     // Zip parsing utilities - public because also used by test suite
     // Returns a structure which is a list of zip
     public static LinkedHashMap<String,File> extractGraphMLZip(InputStream is) throws IOException {
@@ -151,11 +139,7 @@ public class Util {
     // Helper to set colocation flags on all colocated RELATED links.
     // NOTE: For use inside a transaction
     static void setColocationFlags (Node traditionNode) {
-        HashSet<String> colocatedTypes = new HashSet<>();
-        for (Relationship r : traditionNode.getRelationships(ERelations.HAS_RELATION_TYPE, Direction.OUTGOING)) {
-            RelationTypeModel relType = new RelationTypeModel(r.getEndNode());
-            if (relType.getIs_colocation()) colocatedTypes.add(relType.getName());
-        }
+        Set<String> colocatedTypes = RelationTypeRegistry.forTradition(traditionNode).colocatedTypes();
 
         // Traverse the tradition looking for these types
         for (Relationship rel : VariantGraphService.returnTraditionRelations(traditionNode).relationships()) {
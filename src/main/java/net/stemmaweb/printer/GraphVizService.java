@@ -0,0 +1,236 @@
+package net.stemmaweb.printer;
+
+import net.stemmaweb.services.Settings;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Pattern;
+
+/**
+ * Renders dot source into images with the Graphviz 'dot' program, on behalf of the whole
+ * application. No more than a fixed number of dot processes run at once; a render that
+ * cannot start, or cannot finish, within the timeout is given up and its process killed.
+ * The dot source is piped through the process rather than written to temporary files, and
+ * the images are cached under a hash of their source and format, so that the same graph
+ * is drawn only once however often it is asked for.
+ *
+ * The number of processes and the timeout (in seconds) can be set with the environment
+ * variables STEMMAREST_DOT_PROCESSES and STEMMAREST_DOT_TIMEOUT.
+ *
+ * @author tla
+ */
+public class GraphVizService {
+
+    private static final String PROCESSES_ENV = "STEMMAREST_DOT_PROCESSES";
+    private static final String TIMEOUT_ENV = "STEMMAREST_DOT_TIMEOUT";
+    private static final long DEFAULT_TIMEOUT = 30;
+    private static final long DEFAULT_CACHE_BYTES = 64 * 1024 * 1024;
+    private static final Set<String> FORMATS = new HashSet<>(Arrays.asList("svg", "png"));
+
+    private static GraphVizService instance;
+
+    private final String dotExecutable;
+    private final Semaphore processes;
+    private final long timeoutMillis;
+    private final long maxCacheBytes;
+    // Threads to feed the dot processes and drain their output
+    private final ExecutorService pipes = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "graphviz-pipe");
+        t.setDaemon(true);
+        return t;
+    });
+    // The dot processes that are running now
+    private final Set<Process> running = ConcurrentHashMap.newKeySet();
+    // Finished images, least recently used first, and renders that are under way
+    private final LinkedHashMap<String, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cacheBytes = 0;
+    private final ConcurrentHashMap<String, CompletableFuture<byte[]>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Thrown when an image cannot be rendered, whether because dot is missing, because it
+     * failed on the given source, or because it ran out of time.
+     */
+    public static class RenderException extends Exception {
+        RenderException(String message) {
+            super(message);
+        }
+    }
+
+    GraphVizService(String dotExecutable, int maxProcesses, long timeoutMillis, long maxCacheBytes) {
+        this.dotExecutable = dotExecutable;
+        this.processes = new Semaphore(maxProcesses, true);
+        this.timeoutMillis = timeoutMillis;
+        this.maxCacheBytes = maxCacheBytes;
+    }
+
+    /**
+     * @return the rendering service for the application, set up on first use
+     */
+    public static synchronized GraphVizService getInstance() {
+        if (instance == null)
+            instance = new GraphVizService(findDotExecutable(),
+                    Settings.getInt(PROCESSES_ENV, Runtime.getRuntime().availableProcessors(), 1),
+                    Settings.getLong(TIMEOUT_ENV, DEFAULT_TIMEOUT, 1) * 1000, DEFAULT_CACHE_BYTES);
+        return instance;
+    }
+
+    /**
+     * Stop the rendering service, killing any dot processes that are still running.
+     */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.pipes.shutdownNow();
+            instance.running.forEach(Process::destroyForcibly);
+            instance = null;
+        }
+    }
+
+    /**
+     * Put the given service in place of the application's rendering service, shutting down
+     * the one that was there before.
+     *
+     * @param service - the new service
+     */
+    static synchronized void setInstance(GraphVizService service) {
+        shutdown();
+        instance = service;
+    }
+
+    /**
+     * Render the given dot source as an image, or return the image from the cache if the
+     * same source has been rendered before.
+     *
+     * @param dot    - the graph in dot format
+     * @param format - the image format, either "svg" or "png"
+     * @return the image data
+     * @throws IllegalArgumentException if the format is not one we can draw
+     * @throws RenderException if the image could not be made
+     * @throws InterruptedException if the thread is interrupted while waiting for dot
+     */
+    public byte[] render(String dot, String format) throws RenderException, InterruptedException {
+        if (!FORMATS.contains(format))
+            throw new IllegalArgumentException("Unsupported image format " + format);
+        String key = cacheKey(dot, format);
+        byte[] cached = fromCache(key);
+        if (cached != null) return cached;
+
+        // If someone else is already drawing this graph, wait for their result
+        CompletableFuture<byte[]> ours = new CompletableFuture<>();
+        CompletableFuture<byte[]> theirs = pending.putIfAbsent(key, ours);
+        if (theirs != null) {
+            try {
+                return theirs.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                throw (RenderException) e.getCause();
+            } catch (TimeoutException e) {
+                throw new RenderException("Timed out waiting for graph rendering");
+            }
+        }
+        try {
+            byte[] image = runDot(dot, format);
+            toCache(key, image);
+            ours.complete(image);
+            return image;
+        } catch (RenderException e) {
+            ours.completeExceptionally(e);
+            throw e;
+        } catch (InterruptedException e) {
+            ours.completeExceptionally(new RenderException("Graph rendering was interrupted"));
+            throw e;
+        } catch (RuntimeException e) {
+            ours.completeExceptionally(new RenderException("Graph rendering failed: " + e.getMessage()));
+            throw e;
+        } finally {
+            pending.remove(key);
+        }
+    }
+
+    private byte[] runDot(String dot, String format) throws RenderException, InterruptedException {
+        if (dotExecutable == null)
+            throw new RenderException("The Graphviz dot program could not be found");
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        if (!processes.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS))
+            throw new RenderException("Timed out waiting for a free graph renderer");
+        Process p = null;
+        try {
+            p = new ProcessBuilder(dotExecutable, "-T" + format).start();
+            running.add(p);
+            Process proc = p;
+            Future<?> input = pipes.submit(() -> {
+                try (OutputStream in = proc.getOutputStream()) {
+                    in.write(dot.getBytes(StandardCharsets.UTF_8));
+                }
+                return null;
+            });
+            Future<byte[]> output = pipes.submit(() -> proc.getInputStream().readAllBytes());
+            Future<byte[]> errors = pipes.submit(() -> proc.getErrorStream().readAllBytes());
+
+            if (!p.waitFor(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS))
+                throw new RenderException("Timed out rendering graph");
+            input.get();
+            byte[] image = output.get();
+            if (p.exitValue() != 0)
+                throw new RenderException("Graph rendering failed: "
+                        + new String(errors.get(), StandardCharsets.UTF_8).trim());
+            return image;
+        } catch (IOException | ExecutionException e) {
+            throw new RenderException("Graph rendering failed: " + e.getMessage());
+        } finally {
+            if (p != null) {
+                running.remove(p);
+                if (p.isAlive())
+                    p.destroyForcibly();
+            }
+            processes.release();
+        }
+    }
+
+    private synchronized byte[] fromCache(String key) {
+        return cache.get(key);
+    }
+
+    private synchronized void toCache(String key, byte[] image) {
+        if (image.length > maxCacheBytes) return;
+        byte[] old = cache.put(key, image);
+        if (old != null) cacheBytes -= old.length;
+        cacheBytes += image.length;
+        Iterator<byte[]> oldest = cache.values().iterator();
+        while (cacheBytes > maxCacheBytes) {
+            cacheBytes -= oldest.next().length;
+            oldest.remove();
+        }
+    }
+
+    private static String cacheKey(String dot, String format) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(format.getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+            StringBuilder key = new StringBuilder();
+            for (byte b : md.digest(dot.getBytes(StandardCharsets.UTF_8)))
+                key.append(String.format("%02x", b));
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String findDotExecutable() {
+        String path = System.getenv("PATH");
+        if (path == null) return null;
+        for (String exec : new String[]{"dot", "dot.exe", "dot.bat"})
+            for (String dir : path.split(Pattern.quote(File.pathSeparator)))
+                if (Files.isExecutable(Paths.get(dir, exec)))
+                    return Paths.get(dir, exec).toString();
+        return null;
+    }
+}
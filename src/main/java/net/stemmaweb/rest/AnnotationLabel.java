@@ -80,7 +80,7 @@ public class AnnotationLabel {
         boolean isNew = false;
         try (Transaction tx = db.beginTx()) {
             // Get the existing list of annotation labels associated with this tradition
-            List<String> reservedWords = Arrays.asList("USER", "ROOT", "__SYSTEM__");
+            List<String> reservedWords = Arrays.asList("USER", "ROOT", "DELETED", "__SYSTEM__");
             List<String> existingLabels = getValidTargetsForTradition(reservedWords);
 
             if (ourNode == null) {
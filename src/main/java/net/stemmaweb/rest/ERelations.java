@@ -17,8 +17,8 @@ public enum ERelations implements RelationshipType {
     COLLATION,      // between section part and START node
     HAS_END,        // between section part and END node
     SEQUENCE,       // the basic link between word sequences in a text
-    NSEQUENCE,      // a shadow sequence link to handle normalisation logic
-    REPRESENTS,     // a temporary relationship used for normalization logic
+    NSEQUENCE,      // a virtual sequence link in a normalised view; never stored
+    REPRESENTS,     // formerly used for normalization logic; no longer stored
     LEMMA_TEXT,     // to indicate canonical word sequence
     MAJORITY,       // a temporary relationship used for calculation of majority text
     HAS_WITNESS,    // links text witnesses to the tradition
@@ -0,0 +1,69 @@
+package net.stemmaweb.rest;
+
+import java.net.URI;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import com.qmino.miredot.annotations.ReturnType;
+import net.stemmaweb.model.JobModel;
+import net.stemmaweb.services.DeletionService;
+import net.stemmaweb.services.ImportJobService;
+
+import static net.stemmaweb.Util.jsonerror;
+import static net.stemmaweb.Util.jsonresp;
+
+/**
+ * Comprises the API calls for following an upload that is imported in the background,
+ * or a tradition or section that is being deleted.
+ * Can be called using http://BASE_URL/job/{jobId}
+ * @author tla
+ */
+
+public class Job {
+    /**
+     * The ID of the job, as returned when the upload was accepted or the deletion begun
+     */
+    private final String jobId;
+
+    public Job(String requestedId) {
+        jobId = requestedId;
+    }
+
+    /**
+     * Gets the progress of the given import or deletion job, and its outcome once it has finished.
+     *
+     * @title Get import job
+     *
+     * @return A JSON JobModel or a JSON error message
+     * @statuscode 200 on success
+     * @statuscode 404 if there is no such job, or it finished more than an hour ago
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
+    @ReturnType(clazz = JobModel.class)
+    public Response getJob() {
+        ImportJobService.Job job = ImportJobService.getInstance().getJob(jobId);
+        if (job != null)
+            return Response.ok(new JobModel(job)).build();
+        DeletionService.Job deletion = DeletionService.getInstance().getJob(jobId);
+        if (deletion != null)
+            return Response.ok(new JobModel(deletion)).build();
+        return Response.status(Status.NOT_FOUND).entity(jsonerror("No such job found")).build();
+    }
+
+    // The response to an upload that has been queued for import
+    static Response accepted(ImportJobService.Job job) {
+        return Response.accepted(jsonresp("jobId", job.getId()))
+                .location(URI.create("job/" + job.getId())).build();
+    }
+
+    // The response to a deletion, whose remains are being cleared away in the background
+    static Response deleting(DeletionService.Job job) {
+        return Response.ok(jsonresp("jobId", job.getId()))
+                .location(URI.create("job/" + job.getId())).build();
+    }
+}
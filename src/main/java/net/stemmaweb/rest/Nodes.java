@@ -20,5 +20,6 @@ public enum Nodes implements Label {
     PROPERTIES,      // is the properties that a particular annotation node can have
     LINKS,           // is the relationships that a particular annotation node can have
     USER,            // is a user node
+    DELETED,         // is a tradition or section whose contents are still being deleted
     __SYSTEM__       // is a __SYSTEM__ node
 }
\ No newline at end of file
@@ -486,7 +486,7 @@ public class Reading {
                     Collections.addAll(normalWitnesses, (String[]) r.getProperty("witnesses"));
             // Now look for the specials, and add them if they are not in the normal witnesses
             for (Relationship r : readingSeqs) {
-                for (String prop : r.getPropertyKeys()) {
+                for (String prop : WitnessIndex.witnessClasses(r)) {
                     if (prop.equals("witnesses"))
                         continue;
                     String[] specialWits = (String[]) r.getProperty(prop);
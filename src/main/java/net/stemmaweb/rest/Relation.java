@@ -1,8 +1,6 @@
 package net.stemmaweb.rest;
 
 import java.util.*;
-import java.util.function.Function;
-import java.util.stream.Collectors;
 
 import javax.ws.rs.*;
 import javax.ws.rs.Path;
@@ -13,20 +11,24 @@ import javax.ws.rs.core.Response.Status;
 import com.qmino.miredot.annotations.ReturnType;
 import net.stemmaweb.model.GraphModel;
 import net.stemmaweb.model.ReadingModel;
+import net.stemmaweb.model.RelationBatchModel;
 import net.stemmaweb.model.RelationModel;
 import net.stemmaweb.model.RelationTypeModel;
 import net.stemmaweb.services.DatabaseService;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.RankCalculator;
+import net.stemmaweb.services.RankIndex;
+import net.stemmaweb.services.RelationTypeRegistry;
 import net.stemmaweb.services.ReadingService;
+import net.stemmaweb.services.TransitiveClosure;
 
 import net.stemmaweb.services.VariantGraphService;
 import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.NotFoundException;
 import org.neo4j.graphdb.traversal.Traverser;
-import org.neo4j.graphdb.traversal.Uniqueness;
 
 import static net.stemmaweb.Util.jsonerror;
 import static net.stemmaweb.services.RelationService.returnRelationType;
-import static net.stemmaweb.services.RelationService.TransitiveRelationTraverser;
 
 /**
  * Comprises all the api calls related to a relation.
@@ -70,242 +72,394 @@ public class Relation {
     public Response create(RelationModel relationModel) {
         // Make sure a scope is set
         if (relationModel.getScope() == null) relationModel.setScope(SCOPE_LOCAL);
-        String scope = relationModel.getScope();
-        if (scope.equals(SCOPE_TRADITION) || scope.equals(SCOPE_SECTION) || scope.equals(SCOPE_LOCAL)) {
-            GraphModel relationChanges = new GraphModel();
+        if (!isValidScope(relationModel.getScope()))
+            return Response.status(Status.BAD_REQUEST).entity("Undefined Scope").build();
 
-            Response response = this.create_local(relationModel);
-            if (Status.CREATED.getStatusCode() != response.getStatus()) {
-                return response;
-            }
-            GraphModel createResult = (GraphModel)response.getEntity();
-            relationChanges.addReadings(createResult.getReadings());
-            relationChanges.addRelations(createResult.getRelations());
-            // Fish out the ID of the relationship that we explicitly created
-            Optional<RelationModel> orm = createResult.getRelations().stream()
-                    .filter(x -> x.getTarget().equals(relationModel.getTarget())
-                            && x.getSource().equals(relationModel.getSource())).findFirst();
-            assert(orm.isPresent());
-            String thisRelId = orm.get().getId();
-            if (!scope.equals(SCOPE_LOCAL)) {
-                Boolean use_normal = returnRelationType(tradId, relationModel.getType()).getUse_regular();
-                try (Transaction tx = db.beginTx()) {
-                    Node readingA = db.getNodeById(Long.parseLong(relationModel.getSource()));
-                    Node readingB = db.getNodeById(Long.parseLong(relationModel.getTarget()));
-                    Node startingPoint = VariantGraphService.getTraditionNode(tradId, db);
-                    if (scope.equals(SCOPE_SECTION))
-                        startingPoint = db.getNodeById((Long) readingA.getProperty("section_id"));
-                    Relationship thisRelation = db.getRelationshipById(Long.valueOf(thisRelId));
-
-                    // Get all the readings that belong to our tradition or section
-                    ResourceIterable<Node> tradReadings = VariantGraphService.returnEntireTradition(startingPoint).nodes();
-                    // Pick out the ones that share the readingA text
-                    Function<Node, Object> nodefilter = (n) -> use_normal && n.hasProperty("normal_form")
-                            ? n.getProperty("normal_form") : (n.hasProperty("text") ? n.getProperty("text"): "");
-                    HashSet<Node> ourA = tradReadings.stream()
-                            .filter(x -> nodefilter.apply(x).equals(nodefilter.apply(readingA)) && !x.equals(readingA))
-                            .collect(Collectors.toCollection(HashSet::new));
-                    HashMap<String, HashSet<Long>> ranks = new HashMap<>();
-                    for (Node cur_node : ourA) {
-                        long node_id = cur_node.getId();
-                        long node_rank = (Long) cur_node.getProperty("rank");
-                        String node_section = cur_node.getProperty("section_id").toString();
-                        String key = node_section + "/" + node_rank;
-                        HashSet<Long> cur_set = ranks.getOrDefault(node_rank, new HashSet<>());
-                        cur_set.add(node_id);
-                        ranks.putIfAbsent(key, cur_set);
-                    }
-
-                    // Pick out the ones that share the readingB text
-                    HashSet<Node> ourB = tradReadings.stream().filter(x -> x.hasProperty("text")
-                            && nodefilter.apply(x).equals(nodefilter.apply(readingB)) && !x.equals(readingB))
-                            .collect(Collectors.toCollection(HashSet::new));
-                    RelationModel userel;
-                    for (Node cur_node : ourB) {
-                        long node_id = cur_node.getId();
-                        long node_rank = (Long) cur_node.getProperty("rank");
-                        String node_section = cur_node.getProperty("section_id").toString();
-                        String key = node_section + "/" + node_rank;
-
-                        HashSet cur_set = ranks.get(key);
-                        if (cur_set != null) {
-                            for (Object id : cur_set) {
-                                userel = new RelationModel(thisRelation);
-                                userel.setSource(Long.toString((Long) id));
-                                userel.setTarget(Long.toString(node_id));
-                                response = this.create_local(userel);
-                                if (Status.NOT_MODIFIED.getStatusCode() != response.getStatus()) {
-                                    if (Status.CREATED.getStatusCode() == response.getStatus()) {
-                                        createResult = (GraphModel) response.getEntity();
-                                        relationChanges.addReadings(createResult.getReadings());
-                                        relationChanges.addRelations(createResult.getRelations());
-                                    }  // This is a best-effort operation, so ignore failures
-                                }
-                            }
-                        }
-                    }
+        GraphModel relationChanges = new GraphModel();
+        try (Transaction tx = db.beginTx()) {
+            RelationBatch batch = new RelationBatch();
+            RelationBatchModel.Conflict conflict = batch.add(relationModel);
+            if (conflict != null) {
+                if (conflict.getStatus() == Status.NOT_MODIFIED.getStatusCode()) {
                     tx.success();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    return Response.serverError().build();
+                    return Response.status(Status.NOT_MODIFIED).type(MediaType.TEXT_PLAIN_TYPE).build();
                 }
+                return Response.status(conflict.getStatus()).entity(jsonerror(conflict.getError())).build();
             }
-            return Response.status(Status.CREATED).entity(relationChanges).build();
+            batch.finish(relationChanges);
+            tx.success();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.serverError().entity(jsonerror(e.getMessage())).build();
         }
-        return Response.status(Status.BAD_REQUEST).entity("Undefined Scope").build();
+        return Response.status(Status.CREATED).entity(relationChanges).build();
     }
 
-    // Create a relation; return the relation created as well as any reading nodes whose
-    // properties (e.g. rank) have changed.
-    private Response create_local(RelationModel relationModel) {
-        GraphModel readingsAndRelationModel;
+    /**
+     * Creates a list of relations in a single transaction. Each relation is checked just as
+     * it would be on its own, taking into account the relations that come before it in the
+     * list; a relation that cannot be made is reported in the result, and does not stop the
+     * others from being created. Transitive relations are filled in, and the ranks recalculated,
+     * once for the whole batch.
+     *
+     * @title Create several relations
+     * @param relationModels - a JSON list of the relations to create
+     * @return The relations created, as well as any readings whose rank changed, and a list of
+     * the requested relations that were not created along with the reason.
+     * @statuscode 201 - on success, even if some of the relations could not be created
+     * @statuscode 400 - if no list of relations was given
+     * @statuscode 500 - on failure, with JSON error message
+     */
+    @POST
+    @Path("/batch")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
+    @ReturnType(clazz = RelationBatchModel.class)
+    public Response createBatch(List<RelationModel> relationModels) {
+        if (relationModels == null)
+            return Response.status(Status.BAD_REQUEST).entity(jsonerror("No relations specified")).build();
+
+        RelationBatchModel result = new RelationBatchModel();
         try (Transaction tx = db.beginTx()) {
-            /*
-             * Currently search by id search, because is much faster by measurement. Because
-             * the id search is O(n) just go through all ids without care. And the
-             *
-             */
+            RelationBatch batch = new RelationBatch();
+            for (int i = 0; i < relationModels.size(); i++) {
+                RelationModel rm = relationModels.get(i);
+                if (rm.getScope() == null) rm.setScope(SCOPE_LOCAL);
+                RelationBatchModel.Conflict conflict;
+                if (!isValidScope(rm.getScope()))
+                    conflict = new RelationBatchModel.Conflict(i, rm, Status.BAD_REQUEST.getStatusCode(),
+                            "Undefined Scope");
+                else try {
+                    conflict = batch.add(rm);
+                } catch (NotFoundException | NumberFormatException e) {
+                    conflict = new RelationBatchModel.Conflict(i, rm, Status.NOT_FOUND.getStatusCode(),
+                            String.format("No such readings %s and %s", rm.getSource(), rm.getTarget()));
+                }
+                if (conflict != null) {
+                    conflict.setIndex(i);
+                    conflict.setRelation(rm);
+                    result.addConflict(conflict);
+                }
+            }
+            batch.finish(result);
+            tx.success();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.serverError().entity(jsonerror(e.getMessage())).build();
+        }
+        return Response.status(Status.CREATED).entity(result).build();
+    }
+
+    private static boolean isValidScope(String scope) {
+        return scope.equals(SCOPE_TRADITION) || scope.equals(SCOPE_SECTION) || scope.equals(SCOPE_LOCAL);
+    }
+
+    // The relations made in answer to a single request. Relation types are looked up only once,
+    // and a type the tradition doesn't have yet is created only when a relation of that type is
+    // actually written, so that rejected relations leave no types behind. A RankCalculator for each section keeps track of its colocations and ranks, so that each
+    // relation is checked against the ones made before it without the section being crawled
+    // again. Transitive relations are filled in, and the new ranks written, when we finish.
+    // NOTE - To be used inside a transaction
+    private class RelationBatch {
+        private final Map<String, RelationTypeModel> relationTypes = new HashMap<>();
+        private final Set<String> pendingTypes = new HashSet<>();
+        private final Map<Long, RankCalculator> calculators = new HashMap<>();
+        private final Map<Long, Boolean> sectionsInTradition = new HashMap<>();
+        private final List<RelationModel> requested = new ArrayList<>();
+        private final Set<RelationModel> created = new HashSet<>();
+
+        // The type of the given name, or the settings it would have by default if the
+        // tradition doesn't have it yet
+        RelationTypeModel relationType(String name) {
+            return relationTypes.computeIfAbsent(name, x -> {
+                RelationTypeModel found = RelationTypeRegistry.forTradition(
+                        VariantGraphService.getTraditionNode(tradId, db)).get(x);
+                if (found != null) return found;
+                pendingTypes.add(x);
+                return RelationType.defaultType(x);
+            });
+        }
+
+        // Create the given type if it is one that the tradition doesn't have yet
+        private RelationTypeModel instantiate(RelationTypeModel rtm) {
+            String name = rtm.getName();
+            if (!pendingTypes.remove(name)) return rtm;
+            RelationTypeModel created = returnRelationType(tradId, name);
+            relationTypes.put(name, created);
+            if (created.getIs_colocation())
+                calculators.values().forEach(c -> c.addColocatedType(name));
+            return created;
+        }
+
+        RankCalculator calculator(Node reading) throws Exception {
+            Long sectionId = Long.valueOf(reading.getProperty("section_id").toString());
+            RankCalculator calculator = calculators.get(sectionId);
+            if (calculator == null) {
+                calculator = new RankCalculator(reading);
+                calculators.put(sectionId, calculator);
+            }
+            return calculator;
+        }
+
+        // The rank of a reading as it stands in this batch
+        Long rankOf(Node reading) {
+            RankCalculator calculator = calculators.get(Long.valueOf(reading.getProperty("section_id").toString()));
+            return calculator == null ? (Long) reading.getProperty("rank") : calculator.rankOf(reading);
+        }
+
+        // Create the relation, and then its equivalents if it has a wider scope; return null
+        // on success, or else the reason why the relation was not made.
+        RelationBatchModel.Conflict add(RelationModel relationModel) throws Exception {
+            RelationBatchModel.Conflict conflict = addLocal(relationModel);
+            if (conflict == null && !relationModel.getScope().equals(SCOPE_LOCAL))
+                applyScope(relationModel);
+            return conflict;
+        }
+
+        // Check and create a single relation.
+        private RelationBatchModel.Conflict addLocal(RelationModel relationModel) throws Exception {
+            return addLocal(relationModel, null);
+        }
+
+        // Check and create a single relation. If a map of deferred colocations is given, the
+        // readings of a new colocation are noted there, by section, rather than re-ranked
+        // straight away; this is only safe if the readings already have the same rank.
+        private RelationBatchModel.Conflict addLocal(RelationModel relationModel,
+                                                     Map<Long, Set<Node>> deferred) throws Exception {
             Node readingA = db.getNodeById(Long.parseLong(relationModel.getSource()));
             Node readingB = db.getNodeById(Long.parseLong(relationModel.getTarget()));
 
-            Node ourSection = db.getNodeById(Long.valueOf(readingA.getProperty("section_id").toString()));
-            Node ourTradition = ourSection.getSingleRelationship(ERelations.PART, Direction.INCOMING).getStartNode();
-            if (!ourTradition.getProperty("id").equals(tradId))
-                return Response.status(Status.CONFLICT)
-                    .entity(jsonerror("The specified readings do not belong to the specified tradition"))
-                    .build();
-
+            Long sectionId = Long.valueOf(readingA.getProperty("section_id").toString());
+            if (!sectionsInTradition.computeIfAbsent(sectionId, x -> db.getNodeById(x)
+                    .getSingleRelationship(ERelations.PART, Direction.INCOMING).getStartNode()
+                    .getProperty("id").equals(tradId)))
+                return conflict(Status.CONFLICT, "The specified readings do not belong to the specified tradition");
 
             if (!readingA.getProperty("section_id").equals(readingB.getProperty("section_id")))
-                return Response.status(Status.CONFLICT)
-                        .entity(jsonerror("Cannot create relation across tradition sections"))
-                        .build();
+                return conflict(Status.CONFLICT, "Cannot create relation across tradition sections");
 
             if (isMetaReading(readingA) || isMetaReading(readingB))
-                return Response.status(Status.CONFLICT)
-                    .entity(jsonerror("Cannot set relation on a meta reading"))
-                    .build();
+                return conflict(Status.CONFLICT, "Cannot set relation on a meta reading");
 
-            // Get, or create implicitly, the relation type node for the given type.
-            RelationTypeModel rmodel = returnRelationType(tradId, relationModel.getType());
+            // Get the given type; if it is new, it is created only once a relation of that type is written.
+            RelationTypeModel rmodel = relationType(relationModel.getType());
 
             // Check that the relation type is compatible with the passed relation model
-            if (!relationModel.getScope().equals("local") && !rmodel.getIs_generalizable())
-                return Response.status(Status.CONFLICT)
-                        .entity(jsonerror("Relation type " + rmodel.getName() + " cannot be made outside a local scope"))
-                        .build();
+            if (!relationModel.getScope().equals(SCOPE_LOCAL) && !rmodel.getIs_generalizable())
+                return conflict(Status.CONFLICT,
+                        "Relation type " + rmodel.getName() + " cannot be made outside a local scope");
 
-            // Remove any weak relations that might conflict
-            // LATER better idea: write a traverser that will disregard weak relations
+            // Any weak relations that might conflict will be removed, but not until we know
+            // that the relation can be made.
             Boolean colocation = rmodel.getIs_colocation();
-            if (colocation) {
-                Iterable<Relationship> relsA = readingA.getRelationships(ERelations.RELATED);
-                for (Relationship r : relsA) {
-                    RelationTypeModel rm = returnRelationType(tradId, r.getProperty("type").toString());
-                    if (rm.getIs_weak())
-                        r.delete();
-                }
-                Iterable<Relationship> relsB = readingB.getRelationships(ERelations.RELATED);
-                for (Relationship r : relsB) {
-                    RelationTypeModel rm = returnRelationType(tradId, r.getProperty("type").toString());
-                    if (rm.getIs_weak())
-                        r.delete();
-                }
-            }
-
-            Boolean isCyclic = ReadingService.wouldGetCyclic(readingA, readingB);
-            if (isCyclic && colocation) {
-                    return Response
-                            .status(Status.CONFLICT)
-                            .entity(jsonerror("This relation creation is not allowed, it would result in a cyclic graph."))
-                            .build();
-            } else if (!isCyclic && !colocation) {
-                return Response
-                        .status(Status.CONFLICT)
-                        .entity(jsonerror("This relation creation is not allowed. The two readings can be co-located."))
-                        .build();
-            } // TODO add constraints about witness uniqueness or lack thereof
+            List<Relationship> weakRelations = new ArrayList<>();
+            if (colocation)
+                for (Node n : Arrays.asList(readingA, readingB))
+                    for (Relationship r : n.getRelationships(ERelations.RELATED))
+                        if (relationType(r.getProperty("type").toString()).getIs_weak() && !weakRelations.contains(r))
+                            weakRelations.add(r);
+
+            RankCalculator calculator = calculator(readingA);
+            boolean isCyclic = calculator.wouldGetCyclic(readingA, readingB, weakRelations);
+            if (isCyclic && colocation)
+                return conflict(Status.CONFLICT,
+                        "This relation creation is not allowed, it would result in a cyclic graph.");
+            else if (!isCyclic && !colocation)
+                return conflict(Status.CONFLICT,
+                        "This relation creation is not allowed. The two readings can be co-located.");
+            // TODO add constraints about witness uniqueness or lack thereof
 
             // Check if relation already exists
-            Iterable<Relationship> relationships = readingA.getRelationships(ERelations.RELATED);
-            for (Relationship relationship : relationships) {
+            for (Relationship relationship : readingA.getRelationships(ERelations.RELATED)) {
+                if (weakRelations.contains(relationship)) continue;
                 if (relationship.getOtherNode(readingA).equals(readingB)) {
-                    RelationModel thisRel = new RelationModel(relationship);
-                    RelationTypeModel rtm = returnRelationType(tradId, thisRel.getType());
-                    if (thisRel.getType().equals(relationModel.getType())) {
+                    String existingType = relationship.getProperty("type").toString();
+                    if (existingType.equals(relationModel.getType())) {
                         // TODO allow for update of existing relation
-                        tx.success();
-                        return Response.status(Status.NOT_MODIFIED).type(MediaType.TEXT_PLAIN_TYPE).build();
-                    } else if (!rtm.getIs_weak()) {
-                        tx.success();
-                        String msg = String.format("Relation of type %s already exists between readings %s and %s",
-                                relationModel.getType(), relationModel.getSource(), relationModel.getTarget());
-                        return Response.status(Status.CONFLICT).entity(jsonerror(msg)).build();
+                        return conflict(Status.NOT_MODIFIED, "Relation already exists");
+                    } else if (!relationType(existingType).getIs_weak()) {
+                        return conflict(Status.CONFLICT, String.format(
+                                "Relation of type %s already exists between readings %s and %s",
+                                relationModel.getType(), relationModel.getSource(), relationModel.getTarget()));
                     }
                 }
             }
 
             // We are finally ready to write a relation.
-            readingsAndRelationModel = createSingleRelation(readingA, readingB, relationModel, rmodel);
-            // We can also write any transitive relationships.
-            propagateRelation(readingsAndRelationModel, rmodel);
-            tx.success();
-        } catch (Exception e) {
-            e.printStackTrace();
-            return Response.serverError().entity(jsonerror(e.getMessage())).build();
+            for (Relationship r : weakRelations) {
+                calculator.forget(r.getStartNode());
+                calculator.forget(r.getEndNode());
+                r.delete();
+            }
+            if (deferred == null)
+                requested.add(createSingleRelation(readingA, readingB, relationModel, rmodel));
+            else {
+                requested.add(writeRelation(readingA, readingB, relationModel, rmodel));
+                if (colocation) {
+                    Set<Node> touched = deferred.computeIfAbsent(sectionId, x -> new HashSet<>());
+                    touched.add(readingA);
+                    touched.add(readingB);
+                }
+            }
+            return null;
         }
-        return Response.status(Response.Status.CREATED).entity(readingsAndRelationModel).build();
-    }
 
-    /**
-     * Muck with the database to set a relation
-     *
-     * @param readingA - the source reading
-     * @param readingB - the target reading
-     * @param relModel - the RelationModel to set
-     * @param rtm      - the RelationTypeModel describing what sort of relation this is
-     * @return a GraphModel containing the single n4j relationship plus whatever readings were re-ranked
-     */
-    private GraphModel createSingleRelation(Node readingA, Node readingB,
-                                            RelationModel relModel, RelationTypeModel rtm) throws Exception {
-        ArrayList<ReadingModel> changedReadings = new ArrayList<>();
-        ArrayList<RelationModel> createdRelations = new ArrayList<>();
-
-        Boolean colocation = rtm.getIs_colocation();
-        Relationship relationAtoB = readingA.createRelationshipTo(readingB, ERelations.RELATED);
-
-        relationAtoB.setProperty("type", nullToEmptyString(relModel.getType()));
-        relationAtoB.setProperty("scope", nullToEmptyString(relModel.getScope()));
-        relationAtoB.setProperty("annotation", nullToEmptyString(relModel.getAnnotation()));
-        relationAtoB.setProperty("displayform",
-                nullToEmptyString(relModel.getDisplayform()));
-        relationAtoB.setProperty("a_derivable_from_b", relModel.getA_derivable_from_b());
-        relationAtoB.setProperty("b_derivable_from_a", relModel.getB_derivable_from_a());
-        relationAtoB.setProperty("alters_meaning", relModel.getAlters_meaning());
-        relationAtoB.setProperty("is_significant", relModel.getIs_significant());
-        relationAtoB.setProperty("non_independent", relModel.getNon_independent());
-        relationAtoB.setProperty("reading_a", readingA.getProperty("text"));
-        relationAtoB.setProperty("reading_b", readingB.getProperty("text"));
-        if (colocation) relationAtoB.setProperty("colocation", true);
-
-        // Recalculate the ranks, if necessary
-        Long rankA = (Long) readingA.getProperty("rank");
-        Long rankB = (Long) readingB.getProperty("rank");
-        if (!rankA.equals(rankB) && colocation) {
-            // Which one is the lower-ranked reading? Promote it, and recalculate from that point
-            Long higherRank = rankA < rankB ? rankB : rankA;
-            Node lowerRanked = rankA < rankB ? readingA : readingB;
-            lowerRanked.setProperty("rank", higherRank);
-            changedReadings.add(new ReadingModel(lowerRanked));
-            Set<Node> changedRank = ReadingService.recalculateRank(lowerRanked);
-            for (Node cr : changedRank)
-                if (!cr.equals(lowerRanked))
-                    changedReadings.add(new ReadingModel(cr));
+        private RelationBatchModel.Conflict conflict(Status status, String message) {
+            return new RelationBatchModel.Conflict(0, null, status.getStatusCode(), message);
+        }
+
+        // Make the relation between any other readings in the section or tradition that share
+        // a rank and have the texts of the related readings. The candidates are looked up in
+        // the index of reading texts for each section, and since each pair already shares a
+        // rank, the ranks of the section need only be brought into line once at the end.
+        private void applyScope(RelationModel relationModel) throws Exception {
+            boolean useNormal = relationType(relationModel.getType()).getUse_regular();
+            Node readingA = db.getNodeById(Long.parseLong(relationModel.getSource()));
+            Node readingB = db.getNodeById(Long.parseLong(relationModel.getTarget()));
+            List<Long> sectionIds = new ArrayList<>();
+            if (relationModel.getScope().equals(SCOPE_SECTION))
+                sectionIds.add((Long) readingA.getProperty("section_id"));
+            else
+                VariantGraphService.getSectionNodes(tradId, db).forEach(x -> sectionIds.add(x.getId()));
+            RelationModel thisRelation = requested.get(requested.size() - 1);
+            Object textA = ReadingService.matchingText(readingA, useNormal);
+            Object textB = ReadingService.matchingText(readingB, useNormal);
+
+            Map<Long, Set<Node>> deferred = new HashMap<>();
+            for (Long sectionId : sectionIds) {
+                // Pick out the ones that share the readingA text, by rank
+                Map<Long, List<Node>> ourA = new HashMap<>();
+                for (Node n : ReadingService.readingsWithText(db, sectionId, textA, useNormal))
+                    if (!n.equals(readingA))
+                        ourA.computeIfAbsent(rankOf(n), x -> new ArrayList<>()).add(n);
+                if (ourA.isEmpty()) continue;
+
+                // Pair them with the ones at the same rank that share the readingB text
+                for (Node n : ReadingService.readingsWithText(db, sectionId, textB, useNormal)) {
+                    if (n.equals(readingB)) continue;
+                    for (Node partner : ourA.getOrDefault(rankOf(n), Collections.emptyList())) {
+                        RelationModel userel = new RelationModel(db.getRelationshipById(Long.valueOf(thisRelation.getId())));
+                        userel.setSource(String.valueOf(partner.getId()));
+                        userel.setTarget(String.valueOf(n.getId()));
+                        // This is a best-effort operation, so ignore failures
+                        addLocal(userel, deferred);
+                    }
+                }
+            }
+            for (Set<Node> touched : deferred.values())
+                calculator(touched.iterator().next()).colocateAll(touched);
+        }
+
+        /**
+         * Set a relation, and work out the ranks that change if it is a colocation.
+         *
+         * @param readingA - the source reading
+         * @param readingB - the target reading
+         * @param relModel - the RelationModel to set
+         * @param rtm      - the RelationTypeModel describing what sort of relation this is
+         * @return a RelationModel for the relationship created
+         */
+        private RelationModel createSingleRelation(Node readingA, Node readingB,
+                                                   RelationModel relModel, RelationTypeModel rtm) throws Exception {
+            RelationModel result = writeRelation(readingA, readingB, relModel, rtm);
+            // Work out the new ranks, if necessary; they are written when we finish.
+            if (rtm.getIs_colocation())
+                calculator(readingA).colocate(readingA, readingB);
+            return result;
+        }
 
+        /**
+         * Muck with the database to set a relation
+         *
+         * @param readingA - the source reading
+         * @param readingB - the target reading
+         * @param relModel - the RelationModel to set
+         * @param rtm      - the RelationTypeModel describing what sort of relation this is
+         * @return a RelationModel for the relationship created
+         */
+        private RelationModel writeRelation(Node readingA, Node readingB,
+                                            RelationModel relModel, RelationTypeModel rtm) {
+            rtm = instantiate(rtm);
+            Relationship relationAtoB = readingA.createRelationshipTo(readingB, ERelations.RELATED);
+
+            relationAtoB.setProperty("type", nullToEmptyString(relModel.getType()));
+            relationAtoB.setProperty("scope", nullToEmptyString(relModel.getScope()));
+            relationAtoB.setProperty("annotation", nullToEmptyString(relModel.getAnnotation()));
+            relationAtoB.setProperty("displayform",
+                    nullToEmptyString(relModel.getDisplayform()));
+            relationAtoB.setProperty("a_derivable_from_b", relModel.getA_derivable_from_b());
+            relationAtoB.setProperty("b_derivable_from_a", relModel.getB_derivable_from_a());
+            relationAtoB.setProperty("alters_meaning", relModel.getAlters_meaning());
+            relationAtoB.setProperty("is_significant", relModel.getIs_significant());
+            relationAtoB.setProperty("non_independent", relModel.getNon_independent());
+            relationAtoB.setProperty("reading_a", readingA.getProperty("text"));
+            relationAtoB.setProperty("reading_b", readingB.getProperty("text"));
+            if (rtm.getIs_colocation())
+                relationAtoB.setProperty("colocation", true);
+
+            RelationModel result = new RelationModel(relationAtoB);
+            created.add(result);
+            return result;
         }
 
-        createdRelations.add(new RelationModel(relationAtoB));
-        return new GraphModel(changedReadings, createdRelations, new ArrayList<>());
+        /**
+         * Fill in the transitive relations, write the new ranks, and add the relations created
+         * and the readings re-ranked to the given result.
+         *
+         * @param result - the GraphModel to fill in
+         * @throws Exception if the ranks cannot be calculated
+         */
+        void finish(GraphModel result) throws Exception {
+            propagateRelations();
+            result.addRelations(created);
+            Set<ReadingModel> changedReadings = new HashSet<>();
+            for (Map.Entry<Long, RankCalculator> entry : calculators.entrySet()) {
+                RankIndex.invalidate(db, entry.getKey());
+                for (Node n : entry.getValue().commit())
+                    changedReadings.add(new ReadingModel(n));
+            }
+            result.addReadings(changedReadings);
+        }
+
+        /**
+         * Propagates reading relations according to type specification. Each group of related
+         * readings is visited once, however many of the requested relations lie within it; the
+         * relations missing from all the groups are worked out in memory first, and then made
+         * together, with the ranks of each section recalculated once.
+         */
+        private void propagateRelations() throws Exception {
+            TransitiveClosure closure = new TransitiveClosure(this::relationType);
+            Map<String, Set<Node>> alreadyPropagated = new HashMap<>();
+            List<TransitiveClosure.Link> missing = new ArrayList<>();
+            for (RelationModel rm : requested) {
+                RelationTypeModel rtm = relationType(rm.getType());
+                // First see if this relation type should be propagated.
+                if (!rtm.getIs_transitive()) continue;
+                Set<Node> done = alreadyPropagated.computeIfAbsent(rtm.getName(), x -> new HashSet<>());
+                Node startNode = db.getNodeById(Long.valueOf(rm.getSource()));
+                if (done.contains(startNode)) continue;
+                // Get all the readings that are related by this or a more closely-bound type,
+                // and see which relations among them, or to their looser relatives, are missing.
+                Set<Node> cluster = closure.cluster(startNode, rtm);
+                done.addAll(cluster);
+                missing.addAll(closure.close(cluster, rm, rtm));
+            }
+
+            // Now make the relations explicit.
+            Map<Long, Set<Node>> colocated = new HashMap<>();
+            for (TransitiveClosure.Link link : missing) {
+                RelationTypeModel rtm = relationType(link.getType());
+                writeRelation(link.getSource(), link.getTarget(), link.getModel(), rtm);
+                if (rtm.getIs_colocation()) {
+                    Set<Node> touched = colocated.computeIfAbsent(
+                            Long.valueOf(link.getSource().getProperty("section_id").toString()), x -> new HashSet<>());
+                    touched.add(link.getSource());
+                    touched.add(link.getTarget());
+                }
+            }
+            for (Set<Node> touched : colocated.values())
+                calculator(touched.iterator().next()).colocateAll(touched);
+        }
     }
 
     /**
@@ -323,78 +477,6 @@ public class Relation {
                 );
     }
 
-    /**
-     * Propagates reading relations according to type specification.
-     * NOTE - To be used inside a transaction
-     *
-     * @param newRelationResult - the GraphModel that contains a relation just created
-     * @param rtm - the relation type specification
-     */
-    private void propagateRelation(GraphModel newRelationResult, RelationTypeModel rtm) throws Exception {
-        // First see if this relation type should be propagated.
-        if (!rtm.getIs_transitive()) return;
-        // Now go through all the relations that have been created, and make sure that any
-        // transitivity effects have been accounted for.
-        for (RelationModel rm : newRelationResult.getRelations()) {
-            TransitiveRelationTraverser relTraverser = new TransitiveRelationTraverser(tradId, rtm);
-            Node startNode = db.getNodeById(Long.valueOf(rm.getSource()));
-            ArrayList<Node> relatedNodes = new ArrayList<>();
-            // Get all the readings that are related by this or a more closely-bound type.
-            db.traversalDescription().depthFirst()
-                    .relationships(ERelations.RELATED)
-                    .evaluator(relTraverser)
-                    .uniqueness(Uniqueness.NODE_GLOBAL)
-                    .traverse(startNode).nodes().forEach(relatedNodes::add);
-            // Now go through them and make sure the relations are explicit.
-            ArrayList<Node> iterateNodes = new ArrayList<>(relatedNodes);
-            while (!iterateNodes.isEmpty()) {
-                Node readingA = iterateNodes.remove(0);
-                HashSet<Node> alreadyRelated = new HashSet<>();
-                readingA.getRelationships(ERelations.RELATED).forEach(x -> alreadyRelated.add(x.getOtherNode(readingA)));
-                // System.out.println(String.format("Propagating type model %s on node %d / %s",
-                //        rtm.getName(), readingA.getId(), readingA.getProperty("text")));
-                for (Node readingB : iterateNodes) {
-                    if (!alreadyRelated.contains(readingB)) {
-                        // System.out.println(String.format("...making relation %s to node %d / %s", rm.getType(), readingB.getId(), readingB.getProperty("text")));
-                        GraphModel interim = createSingleRelation(readingA, readingB, rm, rtm);
-                        newRelationResult.addReadings(interim.getReadings());
-                        newRelationResult.addRelations(interim.getRelations());
-                    }
-                }
-            }
-            // Now go back through them and make sure that relations to more loosely-bound
-            // transitive nodes are marked.
-            for (Node sibling : relatedNodes) {
-                HashMap<Node, Relationship> connections = new HashMap<>();
-                // Get the nodes we are directly related to, and the relations involved, if
-                // they meet the criteria
-                for (Relationship r : sibling.getRelationships(ERelations.RELATED)) {
-                    RelationTypeModel othertm = returnRelationType(tradId, r.getProperty("type").toString());
-                    if (othertm.getBindlevel() > rtm.getBindlevel() && othertm.getIs_transitive())
-                        connections.put(r.getOtherNode(sibling), r);
-                }
-
-                HashSet<Node> cousins = new HashSet<>(relatedNodes);
-                for (Node n : connections.keySet()) {
-                    cousins.remove(n);
-                    RelationModel newmodel = new RelationModel(connections.get(n));
-                    RelationTypeModel newtm = returnRelationType(tradId, newmodel.getType());
-                    for (Node c : cousins) {
-                        ArrayList<Relationship> priorLinks = DatabaseService.getRelationshipTo(n, c, ERelations.RELATED);
-                        if (priorLinks.size() == 0) {
-                            // Create a relation based on the looser link
-                            GraphModel interim = createSingleRelation(n, c, newmodel, newtm);
-                            newRelationResult.addReadings(interim.getReadings());
-                            newRelationResult.addRelations(interim.getRelations());
-                        }
-                    }
-                }
-
-
-            }
-        }
-    }
-
     /**
      * Remove the relation specified. There should be only one.
      *
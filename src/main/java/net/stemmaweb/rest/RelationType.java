@@ -3,6 +3,7 @@ package net.stemmaweb.rest;
 import com.qmino.miredot.annotations.ReturnType;
 import net.stemmaweb.model.RelationTypeModel;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.RelationTypeRegistry;
 import net.stemmaweb.services.VariantGraphService;
 import org.neo4j.graphdb.*;
 
@@ -129,6 +130,7 @@ public class RelationType {
             // Then I guess we can delete it.
             foundRelType.getSingleRelationship(ERelations.HAS_RELATION_TYPE, Direction.INCOMING).delete();
             foundRelType.delete();
+            RelationTypeRegistry.invalidate(tradition);
             tx.success();
         } catch (Exception e) {
             e.printStackTrace();
@@ -150,6 +152,29 @@ public class RelationType {
      * @statuscode 500 on failure, with an error report in JSON format
      */
     private Response makeDefaultType() {
+        Node tradNode = VariantGraphService.getTraditionNode(traditionId, db);
+        // Does this already exist?
+        Node extantRelType = new RelationTypeModel(typeName).lookup(tradNode);
+        if (extantRelType != null)
+            return Response.notModified().build();
+
+        RelationTypeModel relType = defaultType(typeName);
+        // Create the node
+        Node result = relType.instantiate(tradNode);
+        if (result == null)
+            return Response.serverError().entity(jsonerror("Could not instantiate default relation type")).build();
+        else
+            return Response.status(Response.Status.CREATED).entity(relType).build();
+    }
+
+    /**
+     * Return the settings that a relation type of the given name would be created with by
+     * default, without creating it.
+     *
+     * @param typeName - the name of the relation type
+     * @return a RelationTypeModel with the default settings
+     */
+    public static RelationTypeModel defaultType(String typeName) {
         Map<String, String> defaultRelations = new HashMap<>() {{
             put("collated", "Internal use only");
             put("orthographic", "These are the same reading, neither unusually spelled.");
@@ -163,13 +188,7 @@ public class RelationType {
             put("repetition", "This is a reading that was repeated in one or more witnesses.");
         }};
 
-        Node tradNode = VariantGraphService.getTraditionNode(traditionId, db);
         RelationTypeModel relType = new RelationTypeModel(typeName);
-        // Does this already exist?
-        Node extantRelType = relType.lookup(tradNode);
-        if (extantRelType != null)
-            return Response.notModified().build();
-
         // If we don't have any settings for the requested name, use the settings for "other"
         String useType = typeName;
         if (!defaultRelations.containsKey(typeName)) useType = "other";
@@ -200,11 +219,6 @@ public class RelationType {
         relType.setIs_generalizable(!(useType.equals("collated")|| useType.equals("uncertain")
                 || useType.equals("other")));
         relType.setUse_regular(!useType.equals("orthographic"));
-        // Create the node
-        Node result = relType.instantiate(tradNode);
-        if (result == null)
-            return Response.serverError().entity(jsonerror("Could not instantiate default relation type")).build();
-        else
-            return Response.status(Response.Status.CREATED).entity(relType).build();
+        return relType;
     }
 }
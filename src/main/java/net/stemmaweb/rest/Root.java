@@ -6,6 +6,8 @@ import net.stemmaweb.model.TraditionModel;
 import net.stemmaweb.model.UserModel;
 import net.stemmaweb.services.DatabaseService;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.ImportBatch;
+import net.stemmaweb.services.ImportJobService;
 
 import net.stemmaweb.services.VariantGraphService;
 import org.apache.tika.Tika;
@@ -28,6 +30,7 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
 
 import static net.stemmaweb.Util.*;
 
@@ -80,6 +83,13 @@ public class Root {
     public Tradition getTradition(@PathParam("tradId") String tradId) {
         return new Tradition(tradId);
     }
+    /**
+     * @param jobId - the ID of a background import job
+     */
+    @Path("/job/{jobId}")
+    public Job getJob(@PathParam("jobId") String jobId) {
+        return new Job(jobId);
+    }
     /**
      * @param userId - The ID of a stemmarest user; this is usually either an email address or a Google ID token.
      */
@@ -120,11 +130,21 @@ public class Root {
      *                  Required if 'file' is not present.
      * @param uploadedInputStream The file data to upload.
      * @param fileDetail The file data to upload.
+     * @param batch     the number of nodes and relationships to commit at a time, for traditions too
+     *                  large to import in a single transaction. While the import is under way the new
+     *                  tradition is left out of tradition and section lists, and if it fails, whatever
+     *                  was committed is removed again. Default is the value of the environment variable
+     *                  STEMMAREST_IMPORT_BATCH, or 0 (a single transaction) if that is not set.
+     * @param async     If true, the file is stored and imported in the background, and the response
+     *                  gives the ID of the import job in the form {@code {"jobId": <ID>}}. The progress
+     *                  and outcome of the import can be followed at GET /job/{jobId}.
      *
      * @statuscode 201 - The tradition was created successfully.
-     * @statuscode 400 - No file was specified, and the 'empty' flag was not set.
+     * @statuscode 202 - The file has been queued for import.
+     * @statuscode 400 - No file was specified and the 'empty' flag was not set, or the batch size is invalid.
      * @statuscode 409 - The requested owner does not exist in the database.
      * @statuscode 500 - Something went wrong. An error message will be returned.
+     * @statuscode 503 - Too many imports are already waiting.
      *
      */
     @POST
@@ -140,7 +160,9 @@ public class Root {
                                   @FormDataParam("empty") String empty,
                                   @FormDataParam("filetype") String filetype,
                                   @FormDataParam("file") InputStream uploadedInputStream,
-                                  @FormDataParam("file") FormDataContentDisposition fileDetail) {
+                                  @FormDataParam("file") FormDataContentDisposition fileDetail,
+                                  @FormDataParam("batch") String batch,
+                                  @FormDataParam("async") String async) {
 
         if (!DatabaseService.userExists(userId, db)) {
             return Response.status(Response.Status.CONFLICT)
@@ -153,9 +175,14 @@ public class Root {
             return Response.status(Response.Status.BAD_REQUEST).entity(jsonerror("No file found")).build();
         }
 
+        Integer batchSize = Tradition.parseBatchSize(batch);
+        if (batchSize == null)
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(jsonerror("Bad batch size " + batch)).build();
+
         String tradId;
         try {
-            tradId = this.createTradition(name, direction, language, is_public);
+            tradId = this.createTradition(name, direction, language, is_public, empty == null);
         } catch (Exception e) {
             return Response.serverError().entity(jsonerror(e.getMessage())).build();
         }
@@ -164,30 +191,33 @@ public class Root {
         try {
             this.linkUserToTradition(userId, tradId);
         } catch (Exception e) {
-            new Tradition(tradId).deleteTraditionById();
+            new Tradition(tradId).discard();
             return Response.serverError().entity(jsonerror(e.getMessage())).build();
         }
 
         // If we got file contents, we should send them off for parsing.
         if (empty == null) {
-            Response dataResult = Tradition.parseDispatcher(VariantGraphService.getTraditionNode(tradId, db),
-                    filetype, uploadedInputStream, false);
-            if (dataResult.getStatus() != Response.Status.CREATED.getStatusCode()) {
-                // If something went wrong, delete the new tradition immediately and return the error.
-                new Tradition(tradId).deleteTraditionById();
-                return dataResult;
-            }
-            // If we just parsed GraphML (the only format that can preserve prior tradition IDs),
-            // get the actual tradition ID in case it was preserved from a prior export.
-            if (filetype.equals("graphml")) {
+            if ("true".equals(async)) {
+                // Store the data and leave it for a worker to parse
+                final String newTradId = tradId;
                 try {
-                    JSONObject dataValues = new JSONObject(dataResult.getEntity().toString());
-                    tradId = dataValues.get("parentId").toString();
-                } catch (JSONException e) {
+                    ImportJobService.Job job = ImportJobService.getInstance().submit(uploadedInputStream,
+                            batchSize, tradId, (data, b) -> importTraditionData(newTradId, filetype, data, b));
+                    return Job.accepted(job);
+                } catch (Exception e) {
+                    new Tradition(tradId).discard();
+                    if (e instanceof RejectedExecutionException)
+                        return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                                .entity(jsonerror("Too many imports are waiting; please try again later")).build();
                     e.printStackTrace();
-                    return Response.serverError().entity(jsonerror("Bad file parse response")).build();
+                    return Response.serverError().entity(jsonerror(e.getMessage())).build();
                 }
             }
+            Response dataResult = importTraditionData(tradId, filetype, uploadedInputStream,
+                    new ImportBatch(db, batchSize));
+            if (dataResult.getStatus() != Response.Status.CREATED.getStatusCode())
+                return dataResult;
+            tradId = new JSONObject(dataResult.getEntity().toString()).getString("tradId");
         }
 
         // Handle direct non-Jersey calls from our test suite
@@ -198,6 +228,29 @@ public class Root {
                 .entity(jsonresp("tradId", tradId)).build();
     }
 
+    // Parse the data into the given new tradition, and remove the tradition if that fails
+    private Response importTraditionData(String tradId, String filetype, InputStream data, ImportBatch batch) {
+        Response dataResult = Tradition.parseDispatcher(VariantGraphService.getTraditionNode(tradId, db),
+                filetype, data, false, batch);
+        if (dataResult.getStatus() != Response.Status.CREATED.getStatusCode()) {
+            // If something went wrong, delete the new tradition immediately and return the error.
+            new Tradition(tradId).discard();
+            return dataResult;
+        }
+        // If we just parsed GraphML (the only format that can preserve prior tradition IDs),
+        // get the actual tradition ID in case it was preserved from a prior export.
+        if (filetype.equals("graphml")) {
+            try {
+                JSONObject dataValues = new JSONObject(dataResult.getEntity().toString());
+                tradId = dataValues.get("parentId").toString();
+            } catch (JSONException e) {
+                e.printStackTrace();
+                return Response.serverError().entity(jsonerror("Bad file parse response")).build();
+            }
+        }
+        return Response.status(Response.Status.CREATED).entity(jsonresp("tradId", tradId)).build();
+    }
+
     /*
      * Collection calls
      */
@@ -226,7 +279,9 @@ public class Root {
                 nodeList = db.findNodes(Nodes.TRADITION, "is_public", true);
             else
                 nodeList = db.findNodes(Nodes.TRADITION);
-            nodeList.forEachRemaining(t -> traditionList.add(new TraditionModel(t)));
+            nodeList.forEachRemaining(t -> {
+                if (!ImportBatch.isImporting(t)) traditionList.add(new TraditionModel(t));
+            });
             tx.success();
         } catch (Exception e) {
             e.printStackTrace();
@@ -262,7 +317,8 @@ public class Root {
         return Response.ok(userList).build();
     }
 
-    private String createTradition(String name, String direction, String language, String isPublic) {
+    private String createTradition(String name, String direction, String language, String isPublic,
+                                   boolean importing) {
         String tradId = UUID.randomUUID().toString();
         try (Transaction tx = db.beginTx()) {
             // Make the tradition node
@@ -277,6 +333,9 @@ public class Root {
                 traditionNode.setProperty("language", language);
             if (isPublic != null)
                 traditionNode.setProperty("is_public", isPublic.equals("true"));
+            // Keep it out of the tradition list until its data is in
+            if (importing)
+                traditionNode.setProperty(ImportBatch.IMPORTING, true);
             tx.success();
         } catch (Exception e) {
             e.printStackTrace();
@@ -6,6 +6,7 @@ import net.stemmaweb.exporter.DotExporter;
 import net.stemmaweb.exporter.GraphMLExporter;
 import net.stemmaweb.exporter.TabularExporter;
 import net.stemmaweb.model.*;
+import net.stemmaweb.printer.GraphVizService;
 import net.stemmaweb.services.*;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.traversal.*;
@@ -130,51 +131,62 @@ public class Section {
 
     /**
      * Delete the specified section, and update the tradition's sequence of sections to
-     * account for any resulting gap. Returns a JSON response on error with key 'error'.
+     * account for any resulting gap. The section disappears at once, and its contents are
+     * then removed in the background; the ID of the job that removes them is returned, and
+     * can be looked up at /job/{jobId} to follow its progress. Returns a JSON response on
+     * error with key 'error'.
      *
      * @title Delete section
+     * @return A JSON object with the key 'jobId'
      * @statuscode 200 - on success
      * @statuscode 404 - if no such tradition or section exists
      * @statuscode 500 - on failure, with an error message
      */
     @DELETE
+    @Produces("application/json; charset=utf-8")
     @ReturnType("java.lang.Void")
     public Response deleteSection() {
         if (!sectionInTradition())
             return Response.status(Response.Status.NOT_FOUND).type(MediaType.APPLICATION_JSON_TYPE)
                     .entity(jsonerror("Tradition and/or section not found")).build();
-        try (Transaction tx = db.beginTx()) {
-            Node foundSection = db.getNodeById(Long.parseLong(sectId));
-            if (foundSection != null) {
-                // Find the section either side of this one and connect them if necessary.
-                removeFromSequence(foundSection);
-                // Collect all nodes and relationships that belong to this section.
-                Set<Relationship> removableRelations = new HashSet<>();
-                Set<Node> removableNodes = new HashSet<>();
-                VariantGraphService.returnTraditionSection(foundSection).nodes()
-                        .forEach(x -> {
-                            removableNodes.add(x);
-                            x.getRelationships(Direction.BOTH).forEach(removableRelations::add);
-                        });
-
-                // Remove said nodes and relationships.
-                removableRelations.forEach(Relationship::delete);
-                removableNodes.forEach(Node::delete);
-                // Clean up any annotations that need it.
-                Tradition tService = new Tradition(tradId);
-                Response pruned = tService.pruneAnnotations();
-                if (pruned.getStatus() > 299) {
-                    return pruned;
-                }
-            }
-            tx.success();
+        try {
+            Node foundSection = tombstone();
+            DeletionService.Job job = DeletionService.getInstance().submit(foundSection);
+            return Job.deleting(job);
         } catch (Exception e) {
             e.printStackTrace();
             return Response.serverError().type(MediaType.APPLICATION_JSON_TYPE)
                     .entity(jsonerror(e.getMessage())).build();
         }
+    }
 
-        return Response.ok().build();
+    /**
+     * Remove the section straight away, in the calling thread. This is for clearing up after
+     * an import that failed, which has already taken away most of what it made.
+     */
+    void discard() {
+        if (!sectionInTradition()) return;
+        DeletionService.purge(tombstone());
+    }
+
+    // Take the section out of its tradition and mark it as deleted, noting where it came from.
+    // The tradition's annotations are detached from it, and pruned if that leaves them empty.
+    private Node tombstone() {
+        Node foundSection;
+        try (Transaction tx = db.beginTx()) {
+            foundSection = db.getNodeById(Long.parseLong(sectId));
+            // Find the section either side of this one and connect them if necessary.
+            removeFromSequence(foundSection);
+            DeletionService.detachAnnotations(VariantGraphService.getTraditionNode(foundSection), foundSection);
+            foundSection.getRelationships(ERelations.PART, ERelations.PUB_ORDER).forEach(Relationship::delete);
+            foundSection.setProperty(DeletionService.DELETED_FROM, tradId);
+            foundSection.addLabel(Nodes.DELETED);
+            Response pruned = new Tradition(tradId).pruneAnnotations();
+            if (pruned.getStatus() > 299)
+                throw new RuntimeException("Could not prune annotations: " + pruned.getEntity());
+            tx.success();
+        }
+        return foundSection;
     }
 
     /*
@@ -223,19 +235,17 @@ public class Section {
         Node sectionStart = VariantGraphService.getStartNode(sectId, db);
         ArrayList<Node> traditionWitnesses = DatabaseService.getRelated(traditionNode, ERelations.HAS_WITNESS);
         try (Transaction tx = db.beginTx()) {
-            for (Relationship relationship : sectionStart.getRelationships(ERelations.SEQUENCE)) {
-                for (String witClass : relationship.getPropertyKeys()) {
-                    for (String sigil : (String[]) relationship.getProperty(witClass)) {
-                        for (Node curWitness : traditionWitnesses) {
-                            if (sigil.equals(curWitness.getProperty("sigil"))) {
-                                witnessList.add(curWitness);
-                                traditionWitnesses.remove(curWitness);
-                                break;
-                            }
-                        }
-                    }
-                }
-            }
+            // Every witness in the section leaves the start node; collect their bits
+            WitnessIndex index = new WitnessIndex(traditionNode);
+            long[] sectionBits = new long[0];
+            for (Relationship relationship : sectionStart.getRelationships(ERelations.SEQUENCE))
+                sectionBits = WitnessIndex.union(sectionBits, index.bitsOf(relationship));
+            HashSet<String> sigla = new HashSet<>();
+            for (int i = 0; i < index.size(); i++)
+                if (WitnessIndex.isSet(sectionBits, i)) sigla.add(index.sigilOf(i));
+            for (Node curWitness : traditionWitnesses)
+                if (sigla.contains(curWitness.getProperty("sigil").toString()))
+                    witnessList.add(curWitness);
             tx.success();
         } catch (Exception e) {
             e.printStackTrace();
@@ -825,8 +835,8 @@ public class Section {
 
     @SuppressWarnings("SameParameterValue")
     private List<Relationship> sequencesCrossingRank(Long rank, Boolean leftfencepost) {
-        Node startNode = VariantGraphService.getStartNode(sectId, db);
-        return VariantGraphService.returnAllSequences(startNode).relationships().stream()
+        Node sectionNode = db.getNodeById(Long.parseLong(sectId));
+        return RankIndex.forSection(sectionNode).linksAround(rank).stream()
                 .filter(x -> crossesRank(x, rank, leftfencepost))
                 .collect(Collectors.toList());
     }
@@ -911,10 +921,10 @@ public class Section {
             HashSet<String> oldWitnesses = new HashSet<>();
             HashSet<String> newWitnesses = new HashSet<>();
             for (Relationship r : oldEnd.getRelationships(ERelations.SEQUENCE))
-                for (String key : r.getPropertyKeys())
+                for (String key : WitnessIndex.witnessClasses(r))
                     oldWitnesses.addAll(Arrays.asList((String[]) r.getProperty(key)));
             for (Relationship r : oldStart.getRelationships(ERelations.SEQUENCE))
-                for (String key : r.getPropertyKeys())
+                for (String key : WitnessIndex.witnessClasses(r))
                     newWitnesses.addAll(Arrays.asList((String[]) r.getProperty(key)));
             newWitnesses.stream().filter(x -> !oldWitnesses.contains(x))
                     .forEach(x -> addWitnessLink(trueStart, oldEnd, x, "witnesses"));
@@ -923,6 +933,7 @@ public class Section {
             oldWitnesses.addAll(newWitnesses);
             Relationship link = oldEnd.createRelationshipTo(oldStart, ERelations.SEQUENCE);
             link.setProperty("witnesses", oldWitnesses.toArray(new String[0]));
+            WitnessIndex.refresh(link);
 
             // Reconfigure the lemma text link, if there is one
             Relationship plr = oldEnd.getSingleRelationship(ERelations.LEMMA_TEXT, Direction.INCOMING);
@@ -1048,9 +1059,14 @@ public class Section {
         long startRankL = startRank.equals("start")
                     ? 1
                     : Long.parseLong(startRank);
-        long endRankL = endRank.equals("end")
-                    ? VariantGraphService.getEndNode(sectId, db).getId()
-                    : Long.parseLong(endRank);
+        long endRankL;
+        if (endRank.equals("end")) {
+            try (Transaction tx = db.beginTx()) {
+                endRankL = Long.valueOf(VariantGraphService.getEndNode(sectId, db).getProperty("rank").toString());
+                tx.success();
+            }
+        } else
+            endRankL = Long.parseLong(endRank);
         result.put("start", startRankL);
         result.put("end", endRankL);
         return result;
@@ -1103,16 +1119,12 @@ public class Section {
     }
 
     // Retrieve all readings of a tradition between two ranks as Nodes
-    @SuppressWarnings("rawtypes")
-    private List<Node> getReadingsBetweenRanks(long startRank, long endRank, Node startNode, String limitText) throws Exception {
+    private List<Node> getReadingsBetweenRanks(long startRank, long endRank, Node startNode, String limitText) {
         List<Node> readings;
-        PathExpander e = new AlignmentTraverse(startNode);
         try (Transaction tx = db.beginTx()) {
-            Stream<Node> readingStream = db.traversalDescription().depthFirst()
-                    .expand(e).uniqueness(Uniqueness.NODE_GLOBAL)
-                    .traverse(startNode).nodes().stream()
-                    .filter(x -> startRank <= Long.parseLong(x.getProperty("rank").toString()) &&
-                            endRank >= Long.parseLong(x.getProperty("rank").toString()));
+            Node sectionNode = db.getNodeById((Long) startNode.getProperty("section_id"));
+            Stream<Node> readingStream = RankIndex.forSection(sectionNode)
+                    .readingsBetween(startRank, endRank).stream();
             if (!limitText.equals(""))
                 readingStream = readingStream.filter(x -> x.getProperty("text").toString().equals(limitText));
             readings = readingStream.collect(Collectors.toList());
@@ -1500,6 +1512,52 @@ public class Section {
         return exporter.writeNeo4J(tradId, sectId, dm);
     }
 
+    /**
+     * Returns an SVG image of the specified section, as drawn by GraphViz. The same graph is
+     * drawn only once; later requests for it are answered from a cache.
+     *
+     * @title Download SVG image of section
+     * @param includeRelatedRelationships - Include RELATED edges in the graph, if true
+     * @param showNormalForms - Display normal form of readings alongside "raw" text form, if true
+     * @param showRank - Display the rank of readings, if true
+     * @param displayAllSigla - Avoid the 'majority' contraction of long witness labels, if true
+     * @param normalise - A RelationType name to normalise on, if desired
+     * @param excWitnesses - Exclude the given witness from the graph. Can be specified multiple times
+     * @return the SVG image
+     * @statuscode 200 - on success
+     * @statuscode 404 - if no such tradition or section exists
+     * @statuscode 500 - on failure, or if the graph could not be drawn in time, with an error message
+     */
+    @GET
+    @Path("/svg")
+    @Produces("image/svg+xml")
+    @ReturnType("java.lang.Void")
+    public Response getSvg(@DefaultValue("false") @QueryParam("include_relations") Boolean includeRelatedRelationships,
+                           @DefaultValue("false") @QueryParam("show_normal") Boolean showNormalForms,
+                           @DefaultValue("false") @QueryParam("show_rank") Boolean showRank,
+                           @DefaultValue("false") @QueryParam("expand_sigla") Boolean displayAllSigla,
+                                                  @QueryParam("normalise") String normalise,
+                                                  @QueryParam("exclude_witness") List<String> excWitnesses) {
+        if (!sectionInTradition())
+            return Response.status(Response.Status.NOT_FOUND).type(MediaType.APPLICATION_JSON_TYPE)
+                    .entity(jsonerror("Tradition and/or section not found")).build();
+
+        DisplayOptionModel dm = new DisplayOptionModel(
+                includeRelatedRelationships, showNormalForms, showRank, displayAllSigla, normalise, excWitnesses);
+        try {
+            String dot = new DotExporter(db).getDot(tradId, sectId, dm);
+            return Response.ok(GraphVizService.getInstance().render(dot, "svg")).build();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Response.serverError().type(MediaType.APPLICATION_JSON_TYPE)
+                    .entity(jsonerror("Interrupted while drawing the graph")).build();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.serverError().type(MediaType.APPLICATION_JSON_TYPE)
+                    .entity(jsonerror(e.getMessage())).build();
+        }
+    }
+
     /**
      * Returns an alignment table for the section in JSON format.
      *
@@ -1507,6 +1565,10 @@ public class Section {
      *
      * @param toConflate   - Zero or more relationship types whose readings should be treated as identical
      * @param excludeLayers - If "true", exclude witness layers from the output.
+     * @param stream        - If "true", write the alignment out as it is worked out, rather than
+     *                        building it in memory first.
+     * @param brief         - If "true", give only the ID, text, normal form, and flags of each reading
+     *                        token. Implies "stream".
      * @return the JSON alignment
      */
     @GET
@@ -1514,8 +1576,13 @@ public class Section {
     @Produces("application/json; charset=utf-8")
     @ReturnType(clazz = AlignmentModel.class)
     public Response getJson(@QueryParam("conflate") String toConflate,
-                            @QueryParam("exclude_layers") String excludeLayers) {
+                            @QueryParam("exclude_layers") String excludeLayers,
+                            @QueryParam("stream") String stream,
+                            @QueryParam("brief") String brief) {
         List<String> thisSection = new ArrayList<>(Collections.singletonList(sectId));
+        if ("true".equals(stream) || "true".equals(brief))
+            return new TabularExporter(db).streamAsJSON(tradId, toConflate, thisSection,
+                    "true".equals(excludeLayers), "true".equals(brief));
         return new TabularExporter(db).exportAsJSON(tradId, toConflate, thisSection, "true".equals(excludeLayers));
     }
 
@@ -14,6 +14,7 @@ import com.qmino.miredot.annotations.ReturnType;
 import net.stemmaweb.model.StemmaModel;
 import net.stemmaweb.parser.DotParser;
 import net.stemmaweb.parser.NewickParser;
+import net.stemmaweb.printer.GraphVizService;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
 
 import org.neo4j.graphdb.*;
@@ -67,6 +68,40 @@ public class Stemma {
         return Response.status(returncode).entity(result).build();
     }
 
+    /**
+     * Returns an SVG image of the specified stemma, as drawn by GraphViz. The same stemma is
+     * drawn only once; later requests for it are answered from a cache.
+     *
+     * @title Get stemma image
+     * @return The SVG image of the stemma.
+     * @statuscode 200 - on success
+     * @statuscode 404 - if no such tradition or stemma exists
+     * @statuscode 500 - on failure, or if the stemma could not be drawn in time, with an error message
+     */
+    @GET
+    @Path("svg")
+    @Produces("image/svg+xml")
+    @ReturnType("java.lang.Void")
+    public Response getStemmaSvg() {
+        Node stemmaNode = getStemmaNode();
+        if (stemmaNode == null) {
+            return Response.status(Status.NOT_FOUND).type(MediaType.APPLICATION_JSON_TYPE)
+                    .entity(jsonerror(String.format("No stemma %s found for tradition %s", name, tradId))).build();
+        }
+        try {
+            String dot = new StemmaModel(stemmaNode).getDot();
+            return Response.ok(GraphVizService.getInstance().render(dot, "svg")).build();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Response.serverError().type(MediaType.APPLICATION_JSON_TYPE)
+                    .entity(jsonerror("Interrupted while drawing the stemma")).build();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.serverError().type(MediaType.APPLICATION_JSON_TYPE)
+                    .entity(jsonerror(e.getMessage())).build();
+        }
+    }
+
     /**
      * Stores a new or updated stemma under the given name.
      *
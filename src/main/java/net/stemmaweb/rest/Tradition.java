@@ -22,6 +22,7 @@ import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 import java.io.InputStream;
 import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.stream.Collectors;
 
 import static java.time.LocalDateTime.now;
@@ -172,6 +173,8 @@ public class Tradition {
         ArrayList<SectionModel> sectionList = new ArrayList<>();
         try (Transaction tx = db.beginTx()) {
             ArrayList<Node> sectionNodes = DatabaseService.getRelated(traditionNode, ERelations.PART);
+            // Sections that are still being imported don't count yet
+            sectionNodes.removeIf(ImportBatch::isImporting);
             int depth = sectionNodes.size();
             if (depth > 0) {
                 for(Node n: sectionNodes) {
@@ -185,7 +188,10 @@ public class Tradition {
                                 .uniqueness(Uniqueness.NODE_GLOBAL)
                                 .traverse(n)
                                 .nodes()
-                                .forEach(r -> sectionList.add(new SectionModel(r)));
+                                .forEach(r -> {
+                                    // The sequence runs on into a section that is still being imported
+                                    if (!ImportBatch.isImporting(r)) sectionList.add(new SectionModel(r));
+                                });
                         break;
                     }
                 }
@@ -213,10 +219,16 @@ public class Tradition {
      * @param filetype - The format of the section data file.
      *                 See the documentation of POST /tradition for possible values.
      * @param uploadedInputStream - The section file data
+     * @param batch - The number of entities to commit at a time, for very large sections.
+     *              See the documentation of POST /tradition.
+     * @param async - If true, the section is imported in the background.
+     *              See the documentation of POST /tradition.
      * @return The stemma specification in JSON format.
      * @statuscode 201 - on success
-     * @statuscode 400 - if the file type is unrecognised
+     * @statuscode 202 - if the section has been queued for import, with the job ID
+     * @statuscode 400 - if the file type or batch size is unrecognised
      * @statuscode 500 - on error, with an error message
+     * @statuscode 503 - if too many imports are already waiting
      */
 
     @POST
@@ -226,23 +238,52 @@ public class Tradition {
     @ReturnType("java.lang.Void")
     public Response addSection(@FormDataParam("name") String sectionName,
                                @FormDataParam("filetype") String filetype,
-                               @FormDataParam("file") InputStream uploadedInputStream) {
+                               @FormDataParam("file") InputStream uploadedInputStream,
+                               @FormDataParam("batch") String batch,
+                               @FormDataParam("async") String async) {
+        Integer batchSize = parseBatchSize(batch);
+        if (batchSize == null)
+            return Response.status(Status.BAD_REQUEST).entity(jsonerror("Bad batch size " + batch)).build();
 
         // Make a new section node to connect to the tradition in question.
         Node traditionNode = VariantGraphService.getTraditionNode(traditionId, db);
-        ArrayList<SectionModel> existingSections = produceSectionList(traditionNode);
         Node sectionNode = createNewSection(traditionNode, sectionName);
         if (sectionNode == null)
             return Response.serverError().entity(jsonerror("Error creating new section node on tradition")).build();
 
+        if ("true".equals(async)) {
+            // Store the data and leave it for a worker to parse
+            try {
+                ImportJobService.Job job = ImportJobService.getInstance().submit(uploadedInputStream,
+                        batchSize, traditionId, (data, b) -> importSection(traditionNode, sectionNode, filetype, data, b));
+                return Job.accepted(job);
+            } catch (Exception e) {
+                new Section(traditionId, String.valueOf(sectionNode.getId())).discard();
+                if (e instanceof RejectedExecutionException)
+                    return Response.status(Status.SERVICE_UNAVAILABLE)
+                            .entity(jsonerror("Too many imports are waiting; please try again later")).build();
+                e.printStackTrace();
+                return Response.serverError().entity(jsonerror(e.getMessage())).build();
+            }
+        }
+        return importSection(traditionNode, sectionNode, filetype, uploadedInputStream,
+                new ImportBatch(db, batchSize));
+    }
+
+    // Parse the data into the given new section, and link it behind the tradition's other sections
+    private Response importSection(Node traditionNode, Node sectionNode, String filetype,
+                                   InputStream data, ImportBatch batch) {
+        // The new section is flagged as importing, so it is not in this list
+        ArrayList<SectionModel> existingSections = produceSectionList(traditionNode);
+
         // Dispatch the data for parsing, with the new section node as the parent node
-        Response result = parseDispatcher(sectionNode, filetype, uploadedInputStream, true);
+        Response result = parseDispatcher(sectionNode, filetype, data, true, batch);
 
         // Handle the result
         if (result.getStatus() > 201) {
             // If the result wasn't a success, delete the section node before returning the result.
             Section restSect = new Section(traditionId, String.valueOf(sectionNode.getId()));
-            restSect.deleteSection();
+            restSect.discard();
             return result;
         } else {
             // Otherwise, retrieve the section ID for our own response and link this section
@@ -264,13 +305,14 @@ public class Tradition {
     }
 
 
-    // utility method for creating a new section on a tradition
+    // utility method for creating a new section on a tradition, to be hidden until its data is imported
     private static Node createNewSection(Node traditionNode, String sectionName) {
         Node sectionNode;
         GraphDatabaseService db = traditionNode.getGraphDatabase();
         try (Transaction tx = db.beginTx()) {
             sectionNode = db.createNode(Nodes.SECTION);
             sectionNode.setProperty("name", sectionName);
+            sectionNode.setProperty(ImportBatch.IMPORTING, true);
             traditionNode.createRelationshipTo(sectionNode, ERelations.PART);
             tx.success();
         } catch (Exception e) {
@@ -288,55 +330,90 @@ public class Tradition {
      * @param uploadedInputStream - the data to parse
      * @param addSingleSection - whether we are adding a section to an existing tradition, or uploading
      *                          a new tradition entirely
+     * @param batch      - the batch that the import is carried out in; it is finished or abandoned
+     *                   according to the result
      * @return a Response indicating the result
      */
-    static Response parseDispatcher(Node parentNode, String filetype, InputStream uploadedInputStream, boolean addSingleSection) {
+    static Response parseDispatcher(Node parentNode, String filetype, InputStream uploadedInputStream,
+                                    boolean addSingleSection, ImportBatch batch) {
         Response result = null;
+        // The tradition or section that the import goes into is hidden until it is finished
+        batch.markImporting(parentNode);
         // All parsers except GraphML expect a section node; create it here if we are not adding a
         // section to an existing tradition.
         if (!addSingleSection && !filetype.startsWith("graphml")) {
             Node sectionNode = createNewSection(parentNode, "DEFAULT");
-            if (sectionNode == null)
+            if (sectionNode == null) {
+                batch.abandon();
                 return Response.serverError()
                         .entity(jsonerror("Error creating new section node on tradition")).build();
+            }
             parentNode = sectionNode;
+            batch.markImporting(parentNode);
+        }
+        try {
+            // Parse the contents of the given file into that section
+            if (filetype.equals("csv"))
+                // Pass it off to the CSV reader
+                result = new TabularParser(batch).parseCSV(uploadedInputStream, parentNode, ',');
+            if (filetype.equals("tsv"))
+                // Pass it off to the CSV reader with tab separators
+                result = new TabularParser(batch).parseCSV(uploadedInputStream, parentNode, '\t');
+            if (filetype.startsWith("xls"))
+                // Pass it off to the Excel reader
+                result = new TabularParser(batch).parseExcel(uploadedInputStream, parentNode, filetype);
+            if (filetype.equals("teips"))
+                // Pass it off to the TEI parser
+                result = new TEIParallelSegParser(batch).parseTEIParallelSeg(uploadedInputStream, parentNode);
+            // TODO we need to parse TEI double-endpoint attachment from CTE
+            if (filetype.equals("collatex"))
+                // Pass it off to the CollateX parser
+                result = new CollateXParser().parseCollateX(uploadedInputStream, parentNode);
+            if (filetype.equals("cxjson"))
+                // Pass it off to the CollateX JSON parser
+                result = new CollateXJsonParser(batch).parseCollateXJson(uploadedInputStream, parentNode);
+            if (filetype.equals("stemmaweb"))
+                // Pass it off to the old Stemmaweb-format parser
+                result = new StemmawebParser(batch).parseGraphML(uploadedInputStream, parentNode);
+            if (filetype.equals("graphmlsingle"))
+                // Pass it off to the legacy single-file GraphML parser
+                result = new GraphMLParser(batch).parseGraphMLSingle(uploadedInputStream, parentNode, addSingleSection);
+            if (filetype.equals("graphml"))
+                // Pass it off to the GraphML ZIP parser
+                result = new GraphMLParser(batch).parseGraphMLZip(uploadedInputStream, parentNode, addSingleSection);
+            // If we got this far, it was an unrecognized filetype.
+            if (result == null)
+                result = Response.status(Status.BAD_REQUEST).entity(jsonerror("Unrecognized file type " + filetype)).build();
+        } catch (Exception e) {
+            e.printStackTrace();
+            result = Response.serverError().entity(jsonerror(e.getMessage())).build();
+        } finally {
+            // Take back whatever a failed import has already committed
+            if (result != null && result.getStatus() == Status.CREATED.getStatusCode())
+                batch.finish();
+            else
+                batch.abandon();
         }
-        // Parse the contents of the given file into that section
-        if (filetype.equals("csv"))
-            // Pass it off to the CSV reader
-            result = new TabularParser().parseCSV(uploadedInputStream, parentNode, ',');
-        if (filetype.equals("tsv"))
-            // Pass it off to the CSV reader with tab separators
-            result = new TabularParser().parseCSV(uploadedInputStream, parentNode, '\t');
-        if (filetype.startsWith("xls"))
-            // Pass it off to the Excel reader
-            result = new TabularParser().parseExcel(uploadedInputStream, parentNode, filetype);
-        if (filetype.equals("teips"))
-            // Pass it off to the TEI parser
-            result = new TEIParallelSegParser().parseTEIParallelSeg(uploadedInputStream, parentNode);
-        // TODO we need to parse TEI double-endpoint attachment from CTE
-        if (filetype.equals("collatex"))
-            // Pass it off to the CollateX parser
-            result = new CollateXParser().parseCollateX(uploadedInputStream, parentNode);
-        if (filetype.equals("cxjson"))
-            // Pass it off to the CollateX JSON parser
-            result = new CollateXJsonParser().parseCollateXJson(uploadedInputStream, parentNode);
-        if (filetype.equals("stemmaweb"))
-            // Pass it off to the old Stemmaweb-format parser
-            result = new StemmawebParser().parseGraphML(uploadedInputStream, parentNode);
-        if (filetype.equals("graphmlsingle"))
-            // Pass it off to the legacy single-file GraphML parser
-            result = new GraphMLParser().parseGraphMLSingle(uploadedInputStream, parentNode, addSingleSection);
-        if (filetype.equals("graphml"))
-            // Pass it off to the GraphML ZIP parser
-            result = new GraphMLParser().parseGraphMLZip(uploadedInputStream, parentNode, addSingleSection);
-        // If we got this far, it was an unrecognized filetype.
-        if (result == null)
-            result = Response.status(Status.BAD_REQUEST).entity(jsonerror("Unrecognized file type " + filetype)).build();
-
         return result;
     }
 
+    /**
+     * Parse the batch size requested for an upload.
+     *
+     * @param batch - the requested number of entities per transaction, or null for the default
+     * @return the batch size, or null if the request was malformed
+     */
+    static Integer parseBatchSize(String batch) {
+        if (batch == null || batch.isEmpty())
+            return ImportBatch.defaultSize();
+        try {
+            int size = Integer.parseInt(batch);
+            return size < 0 ? null : size;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
     /**
      * Create a new annotation on this tradition.
      * @param am - an AnnotationModel specifying the annotation to create
@@ -773,49 +850,59 @@ public class Tradition {
 
     /**
      * Removes an entire tradition, including all witnesses, stemmata, sections, readings,
-     * and relationships.
+     * and relationships. The tradition disappears at once, and its contents are then removed
+     * in the background; the ID of the job that removes them is returned, and can be looked up
+     * at /job/{jobId} to follow its progress.
      *
      * @title Delete tradition
      *
+     * @return A JSON object with the key 'jobId'
      * @statuscode 200 - on success
      * @statuscode 404 - if tradition does not exist
      * @statuscode 500 - on error, with an error message
      */
     @DELETE
+    @Produces("application/json; charset=utf-8")
     @ReturnType("java.lang.Void")
     public Response deleteTraditionById() {
         Node foundTradition = VariantGraphService.getTraditionNode(traditionId, db);
-        if (foundTradition != null) {
-            try (Transaction tx = db.beginTx()) {
-                /*
-                 * Find all the nodes and relations to remove
-                 */
-                Set<Relationship> removableRelations = new HashSet<>();
-                Set<Node> removableNodes = new HashSet<>();
-                VariantGraphService.returnEntireTradition(foundTradition)
-                        .nodes().forEach(x -> {
-                    x.getRelationships().forEach(removableRelations::add);
-                    removableNodes.add(x);
-                });
-
-                /*
-                 * Remove the nodes and relations
-                 */
-                removableRelations.forEach(Relationship::delete);
-                removableNodes.forEach(Node::delete);
-                tx.success();
-            } catch (Exception e) {
-                e.printStackTrace();
-                return Response.serverError().entity(jsonerror(e.getMessage())).build();
-            }
-        } else {
+        if (foundTradition == null)
             return Response.status(Response.Status.NOT_FOUND)
                     .type(MediaType.APPLICATION_JSON)
                     .entity(jsonerror("A tradition with this id was not found!"))
                     .build();
+        try {
+            tombstone(foundTradition);
+            DeletionService.Job job = DeletionService.getInstance().submit(foundTradition);
+            return Job.deleting(job);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.serverError().entity(jsonerror(e.getMessage())).build();
         }
+    }
 
-        return Response.ok().build();
+    /**
+     * Remove the tradition straight away, in the calling thread. This is for clearing up after
+     * an import that failed, which has already taken away most of what it made.
+     */
+    void discard() {
+        Node foundTradition = VariantGraphService.getTraditionNode(traditionId, db);
+        if (foundTradition == null) return;
+        tombstone(foundTradition);
+        DeletionService.purge(foundTradition);
+    }
+
+    // Unlink the tradition from its owner and its annotations from what they annotate, and
+    // mark it as deleted, so that it can no longer be found, and its ID can be used again
+    private void tombstone(Node traditionNode) {
+        try (Transaction tx = db.beginTx()) {
+            traditionNode.getRelationships(ERelations.OWNS_TRADITION, Direction.INCOMING)
+                    .forEach(Relationship::delete);
+            DeletionService.detachAnnotations(traditionNode, null);
+            traditionNode.removeLabel(Nodes.TRADITION);
+            traditionNode.addLabel(Nodes.DELETED);
+            tx.success();
+        }
     }
 
     /*
@@ -918,6 +1005,10 @@ public class Tradition {
      * @param toConflate    - Zero or more relationship types whose readings should be treated as identical
      * @param sectionList   - Restrict the output to include the given sections. Can be specified multiple times.
      * @param excludeLayers - If "true", exclude witness layers from the output.
+     * @param stream        - If "true", write the alignment out as it is worked out, rather than
+     *                        building it in memory first. Recommended for large traditions.
+     * @param brief         - If "true", give only the ID, text, normal form, and flags of each reading
+     *                        token. Implies "stream".
      * @return the JSON alignment
      */
     @GET
@@ -926,7 +1017,12 @@ public class Tradition {
     @ReturnType(clazz = AlignmentModel.class)
     public Response getJson(@QueryParam("conflate") String toConflate,
                             @QueryParam("section") List<String> sectionList,
-                            @QueryParam("exclude_layers") String excludeLayers) {
+                            @QueryParam("exclude_layers") String excludeLayers,
+                            @QueryParam("stream") String stream,
+                            @QueryParam("brief") String brief) {
+        if ("true".equals(stream) || "true".equals(brief))
+            return new TabularExporter(db).streamAsJSON(traditionId, toConflate,
+                    sectionList, "true".equals(excludeLayers), "true".equals(brief));
         return new TabularExporter(db).exportAsJSON(traditionId, toConflate,
                 sectionList, "true".equals(excludeLayers));
     }
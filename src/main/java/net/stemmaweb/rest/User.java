@@ -12,6 +12,7 @@ import net.stemmaweb.model.TraditionModel;
 import net.stemmaweb.model.UserModel;
 import net.stemmaweb.services.DatabaseService;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.ImportBatch;
 
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
@@ -191,10 +192,12 @@ public class User {
         }
 
         ArrayList<TraditionModel> traditions = new ArrayList<>();
-        try {
+        try (Transaction tx = db.beginTx()) {
             Node thisUser = getUserNode();
-            DatabaseService.getRelated(thisUser, ERelations.OWNS_TRADITION)
-                    .forEach(x -> traditions.add(new TraditionModel(x)));
+            DatabaseService.getRelated(thisUser, ERelations.OWNS_TRADITION).forEach(x -> {
+                if (!ImportBatch.isImporting(x)) traditions.add(new TraditionModel(x));
+            });
+            tx.success();
         } catch (Exception e) {
             return Response.serverError().entity(jsonerror(e.getMessage())).build();
         }
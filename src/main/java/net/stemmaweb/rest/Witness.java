@@ -18,8 +18,6 @@ import net.stemmaweb.model.TextSequenceModel;
 import net.stemmaweb.services.*;
 
 import org.neo4j.graphdb.*;
-import org.neo4j.graphdb.traversal.Evaluator;
-import org.neo4j.graphdb.traversal.Uniqueness;
 
 import static net.stemmaweb.Util.jsonerror;
 
@@ -140,7 +138,7 @@ public class Witness {
                 if (r.isType(ERelations.SEQUENCE)) {
                     Node start = r.getStartNode();
                     Node end = r.getEndNode();
-                    for (String layer : r.getPropertyKeys()) {
+                    for (String layer : WitnessIndex.witnessClasses(r)) {
                         ReadingService.removeWitnessLink(start, end, sigil, layer, "none");
                     }
                     // Was this the last outgoing for the start, or the last incoming for the end?
@@ -211,7 +209,8 @@ public class Witness {
      * @statuscode 200 - on success
      * @statuscode 400 - if a start or end rank is specified on the tradition-wide call, or if the start rank and end rank match
      * @statuscode 404 - if the tradition, section, or witness text doesn't exist
-     * @statuscode 409 - if a section's end node cannot be reached while assembling the witness text
+     * @statuscode 409 - if a section's end node, or the end of the requested ranks, cannot be reached while
+     *                    assembling the witness text
      * @statuscode 500 - on error, with an error message
      */
     @GET
@@ -271,7 +270,25 @@ public class Witness {
             try (Transaction tx = db.beginTx()) {
                 final long sr = startRank;
                 final long er = endRank;
-                witnessReadings.addAll(traverseReadings(startNode, layer).stream()
+                // If we only want part of the text, use the rank index to start the walk near
+                // the start rank, and stop it after the end rank.
+                List<Node> walked = null;
+                if (startRank > 1 || !end.equals("E")) {
+                    Node entry = startRank > 1 ? entryPoint(currentSection, startRank, layer) : startNode;
+                    if (entry != null) {
+                        walked = new ArrayList<>();
+                        WitnessCursor cursor = new WitnessCursor(entry, sigil, layer);
+                        while (cursor.hasNext() && (Long) cursor.position().getProperty("rank") < er)
+                            walked.add(cursor.next().getEndNode());
+                        // If the walk broke off within the range, we had a conflict.
+                        if ((Long) cursor.position().getProperty("rank") < er
+                                && !cursor.position().hasProperty("is_end"))
+                            throw new Exception("CONFLICT");
+                    }
+                }
+                if (walked == null)
+                    walked = traverseReadings(startNode, layer);
+                witnessReadings.addAll(walked.stream()
                         .filter(x -> Long.parseLong(x.getProperty("rank").toString()) >= sr
                                 && Long.parseLong(x.getProperty("rank").toString()) <= er)
                         .collect(Collectors.toList()));
@@ -346,26 +363,26 @@ public class Witness {
 
     // For use within a transaction
     private ArrayList<Node> traverseReadings(Node startNode, List<String> witnessClass) throws Exception {
-        Evaluator e;
-        if (witnessClass == null)
-            e = new WitnessPath(sigil).getEvalForWitness();
-        else
-            e = new WitnessPath(sigil, witnessClass).getEvalForWitness();
-
-        ArrayList<Node> result = new ArrayList<>();
-        db.traversalDescription().depthFirst()
-                .relationships(ERelations.SEQUENCE, Direction.OUTGOING)
-                .evaluator(e)
-                .uniqueness(Uniqueness.RELATIONSHIP_PATH)
-                .traverse(startNode)
-                .nodes()
-                .forEach(result::add);
+        ArrayList<Node> result = new ArrayList<>(new WitnessCursor(startNode, sigil, witnessClass).readings());
         // If the path is nonzero but the end node wasn't reached, we had a conflict.
         if (result.size() > 0 && !result.get(result.size()-1).hasProperty("is_end"))
             throw new Exception("CONFLICT");
         return result;
     }
 
+    // For use within a transaction. Find the reading from which the witness (or the given layers)
+    // crosses into the given rank, or null if there is no single such reading.
+    private Node entryPoint(Node sectionNode, long rank, List<String> witnessClass) {
+        List<Relationship> crossing = RankIndex.forSection(sectionNode).linksAround(rank).stream()
+                .filter(x -> x.isType(ERelations.SEQUENCE)
+                        && (Long) x.getStartNode().getProperty("rank") < rank
+                        && (Long) x.getEndNode().getProperty("rank") >= rank)
+                .collect(Collectors.toList());
+        WitnessIndex index = new WitnessIndex(VariantGraphService.getTraditionNode(sectionNode));
+        List<Relationship> chosen = WitnessCursor.chooseLinks(crossing, sigil, witnessClass, index);
+        return chosen.size() == 1 ? chosen.get(0).getStartNode() : null;
+    }
+
     private ArrayList<Node> sectionsRequested() {
         Node traditionNode = VariantGraphService.getTraditionNode(tradId, db);
         if (traditionNode == null) {
@@ -11,6 +11,7 @@ import javax.servlet.ServletContextListener;
 
 //import org.apache.log4j.Logger;
 
+import net.stemmaweb.printer.GraphVizService;
 import org.neo4j.graphdb.GraphDatabaseService;
 
 /**
@@ -28,8 +29,11 @@ public class ApplicationContextListener implements ServletContextListener {
     public void contextDestroyed(ServletContextEvent event) {
         //Output a simple message to the server's console
         try {
+            ImportJobService.shutdown();
+            DeletionService.shutdown();
             GraphDatabaseService db = new GraphDatabaseServiceProvider().getDatabase();
             db.shutdown();
+            GraphVizService.shutdown();
             // logger.debug("This is debug: db shut down properly");
         } catch (Exception e) {
             // logger.debug("This is debug: shut down error");
@@ -46,6 +50,10 @@ public class ApplicationContextListener implements ServletContextListener {
         try {
             GraphDatabaseService db = new GraphDatabaseServiceProvider(DB_PATH).getDatabase();
             DatabaseService.createRootNode(db);
+            SchemaService.migrate(db);
+            // Carry on with any deletions that were cut short, and clear away any imports
+            DeletionService.getInstance().resume(db);
+            ImportBatch.discardUnfinished(db);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -0,0 +1,183 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.model.UserModel;
+import net.stemmaweb.rest.Root;
+import net.stemmaweb.rest.User;
+import org.json.JSONObject;
+import org.neo4j.graphdb.GraphDatabaseService;
+
+import javax.ws.rs.core.Response;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Loads a whole directory of tradition files into a new database, without going through a
+ * running server. Each file becomes a tradition of its own, named after the file and owned by
+ * the given user, and is read by the same parsers that handle uploads; the file type is taken
+ * from the extension (.zip for GraphML, .csv, .tsv, .xls and .xlsx for tables, .json for
+ * CollateX JSON, and .xml for TEI parallel segmentation). Several files are loaded at once,
+ * and the result is a database that Stemmarest can use straight away.
+ * <p>
+ * The files go through the same transactional importers as an upload would, rather than being
+ * written into the store with Neo4j's batch inserter, since every parser is written against the
+ * transactional API. What the loader saves over uploading the files one at a time to a running
+ * server is therefore no more than the HTTP round trip for each, which is small beside the
+ * parsing; any real gain comes from loading files on several cores at once.
+ * BulkLoaderBenchmark compares the two.
+ * <p>
+ * Usage: {@code BulkLoader <data directory> <input directory> <owner ID> [--batch N] [--threads N] [--public]}
+ * where the data directory is the one that STEMMAREST_HOME will point to, and must not yet hold
+ * a database.
+ *
+ * @author tla
+ */
+public class BulkLoader {
+
+    private static final Map<String, String> FILETYPES = new HashMap<>();
+    static {
+        FILETYPES.put("zip", "graphml");
+        FILETYPES.put("csv", "csv");
+        FILETYPES.put("tsv", "tsv");
+        FILETYPES.put("xls", "xls");
+        FILETYPES.put("xlsx", "xlsx");
+        FILETYPES.put("json", "cxjson");
+        FILETYPES.put("xml", "teips");
+    }
+
+    private final String owner;
+    private final String batch;
+    private final int threads;
+    private final boolean isPublic;
+
+    /**
+     * Set up a loader for the database that the application is currently using.
+     *
+     * @param owner    - the ID of the user who will own the traditions; created if need be
+     * @param batch    - the batch size for each import, or null for the default; see {@link ImportBatch}
+     * @param threads  - how many files to load at once
+     * @param isPublic - whether the traditions should be marked as public
+     */
+    public BulkLoader(String owner, String batch, int threads, boolean isPublic) {
+        this.owner = owner;
+        this.batch = batch;
+        this.threads = Math.max(1, threads);
+        this.isPublic = isPublic;
+    }
+
+    /**
+     * Load each tradition file in the given directory, in the order of their names.
+     * Files with an extension that we don't know are skipped.
+     *
+     * @param directory - the directory to read
+     * @return the response of each import, by file
+     * @throws InterruptedException if we are interrupted while waiting for the imports
+     */
+    public LinkedHashMap<File, Response> load(File directory) throws InterruptedException {
+        GraphDatabaseService db = new GraphDatabaseServiceProvider().getDatabase();
+        if (!DatabaseService.userExists(owner, db)) {
+            UserModel um = new UserModel();
+            um.setId(owner);
+            um.setRole("user");
+            new User(owner).create(um);
+        }
+
+        File[] files = directory.listFiles(f -> f.isFile() && FILETYPES.containsKey(extension(f)));
+        if (files == null)
+            throw new IllegalArgumentException("Cannot read directory " + directory);
+        Arrays.sort(files);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        LinkedHashMap<File, Future<Response>> running = new LinkedHashMap<>();
+        for (File f : files)
+            running.put(f, pool.submit(() -> loadFile(f)));
+        pool.shutdown();
+
+        LinkedHashMap<File, Response> results = new LinkedHashMap<>();
+        for (File f : running.keySet()) {
+            Response result;
+            try {
+                result = running.get(f).get();
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+                result = Response.serverError().build();
+            }
+            results.put(f, result);
+        }
+        return results;
+    }
+
+    // Import the given file as a new tradition
+    private Response loadFile(File file) throws IOException {
+        String name = file.getName().substring(0, file.getName().lastIndexOf('.'));
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            Response result = new Root().importGraphMl(name, owner, String.valueOf(isPublic), null, "LR",
+                    null, FILETYPES.get(extension(file)), in, null, batch, null);
+            if (result.getStatus() == Response.Status.CREATED.getStatusCode())
+                System.out.println(String.format("Loaded %s as tradition %s", file.getName(),
+                        new JSONObject(result.getEntity().toString()).getString("tradId")));
+            else
+                System.err.println(String.format("Could not load %s: %s", file.getName(), result.getEntity()));
+            return result;
+        }
+    }
+
+    private static String extension(File f) {
+        String name = f.getName();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1).toLowerCase();
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> positional = new ArrayList<>();
+        String batch = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean isPublic = false;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--batch":
+                        batch = args[++i];
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--public":
+                        isPublic = true;
+                        break;
+                    default:
+                        positional.add(args[i]);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            positional.clear();
+        }
+        if (positional.size() != 3) {
+            System.err.println("Usage: BulkLoader <data directory> <input directory> <owner ID> "
+                    + "[--batch N] [--threads N] [--public]");
+            System.exit(2);
+        }
+
+        String dataDir = positional.get(0);
+        if (new File(dataDir, "data/databases/graph.db").exists()) {
+            System.err.println("There is already a database in " + dataDir);
+            System.exit(2);
+        }
+
+        // Set up the database as the server would, so that it can be served as it is
+        GraphDatabaseService db = new GraphDatabaseServiceProvider(dataDir).getDatabase();
+        int failed = 0;
+        try {
+            DatabaseService.createRootNode(db);
+            SchemaService.migrate(db);
+            LinkedHashMap<File, Response> results = new BulkLoader(positional.get(2), batch, threads, isPublic)
+                    .load(new File(positional.get(1)));
+            for (Response r : results.values())
+                if (r.getStatus() != Response.Status.CREATED.getStatusCode()) failed++;
+            System.out.println(String.format("Loaded %d of %d files", results.size() - failed, results.size()));
+        } finally {
+            db.shutdown();
+        }
+        System.exit(failed > 0 ? 1 : 0);
+    }
+}
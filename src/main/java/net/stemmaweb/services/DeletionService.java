@@ -0,0 +1,330 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.rest.Nodes;
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.traversal.Traverser;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Removes deleted traditions and sections from the database in the background. A tradition or
+ * section that is deleted is first unlinked from its owner or tradition and labelled DELETED,
+ * all in one short transaction, so that it disappears from the API straight away, and any
+ * annotations that point into it are detached in the same transaction; its contents
+ * are then removed here, a bounded number of nodes and relationships per transaction, so that
+ * a large tradition neither fills the heap nor locks out other writers for long. The DELETED
+ * node itself goes last, so that a deletion which is cut short by a shutdown can be taken up
+ * again with {@link #resume(GraphDatabaseService)} when the application next starts.
+ * <p>
+ * Deletions are carried out one at a time, and can be followed by their job ID in the same way
+ * as background imports. The number of entities per transaction can be set with the environment
+ * variable STEMMAREST_DELETE_BATCH.
+ *
+ * @author tla
+ */
+public class DeletionService {
+
+    /** The property that records which tradition a deleted section belonged to */
+    public static final String DELETED_FROM = "deleted_from";
+
+    private static final String BATCH_ENV = "STEMMAREST_DELETE_BATCH";
+    private static final int DEFAULT_BATCH = 10000;
+    private static final long RETENTION_MILLIS = 60 * 60 * 1000;
+
+    private static DeletionService instance;
+
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "stemmarest-delete");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ConcurrentHashMap<String, Job> jobs = new ConcurrentHashMap<>();
+
+    /**
+     * @return the deletion service for the application, set up on first use
+     */
+    public static synchronized DeletionService getInstance() {
+        if (instance == null)
+            instance = new DeletionService();
+        return instance;
+    }
+
+    /**
+     * Stop the deletion service. A deletion that is under way stops after its current batch,
+     * and is taken up again by {@link #resume(GraphDatabaseService)} on the next start.
+     */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.worker.shutdownNow();
+            instance = null;
+        }
+    }
+
+    /**
+     * Queue the removal of a tradition or section that has been marked as DELETED.
+     *
+     * @param tombstone - the DELETED tradition or section node
+     * @return the new job
+     */
+    public Job submit(Node tombstone) {
+        prune();
+        Job job = new Job(tombstone);
+        jobs.put(job.id, job);
+        worker.execute(job::run);
+        return job;
+    }
+
+    /**
+     * Queue the removal of every tradition or section that was marked as DELETED, but not yet
+     * removed, when the application last stopped.
+     *
+     * @param db - the GraphDatabaseService to look in
+     * @return the jobs that were queued
+     */
+    public List<Job> resume(GraphDatabaseService db) {
+        List<Node> tombstones = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            db.findNodes(Nodes.DELETED).forEachRemaining(tombstones::add);
+            tx.success();
+        }
+        List<Job> queued = new ArrayList<>();
+        for (Node n : tombstones)
+            queued.add(submit(n));
+        return queued;
+    }
+
+    /**
+     * @param jobId - the ID of a job
+     * @return the job, or null if there is no such job or it finished too long ago
+     */
+    public Job getJob(String jobId) {
+        prune();
+        return jobs.get(jobId);
+    }
+
+    // Forget the jobs that finished more than the retention time ago
+    private void prune() {
+        long cutoff = System.currentTimeMillis() - RETENTION_MILLIS;
+        jobs.values().removeIf(j -> j.finished > 0 && j.finished < cutoff);
+    }
+
+    /**
+     * Cut the links from a tradition's annotations to the tradition or section that is being
+     * deleted, so that no annotation goes on pointing into it while its contents are removed.
+     * NOTE: for use in the transaction that marks the tradition or section as DELETED.
+     *
+     * @param traditionNode - the tradition whose annotations should be detached
+     * @param sectionNode   - the section being deleted, or null if it is the whole tradition
+     */
+    public static void detachAnnotations(Node traditionNode, Node sectionNode) {
+        Long sectionId = sectionNode == null ? null : sectionNode.getId();
+        for (Node a : DatabaseService.getRelated(traditionNode, ERelations.HAS_ANNOTATION))
+            for (Relationship r : a.getRelationships(Direction.OUTGOING)) {
+                Node target = r.getEndNode();
+                if (sectionId == null || target.getId() == sectionId
+                        || sectionId.equals(target.getProperty("section_id", null)))
+                    r.delete();
+            }
+    }
+
+    /**
+     * Remove the contents of a DELETED tradition or section, and then the node itself,
+     * in the calling thread.
+     *
+     * @param tombstone - the DELETED tradition or section node
+     * @return the number of nodes and relationships that were removed
+     */
+    public static long purge(Node tombstone) {
+        AtomicLong deleted = new AtomicLong();
+        purge(tombstone, batchSize(), deleted);
+        return deleted.get();
+    }
+
+    private static void purge(Node tombstone, int batch, AtomicLong deleted) {
+        GraphDatabaseService db = tombstone.getGraphDatabase();
+        boolean isSection;
+        List<Node> sections;
+        try (Transaction tx = db.beginTx()) {
+            isSection = tombstone.hasLabel(Nodes.SECTION);
+            sections = isSection ? Collections.singletonList(tombstone)
+                    : DatabaseService.getRelated(tombstone, ERelations.PART);
+            tx.success();
+        }
+
+        // The readings make up nearly all of a tradition, and can be found through the index
+        // without walking the graph
+        for (Node s : sections) {
+            purgeReadings(s, batch, deleted);
+            if (s.getId() != tombstone.getId())
+                purgeRest(s, VariantGraphService::returnTraditionSection, batch, deleted);
+        }
+        // What remains is the section node with whatever hangs off it, or the tradition node
+        // with its witnesses, stemmata, annotations and so on
+        purgeRest(tombstone, isSection ? VariantGraphService::returnTraditionSection
+                : VariantGraphService::returnEntireTradition, batch, deleted);
+    }
+
+    // Delete the readings of the given section, including its emendations, a batch at a time
+    private static void purgeReadings(Node section, int batch, AtomicLong deleted) {
+        GraphDatabaseService db = section.getGraphDatabase();
+        long sectionId = section.getId();
+        while (true) {
+            checkInterrupted();
+            int count = 0;
+            try (Transaction tx = db.beginTx()) {
+                List<Node> readings = new ArrayList<>();
+                try (ResourceIterator<Node> found = db.findNodes(Nodes.READING, "section_id", sectionId)) {
+                    while (found.hasNext() && readings.size() < batch)
+                        readings.add(found.next());
+                }
+                for (Node r : readings) {
+                    for (Relationship rel : r.getRelationships()) {
+                        rel.delete();
+                        count++;
+                    }
+                    r.delete();
+                    count++;
+                    if (count >= batch) break;
+                }
+                tx.success();
+            }
+            deleted.addAndGet(count);
+            if (count == 0) break;
+        }
+        RankIndex.invalidate(db, sectionId);
+    }
+
+    // Delete whatever the crawler finds from the given node, which is deleted last of all, a
+    // batch at a time. Each transaction crawls afresh and deletes only nodes that lead nowhere,
+    // so that what is not yet deleted can still be reached from the start node if we are
+    // interrupted; if there are none, we have come to a cycle, and the last node found in it goes.
+    private static void purgeRest(Node start, Function<Node, Traverser> crawler, int batch,
+                                  AtomicLong deleted) {
+        GraphDatabaseService db = start.getGraphDatabase();
+        while (true) {
+            checkInterrupted();
+            int count = 0;
+            boolean finished;
+            try (Transaction tx = db.beginTx()) {
+                Set<Node> doomed = new LinkedHashSet<>();
+                Node lastFound = null;
+                for (Node n : crawler.apply(start).nodes()) {
+                    if (n.equals(start)) continue;
+                    lastFound = n;
+                    if (!n.hasRelationship(Direction.OUTGOING)) {
+                        doomed.add(n);
+                        if (doomed.size() >= batch) break;
+                    }
+                }
+                finished = lastFound == null;
+                if (finished) doomed.add(start);
+                else if (doomed.isEmpty()) doomed.add(lastFound);
+                for (Node n : doomed) {
+                    for (Relationship rel : n.getRelationships()) {
+                        rel.delete();
+                        count++;
+                    }
+                    n.delete();
+                    count++;
+                }
+                tx.success();
+            }
+            deleted.addAndGet(count);
+            if (finished) break;
+        }
+    }
+
+    private static void checkInterrupted() {
+        if (Thread.currentThread().isInterrupted())
+            throw new CancellationException("Deletion interrupted; it will resume on restart");
+    }
+
+    /**
+     * The removal of a deleted tradition or section.
+     */
+    public class Job {
+        private final String id = UUID.randomUUID().toString();
+        private final Node tombstone;
+        private final String traditionId;
+        private final Long sectionId;
+        private final AtomicLong deleted = new AtomicLong();
+        private volatile String status = ImportJobService.QUEUED;
+        private volatile String error;
+        private volatile long finished = 0;
+
+        private Job(Node tombstone) {
+            this.tombstone = tombstone;
+            try (Transaction tx = tombstone.getGraphDatabase().beginTx()) {
+                if (tombstone.hasLabel(Nodes.SECTION)) {
+                    traditionId = (String) tombstone.getProperty(DELETED_FROM, null);
+                    sectionId = tombstone.getId();
+                } else {
+                    traditionId = (String) tombstone.getProperty("id", null);
+                    sectionId = null;
+                }
+                tx.success();
+            }
+        }
+
+        private void run() {
+            status = ImportJobService.RUNNING;
+            try {
+                purge(tombstone, batchSize(), deleted);
+                status = ImportJobService.SUCCEEDED;
+            } catch (Exception e) {
+                if (!(e instanceof CancellationException))
+                    e.printStackTrace();
+                error = e.getMessage();
+                status = ImportJobService.FAILED;
+            } finally {
+                finished = System.currentTimeMillis();
+            }
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * @return one of QUEUED, RUNNING, SUCCEEDED or FAILED, as for an import
+         */
+        public String getStatus() {
+            return status;
+        }
+
+        /**
+         * @return what the job is doing: waiting for the worker, deleting, or done
+         */
+        public String getPhase() {
+            if (finished > 0) return "finished";
+            return status.equals(ImportJobService.QUEUED) ? "waiting" : "deleting";
+        }
+
+        /**
+         * @return how many nodes and relationships the job has removed so far
+         */
+        public long getDeleted() {
+            return deleted.get();
+        }
+
+        public String getTraditionId() {
+            return traditionId;
+        }
+
+        public Long getSectionId() {
+            return sectionId;
+        }
+
+        public String getError() {
+            return error;
+        }
+    }
+
+    private static int batchSize() {
+        return Settings.getInt(BATCH_ENV, DEFAULT_BATCH, 1);
+    }
+}
@@ -57,6 +57,10 @@ public class GraphDatabaseServiceProvider {
         api.getDependencyResolver()
                 .resolveDependency(Procedures.class, DependencyResolver.SelectionStrategy.ONLY)
                 .registerProcedure(UnionFindProc.class, true);
+        // Keep the per-section rank indices in step with the data
+        db.registerTransactionEventHandler(RankIndex.invalidator());
+        // ...and the per-tradition relation type registries likewise
+        db.registerTransactionEventHandler(RelationTypeRegistry.invalidator());
     }
 
 }
@@ -0,0 +1,389 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.rest.Nodes;
+import net.stemmaweb.rest.Section;
+import net.stemmaweb.rest.Tradition;
+import org.json.JSONObject;
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import javax.ws.rs.core.Response;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Carries an import through a series of transactions of bounded size, rather than a single
+ * transaction that holds the whole of the new tradition in memory until it is committed.
+ * The parsers open a {@link Scope} where they would open a transaction, and tell it at safe
+ * points how much they have created since; once the batch is full, the work so far is committed
+ * and a new transaction begun. The IDs of everything that the import commits are noted, so that
+ * a failed import can be removed again with {@link #abandon()}. A new tradition or the
+ * sections being built carry an "importing" flag until {@link #finish()}, so that readers
+ * do not see them half-built in the meantime.
+ * <p>
+ * With a batch size of zero the import runs in a single transaction, as it always has, though
+ * the tradition or section that it goes into is still flagged until it is done. An import that
+ * commits parts of its work separately, e.g. on several threads at once, can ask for its commits
+ * to be recorded anyway with {@link #track()}, and let other threads take part with
+ * {@link #enlist()}.
+ * The default size can be set with the environment variable STEMMAREST_IMPORT_BATCH.
+ *
+ * @author tla
+ */
+public class ImportBatch {
+
+    /** The property that marks a tradition or section as still being imported */
+    public static final String IMPORTING = "importing";
+
+    private static final String SIZE_ENV = "STEMMAREST_IMPORT_BATCH";
+    // How much to delete at a time when abandoning an import that had no batch size
+    private static final int DELETE_CHUNK = 10000;
+
+    private final GraphDatabaseService db;
+    private final int size;
+    // The threads that work on the import, starting with the one that began it
+    private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+    private Tracker tracker;
+    // Roughly how much the import has created so far, for progress reports
+    private final AtomicLong created = new AtomicLong();
+    private volatile boolean abandoned = false;
+    // What our commits have created, and what of that they have since deleted again
+    private final IdList createdNodes = new IdList();
+    private final IdList createdRelationships = new IdList();
+    private final Set<Long> deletedNodes = new HashSet<>();
+    private final Set<Long> deletedRelationships = new HashSet<>();
+    // The nodes we have flagged as importing
+    private final List<Node> marked = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Start an import into the given database. The caller should flag whatever the import
+     * is creating, whether a new tradition or a new section, with {@link #markImporting(Node)}.
+     *
+     * @param db   - the database that receives the data
+     * @param size - the number of entities to create per transaction, or 0 to use
+     *               a single transaction
+     */
+    public ImportBatch(GraphDatabaseService db, int size) {
+        this.db = db;
+        this.size = Math.max(0, size);
+        threads.add(Thread.currentThread());
+        if (isBatched())
+            track();
+    }
+
+    /**
+     * @return the batch size that applies when an upload doesn't ask for one
+     */
+    public static int defaultSize() {
+        return Settings.getInt(SIZE_ENV, 0, 0);
+    }
+
+    /**
+     * Say whether the given tradition or section is still being imported.
+     * NOTE: for use in a transaction!
+     *
+     * @param node - a tradition or section node
+     * @return true if the node is flagged as being in the middle of an import
+     */
+    public static boolean isImporting(Node node) {
+        return node.hasProperty(IMPORTING);
+    }
+
+    /**
+     * Delete the traditions and sections that were still being imported when the application
+     * last stopped, since those imports can never now be finished. They are removed in the
+     * background by the {@link DeletionService}, just as if they had been deleted by their owner;
+     * a section goes along with its tradition if both were being imported.
+     * NOTE: to be called after {@link DeletionService#resume(GraphDatabaseService)}, so that
+     * neither queues the same removal twice.
+     *
+     * @param db - the GraphDatabaseService to look in
+     * @return the deletion jobs that were queued
+     */
+    public static List<DeletionService.Job> discardUnfinished(GraphDatabaseService db) {
+        List<String> traditions = new ArrayList<>();
+        List<String[]> sections = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            db.findNodes(Nodes.TRADITION, IMPORTING, true)
+                    .forEachRemaining(t -> traditions.add(t.getProperty("id").toString()));
+            db.findNodes(Nodes.SECTION, IMPORTING, true).forEachRemaining(s -> {
+                Relationship part = s.getSingleRelationship(ERelations.PART, Direction.INCOMING);
+                if (s.hasLabel(Nodes.DELETED) || part == null || isImporting(part.getStartNode())) return;
+                sections.add(new String[]{part.getStartNode().getProperty("id").toString(),
+                        String.valueOf(s.getId())});
+            });
+            tx.success();
+        }
+
+        List<Response> responses = new ArrayList<>();
+        for (String tradId : traditions)
+            responses.add(new Tradition(tradId).deleteTraditionById());
+        for (String[] s : sections)
+            responses.add(new Section(s[0], s[1]).deleteSection());
+        List<DeletionService.Job> queued = new ArrayList<>();
+        for (Response r : responses) {
+            if (r.getStatus() != Response.Status.OK.getStatusCode()) {
+                System.err.println("Could not discard an unfinished import: " + r.getEntity());
+                continue;
+            }
+            String jobId = new JSONObject(r.getEntity().toString()).getString("jobId");
+            queued.add(DeletionService.getInstance().getJob(jobId));
+        }
+        return queued;
+    }
+
+    /**
+     * @return true if the import is committed in batches, rather than all at once
+     */
+    public boolean isBatched() {
+        return size > 0;
+    }
+
+    /**
+     * @return roughly how many nodes and relationships the import has created so far
+     */
+    public long getCreated() {
+        return created.get();
+    }
+
+    /**
+     * Record what the import commits from now on, so that it can be abandoned, even if it
+     * does not commit in batches.
+     */
+    public synchronized void track() {
+        if (tracker != null) return;
+        tracker = new Tracker();
+        db.registerTransactionEventHandler(tracker);
+    }
+
+    /**
+     * @return true if the import's commits are being recorded, i.e. if it may have committed
+     * something before it is finished
+     */
+    public synchronized boolean isTracking() {
+        return tracker != null;
+    }
+
+    /**
+     * Let the calling thread work on the import alongside the thread that began it, so that
+     * whatever it commits is recorded too. The thread should {@link #release()} the import
+     * once its part is done.
+     */
+    public void enlist() {
+        threads.add(Thread.currentThread());
+    }
+
+    /**
+     * Stop recording the commits of the calling thread, which has finished its part in the import.
+     */
+    public void release() {
+        threads.remove(Thread.currentThread());
+    }
+
+    /**
+     * @return true once the import has failed and its remains are being removed
+     */
+    public boolean isAbandoned() {
+        return abandoned;
+    }
+
+    /**
+     * Flag the given tradition or section as being under construction until the import
+     * is finished.
+     *
+     * @param node - the node to flag
+     */
+    public void markImporting(Node node) {
+        synchronized (marked) {
+            if (marked.contains(node)) return;
+            marked.add(node);
+        }
+        try (Transaction tx = db.beginTx()) {
+            node.setProperty(IMPORTING, true);
+            tx.success();
+        }
+    }
+
+    /**
+     * Begin the work of the import. The scope should be opened at the top level, i.e. not
+     * inside another transaction, or else its batches cannot be committed.
+     *
+     * @return the scope, which takes the place of a transaction
+     */
+    public Scope begin() {
+        return new Scope();
+    }
+
+    /**
+     * Declare the import complete, and take the importing flags off whatever was flagged.
+     */
+    public void finish() {
+        stopTracking();
+        try (Transaction tx = db.beginTx()) {
+            unmark();
+            tx.success();
+        }
+    }
+
+    /**
+     * Remove everything that the import has committed so far, in batches of the same size
+     * that it was made in, and take the importing flags off whatever remains.
+     */
+    public void abandon() {
+        abandoned = true;
+        stopTracking();
+        int chunk = isBatched() ? size : DELETE_CHUNK;
+        Transaction tx = db.beginTx();
+        try {
+            int count = 0;
+            // Nothing is recorded for an untracked import, whose single transaction has already been
+            // rolled back. Otherwise delete the relationships first, so that the nodes are free to go
+            for (int i = 0; i < createdRelationships.size(); i++) {
+                long id = createdRelationships.get(i);
+                if (deletedRelationships.contains(id)) continue;
+                try {
+                    db.getRelationshipById(id).delete();
+                } catch (NotFoundException ignored) {
+                }
+                if (++count % chunk == 0) tx = commit(tx);
+            }
+            for (int i = 0; i < createdNodes.size(); i++) {
+                long id = createdNodes.get(i);
+                if (deletedNodes.contains(id)) continue;
+                try {
+                    Node n = db.getNodeById(id);
+                    n.getRelationships().forEach(Relationship::delete);
+                    n.delete();
+                } catch (NotFoundException ignored) {
+                }
+                if (++count % chunk == 0) tx = commit(tx);
+            }
+            unmark();
+            tx.success();
+        } finally {
+            tx.close();
+        }
+    }
+
+    private Transaction commit(Transaction tx) {
+        tx.success();
+        tx.close();
+        return db.beginTx();
+    }
+
+    private void unmark() {
+        synchronized (marked) {
+            for (Node n : marked) {
+                try {
+                    n.removeProperty(IMPORTING);
+                } catch (NotFoundException ignored) {
+                    // It was removed along with the import
+                }
+            }
+            marked.clear();
+        }
+    }
+
+    private synchronized void stopTracking() {
+        if (tracker != null) db.unregisterTransactionEventHandler(tracker);
+        tracker = null;
+    }
+
+    /**
+     * Stands in for the transaction of an import, and commits it in batches.
+     */
+    public class Scope implements AutoCloseable {
+        private Transaction tx = db.beginTx();
+        private int pending = 0;
+
+        /**
+         * Note that one more entity has been created.
+         */
+        public void checkpoint() {
+            checkpoint(1);
+        }
+
+        /**
+         * Note that the given number of entities have been created since the last checkpoint,
+         * and commit the work so far if that fills the batch. The caller must not be inside
+         * a nested transaction of its own when it calls this.
+         *
+         * @param entities - roughly how many nodes and relationships were created
+         */
+        public void checkpoint(int entities) {
+            created.addAndGet(entities);
+            if (!isBatched()) return;
+            pending += entities;
+            if (pending < size) return;
+            Transaction done = tx;
+            tx = null;
+            done.success();
+            done.close();
+            tx = db.beginTx();
+            pending = 0;
+        }
+
+        /**
+         * Mark the current transaction as successful, as with {@link Transaction#success()}.
+         */
+        public void success() {
+            tx.success();
+        }
+
+        /**
+         * Commit or roll back the current transaction. Whatever was committed at earlier
+         * checkpoints stays committed, until the import is abandoned.
+         */
+        @Override
+        public void close() {
+            if (tx != null) tx.close();
+            tx = null;
+        }
+    }
+
+    // Notes the entities that the importing thread commits.
+    private class Tracker implements TransactionEventHandler<Void> {
+
+        @Override
+        public Void beforeCommit(TransactionData data) {
+            return null;
+        }
+
+        @Override
+        public void afterCommit(TransactionData data, Void state) {
+            if (!threads.contains(Thread.currentThread())) return;
+            synchronized (ImportBatch.this) {
+                data.createdNodes().forEach(n -> createdNodes.add(n.getId()));
+                data.createdRelationships().forEach(r -> createdRelationships.add(r.getId()));
+                data.deletedNodes().forEach(n -> deletedNodes.add(n.getId()));
+                data.deletedRelationships().forEach(r -> deletedRelationships.add(r.getId()));
+            }
+        }
+
+        @Override
+        public void afterRollback(TransactionData data, Void state) {
+        }
+    }
+
+    // A growable list of IDs, which for a large import takes much less room than a list of Longs.
+    private static class IdList {
+        private long[] ids = new long[1024];
+        private int size = 0;
+
+        void add(long id) {
+            if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            ids[size++] = id;
+        }
+
+        long get(int i) {
+            return ids[i];
+        }
+
+        int size() {
+            return size;
+        }
+    }
+}
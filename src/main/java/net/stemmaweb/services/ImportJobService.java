@@ -0,0 +1,253 @@
+package net.stemmaweb.services;
+
+import org.apache.commons.io.input.CountingInputStream;
+import org.json.JSONObject;
+
+import javax.ws.rs.core.Response;
+import java.io.*;
+import java.nio.file.Files;
+import java.util.UUID;
+import java.util.concurrent.*;
+
+/**
+ * Runs uploads in the background, so that a large import need not hold its request open until
+ * it is done. Each upload is first stored in a file under STEMMAREST_HOME, and then parsed by
+ * one of a fixed number of worker threads; the number of uploads that may wait for a worker is
+ * fixed as well. A job can be looked up by its ID while it runs, and for an hour after it finishes.
+ *
+ * The number of workers and the length of the queue can be set with the environment variables
+ * STEMMAREST_IMPORT_THREADS and STEMMAREST_IMPORT_QUEUE.
+ *
+ * @author tla
+ */
+public class ImportJobService {
+
+    private static final String HOME_ENV = "STEMMAREST_HOME";
+    private static final String THREADS_ENV = "STEMMAREST_IMPORT_THREADS";
+    private static final String QUEUE_ENV = "STEMMAREST_IMPORT_QUEUE";
+    private static final int DEFAULT_THREADS = 2;
+    private static final int DEFAULT_QUEUE = 20;
+    private static final long RETENTION_MILLIS = 60 * 60 * 1000;
+
+    public static final String QUEUED = "queued";
+    public static final String RUNNING = "running";
+    public static final String SUCCEEDED = "succeeded";
+    public static final String FAILED = "failed";
+
+    private static ImportJobService instance;
+
+    private final File uploadDir;
+    private final ThreadPoolExecutor workers;
+    private final ConcurrentHashMap<String, Job> jobs = new ConcurrentHashMap<>();
+
+    /**
+     * The work that an import job does with its upload, once a worker is free.
+     */
+    @FunctionalInterface
+    public interface Task {
+        /**
+         * @param data  - the stored upload
+         * @param batch - the batch that the import should be carried out in
+         * @return the response that the import would have given to a synchronous request
+         */
+        Response run(InputStream data, ImportBatch batch);
+    }
+
+    ImportJobService(File uploadDir, int threads, int queueLength) {
+        this.uploadDir = uploadDir;
+        this.workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueLength), r -> {
+            Thread t = new Thread(r, "stemmarest-import");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @return the import service for the application, set up on first use
+     */
+    public static synchronized ImportJobService getInstance() {
+        if (instance == null)
+            instance = new ImportJobService(findUploadDir(),
+                    Settings.getInt(THREADS_ENV, DEFAULT_THREADS, 1), Settings.getInt(QUEUE_ENV, DEFAULT_QUEUE, 1));
+        return instance;
+    }
+
+    /**
+     * Stop the import service. Imports that are under way are interrupted, and those that are
+     * still waiting are dropped along with their uploads. Whatever an interrupted import had
+     * already committed stays flagged as importing, and is removed by
+     * {@link ImportBatch#discardUnfinished} when the application next starts.
+     */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.workers.shutdownNow();
+            for (Job job : instance.jobs.values())
+                if (job.status.equals(QUEUED))
+                    job.upload.delete();
+            instance = null;
+        }
+    }
+
+    /**
+     * Store the given upload and queue it for import.
+     *
+     * @param upload      - the uploaded data
+     * @param batchSize   - the batch size for the import; see {@link ImportBatch}
+     * @param traditionId - the tradition that the data is going into
+     * @param task        - what to do with the data
+     * @return the new job
+     * @throws IOException if the upload could not be stored
+     * @throws RejectedExecutionException if too many imports are already waiting
+     */
+    public Job submit(InputStream upload, int batchSize, String traditionId, Task task) throws IOException {
+        prune();
+        Job job = new Job(batchSize, traditionId, task);
+        try {
+            Files.copy(upload, job.upload.toPath());
+            job.bytesTotal = job.upload.length();
+            jobs.put(job.id, job);
+            workers.execute(job::run);
+        } catch (IOException | RejectedExecutionException e) {
+            jobs.remove(job.id);
+            job.upload.delete();
+            throw e;
+        }
+        return job;
+    }
+
+    /**
+     * @param jobId - the ID of a job
+     * @return the job, or null if there is no such job or it finished too long ago
+     */
+    public Job getJob(String jobId) {
+        prune();
+        return jobs.get(jobId);
+    }
+
+    // Forget the jobs that finished more than the retention time ago
+    private void prune() {
+        long cutoff = System.currentTimeMillis() - RETENTION_MILLIS;
+        jobs.values().removeIf(j -> j.finished > 0 && j.finished < cutoff);
+    }
+
+    /**
+     * An upload and its import, from the time it is queued until the time it is done.
+     */
+    public class Job {
+        private final String id = UUID.randomUUID().toString();
+        private final File upload = new File(uploadDir, id + ".upload");
+        private final int batchSize;
+        private final Task task;
+        private volatile String status = QUEUED;
+        private volatile String traditionId;
+        private volatile Long sectionId;
+        private volatile String error;
+        private volatile long bytesTotal;
+        private volatile CountingInputStream input;
+        private volatile ImportBatch batch;
+        private volatile long finished = 0;
+
+        private Job(int batchSize, String traditionId, Task task) {
+            this.batchSize = batchSize;
+            this.traditionId = traditionId;
+            this.task = task;
+        }
+
+        private void run() {
+            status = RUNNING;
+            try (CountingInputStream in = new CountingInputStream(
+                    new BufferedInputStream(new FileInputStream(upload)))) {
+                input = in;
+                // The batch belongs to the thread that does the import
+                batch = new ImportBatch(new GraphDatabaseServiceProvider().getDatabase(), batchSize);
+                record(task.run(in, batch));
+            } catch (Exception e) {
+                e.printStackTrace();
+                error = e.getMessage();
+                status = FAILED;
+            } finally {
+                upload.delete();
+                finished = System.currentTimeMillis();
+            }
+        }
+
+        // Pick the outcome out of the response that the import gave
+        private void record(Response result) {
+            Object entity = result.getEntity();
+            JSONObject values = entity == null ? new JSONObject() : new JSONObject(entity.toString());
+            if (result.getStatus() == Response.Status.CREATED.getStatusCode()) {
+                if (values.has("tradId")) traditionId = values.getString("tradId");
+                if (values.has("sectionId")) sectionId = values.getLong("sectionId");
+                status = SUCCEEDED;
+            } else {
+                error = values.has("error") ? values.getString("error")
+                        : "Import failed with status " + result.getStatus();
+                status = FAILED;
+            }
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * @return one of QUEUED, RUNNING, SUCCEEDED or FAILED
+         */
+        public String getStatus() {
+            return status;
+        }
+
+        /**
+         * @return what the job is doing: waiting for a worker, parsing the upload, removing
+         * the remains of a failed import, or done
+         */
+        public String getPhase() {
+            if (finished > 0) return "finished";
+            ImportBatch b = batch;
+            if (b == null) return "waiting";
+            return b.isAbandoned() ? "cleaning up" : "parsing";
+        }
+
+        public long getBytesRead() {
+            CountingInputStream in = input;
+            return in == null ? 0 : in.getByteCount();
+        }
+
+        public long getBytesTotal() {
+            return bytesTotal;
+        }
+
+        /**
+         * @return roughly how many nodes and relationships the import has created so far
+         */
+        public long getCreated() {
+            ImportBatch b = batch;
+            return b == null ? 0 : b.getCreated();
+        }
+
+        public String getTraditionId() {
+            return traditionId;
+        }
+
+        public Long getSectionId() {
+            return sectionId;
+        }
+
+        public String getError() {
+            return error;
+        }
+    }
+
+    private static File findUploadDir() {
+        String home = System.getenv(HOME_ENV);
+        File dir = new File(home == null ? "/var/lib/stemmarest" : home, "uploads");
+        if (dir.isDirectory() || dir.mkdirs())
+            return dir;
+        // We may be somewhere, such as a test run, with no data directory of our own
+        dir = new File(System.getProperty("java.io.tmpdir"), "stemmarest-uploads");
+        if (!dir.isDirectory() && !dir.mkdirs())
+            System.err.println("Could not create upload directory " + dir);
+        return dir;
+    }
+}
@@ -0,0 +1,353 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.model.RelationTypeModel;
+import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.rest.Nodes;
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.traversal.BranchState;
+import org.neo4j.graphdb.traversal.Uniqueness;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * An in-memory, read-only normalized view of a section. Readings that are related closely enough
+ * are clustered and represented by a single reading, and the witness sequences are mapped onto the
+ * representatives. Nothing is written to the database; the normalized sequence links are
+ * provided as virtual NSEQUENCE relationships that can be walked with the ordinary traversal
+ * framework via {@link #sequenceExpander()}.
+ *
+ * @author tla
+ */
+public class NormalizedSection {
+
+    private final GraphDatabaseService db;
+    private final Node sectionNode;
+    private final Node startNode;
+    private final HashMap<Node, Node> representatives = new HashMap<>();
+    private final Map<Node, List<Node>> represented = new HashMap<>();
+    private final Map<Node, Map<Node, SequenceLink>> outgoing = new LinkedHashMap<>();
+    private final Map<Node, Map<Node, SequenceLink>> incoming = new LinkedHashMap<>();
+    private final Map<Node, Boolean> common = new HashMap<>();
+    // The normalized links are given IDs of their own, counting down from -1, so that they
+    // can never be mistaken for a relationship in the database
+    private long nextLinkId = -1;
+
+    /**
+     * Make a normalized view of the given section according to the given relation type.
+     *
+     * @param sectionNode     The section to be normalized
+     * @param normalizeType   The (string) name of the type on which we are normalizing
+     * @throws Exception      if clusters cannot be got, or if the requested relation type doesn't exist
+     */
+    public NormalizedSection(Node sectionNode, String normalizeType) throws Exception {
+        this.sectionNode = sectionNode;
+        this.db = sectionNode.getGraphDatabase();
+        // Make sure the relation type exists
+        Node tradition = VariantGraphService.getTraditionNode(sectionNode);
+        Node relType = new RelationTypeModel(normalizeType).lookup(tradition);
+        if (relType == null)
+            throw new Exception("Relation type " + normalizeType + " does not exist in this tradition");
+
+        try (Transaction tx = db.beginTx()) {
+            startNode = sectionNode.getSingleRelationship(ERelations.COLLATION, Direction.OUTGOING).getEndNode();
+            // Get the list of all readings in this section
+            Set<Node> sectionNodes = VariantGraphService.returnTraditionSection(sectionNode).nodes().stream()
+                    .filter(x -> x.hasLabel(Nodes.READING)).collect(Collectors.toSet());
+
+            // Find the normalisation clusters and nominate a representative for each
+            String tradId = tradition.getProperty("id").toString();
+            String sectionId = String.valueOf(sectionNode.getId());
+            for (Set<Node> cluster : RelationService.getCloselyRelatedClusters(
+                    tradId, sectionId, db, normalizeType)) {
+                if (cluster.size() == 0) continue;
+                Node representative = RelationService.findRepresentative(cluster);
+                if (representative == null)
+                    throw new Exception("No representative found for cluster");
+                // Set the representative for all cluster members.
+                for (Node n : cluster) {
+                    representatives.put(n, representative);
+                    if (!n.equals(representative))
+                        represented.computeIfAbsent(representative, k -> new ArrayList<>()).add(n);
+                    if (!sectionNodes.remove(n))
+                        throw new Exception("Tried to make equivalence for node (" + n.getId()
+                                + ": " + n.getAllProperties().toString()
+                                + ") that was not in sectionNodes");
+                }
+            }
+
+            // All remaining un-clustered readings are represented by themselves
+            sectionNodes.forEach(x -> representatives.put(x, x));
+
+            // Make sure we didn't have any accidental recursion in representation
+            for (Node n : representatives.values()) {
+                if (!representatives.get(n).equals(n))
+                    throw new Exception("Recursive representation was created on node " + n.getId() + ": " + n.getAllProperties().toString());
+            }
+
+            // Now that we have done this, make the shadow sequence
+            for (Relationship r : db.traversalDescription().breadthFirst()
+                    .relationships(ERelations.SEQUENCE, Direction.OUTGOING)
+                    .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL).traverse(startNode).relationships()) {
+                Node repstart = representatives.getOrDefault(r.getStartNode(), r.getStartNode());
+                Node repend = representatives.getOrDefault(r.getEndNode(), r.getEndNode());
+                transferWitnesses(repstart, repend, r);
+            }
+            tx.success();
+        }
+        // and calculate the common readings.
+        VariantGraphService.calculateCommon(this);
+    }
+
+    /*
+     * Accessors for the normalized view
+     */
+
+    public Node getSectionNode() {
+        return sectionNode;
+    }
+
+    public Node getStartNode() {
+        return startNode;
+    }
+
+    /**
+     * @return a map of each reading in the section to its representative
+     */
+    public HashMap<Node, Node> getRepresentatives() {
+        return representatives;
+    }
+
+    /**
+     * @param n - a reading in this section
+     * @return the reading that represents it, which may be itself
+     */
+    public Node getRepresentative(Node n) {
+        return representatives.getOrDefault(n, n);
+    }
+
+    /**
+     * @param n - a representative reading
+     * @return the other readings that it represents, if any
+     */
+    public List<Node> getRepresented(Node n) {
+        return represented.getOrDefault(n, Collections.emptyList());
+    }
+
+    /**
+     * Return the normalized sequence links on the given node in the given direction.
+     *
+     * @param n   - the node whose links we want
+     * @param dir - the direction of the links
+     * @return the (virtual) relationships
+     */
+    public List<Relationship> getSequences(Node n, Direction dir) {
+        List<Relationship> result = new ArrayList<>();
+        if (dir != Direction.INCOMING)
+            result.addAll(outgoing.getOrDefault(n, Collections.emptyMap()).values());
+        if (dir != Direction.OUTGOING)
+            result.addAll(incoming.getOrDefault(n, Collections.emptyMap()).values());
+        return result;
+    }
+
+    /**
+     * @return all normalized sequence links in the section
+     */
+    public List<Relationship> getAllSequences() {
+        List<Relationship> result = new ArrayList<>();
+        outgoing.values().forEach(x -> result.addAll(x.values()));
+        return result;
+    }
+
+    /**
+     * @param n - a reading in this section
+     * @return whether the reading is common in the normalized view, or null if that has not been calculated
+     */
+    public Boolean isCommon(Node n) {
+        return common.get(n);
+    }
+
+    void setCommon(Node n, Boolean isCommon) {
+        common.put(n, isCommon);
+    }
+
+    /**
+     * @return a PathExpander that follows the normalized sequence links forward
+     */
+    public PathExpander sequenceExpander() {
+        return sequenceExpander(Direction.OUTGOING);
+    }
+
+    // Follow the normalized sequence links in the given direction; the reverse expander
+    // follows them the other way.
+    private PathExpander sequenceExpander(Direction dir) {
+        return new PathExpander() {
+            @Override
+            public Iterable<Relationship> expand(Path path, BranchState branchState) {
+                return getSequences(path.endNode(), dir);
+            }
+
+            @Override
+            public PathExpander reverse() {
+                return sequenceExpander(dir.reverse());
+            }
+        };
+    }
+
+    // Add the witnesses of the given SEQUENCE relationship to the normalized link between start and end,
+    // in the same way that ReadingService.addWitnessLink would.
+    private void transferWitnesses(Node start, Node end, Relationship copyFrom) {
+        SequenceLink link = outgoing.computeIfAbsent(start, k -> new LinkedHashMap<>()).get(end);
+        if (link == null) {
+            link = new SequenceLink(nextLinkId--, start, end);
+            outgoing.get(start).put(end, link);
+            incoming.computeIfAbsent(end, k -> new LinkedHashMap<>()).put(start, link);
+        }
+        for (String witClass : WitnessIndex.witnessClasses(copyFrom))
+            for (String sigil : (String[]) copyFrom.getProperty(witClass))
+                link.addWitness(sigil, witClass);
+    }
+
+    /**
+     * A virtual NSEQUENCE relationship between two representative readings. It carries
+     * witness properties just like a SEQUENCE relationship, but it cannot be modified.
+     * Two links are equal if they join the same readings in the same direction.
+     */
+    private class SequenceLink implements Relationship {
+        private final long id;
+        private final Node start;
+        private final Node end;
+        private final Map<String, Set<String>> witnesses = new HashMap<>();
+
+        SequenceLink(long id, Node start, Node end) {
+            this.id = id;
+            this.start = start;
+            this.end = end;
+        }
+
+        void addWitness(String sigil, String witClass) {
+            if (witClass.equals("witnesses")) {
+                witnesses.computeIfAbsent(witClass, k -> new HashSet<>()).add(sigil);
+                // A base witness supersedes any layer of the same witness
+                for (String layer : new ArrayList<>(witnesses.keySet())) {
+                    if (layer.equals("witnesses")) continue;
+                    Set<String> layerWits = witnesses.get(layer);
+                    layerWits.remove(sigil);
+                    if (layerWits.isEmpty()) witnesses.remove(layer);
+                }
+            } else if (!witnesses.getOrDefault("witnesses", Collections.emptySet()).contains(sigil))
+                witnesses.computeIfAbsent(witClass, k -> new HashSet<>()).add(sigil);
+        }
+
+        @Override
+        public long getId() {
+            return id;
+        }
+
+        @Override
+        public Node getStartNode() {
+            return start;
+        }
+
+        @Override
+        public Node getEndNode() {
+            return end;
+        }
+
+        @Override
+        public Node getOtherNode(Node node) {
+            if (node.equals(start)) return end;
+            if (node.equals(end)) return start;
+            throw new NotFoundException("Node " + node.getId() + " is not on normalized sequence " + this);
+        }
+
+        @Override
+        public Node[] getNodes() {
+            return new Node[] {start, end};
+        }
+
+        @Override
+        public RelationshipType getType() {
+            return ERelations.NSEQUENCE;
+        }
+
+        @Override
+        public boolean isType(RelationshipType type) {
+            return type.name().equals(ERelations.NSEQUENCE.name());
+        }
+
+        @Override
+        public GraphDatabaseService getGraphDatabase() {
+            return db;
+        }
+
+        @Override
+        public boolean hasProperty(String key) {
+            return witnesses.containsKey(key);
+        }
+
+        @Override
+        public Object getProperty(String key) {
+            if (!witnesses.containsKey(key))
+                throw new NotFoundException("No property " + key + " on normalized sequence " + this);
+            return witnesses.get(key).toArray(new String[0]);
+        }
+
+        @Override
+        public Object getProperty(String key, Object defaultValue) {
+            return witnesses.containsKey(key) ? getProperty(key) : defaultValue;
+        }
+
+        @Override
+        public Iterable<String> getPropertyKeys() {
+            return new ArrayList<>(witnesses.keySet());
+        }
+
+        @Override
+        public Map<String, Object> getProperties(String... keys) {
+            Map<String, Object> result = new HashMap<>();
+            for (String k : keys)
+                if (witnesses.containsKey(k)) result.put(k, getProperty(k));
+            return result;
+        }
+
+        @Override
+        public Map<String, Object> getAllProperties() {
+            return getProperties(witnesses.keySet().toArray(new String[0]));
+        }
+
+        @Override
+        public void setProperty(String key, Object value) {
+            throw new UnsupportedOperationException("Normalized sequences are read-only");
+        }
+
+        @Override
+        public Object removeProperty(String key) {
+            throw new UnsupportedOperationException("Normalized sequences are read-only");
+        }
+
+        @Override
+        public void delete() {
+            throw new UnsupportedOperationException("Normalized sequences are read-only");
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof SequenceLink)) return false;
+            SequenceLink other = (SequenceLink) o;
+            return start.equals(other.start) && end.equals(other.end)
+                    && getType().name().equals(other.getType().name());
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(start, end, getType().name());
+        }
+
+        @Override
+        public String toString() {
+            return String.format("(%d)-[%s,%d]->(%d)", start.getId(), getType().name(), id, end.getId());
+        }
+    }
+}
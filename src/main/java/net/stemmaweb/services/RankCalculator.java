@@ -0,0 +1,368 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.rest.ERelations;
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.traversal.Uniqueness;
+
+import java.util.*;
+
+/**
+ * Works out reading ranks in memory, and writes only those that change. A reading's rank is
+ * one more than the highest rank among the parents of the reading and of all the readings
+ * colocated with it. A calculator may be kept for a series of changes to a section within
+ * one transaction; the ranks it has worked out so far are then used for each further change,
+ * and are written once at the end.
+ * NOTE: for use in a transaction!
+ *
+ * @author tla
+ */
+public class RankCalculator {
+
+    /**
+     * If the system property "stemmarest.debugRanks" is set to true, the ranks downstream
+     * of each reading that was recalculated are checked after they have been written.
+     */
+    private static final boolean DEBUG_RANKS = Boolean.getBoolean("stemmarest.debugRanks");
+
+    private static final RelationshipType[] PARENT_TYPES = {ERelations.SEQUENCE, ERelations.EMENDED};
+    private static final RelationshipType[] FOLLOW_TYPES =
+            {ERelations.SEQUENCE, ERelations.LEMMA_TEXT, ERelations.EMENDED};
+
+    private final Set<String> colocatedTypes = new HashSet<>();
+    private final Map<Node, Set<Node>> clusters = new HashMap<>();
+    private final Map<Node, Long> newRanks = new HashMap<>();
+    private final List<Node> recalculatedFrom = new ArrayList<>();
+
+    /**
+     * @param referenceNode - a tradition, section or reading node, whose tradition's relation
+     *                      types say which relations are colocations
+     * @throws Exception if the relation types can't be collected
+     */
+    public RankCalculator(Node referenceNode) throws Exception {
+        colocatedTypes.addAll(RelationTypeRegistry.forNode(referenceNode).colocatedTypes());
+    }
+
+    /**
+     * Treat relations of the given type as colocations from now on, e.g. because the type has
+     * been created since this calculator was.
+     *
+     * @param type - the name of a colocated relation type
+     */
+    public void addColocatedType(String type) {
+        colocatedTypes.add(type);
+    }
+
+    /**
+     * @param n - a reading
+     * @return the reading together with all the readings colocated with it
+     */
+    public Set<Node> clusterOf(Node n) {
+        Set<Node> cluster = clusters.get(n);
+        if (cluster != null) return cluster;
+        cluster = collectCluster(n, Collections.emptySet());
+        for (Node m : cluster) clusters.put(m, cluster);
+        return cluster;
+    }
+
+    /**
+     * Forget what we know about the colocations of the given reading, e.g. because a relation
+     * to or from it has been made or deleted.
+     *
+     * @param n - a reading
+     */
+    public void forget(Node n) {
+        Set<Node> cluster = clusters.remove(n);
+        if (cluster != null)
+            for (Node m : cluster) clusters.remove(m);
+    }
+
+    /**
+     * @param n - a reading
+     * @return the rank that the reading has so far, or null if it has none
+     */
+    public Long rankOf(Node n) {
+        if (newRanks.containsKey(n)) return newRanks.get(n);
+        return (Long) n.getProperty("rank", null);
+    }
+
+    /**
+     * Take account of a colocation that has just been made between the two readings, re-ranking
+     * them and whatever lies downstream if they were not already at the same rank.
+     *
+     * @param readingA - one of the readings
+     * @param readingB - the other reading
+     * @throws Exception if the ranks cannot be calculated
+     */
+    public void colocate(Node readingA, Node readingB) throws Exception {
+        forget(readingA);
+        forget(readingB);
+        Long rankA = rankOf(readingA);
+        Long rankB = rankOf(readingB);
+        if (!rankA.equals(rankB)) {
+            // Promote the lower-ranked reading, and recalculate from that point
+            Node lowerRanked = rankA < rankB ? readingA : readingB;
+            newRanks.put(lowerRanked, Math.max(rankA, rankB));
+            propagate(lowerRanked);
+        }
+    }
+
+    /**
+     * Take account of a set of colocations made all at once, e.g. when transitive relations
+     * are filled in. Each cluster that the readings now belong to is brought to a single rank,
+     * and what lies downstream recalculated, only once.
+     *
+     * @param readings - the readings at either end of the new colocations
+     * @throws Exception if the ranks cannot be calculated
+     */
+    public void colocateAll(Collection<Node> readings) throws Exception {
+        readings.forEach(this::forget);
+        Set<Node> done = new HashSet<>();
+        for (Node n : readings) {
+            if (!done.add(n)) continue;
+            Set<Node> cluster = clusterOf(n);
+            done.addAll(cluster);
+            long highest = Long.MIN_VALUE;
+            for (Node m : cluster)
+                highest = Math.max(highest, rankOf(m));
+            Node lowerRanked = null;
+            for (Node m : cluster)
+                if (rankOf(m) < highest) {
+                    newRanks.put(m, highest);
+                    lowerRanked = m;
+                }
+            if (lowerRanked != null)
+                propagate(lowerRanked);
+        }
+    }
+
+    /**
+     * Say whether colocating the two readings would make the graph cyclic, i.e. whether one of
+     * them can already be reached from the other. The ranks worked out so far are used to limit
+     * the search, so they must be consistent.
+     *
+     * @param readingA - one of the readings
+     * @param readingB - the other reading
+     * @param ignoring - any relations that should be treated as already deleted
+     * @return true if the colocation would make a cycle
+     */
+    public boolean wouldGetCyclic(Node readingA, Node readingB, Collection<Relationship> ignoring) {
+        Set<Node> clusterA = ignoring.isEmpty() ? clusterOf(readingA) : collectCluster(readingA, ignoring);
+        if (clusterA.contains(readingB)) return false;
+        Set<Node> clusterB = ignoring.isEmpty() ? clusterOf(readingB) : collectCluster(readingB, ignoring);
+        Long rankA = rankOf(readingA);
+        Long rankB = rankOf(readingB);
+        if (rankA.equals(rankB)) return false;
+
+        // Search forward from the lower cluster, never past the rank of the higher one
+        Set<Node> higher = rankA < rankB ? clusterB : clusterA;
+        long maxRank = Math.max(rankA, rankB);
+        Set<Node> seen = new HashSet<>(rankA < rankB ? clusterA : clusterB);
+        ArrayDeque<Node> toVisit = new ArrayDeque<>(seen);
+        while (!toVisit.isEmpty()) {
+            Node n = toVisit.poll();
+            List<Node> next = new ArrayList<>();
+            for (Relationship r : n.getRelationships(Direction.OUTGOING, FOLLOW_TYPES))
+                next.add(r.getEndNode());
+            for (Relationship r : n.getRelationships(Direction.BOTH, ERelations.RELATED))
+                if (colocatedTypes.contains(r.getProperty("type").toString()) && !ignoring.contains(r))
+                    next.add(r.getOtherNode(n));
+            for (Node m : next) {
+                if (higher.contains(m)) return true;
+                Long rank = rankOf(m);
+                if (rank != null && rank < maxRank && seen.add(m))
+                    toVisit.add(m);
+            }
+        }
+        return false;
+    }
+
+    // The reading and everything colocated with it, leaving out the given relations
+    private Set<Node> collectCluster(Node n, Collection<Relationship> ignoring) {
+        Set<Node> cluster = new HashSet<>();
+        ArrayDeque<Node> toVisit = new ArrayDeque<>();
+        toVisit.add(n);
+        cluster.add(n);
+        while (!toVisit.isEmpty()) {
+            Node m = toVisit.poll();
+            for (Relationship r : m.getRelationships(Direction.BOTH, ERelations.RELATED))
+                if (colocatedTypes.contains(r.getProperty("type").toString()) && !ignoring.contains(r)
+                        && cluster.add(r.getOtherNode(m)))
+                    toVisit.add(r.getOtherNode(m));
+        }
+        return cluster;
+    }
+
+    // One more than the highest parent rank of the cluster, or null if a parent has no rank yet
+    private Long calculatedRank(Set<Node> cluster) {
+        long maxRankFound = -1L;
+        for (Node n : cluster)
+            for (Relationship r : n.getRelationships(Direction.INCOMING, PARENT_TYPES)) {
+                Long parentRank = rankOf(r.getStartNode());
+                if (parentRank == null) return null;
+                maxRankFound = Math.max(maxRankFound, parentRank);
+            }
+        return maxRankFound + 1;
+    }
+
+    private List<Node> childrenOf(Set<Node> cluster) {
+        List<Node> children = new ArrayList<>();
+        for (Node n : cluster)
+            for (Relationship r : n.getRelationships(Direction.OUTGOING, FOLLOW_TYPES))
+                children.add(r.getEndNode());
+        return children;
+    }
+
+    // Give the whole cluster the given rank; return true if anything changed.
+    private boolean assign(Set<Node> cluster, long rank) {
+        boolean changed = false;
+        for (Node n : cluster)
+            if (!Long.valueOf(rank).equals(rankOf(n))) {
+                newRanks.put(n, rank);
+                changed = true;
+            }
+        return changed;
+    }
+
+    /**
+     * Rank everything downstream of the start node, whether or not it already has a rank.
+     * The clusters are visited in topological order, so each is ranked only once.
+     *
+     * @param startNode - the reading from which to begin
+     * @throws Exception if the ranks cannot be calculated
+     */
+    public void rankAll(Node startNode) throws Exception {
+        recalculatedFrom.add(startNode);
+        // Collect the region to be ranked
+        Set<Node> region = new HashSet<>();
+        ArrayDeque<Node> toVisit = new ArrayDeque<>();
+        region.add(startNode);
+        toVisit.add(startNode);
+        while (!toVisit.isEmpty()) {
+            Set<Node> cluster = clusterOf(toVisit.poll());
+            for (Node n : cluster)
+                if (region.add(n)) toVisit.add(n);
+            for (Node child : childrenOf(cluster))
+                if (region.add(child)) toVisit.add(child);
+        }
+        // Count, for each cluster, the parent clusters within the region that must be ranked first
+        Map<Set<Node>, Integer> waitingOn = new HashMap<>();
+        for (Node n : region) {
+            Set<Node> cluster = clusterOf(n);
+            waitingOn.putIfAbsent(cluster, 0);
+            for (Relationship r : n.getRelationships(Direction.INCOMING, PARENT_TYPES))
+                if (region.contains(r.getStartNode()) && clusterOf(r.getStartNode()) != cluster)
+                    waitingOn.merge(cluster, 1, Integer::sum);
+                else if (region.contains(r.getStartNode()))
+                    throw new Exception(String.format("Node %d (%s) is colocated with its own parent!",
+                            n.getId(), n.getProperty("text")));
+        }
+        // Nothing in the region has a usable rank until it is ranked here
+        for (Node n : region) newRanks.put(n, null);
+        ArrayDeque<Set<Node>> ready = new ArrayDeque<>();
+        waitingOn.forEach((c, w) -> { if (w == 0) ready.add(c); });
+        int ranked = 0;
+        while (!ready.isEmpty()) {
+            Set<Node> cluster = ready.poll();
+            Long rank = calculatedRank(cluster);
+            if (rank == null) {
+                Node n = cluster.iterator().next();
+                throw new Exception(String.format("Node %d (%s) has a parent without a rank!",
+                        n.getId(), n.getProperty("text")));
+            }
+            for (Node n : cluster) newRanks.put(n, rank);
+            ranked++;
+            for (Node n : cluster)
+                for (Relationship r : n.getRelationships(Direction.OUTGOING, PARENT_TYPES)) {
+                    Set<Node> childCluster = clusterOf(r.getEndNode());
+                    if (region.contains(r.getEndNode()) && waitingOn.merge(childCluster, -1, Integer::sum) == 0)
+                        ready.add(childCluster);
+                }
+        }
+        if (ranked < waitingOn.size())
+            throw new Exception("End node not reached during recalculation!");
+    }
+
+    /**
+     * Re-rank the start node, and then whatever downstream readings change as a result. The
+     * start node's children are always looked at, since the graph may have changed around it;
+     * beyond that we stop wherever a reading's rank stays the same.
+     *
+     * @param startNode - the reading from which to begin
+     * @throws Exception if the ranks cannot be calculated
+     */
+    public void propagate(Node startNode) throws Exception {
+        recalculatedFrom.add(startNode);
+        PriorityQueue<Node> queue = new PriorityQueue<>(Comparator.comparing(
+                (Node n) -> rankOf(n) == null ? Long.MAX_VALUE : rankOf(n)));
+        Map<Node, Integer> updates = new HashMap<>();
+        queue.add(startNode);
+        boolean first = true;
+        while (!queue.isEmpty()) {
+            Set<Node> cluster = clusterOf(queue.poll());
+            Long rank = calculatedRank(cluster);
+            if (rank == null && !first) continue; // we will come back when the parent is ranked
+            if (rank == null)
+                throw new Exception(String.format("Node %d (%s) has a parent without a rank!",
+                        startNode.getId(), startNode.getProperty("text")));
+            // Take the cluster out of the queue while its rank changes
+            queue.removeAll(cluster);
+            boolean changed = assign(cluster, rank);
+            if (changed)
+                for (Node n : cluster)
+                    // In an acyclic graph no reading can change more often than there are readings to change it
+                    if (updates.merge(n, 1, Integer::sum) > updates.size() + 1)
+                        throw new Exception("Rank calculation does not converge; is there a cycle in the graph?");
+            if (changed || first)
+                for (Node child : childrenOf(cluster)) {
+                    queue.remove(child);
+                    queue.add(child);
+                }
+            first = false;
+        }
+    }
+
+    /**
+     * Write the new ranks to the database.
+     *
+     * @return the readings whose rank changed
+     * @throws Exception if rank checking is switched on and the ranks are inconsistent
+     */
+    public Set<Node> commit() throws Exception {
+        Set<Node> changed = new HashSet<>();
+        newRanks.forEach((n, rank) -> {
+            if (!rank.equals(n.getProperty("rank", null))) {
+                n.setProperty("rank", rank);
+                changed.add(n);
+            }
+        });
+        newRanks.clear();
+        if (DEBUG_RANKS)
+            for (Node n : recalculatedFrom)
+                checkRanks(n);
+        recalculatedFrom.clear();
+        return changed;
+    }
+
+    // Make sure that every reading downstream of the start node is ranked after all its
+    // parents, and that colocated readings share a rank. Ranks that were left with gaps
+    // by an import are not an error.
+    private static void checkRanks(Node startNode) throws Exception {
+        GraphDatabaseService db = startNode.getGraphDatabase();
+        RankCalculator calculator = new RankCalculator(startNode);
+        for (Node n : db.traversalDescription().depthFirst()
+                .expand(new ReadingService.AlignmentTraverse(startNode))
+                .uniqueness(Uniqueness.NODE_GLOBAL)
+                .traverse(startNode).nodes()) {
+            Set<Node> cluster = calculator.clusterOf(n);
+            Long minimum = calculator.calculatedRank(cluster);
+            Long rank = (Long) n.getProperty("rank", null);
+            if (minimum == null || rank == null || rank < minimum)
+                throw new Exception(String.format("Node %d (%s) has rank %s but should have at least rank %s",
+                        n.getId(), n.getProperty("text"), rank, minimum));
+            for (Node m : cluster)
+                if (!rank.equals(m.getProperty("rank", null)))
+                    throw new Exception(String.format("Node %d (%s) is colocated with node %d but has a different rank",
+                            n.getId(), n.getProperty("text"), m.getId()));
+        }
+    }
+}
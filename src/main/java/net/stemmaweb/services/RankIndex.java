@@ -0,0 +1,249 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.rest.Nodes;
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.kernel.api.KernelTransaction;
+import org.neo4j.kernel.api.txstate.TxStateHolder;
+import org.neo4j.kernel.impl.core.ThreadToStatementContextBridge;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+
+import java.util.*;
+
+/**
+ * An in-memory index of the readings in a section, sorted by rank, so that requests for a
+ * window of ranks need not crawl the whole section. The index for a section is built when
+ * it is first asked for, and thrown away whenever a transaction changes the ranks, the
+ * readings, or the sequence links of that section; the next request builds it afresh.
+ * Only the most recently used indices are kept, and only those built from committed state;
+ * a transaction that has changes of its own gets an index of its own, which is not kept.
+ *
+ * @author tla
+ */
+public class RankIndex {
+
+    private static final RelationshipType[] SEQUENCE_TYPES = {
+            ERelations.SEQUENCE, ERelations.LEMMA_TEXT, ERelations.EMENDED};
+    private static final Set<String> SEQUENCE_TYPE_NAMES = new HashSet<>();
+    static {
+        for (RelationshipType t : SEQUENCE_TYPES) SEQUENCE_TYPE_NAMES.add(t.name());
+    }
+    // How many section indices to keep for each database
+    private static final int MAX_SECTIONS = 64;
+    // The shared indices, most recently used last. Guarded by indices, as is everything below.
+    private static final Map<GraphDatabaseService, Map<Long, RankIndex>> indices = new WeakHashMap<>();
+    // How many committed transactions have touched each section. An index is only kept if
+    // no such commit happened while it was being built.
+    private static final Map<GraphDatabaseService, Map<Long, Long>> generations = new WeakHashMap<>();
+    private static final TransactionEventHandler<Set<Long>> invalidator = new Invalidator();
+
+    private final GraphDatabaseService db;
+    // Parallel arrays of reading ranks and reading IDs, sorted by rank
+    private final long[] ranks;
+    private final long[] readings;
+    // The largest rank difference spanned by any sequence link in the section
+    private final long maxSpan;
+
+    private RankIndex(Node sectionNode) {
+        db = sectionNode.getGraphDatabase();
+        List<long[]> entries = new ArrayList<>();
+        long span = 0;
+        try (Transaction tx = db.beginTx()) {
+            ResourceIterator<Node> found = db.findNodes(Nodes.READING, "section_id", sectionNode.getId());
+            while (found.hasNext()) {
+                Node n = found.next();
+                if (!n.hasProperty("rank")) continue;
+                long rank = (Long) n.getProperty("rank");
+                entries.add(new long[]{rank, n.getId()});
+                for (Relationship r : n.getRelationships(Direction.OUTGOING, SEQUENCE_TYPES)) {
+                    Object endRank = r.getEndNode().getProperty("rank", null);
+                    if (endRank != null) span = Math.max(span, (Long) endRank - rank);
+                }
+            }
+            tx.success();
+        }
+        entries.sort(Comparator.comparingLong((long[] x) -> x[0]).thenComparingLong(x -> x[1]));
+        ranks = new long[entries.size()];
+        readings = new long[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            ranks[i] = entries.get(i)[0];
+            readings[i] = entries.get(i)[1];
+        }
+        maxSpan = span;
+    }
+
+    /**
+     * Return the rank index for the given section, building it if need be.
+     *
+     * @param sectionNode - the section whose index we want
+     * @return the RankIndex
+     */
+    public static RankIndex forSection(Node sectionNode) {
+        GraphDatabaseService db = sectionNode.getGraphDatabase();
+        Long id = sectionNode.getId();
+        if (hasOwnChanges(db))
+            return new RankIndex(sectionNode);
+
+        long generation;
+        synchronized (indices) {
+            RankIndex found = indicesFor(db).get(id);
+            if (found != null) return found;
+            generation = generationOf(db, id);
+        }
+        RankIndex built = new RankIndex(sectionNode);
+        synchronized (indices) {
+            if (generationOf(db, id) == generation)
+                indicesFor(db).putIfAbsent(id, built);
+        }
+        return built;
+    }
+
+    /**
+     * Throw away the rank index for the given section, e.g. because its ranks are about
+     * to change within the current transaction.
+     *
+     * @param db        - the GraphDatabaseService the section belongs to
+     * @param sectionId - the ID of the section
+     */
+    public static void invalidate(GraphDatabaseService db, Long sectionId) {
+        synchronized (indices) {
+            Map<Long, RankIndex> forDb = indices.get(db);
+            if (forDb != null) forDb.remove(sectionId);
+        }
+    }
+
+    /**
+     * @return the handler that keeps the rank indices in step with committed changes;
+     *         this should be registered with the database.
+     */
+    public static TransactionEventHandler<Set<Long>> invalidator() {
+        return invalidator;
+    }
+
+    /**
+     * Return the readings whose ranks lie in the given range, in rank order.
+     * NOTE: for use in a transaction!
+     *
+     * @param startRank - the lowest rank, inclusive
+     * @param endRank   - the highest rank, inclusive
+     * @return the list of readings
+     */
+    public List<Node> readingsBetween(long startRank, long endRank) {
+        List<Node> result = new ArrayList<>();
+        for (int i = firstAtOrAfter(startRank); i < ranks.length && ranks[i] <= endRank; i++)
+            result.add(db.getNodeById(readings[i]));
+        return result;
+    }
+
+    /**
+     * Return the sequence, lemma and emendation links that start at or before the given rank
+     * and might reach it, i.e. a superset of the links that cross the rank.
+     * NOTE: for use in a transaction!
+     *
+     * @param rank - the rank in question
+     * @return the list of links
+     */
+    public List<Relationship> linksAround(long rank) {
+        List<Relationship> result = new ArrayList<>();
+        for (Node n : readingsBetween(rank - maxSpan, rank))
+            n.getRelationships(Direction.OUTGOING, SEQUENCE_TYPES).forEach(result::add);
+        return result;
+    }
+
+    // Call only while holding the lock on indices.
+    private static Map<Long, RankIndex> indicesFor(GraphDatabaseService db) {
+        return indices.computeIfAbsent(db, k -> new LinkedHashMap<Long, RankIndex>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, RankIndex> eldest) {
+                return size() > MAX_SECTIONS;
+            }
+        });
+    }
+
+    // Call only while holding the lock on indices.
+    private static long generationOf(GraphDatabaseService db, Long sectionId) {
+        return generations.computeIfAbsent(db, k -> new HashMap<>()).getOrDefault(sectionId, 0L);
+    }
+
+    // Whether the current thread has a transaction open that has changed anything yet; if
+    // not, whatever it reads has been committed.
+    private static boolean hasOwnChanges(GraphDatabaseService db) {
+        KernelTransaction ktx = ((GraphDatabaseAPI) db).getDependencyResolver()
+                .resolveDependency(ThreadToStatementContextBridge.class, DependencyResolver.SelectionStrategy.ONLY)
+                .getKernelTransactionBoundToThisThread(false);
+        return ktx instanceof TxStateHolder && ((TxStateHolder) ktx).hasTxStateWithChanges();
+    }
+
+    private int firstAtOrAfter(long rank) {
+        int lo = 0, hi = ranks.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ranks[mid] < rank) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    // Notes which sections a transaction touches, and drops their indices once it is committed.
+    // Node IDs are only unique within a database, but a spurious rebuild does no harm, so we
+    // needn't keep track of which database the sections belong to.
+    private static class Invalidator implements TransactionEventHandler<Set<Long>> {
+
+        @Override
+        public Set<Long> beforeCommit(TransactionData data) {
+            Set<Long> touched = new HashSet<>();
+            for (PropertyEntry<Node> pe : data.assignedNodeProperties()) {
+                if (pe.key().equals("section_id") && pe.previouslyCommitedValue() != null)
+                    touched.add((Long) pe.previouslyCommitedValue());
+                if (pe.key().equals("rank") || pe.key().equals("section_id"))
+                    noteSection(pe.entity(), data, touched);
+            }
+            for (PropertyEntry<Node> pe : data.removedNodeProperties()) {
+                if (pe.key().equals("section_id") && pe.previouslyCommitedValue() != null)
+                    touched.add((Long) pe.previouslyCommitedValue());
+                if (pe.key().equals("rank"))
+                    noteSection(pe.entity(), data, touched);
+            }
+            for (LabelEntry le : data.assignedLabels())
+                if (le.label().name().equals(Nodes.READING.name()))
+                    noteSection(le.node(), data, touched);
+            for (Relationship r : data.createdRelationships())
+                if (SEQUENCE_TYPE_NAMES.contains(r.getType().name()))
+                    noteSection(r.getStartNode(), data, touched);
+            return touched;
+        }
+
+        private void noteSection(Node n, TransactionData data, Set<Long> touched) {
+            if (data.isDeleted(n)) return;
+            Object sectionId = n.getProperty("section_id", null);
+            if (sectionId instanceof Long) touched.add((Long) sectionId);
+        }
+
+        @Override
+        public void afterCommit(TransactionData data, Set<Long> touched) {
+            if (touched.isEmpty()) return;
+            synchronized (indices) {
+                for (Map<Long, Long> forDb : generations.values())
+                    for (Long id : touched)
+                        forDb.merge(id, 1L, Long::sum);
+                for (Map<Long, RankIndex> forDb : indices.values())
+                    forDb.keySet().removeAll(touched);
+            }
+        }
+
+        @Override
+        public void afterRollback(TransactionData data, Set<Long> touched) {
+            // The shared indices never see uncommitted changes, but drop any for the
+            // sections involved all the same.
+            if (touched == null || touched.isEmpty()) return;
+            synchronized (indices) {
+                for (Map<Long, RankIndex> forDb : indices.values())
+                    forDb.keySet().removeAll(touched);
+            }
+        }
+    }
+}
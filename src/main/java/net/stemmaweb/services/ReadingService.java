@@ -1,7 +1,6 @@
 package net.stemmaweb.services;
 
 import net.stemmaweb.model.ReadingModel;
-import net.stemmaweb.model.RelationTypeModel;
 import net.stemmaweb.rest.ERelations;
 import net.stemmaweb.rest.Nodes;
 
@@ -35,6 +34,42 @@ public class ReadingService {
         newReading.addLabel(Nodes.READING);
     }
 
+    /**
+     * Returns the text by which a reading is matched to others, e.g. when a relation is
+     * generalised: its normal form if asked for and it has one, or else its text.
+     *
+     * @param reading   - the reading in question
+     * @param useNormal - whether the normal form should be used
+     * @return the text to match
+     */
+    public static Object matchingText(Node reading, boolean useNormal) {
+        if (useNormal && reading.hasProperty("normal_form"))
+            return reading.getProperty("normal_form");
+        return reading.getProperty("text", "");
+    }
+
+    /**
+     * Finds the readings of a section whose matching text, as given by
+     * {@link #matchingText(Node, boolean)}, is the one specified. The lookup goes through
+     * the schema indexes on section_id with text and normal_form.
+     * NOTE: for use in a transaction!
+     *
+     * @param db        - the GraphDatabaseService to search
+     * @param sectionId - the ID of the section
+     * @param text      - the text to look for
+     * @param useNormal - whether normal forms should be matched where they exist
+     * @return the matching readings
+     */
+    public static List<Node> readingsWithText(GraphDatabaseService db, Long sectionId, Object text, boolean useNormal) {
+        List<Node> found = new ArrayList<>();
+        if (useNormal)
+            db.findNodes(Nodes.READING, "section_id", sectionId, "normal_form", text).forEachRemaining(found::add);
+        db.findNodes(Nodes.READING, "section_id", sectionId, "text", text).forEachRemaining(n -> {
+            if (!useNormal || !n.hasProperty("normal_form")) found.add(n);
+        });
+        return found;
+    }
+
     /**
      * Returns true if the specified witness (layer) is in the relationship.
      *
@@ -85,11 +120,14 @@ public class ReadingService {
         }
         // Then see if we need to remove a layer
         if (witClass.equals("witnesses")) {
-            for (String wc : link.getPropertyKeys()) {
+            for (String wc : WitnessIndex.witnessClasses(link)) {
                 if (wc.equals(witClass)) continue;
-                removeWitnessLink(start, end, sigil, wc, "none", seqType);
+                removeWitnessLink(start, end, sigil, wc, "none", seqType, false);
             }
         }
+        // Finally, bring the witness bitmap up to date
+        if (link.isType(ERelations.SEQUENCE))
+            WitnessIndex.refresh(link);
         return link;
     }
 
@@ -108,10 +146,11 @@ public class ReadingService {
      * @param witClass - the witness layer class to use
      */
     public static void removeWitnessLink (Node start, Node end, String sigil, String witClass, String orphanCheck) {
-        removeWitnessLink(start, end, sigil, witClass, orphanCheck, ERelations.SEQUENCE);
+        removeWitnessLink(start, end, sigil, witClass, orphanCheck, ERelations.SEQUENCE, true);
     }
 
-    private static void removeWitnessLink (Node start, Node end, String sigil, String witClass, String orphanCheck, RelationshipType seqType) {
+    private static void removeWitnessLink (Node start, Node end, String sigil, String witClass, String orphanCheck,
+                                           RelationshipType seqType, boolean updateBitmap) {
         // If we are removing a base witness link, we need to check whether any layers for
         // that witness end at our start node or start at our end node.
         boolean ocStart = orphanCheck.equals("start") || orphanCheck.equals("both");
@@ -158,17 +197,21 @@ public class ReadingService {
             if (currentWits.isEmpty()) {
                 link.removeProperty(witClass);
                 // Was this the last witness class for the given link?
-                if (link.getAllProperties().size() == 0)
+                if (WitnessIndex.witnessClasses(link).isEmpty()) {
                     link.delete();
+                    return;
+                }
             }
             else
                 link.setProperty(witClass, currentWits.toArray(new String[0]));
+            if (updateBitmap && link.isType(ERelations.SEQUENCE))
+                WitnessIndex.refresh(link);
         }
     }
 
     private static ArrayList<String> findWitLayers (Relationship r, String sigil) {
         ArrayList<String> sigLayers = new ArrayList<>();
-        for (String layer : r.getPropertyKeys()) {
+        for (String layer : WitnessIndex.witnessClasses(r)) {
             if (layer.equals("witnesses")) continue;
             if (Arrays.asList((String[]) r.getProperty(layer)).contains(sigil))
                 sigLayers.add(layer);
@@ -187,7 +230,7 @@ public class ReadingService {
      */
     public static Set<Relationship> transferWitnesses (Node start, Node end, Relationship copyFrom, RelationshipType seqType) {
         Set<Relationship> updatedLinks = new HashSet<>();
-        for (String witclass : copyFrom.getPropertyKeys())
+        for (String witclass : WitnessIndex.witnessClasses(copyFrom))
             for (String w : (String[]) copyFrom.getProperty(witclass))
                 updatedLinks.add(addWitnessLink(start, end, w, witclass, seqType));
         return updatedLinks;
@@ -214,7 +257,7 @@ public class ReadingService {
         HashMap<String, Node> readingWitnessToMap = new HashMap<>();
         HashMap<String, HashMap<String, Node>> readingWitnessExtraMap = new HashMap<>();
         for (Relationship r : placeholderNode.getRelationships(Direction.OUTGOING, ERelations.SEQUENCE)) {
-            for (String prop : r.getPropertyKeys()) {
+            for (String prop : WitnessIndex.witnessClasses(r)) {
                 String[] relWits = (String[]) r.getProperty(prop);
                 for (String w : relWits)
                     if (prop.equals("witnesses"))
@@ -235,7 +278,7 @@ public class ReadingService {
         HashMap<String, Node> deferredLinks = new HashMap<>();
         for (Relationship r : placeholderNode.getRelationships(Direction.INCOMING, ERelations.SEQUENCE)) {
             Node priorReading = r.getStartNode();
-            for (String prop : r.getPropertyKeys()) {
+            for (String prop : WitnessIndex.witnessClasses(r)) {
                 String[] relWits = (String[]) r.getProperty(prop);
                 for (String w : relWits) {
                     if (prop.equals("witnesses")) {
@@ -300,147 +343,28 @@ public class ReadingService {
         return witnessAsText.toString().trim();
     }
 
-    /* Custom evaluator and traverser that modifies reading rank as it goes */
-
-    private static class RankCalcEvaluate implements Evaluator {
-
-        Map<Long, Set<Node>> colocatedNodes;
-        boolean recalculateAll;
-
-        // Constructor - we need to know where we are starting so we can build our list of
-        // equivalences and find our starting point. Throws an exception if we can't get
-        // the related-reading clusters.
-        RankCalcEvaluate(Node startNode, Boolean recalculateAll) throws Exception {
-            // Get the list of colocated nodes in this section.
-            GraphDatabaseService db = startNode.getGraphDatabase();
-            String sectionId = String.valueOf(startNode.getProperty("section_id"));
-            String tradId = db.getNodeById(Long.parseLong(sectionId))
-                    .getSingleRelationship(ERelations.PART, Direction.INCOMING).getStartNode()
-                    .getProperty("id").toString();
-            this.colocatedNodes = buildColocationLookup(tradId, sectionId, startNode.getGraphDatabase());
-            this.recalculateAll = recalculateAll;
-        }
-
-        @Override
-        public Evaluation evaluate(Path path) {
-            // Get the last node on the path, check if its parents are ranked yet, and
-            // delete its rank if it is wrong
-            Node thisNode = path.endNode();
-            thisNode.setProperty("touched", true);
-            Long maxParentRank = maxParentRank(thisNode);
-            // If this is the first node in the sequence, then maxParentRank had better not
-            // be null. This should also work for the #START# node.
-            assert path.lastRelationship() != null || (maxParentRank != null);
-
-            // If maxParentRank is null, we remove our rank and stop calculating from here
-            if (maxParentRank == null) {
-                // thisNode.removeProperty("rank");
-                return Evaluation.EXCLUDE_AND_PRUNE;
-            }
-
-            // Otherwise we set the rank and continue.
-            thisNode.setProperty("newrank", maxParentRank + 1);
-            return Evaluation.INCLUDE_AND_CONTINUE;
-        }
-
-        private Long maxParentRank (Node candidate) {
-            // Returns true if the parents of this node, and of all its colocated nodes,
-            // already have a rank.
-            Set<Node> toCheck;
-            Long maxRankFound = -1L;
-            if (colocatedNodes.containsKey(candidate.getId())) {
-                toCheck = colocatedNodes.get(candidate.getId());
-            } else {
-                toCheck = new HashSet<>();
-                toCheck.add(candidate);
-            }
-            for (Node n : toCheck) {
-                ArrayList<Node> parents = new ArrayList<>();
-                n.getRelationships(ERelations.SEQUENCE, Direction.INCOMING)
-                        .forEach(x -> parents.add(x.getStartNode()));
-                n.getRelationships(ERelations.EMENDED, Direction.INCOMING)
-                        .forEach(x -> parents.add(x.getStartNode()));
-                for (Node p: parents) {
-                    String rankprop = p.hasProperty("touched") ? "newrank" : "rank";
-                    if (!p.hasProperty(rankprop))
-                        return null;
-                    Long thisRank = (Long) p.getProperty(rankprop);
-                    maxRankFound = thisRank > maxRankFound ? thisRank : maxRankFound;
-                }
-            }
-            return maxRankFound;
-        }
-    }
-
     /**
      * Recalculates ranks, starting from startNode, until the ranks stop changing. Note that
      * the rank on startNode needs to be correct before this is run.
      *
      * @param startNode - the reading from which to begin the recalculation
-     * @throws Exception if the RankCalcEvaluate initialisation fails
+     * @param recalculateAll - if true, re-rank everything downstream of startNode, rather than
+     *                       stopping where the ranks stop changing
+     * @throws Exception if the ranks cannot be calculated
      * @return list of nodes whose ranks were changed
      */
 
     public static Set<Node> recalculateRank (Node startNode, boolean recalculateAll) throws Exception {
-        RankCalcEvaluate e = new RankCalcEvaluate(startNode, recalculateAll);
-        AlignmentTraverse a = new AlignmentTraverse(startNode);
         GraphDatabaseService db = startNode.getGraphDatabase();
+        // Any rank index for this section will be out of date within this transaction
+        RankIndex.invalidate(db, (Long) startNode.getProperty("section_id"));
 
-        // Traverse the sequence graph from our start node, putting a mark on
-        // all the nodes we expect to visit
-        db.traversalDescription().depthFirst()
-                .expand(a)
-                .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL)
-                .traverse(startNode).nodes().stream().forEach(x -> x.setProperty("touched", true));
-
-        // At this point we can start to reassign ranks
-        ResourceIterable<Node> touched = db.traversalDescription().depthFirst()
-                .expand(a)
-                .evaluator(e)
-                .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL)
-                .traverse(startNode).nodes();
-        // Run the traverser and commit the updated ranks
-        Set<Node> changed = new HashSet<>();
-        for (Node n : touched.stream().collect(Collectors.toSet())) {
-            n.removeProperty("touched");
-            if (!n.hasProperty("newrank"))
-                throw new Exception (String.format("Node %d (%s) traversed but not re-ranked!",
-                        n.getId(), n.getProperty("text")));
-            Long nr = (Long) n.removeProperty("newrank");
-            if (!n.hasProperty("rank") || !n.getProperty("rank").equals(nr)) {
-                changed.add(n);
-                n.setProperty("rank", nr);
-            }
-        }
-
-        // TEMPORARY: Make sure that we did visit all expected nodes
-        Node sectionStart = VariantGraphService.getStartNode(startNode.getProperty("section_id").toString(), db);
-        for (Node n : db.traversalDescription().depthFirst()
-                .expand(new AlignmentTraverse())
-                .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL)
-                .traverse(sectionStart).nodes()) {
-            if (n.hasProperty("touched"))
-                throw new Exception ("End node not reached during recalculation!");
-        }
-
-
-        // TEMPORARY: Test that our colocated groups are actually colocated
-        Node ourSection = db.getNodeById((Long) startNode.getProperty("section_id"));
-        String tradId = VariantGraphService.getTraditionNode(ourSection).getProperty("id").toString();
-        List<Set<Node>> clusters = RelationService.getClusters(tradId, String.valueOf(ourSection.getId()), db, true);
-        for (Set<Node> cluster : clusters) {
-            Long clusterRank = null;
-            for (Node n : cluster) {
-                if (clusterRank == null)
-                    clusterRank = (Long) n.getProperty("rank");
-                else
-                    assert(clusterRank.equals(n.getProperty("rank")));
-                // else if (!clusterRank.equals(n.getProperty("rank")))
-                //     throw new Exception("Ranks diverge in cluster around rank " + clusterRank);
-            }
-        }
-        // END TEMPORARY
-        return changed;
+        RankCalculator calculator = new RankCalculator(startNode);
+        if (recalculateAll)
+            calculator.rankAll(startNode);
+        else
+            calculator.propagate(startNode);
+        return calculator.commit();
     }
 
     public static Set<Node> recalculateRank (Node startNode) throws Exception {
@@ -463,10 +387,7 @@ public class ReadingService {
         // Walk the graph of sequences and colocated relations
         public AlignmentTraverse(Node referenceNode) throws Exception {
             // Get the colocated types for this node's tradition
-            List<RelationTypeModel> rtms = RelationService.ourRelationTypes(referenceNode);
-            for (RelationTypeModel rtm : rtms)
-                if (rtm.getIs_colocation())
-                    includeRelationTypes.add(rtm.getName());
+            includeRelationTypes.addAll(RelationTypeRegistry.forNode(referenceNode).colocatedTypes());
         }
 
         @Override
@@ -48,14 +48,14 @@ public class RelationService {
      * @return A RelationTypeModel with the relation type information.
      */
     public static RelationTypeModel returnRelationType(String traditionId, String relType) {
-        RelationType rtRest = new RelationType(traditionId, relType);
-        Response rtResult = rtRest.getRelationType();
-        if (rtResult.getStatus() == Response.Status.NO_CONTENT.getStatusCode()) {
-            RelationTypeModel rtm = new RelationTypeModel();
-            rtm.setName(relType);
-            rtm.setDefaultsettings(true);
-            rtResult = rtRest.create(rtm);
-        }
+        GraphDatabaseService db = new GraphDatabaseServiceProvider().getDatabase();
+        Node traditionNode = VariantGraphService.getTraditionNode(traditionId, db);
+        RelationTypeModel found = RelationTypeRegistry.forTradition(traditionNode).get(relType);
+        if (found != null) return found;
+        RelationTypeModel rtm = new RelationTypeModel();
+        rtm.setName(relType);
+        rtm.setDefaultsettings(true);
+        Response rtResult = new RelationType(traditionId, relType).create(rtm);
         return (RelationTypeModel) rtResult.getEntity();
     }
 
@@ -68,30 +68,12 @@ public class RelationService {
      * @throws Exception - if the tradition node can't be determined from the referenceNode
      */
     public static List<RelationTypeModel> ourRelationTypes(Node referenceNode) throws Exception {
-        GraphDatabaseService db = referenceNode.getGraphDatabase();
-        List<RelationTypeModel> result = new ArrayList<>();
-        try (Transaction tx = db.beginTx()) {
-            // Find the tradition node
-            Node traditionNode = null;
-            if (referenceNode.hasLabel(Nodes.TRADITION))
-                traditionNode = referenceNode;
-            else if (referenceNode.hasLabel(Nodes.SECTION))
-                traditionNode = VariantGraphService.getTraditionNode(referenceNode);
-            else if (referenceNode.hasLabel(Nodes.READING)) {
-                Node sectionNode = db.getNodeById(Long.parseLong(referenceNode.getProperty("section_id").toString()));
-                traditionNode = VariantGraphService.getTraditionNode(sectionNode);
-            }
-            assert(traditionNode != null);
-            // ...and query its relation types.
-            traditionNode.getRelationships(ERelations.HAS_RELATION_TYPE, Direction.OUTGOING).forEach(
-                    x -> result.add(new RelationTypeModel(x.getEndNode()))
-            );
-            tx.success();
+        try {
+            return new ArrayList<>(RelationTypeRegistry.forNode(referenceNode).types());
         } catch (Exception e) {
             e.printStackTrace();
             throw new Exception("Could not collect relation types", e);
         }
-        return result;
     }
 
     /**
@@ -112,9 +94,9 @@ public class RelationService {
         Node traditionNode = VariantGraphService.getTraditionNode(tradId, db);
         for (RelationTypeModel rtm : ourRelationTypes(traditionNode))
             if (rtm.getIs_colocation() == colocations)
-                useRelationTypes.add(String.format("\"%s\"", rtm.getName()));
+                useRelationTypes.add(rtm.getName());
 
-        // Now run the unionFind algorithm on the relevant subset of relation types
+        // Now run the union-find on the relevant subset of relation types
         return collectSpecifiedClusters(sectionId, db, useRelationTypes);
     }
 
@@ -143,7 +125,7 @@ public class RelationService {
             bindlevel = thresholdModel.get().getBindlevel();
         for (RelationTypeModel rtm : rtmlist)
             if (rtm.getBindlevel() <= bindlevel)
-                closeRelations.add(String.format("\"%s\"", rtm.getName()));
+                closeRelations.add(rtm.getName());
 
         return collectSpecifiedClusters(sectionId, db, closeRelations);
     }
@@ -151,29 +133,23 @@ public class RelationService {
     private static List<Set<Node>> collectSpecifiedClusters(
             String sectionId, GraphDatabaseService db, Set<String> relatedTypes)
             throws Exception {
-        // Now run the unionFind algorithm on the relevant subset of relation types
+        // Run a union-find over the section's readings, joining those with a relation of
+        // one of the given types
         List<Set<Node>> result = new ArrayList<>();
         try (Transaction tx = db.beginTx()) {
-            // Make the arguments
-            String cypherNodes = String.format("MATCH (n:READING {section_id:%s}) RETURN id(n) AS id", sectionId);
-            String cypherRels = String.format("MATCH (n:READING)-[r:RELATED]-(m) WHERE r.type IN [%s] RETURN id(n) AS source, id(m) AS target",
-                    String.join(",", relatedTypes));
-            // A struct to store the results
-            Map<Long, Set<Long>> clusters = new HashMap<>();
-            // Stream the results and collect the clusters
-            Result r = db.execute(String.format("CALL algo.unionFind.stream('%s', '%s', {graph:'cypher'}) YIELD nodeId, setId", cypherNodes, cypherRels));
-            while(r.hasNext()) {
-                Map<String, Object> row = r.next();
-                Long setId = (Long) row.get("setId");
-                Set<Long> cl = clusters.getOrDefault(setId, new HashSet<>());
-                Long nodeId = (Long) row.get("nodeId");
-                cl.add(nodeId);
-                clusters.put(setId, cl);
-            }
-
-            // Convert the map of setID -> set of nodeIDs into a list of nodesets
-            clusters.keySet().stream().filter(x -> clusters.get(x).size() > 1)
-                    .forEach(x -> result.add(clusters.get(x).stream().map(db::getNodeById).collect(Collectors.toSet())));
+            List<Node> readings = new ArrayList<>();
+            db.findNodes(Nodes.READING, "section_id", Long.valueOf(sectionId)).forEachRemaining(readings::add);
+            UnionFind clusters = new UnionFind(readings.size());
+            readings.forEach(x -> clusters.add(x.getId()));
+            if (!relatedTypes.isEmpty())
+                for (Node n : readings)
+                    for (Relationship r : n.getRelationships(ERelations.RELATED, Direction.OUTGOING))
+                        if (relatedTypes.contains(r.getProperty("type", "").toString()))
+                            clusters.union(n.getId(), r.getEndNodeId());
+
+            // Convert the sets of node IDs into sets of nodes
+            clusters.clusters().forEach(
+                    x -> result.add(x.stream().map(db::getNodeById).collect(Collectors.toSet())));
             tx.success();
         } catch (Exception e) {
             e.printStackTrace();
@@ -243,7 +219,7 @@ public class RelationService {
      *
      */
     public static class RelatedReadingsTraverser implements Evaluator {
-        private final HashMap<String, RelationTypeModel> ourTypes;
+        private final RelationTypeRegistry ourTypes;
         private final Function<RelationTypeModel, Boolean> criterion;
 
         public RelatedReadingsTraverser(Node fromReading) throws Exception {
@@ -252,9 +228,7 @@ public class RelationService {
 
         public RelatedReadingsTraverser(Node fromReading, Function<RelationTypeModel, Boolean> criterion) throws Exception {
             this.criterion = criterion;
-            // Make a lookup table of relation types
-            ourTypes = new HashMap<>();
-            ourRelationTypes(fromReading).forEach(x -> ourTypes.put(x.getName(), x));
+            ourTypes = RelationTypeRegistry.forNode(fromReading);
         }
 
         @Override
@@ -273,32 +247,4 @@ public class RelationService {
         }
     }
 
-    public static class TransitiveRelationTraverser implements Evaluator {
-        private final String tradId;
-        private final RelationTypeModel rtm;
-
-        public TransitiveRelationTraverser(String tradId, RelationTypeModel reltypemodel) {
-            this.tradId = tradId;
-            this.rtm = reltypemodel;
-        }
-
-        @Override
-        public Evaluation evaluate(Path path) {
-            if (path.endNode().equals(path.startNode()))
-                return Evaluation.INCLUDE_AND_CONTINUE;
-            // If the relation isn't transitive, we don't follow it.
-            if (!rtm.getIs_transitive())
-                return Evaluation.EXCLUDE_AND_PRUNE;
-            // If it's the same relation type, we do follow it.
-            if (path.lastRelationship().getProperty("type").equals(rtm.getName()))
-                return Evaluation.INCLUDE_AND_CONTINUE;
-            // If it's a different relation type, we follow it if it is bound more closely
-            // than our type (lower bindlevel) and if that type is also transitive.
-            RelationTypeModel othertm = returnRelationType(tradId, path.lastRelationship().getProperty("type").toString());
-            if (rtm.getBindlevel() > othertm.getBindlevel() && othertm.getIs_transitive())
-                return Evaluation.INCLUDE_AND_CONTINUE;
-            return Evaluation.EXCLUDE_AND_PRUNE;
-        }
-    }
-
 }
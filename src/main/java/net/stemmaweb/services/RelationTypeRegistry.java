@@ -0,0 +1,312 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.model.RelationTypeModel;
+import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.rest.Nodes;
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * An in-memory copy of the relation types of a tradition, so that the properties of a type
+ * can be looked up by name without a transaction and without walking the tradition's
+ * relation type nodes each time. The registry for a tradition is built when it is first
+ * asked for, and thrown away whenever a transaction adds, changes or deletes one of the
+ * tradition's relation types, e.g. through the RelationType endpoints or an import.
+ * Shared registries are built from committed state only, in a transaction of their own on a
+ * worker thread. A transaction that changes a tradition's relation types sees a registry of
+ * its own, built within that transaction, until it is committed or rolled back.
+ * <p>
+ * The models held here are shared, and must not be changed by the caller.
+ *
+ * @author tla
+ */
+public class RelationTypeRegistry {
+
+    // The properties that describe a relation type, as opposed to some other node
+    private static final Set<String> TYPE_PROPERTIES = new HashSet<>(Arrays.asList("name", "description",
+            "bindlevel", "is_colocation", "is_weak", "is_transitive", "is_generalizable", "use_regular"));
+    // The shared registries, which are only ever built from committed state
+    private static final Map<GraphDatabaseService, Map<Long, RelationTypeRegistry>> registries =
+            Collections.synchronizedMap(new WeakHashMap<>());
+    // How many committed transactions have touched each tradition's relation types. A registry
+    // is only shared if no such commit happened while it was being built. Guarded by registries.
+    private static final Map<GraphDatabaseService, Map<Long, Long>> generations = new WeakHashMap<>();
+    // The traditions whose relation types the current thread's open transaction has changed,
+    // with the private registry that the transaction sees for each, if it has been built yet.
+    // The invalidator clears this when the transaction is committed or rolled back, which it
+    // does on the same thread.
+    private static final ThreadLocal<Map<Long, RelationTypeRegistry>> ownChanges =
+            ThreadLocal.withInitial(HashMap::new);
+    private static final TransactionEventHandler<Changes> invalidator = new Invalidator();
+    private static final ExecutorService builder = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "stemmarest-relation-types");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Long traditionId;
+    private final Map<String, RelationTypeModel> types = new LinkedHashMap<>();
+    private final Map<String, Long> typeNodes = new HashMap<>();
+    private final Set<String> colocatedTypes = new HashSet<>();
+
+    private RelationTypeRegistry(Node traditionNode) {
+        traditionId = traditionNode.getId();
+        try (Transaction tx = traditionNode.getGraphDatabase().beginTx()) {
+            for (Relationship r : traditionNode.getRelationships(ERelations.HAS_RELATION_TYPE, Direction.OUTGOING)) {
+                RelationTypeModel rtm = new RelationTypeModel(r.getEndNode());
+                types.put(rtm.getName(), rtm);
+                typeNodes.put(rtm.getName(), r.getEndNodeId());
+                if (rtm.getIs_colocation()) colocatedTypes.add(rtm.getName());
+            }
+            tx.success();
+        }
+    }
+
+    /**
+     * Return the relation type registry for the given tradition, building it if need be.
+     * If the current transaction has changed the tradition's relation types, the registry
+     * reflects those changes, but it is not shared with anyone else.
+     *
+     * @param traditionNode - the tradition whose relation types we want
+     * @return the RelationTypeRegistry
+     */
+    public static RelationTypeRegistry forTradition(Node traditionNode) {
+        Long id = traditionNode.getId();
+        Map<Long, RelationTypeRegistry> mine = ownChanges.get();
+        if (mine.containsKey(id)) {
+            RelationTypeRegistry own = mine.get(id);
+            if (own == null) {
+                own = new RelationTypeRegistry(traditionNode);
+                mine.put(id, own);
+            }
+            return own;
+        }
+
+        GraphDatabaseService db = traditionNode.getGraphDatabase();
+        Map<Long, RelationTypeRegistry> forDb = registries.computeIfAbsent(db, k -> new ConcurrentHashMap<>());
+        RelationTypeRegistry found = forDb.get(id);
+        if (found != null) return found;
+
+        long generation = generationOf(db, id);
+        RelationTypeRegistry built;
+        try {
+            built = buildCommitted(traditionNode);
+        } catch (NotFoundException e) {
+            // The tradition itself hasn't been committed yet, so it can only belong to
+            // the current transaction, if it exists at all
+            built = new RelationTypeRegistry(traditionNode);
+            ownChanges.get().put(id, built);
+            return built;
+        }
+        synchronized (registries) {
+            if (generationOf(db, id) == generation)
+                forDb.putIfAbsent(id, built);
+        }
+        return built;
+    }
+
+    /**
+     * Return the relation type registry for the tradition that the given node belongs to.
+     *
+     * @param referenceNode - a Tradition, Section or Reading node that belongs to the tradition
+     * @return the RelationTypeRegistry
+     * @throws Exception - if the tradition node can't be determined from the referenceNode
+     */
+    public static RelationTypeRegistry forNode(Node referenceNode) throws Exception {
+        GraphDatabaseService db = referenceNode.getGraphDatabase();
+        Node traditionNode = null;
+        try (Transaction tx = db.beginTx()) {
+            if (referenceNode.hasLabel(Nodes.TRADITION))
+                traditionNode = referenceNode;
+            else if (referenceNode.hasLabel(Nodes.SECTION))
+                traditionNode = VariantGraphService.getTraditionNode(referenceNode);
+            else if (referenceNode.hasLabel(Nodes.READING)) {
+                Node sectionNode = db.getNodeById(Long.parseLong(referenceNode.getProperty("section_id").toString()));
+                traditionNode = VariantGraphService.getTraditionNode(sectionNode);
+            }
+            tx.success();
+        }
+        if (traditionNode == null)
+            throw new Exception("Could not find the tradition for node " + referenceNode.getId());
+        return forTradition(traditionNode);
+    }
+
+    /**
+     * Note that one of the given tradition's relation types has just been changed within
+     * the current transaction. Until that transaction is committed or rolled back, the current
+     * thread gets a registry of its own for the tradition; the shared one is thrown away on commit.
+     * This should only be called along with an actual change, since it is the commit or
+     * rollback of that change that ends the arrangement.
+     *
+     * @param traditionNode - the tradition whose relation types have changed
+     */
+    public static void invalidate(Node traditionNode) {
+        ownChanges.get().put(traditionNode.getId(), null);
+    }
+
+    /**
+     * @return the handler that keeps the registries in step with committed changes;
+     *         this should be registered with the database.
+     */
+    public static TransactionEventHandler<?> invalidator() {
+        return invalidator;
+    }
+
+    private static long generationOf(GraphDatabaseService db, Long traditionId) {
+        synchronized (registries) {
+            return generations.computeIfAbsent(db, k -> new HashMap<>()).getOrDefault(traditionId, 0L);
+        }
+    }
+
+    // Build the registry from committed state alone. The caller may have a transaction open
+    // with changes of its own, so the reading is done in a separate transaction on another thread.
+    private static RelationTypeRegistry buildCommitted(Node traditionNode) {
+        try {
+            return builder.submit(() -> new RelationTypeRegistry(traditionNode)).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while reading relation types", e);
+        }
+    }
+
+    /**
+     * @param name - the name of a relation type
+     * @return the model for the type, or null if the tradition has no such type
+     */
+    public RelationTypeModel get(String name) {
+        return types.get(name);
+    }
+
+    /**
+     * @param name - the name of a relation type
+     * @return the ID of the node for the type, or null if the tradition has no such type
+     */
+    public Long nodeIdOf(String name) {
+        return typeNodes.get(name);
+    }
+
+    /**
+     * @return the relation types of the tradition
+     */
+    public Collection<RelationTypeModel> types() {
+        return Collections.unmodifiableCollection(types.values());
+    }
+
+    /**
+     * @return the names of the relation types that are colocations
+     */
+    public Set<String> colocatedTypes() {
+        return Collections.unmodifiableSet(colocatedTypes);
+    }
+
+    /**
+     * @param name - the name of a relation type
+     * @return true if the type exists and is a colocation
+     */
+    public boolean isColocation(String name) {
+        return colocatedTypes.contains(name);
+    }
+
+    /**
+     * @param name - the name of a relation type
+     * @return true if the type exists and is weak
+     */
+    public boolean isWeak(String name) {
+        RelationTypeModel rtm = types.get(name);
+        return rtm != null && rtm.getIs_weak();
+    }
+
+    /**
+     * @param name - the name of a relation type
+     * @return the bindlevel of the type, or null if there is no such type
+     */
+    public Integer bindlevel(String name) {
+        RelationTypeModel rtm = types.get(name);
+        return rtm == null ? null : rtm.getBindlevel();
+    }
+
+    // The traditions whose relation types a transaction touches, and the traditions that it
+    // deletes outright
+    private static class Changes {
+        private final Set<Long> touched = new HashSet<>();
+        private final Set<Long> deleted = new HashSet<>();
+    }
+
+    // Notes which traditions a transaction touches the relation types of, and drops their
+    // registries once it is committed. As with the rank indices, a spurious rebuild does no
+    // harm, so we needn't keep track of which database the nodes belong to.
+    private static class Invalidator implements TransactionEventHandler<Changes> {
+
+        @Override
+        public Changes beforeCommit(TransactionData data) {
+            Changes changes = new Changes();
+            for (Relationship r : data.createdRelationships())
+                if (r.isType(ERelations.HAS_RELATION_TYPE))
+                    changes.touched.add(r.getStartNodeId());
+            // This covers deleted relation types, which must be unlinked from their tradition
+            for (Relationship r : data.deletedRelationships())
+                if (r.isType(ERelations.HAS_RELATION_TYPE))
+                    changes.touched.add(r.getStartNodeId());
+            for (PropertyEntry<Node> pe : data.assignedNodeProperties())
+                noteType(pe, data, changes.touched);
+            for (PropertyEntry<Node> pe : data.removedNodeProperties())
+                noteType(pe, data, changes.touched);
+            // A tradition that is deleted, or marked for deletion, loses its label
+            for (LabelEntry le : data.removedLabels()) {
+                String label = le.label().name();
+                if (label.equals(Nodes.TRADITION.name()))
+                    changes.touched.add(le.node().getId());
+                if (data.isDeleted(le.node())
+                        && (label.equals(Nodes.TRADITION.name()) || label.equals(Nodes.DELETED.name())))
+                    changes.deleted.add(le.node().getId());
+            }
+            return changes;
+        }
+
+        private void noteType(PropertyEntry<Node> pe, TransactionData data, Set<Long> touched) {
+            Node n = pe.entity();
+            if (TYPE_PROPERTIES.contains(pe.key()) && !data.isDeleted(n) && n.hasLabel(Nodes.RELATION_TYPE)) {
+                Relationship r = n.getSingleRelationship(ERelations.HAS_RELATION_TYPE, Direction.INCOMING);
+                if (r != null) touched.add(r.getStartNodeId());
+            }
+        }
+
+        @Override
+        public void afterCommit(TransactionData data, Changes changes) {
+            ownChanges.get().clear();
+            if (changes.touched.isEmpty() && changes.deleted.isEmpty()) return;
+            synchronized (registries) {
+                for (Map<Long, Long> forDb : generations.values()) {
+                    for (Long id : changes.touched)
+                        forDb.merge(id, 1L, Long::sum);
+                    // A tradition that is gone needs no more counting
+                    forDb.keySet().removeAll(changes.deleted);
+                }
+                for (Map<Long, RelationTypeRegistry> forDb : registries.values()) {
+                    forDb.keySet().removeAll(changes.touched);
+                    forDb.keySet().removeAll(changes.deleted);
+                }
+            }
+        }
+
+        @Override
+        public void afterRollback(TransactionData data, Changes changes) {
+            // The shared registries never see uncommitted changes, so only our own view is
+            // out of date.
+            ownChanges.get().clear();
+        }
+    }
+}
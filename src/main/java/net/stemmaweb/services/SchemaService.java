@@ -0,0 +1,188 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.rest.Nodes;
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.schema.ConstraintDefinition;
+import org.neo4j.graphdb.schema.IndexCreator;
+import org.neo4j.graphdb.schema.IndexDefinition;
+import org.neo4j.graphdb.schema.Schema;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.logging.Log;
+import org.neo4j.logging.internal.LogService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Creates and maintains the schema indexes and constraints that our lookups depend on,
+ * together with any derived data that the code expects existing databases to carry. The
+ * schema version that has been applied is recorded on the root node, so that each
+ * migration step runs exactly once per database. Progress is reported in the database's
+ * own log, alongside its startup messages.
+ *
+ * @author tla
+ */
+public class SchemaService {
+
+    private static final String VERSION_KEY = "schema_version";
+    private static final long INDEX_WAIT_SECONDS = 600;
+    private static final long PROGRESS_POLL_MILLIS = 2000;
+
+    // The list of migration steps, in order. The schema version of a database is the
+    // number of steps that have been applied to it; new steps must only ever be appended.
+    // A step either adds schema indexes and constraints, or fills in data that older
+    // databases lack; the two kinds are never mixed in one step, since schema and data
+    // changes may not share a transaction.
+    private static final List<Consumer<GraphDatabaseService>> MIGRATIONS = new ArrayList<>();
+    static {
+        // Version 1 (schema): the lookup keys used by nearly every request
+        MIGRATIONS.add(db -> {
+            uniqueConstraint(db, Nodes.TRADITION, "id");
+            uniqueConstraint(db, Nodes.USER, "id");
+            index(db, Nodes.READING, "section_id");
+            index(db, Nodes.WITNESS, "sigil");
+        });
+        // Version 2 (data): witness bitmaps on the sequence links of existing traditions
+        MIGRATIONS.add(WitnessIndex::indexAll);
+        // Version 3 (schema): the reading texts of a section, for generalising relations
+        MIGRATIONS.add(db -> {
+            index(db, Nodes.READING, "section_id", "text");
+            index(db, Nodes.READING, "section_id", "normal_form");
+        });
+    }
+
+    /**
+     * Bring the database up to the current schema version, running any schema and data
+     * migrations it lacks, and wait for any new indexes to come online. The root node must already exist.
+     *
+     * @param db - the GraphDatabaseService to migrate
+     */
+    public static void migrate(GraphDatabaseService db) {
+        int version = currentVersion(db);
+        for (int i = version; i < MIGRATIONS.size(); i++) {
+            MIGRATIONS.get(i).accept(db);
+            awaitIndexes(db);
+            try (Transaction tx = db.beginTx()) {
+                db.findNode(Nodes.ROOT, "name", "Root node").setProperty(VERSION_KEY, (long) i + 1);
+                tx.success();
+            }
+            log(db).info("Database schema migrated to version %d", i + 1);
+        }
+    }
+
+    /**
+     * Return the schema version that has been applied to the given database.
+     *
+     * @param db - the GraphDatabaseService to query
+     * @return the number of migration steps that have been applied
+     */
+    public static int currentVersion(GraphDatabaseService db) {
+        int version = 0;
+        try (Transaction tx = db.beginTx()) {
+            Node root = db.findNode(Nodes.ROOT, "name", "Root node");
+            if (root != null)
+                version = ((Long) root.getProperty(VERSION_KEY, 0L)).intValue();
+            tx.success();
+        }
+        return version;
+    }
+
+    /**
+     * Return the schema version that this code expects.
+     *
+     * @return the number of defined migration steps
+     */
+    public static int targetVersion() {
+        return MIGRATIONS.size();
+    }
+
+    // Wait for all indexes to finish populating, reporting on progress as we go.
+    private static void awaitIndexes(GraphDatabaseService db) {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(INDEX_WAIT_SECONDS);
+        while (true) {
+            try (Transaction tx = db.beginTx()) {
+                Schema schema = db.schema();
+                try {
+                    schema.awaitIndexesOnline(PROGRESS_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    tx.success();
+                    return;
+                } catch (IllegalStateException e) {
+                    // Either an index failed, or we ran out of patience; find out which.
+                    List<String> populating = new ArrayList<>();
+                    for (IndexDefinition idx : schema.getIndexes()) {
+                        Schema.IndexState state = schema.getIndexState(idx);
+                        if (state.equals(Schema.IndexState.FAILED))
+                            throw new RuntimeException("Index population failed on " + describe(idx) + ": "
+                                    + schema.getIndexFailure(idx));
+                        if (state.equals(Schema.IndexState.POPULATING))
+                            populating.add(String.format("%s %.1f%%", describe(idx),
+                                    schema.getIndexPopulationProgress(idx).getCompletedPercentage()));
+                    }
+                    if (System.currentTimeMillis() > deadline)
+                        throw new RuntimeException("Timed out waiting for indexes: " + String.join(", ", populating));
+                    log(db).info("Populating indexes: %s", String.join(", ", populating));
+                    tx.success();
+                }
+            }
+        }
+    }
+
+    private static Log log(GraphDatabaseService db) {
+        return ((GraphDatabaseAPI) db).getDependencyResolver()
+                .resolveDependency(LogService.class, DependencyResolver.SelectionStrategy.ONLY)
+                .getUserLog(SchemaService.class);
+    }
+
+    private static String describe(IndexDefinition idx) {
+        return String.format(":%s(%s)", idx.getLabel().name(), String.join(",", idx.getPropertyKeys()));
+    }
+
+    // Whether there is an index on exactly the given properties, in that order
+    private static boolean hasIndex(Schema schema, Label label, String... properties) {
+        for (IndexDefinition idx : schema.getIndexes(label)) {
+            List<String> keys = new ArrayList<>();
+            idx.getPropertyKeys().forEach(keys::add);
+            if (keys.equals(Arrays.asList(properties))) return true;
+        }
+        return false;
+    }
+
+    // Schema changes may not share a transaction with data changes, so each of these
+    // helpers makes its change in a transaction of its own.
+    private static void index(GraphDatabaseService db, Label label, String... properties) {
+        try (Transaction tx = db.beginTx()) {
+            if (!hasIndex(db.schema(), label, properties)) {
+                IndexCreator creator = db.schema().indexFor(label);
+                for (String property : properties)
+                    creator = creator.on(property);
+                creator.create();
+            }
+            tx.success();
+        }
+    }
+
+    // Create a uniqueness constraint, which brings its own index with it. If the existing
+    // data violates the constraint, we make do with a plain index and say so.
+    private static void uniqueConstraint(GraphDatabaseService db, Label label, String property) {
+        try (Transaction tx = db.beginTx()) {
+            Schema schema = db.schema();
+            for (ConstraintDefinition cd : schema.getConstraints(label))
+                for (String key : cd.getPropertyKeys())
+                    if (key.equals(property)) return;
+            if (hasIndex(schema, label, property)) {
+                log(db).warn("Index on :%s(%s) already exists; not adding a uniqueness constraint",
+                        label.name(), property);
+                return;
+            }
+            schema.constraintFor(label).assertPropertyIsUnique(property).create();
+            tx.success();
+        } catch (ConstraintViolationException | TransactionFailureException e) {
+            log(db).warn("Existing :%s(%s) values are not unique; creating a plain index instead",
+                    label.name(), property);
+            index(db, label, property);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.rest.ERelations;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+
+import java.util.*;
+
+/**
+ * The alignment table of a section, or of a normalized view of it, as the readings that fill
+ * its cells. AlignmentModel makes its tokens from these rows, and the tabular exporters write
+ * them out directly, so that every form of the table has the same rows.
+ * <p>
+ * The table is worked out in a single pass over the section. The sequence graph is read once,
+ * noting which witness layers exist as we go; then the readings are visited in rank order, and
+ * each witness row (one per witness layer) is advanced whenever its cursor reaches the reading
+ * being visited. The rows come out exactly as a separate WitnessPath traversal would produce them.
+ * NOTE: for use in a transaction!
+ *
+ * @author tla
+ */
+public class SectionAlignment {
+
+    private final NormalizedSection normalized;
+    private final long length;
+    // The sigla of the rows in the table (with any layer in parentheses), and the witness
+    // and layer that each belongs to
+    private final Map<String, String[]> rowKeys = new TreeMap<>();
+    // The readings of each row, one per rank, once the sweep has been made
+    private final Map<String, List<Node>> rows = new HashMap<>();
+
+    /**
+     * Work out the alignment table of a section, or of a normalized view of it.
+     *
+     * @param sectionNode   - the section in question
+     * @param normalized    - the normalized view of the section, or null for the graph as it is
+     * @param excludeLayers - if true, make rows only for the base text of each witness
+     */
+    public SectionAlignment(Node sectionNode, NormalizedSection normalized, boolean excludeLayers) {
+        this(sectionNode, normalized, excludeLayers, true);
+    }
+
+    /**
+     * Find which rows the alignment table of a section has, without working out their contents.
+     * A normalized view of the section has the same rows as the section itself.
+     *
+     * @param sectionNode   - the section in question
+     * @param excludeLayers - if true, count only the base text of each witness
+     * @return the sigla of the rows, with any layer in parentheses, in sorted order
+     */
+    public static Set<String> sigla(Node sectionNode, boolean excludeLayers) {
+        return new SectionAlignment(sectionNode, null, excludeLayers, false).getSigla();
+    }
+
+    private SectionAlignment(Node sectionNode, NormalizedSection normalized, boolean excludeLayers,
+                             boolean sweep) {
+        GraphDatabaseService db = sectionNode.getGraphDatabase();
+        String sectId = String.valueOf(sectionNode.getId());
+        Node traditionNode = VariantGraphService.getTraditionNode(sectionNode);
+        Node startNode = VariantGraphService.getStartNode(sectId, db);
+        this.normalized = normalized;
+        length = (long) VariantGraphService.getEndNode(sectId, db).getProperty("rank") - 1;
+
+        // Read the sequence links for the section readings, either normalized or not, and
+        // collect the witness layers that appear on them.
+        WitnessIndex index = new WitnessIndex(traditionNode);
+        Map<Node, List<SequenceStep>> successors = new HashMap<>();
+        Map<Node, Long> ranks = new HashMap<>();
+        Map<String, Set<String>> witnessLayers = new HashMap<>();
+        ArrayDeque<Node> toRead = new ArrayDeque<>();
+        toRead.add(startNode);
+        ranks.put(startNode, 0L);
+        while (!toRead.isEmpty()) {
+            Node n = toRead.poll();
+            Iterable<Relationship> links = normalized == null
+                    ? n.getRelationships(Direction.OUTGOING, ERelations.SEQUENCE)
+                    : normalized.getSequences(n, Direction.OUTGOING);
+            List<SequenceStep> steps = new ArrayList<>();
+            for (Relationship link : links) {
+                SequenceStep step = new SequenceStep(link, index);
+                steps.add(step);
+                for (int bit : step.bitIndices()) {
+                    String layer = index.classOf(bit);
+                    if (!layer.equals("witnesses"))
+                        witnessLayers.computeIfAbsent(index.sigilOf(bit), k -> new HashSet<>()).add(layer);
+                }
+                if (!ranks.containsKey(step.target)) {
+                    ranks.put(step.target, Long.valueOf(step.target.getProperty("rank").toString()));
+                    toRead.add(step.target);
+                }
+            }
+            successors.put(n, steps);
+        }
+
+        // There is a row for the base text of each witness, and for each of its layers, that
+        // has any reading in the section; that is, whose way out of the start node leads to
+        // something other than the end node.
+        for (Node w : DatabaseService.getRelated(traditionNode, ERelations.HAS_WITNESS)) {
+            String sigil = w.getProperty("sigil").toString();
+            addRow(sigil, null, successors.get(startNode), index);
+            if (!excludeLayers)
+                for (String layer : witnessLayers.getOrDefault(sigil, Collections.emptySet()))
+                    addRow(sigil, layer, successors.get(startNode), index);
+        }
+        if (sweep)
+            sweep(startNode, successors, ranks, index);
+    }
+
+    private void addRow(String sigil, String layer, List<SequenceStep> fromStart, WitnessIndex index) {
+        List<String> alternatives = layer == null ? Collections.emptyList() : Collections.singletonList(layer);
+        for (SequenceStep step : WitnessCursor.chooseLinks(fromStart, s -> s.bits, sigil, alternatives, index))
+            if (!step.target.hasProperty("is_end")) {
+                rowKeys.put(layer == null ? sigil : String.format("%s (%s)", sigil, layer),
+                        new String[]{sigil, layer});
+                return;
+            }
+    }
+
+    // Visit the readings in rank order, moving each waiting cursor on to its next reading.
+    // Rank order is topological, unless a normalization has folded transposed readings
+    // together; then a witness may leave a reading by more than one link, or come back
+    // to a reading it has already passed. In the first case the cursor branches, and in
+    // the second it stops, just as the depth-first traversal would.
+    private void sweep(Node startNode, Map<Node, List<SequenceStep>> successors, Map<Node, Long> ranks,
+                       WitnessIndex index) {
+        // For each row we make a cursor; they all start out waiting at the start node.
+        Map<String, RowCursor> cursors = new LinkedHashMap<>();
+        rowKeys.forEach((k, v) -> cursors.put(k, new RowCursor(v[0], v[1], null)));
+        Map<Node, List<RowCursor>> waiting = new HashMap<>();
+        waiting.put(startNode, new ArrayList<>(cursors.values()));
+
+        PriorityQueue<Node> toVisit = new PriorityQueue<>(Comparator.comparing(ranks::get));
+        toVisit.add(startNode);
+        while (!toVisit.isEmpty()) {
+            Node n = toVisit.poll();
+            List<RowCursor> here = waiting.remove(n);
+            if (here == null) continue;
+            for (RowCursor cursor : here) {
+                List<SequenceStep> next = WitnessCursor.chooseLinks(successors.get(n), s -> s.bits,
+                        cursor.sigil, cursor.alternatives, index);
+                for (SequenceStep step : next) {
+                    RowCursor moving = next.size() == 1 ? cursor : cursor.branch();
+                    boolean backward = ranks.get(step.target) <= ranks.get(n);
+                    if ((backward || moving.doublesBack) && moving.hasVisited(step.target, startNode))
+                        continue;
+                    moving.doublesBack |= backward;
+                    moving.path.add(step.target);
+                    if (!waiting.containsKey(step.target)) {
+                        waiting.put(step.target, new ArrayList<>());
+                        toVisit.add(step.target);
+                    }
+                    waiting.get(step.target).add(moving);
+                }
+            }
+        }
+
+        // Now space out the readings of each row, one per rank.
+        cursors.forEach((sigil, cursor) -> {
+            List<Node> tokens = new ArrayList<>();
+            for (Node r : cursor.readings()) {
+                if (r.hasProperty("is_end"))
+                    continue;
+                // Put it at its proper rank, filling nulls or the lacuna into the gap
+                Node filler = r.getProperty("is_lacuna", false).equals(true) ? r : null;
+                long currRankIndex = ranks.get(r) - 1;
+                for (long i = tokens.size(); i < currRankIndex; i++)
+                    tokens.add(filler);
+                tokens.add(r);
+            }
+            // Fill in any empty ranks at the end
+            for (long i = tokens.size(); i < length; i++)
+                tokens.add(null);
+            rows.put(sigil, Collections.unmodifiableList(tokens));
+        });
+    }
+
+    /**
+     * @return the normalized view of the section, or null if there is none
+     */
+    public NormalizedSection getNormalized() {
+        return normalized;
+    }
+
+    /**
+     * @return the number of ranks in the table
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return the sigla of the rows that the table has, with any layer in parentheses, in sorted order
+     */
+    public Set<String> getSigla() {
+        return rowKeys.keySet();
+    }
+
+    /**
+     * @param sigil - the sigil of a witness, with any layer in parentheses
+     * @return true if the table has a row for the witness
+     */
+    public boolean hasRow(String sigil) {
+        return rowKeys.containsKey(sigil);
+    }
+
+    /**
+     * Return the tokens of the given row, one for each rank. Each token is a reading, or null
+     * where the witness has no reading; a gap in the witness before a lacuna is filled with
+     * the lacuna. A witness that doubles back in a normalized view has more tokens than
+     * there are ranks.
+     *
+     * @param sigil - the sigil of a witness, with any layer in parentheses
+     * @return the tokens of the row
+     */
+    public List<Node> row(String sigil) {
+        return rows.get(sigil);
+    }
+
+    // A sequence link as read from the graph, with its witness bitmap
+    private static class SequenceStep {
+        private final Node target;
+        private final long[] bits;
+
+        SequenceStep(Relationship link, WitnessIndex index) {
+            target = link.getEndNode();
+            bits = index.bitsOf(link);
+        }
+
+        List<Integer> bitIndices() {
+            List<Integer> result = new ArrayList<>();
+            for (int i = 0; i < bits.length * 64; i++)
+                if (WitnessIndex.isSet(bits, i)) result.add(i);
+            return result;
+        }
+    }
+
+    // The position of a witness, or one of its layers, in the sweep. A cursor that branches
+    // hands on to one new cursor per branch; its readings are then its own path followed
+    // by those of each branch in turn. The links to follow are chosen as for a WitnessCursor.
+    private static class RowCursor {
+        private final String sigil;
+        private final String layer;
+        private final List<String> alternatives;
+        private final RowCursor parent;
+        private final List<Node> path = new ArrayList<>();
+        private final List<RowCursor> branches = new ArrayList<>();
+        private boolean doublesBack = false;
+
+        RowCursor(String sigil, String layer, RowCursor parent) {
+            this.sigil = sigil;
+            this.layer = layer;
+            this.alternatives = layer == null ? Collections.emptyList() : Collections.singletonList(layer);
+            this.parent = parent;
+        }
+
+        RowCursor branch() {
+            RowCursor b = new RowCursor(sigil, layer, this);
+            b.doublesBack = doublesBack;
+            branches.add(b);
+            return b;
+        }
+
+        // Whether the reading is already on the path that led to this cursor
+        boolean hasVisited(Node n, Node startNode) {
+            if (n.equals(startNode)) return true;
+            for (RowCursor c = this; c != null; c = c.parent)
+                if (c.path.contains(n)) return true;
+            return false;
+        }
+
+        List<Node> readings() {
+            List<Node> result = new ArrayList<>(path);
+            for (RowCursor b : branches)
+                result.addAll(b.readings());
+            return result;
+        }
+    }
+}
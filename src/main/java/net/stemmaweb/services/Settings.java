@@ -0,0 +1,60 @@
+package net.stemmaweb.services;
+
+import org.neo4j.graphdb.DependencyResolver;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.logging.FormattedLogProvider;
+import org.neo4j.logging.Log;
+import org.neo4j.logging.internal.LogService;
+
+/**
+ * Reads the numeric settings that can be given to the application through environment
+ * variables, such as STEMMAREST_IMPORT_THREADS. A value that is not a number is reported in
+ * the database's log and the default used instead; a value below the minimum is raised to it.
+ *
+ * @author tla
+ */
+public class Settings {
+
+    /**
+     * @param name         - the name of the environment variable
+     * @param defaultValue - the value to use if it is not set, or set to something we can't read
+     * @param min          - the lowest value that makes sense for the setting
+     * @return the value of the setting
+     */
+    public static int getInt(String name, int defaultValue, int min) {
+        return (int) Math.min(Integer.MAX_VALUE, getLong(name, defaultValue, min));
+    }
+
+    /**
+     * @param name         - the name of the environment variable
+     * @param defaultValue - the value to use if it is not set, or set to something we can't read
+     * @param min          - the lowest value that makes sense for the setting
+     * @return the value of the setting
+     */
+    public static long getLong(String name, long defaultValue, long min) {
+        String value = System.getenv(name);
+        if (value == null) return defaultValue;
+        try {
+            return Math.max(min, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            log().warn("Ignoring bad value %s for %s", value, name);
+            return defaultValue;
+        }
+    }
+
+    // The database's own log, or the console if there is no database yet
+    private static Log log() {
+        GraphDatabaseService db = new GraphDatabaseServiceProvider().getDatabase();
+        if (db instanceof GraphDatabaseAPI) {
+            try {
+                return ((GraphDatabaseAPI) db).getDependencyResolver()
+                        .resolveDependency(LogService.class, DependencyResolver.SelectionStrategy.ONLY)
+                        .getUserLog(Settings.class);
+            } catch (RuntimeException ignored) {
+                // The database has been shut down
+            }
+        }
+        return FormattedLogProvider.toOutputStream(System.err).getLog(Settings.class);
+    }
+}
@@ -0,0 +1,181 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.model.RelationModel;
+import net.stemmaweb.model.RelationTypeModel;
+import net.stemmaweb.rest.ERelations;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Works out which relations are missing from groups of readings that are joined by transitive
+ * relation types. A group is made of the readings that can be reached from a given reading
+ * through relations of a given type, or of transitive types that are bound more closely (i.e.
+ * have a lower bindlevel). Every reading in the group should be related to every other, and
+ * every reading that is related to a member by a more loosely bound transitive type should be
+ * related in that way to the rest of the group as well.
+ * <p>
+ * The relations of each reading are read from the database once, the first time the reading is
+ * reached, and are kept in memory along with the relations that the closure has asked for; so
+ * a series of groups can be closed one after another, each taking account of what is still to
+ * be made for the ones before, and the missing relations can then be created all at once.
+ * NOTE: for use in a transaction!
+ *
+ * @author tla
+ */
+public class TransitiveClosure {
+
+    private final Function<String, RelationTypeModel> typeLookup;
+    // The relations of each reading we have looked at, both stored and still to be made
+    private final Map<Node, List<Link>> links = new HashMap<>();
+
+    /**
+     * A relation between two readings, either in the database already or still to be made.
+     */
+    public static class Link {
+        private final Node source;
+        private final Node target;
+        private final String type;
+        private final Relationship stored;
+        private final RelationModel model;
+
+        private Link(Relationship stored) {
+            this.source = stored.getStartNode();
+            this.target = stored.getEndNode();
+            this.type = stored.getProperty("type").toString();
+            this.stored = stored;
+            this.model = null;
+        }
+
+        private Link(Node source, Node target, RelationModel model) {
+            this.source = source;
+            this.target = target;
+            this.type = model.getType();
+            this.stored = null;
+            this.model = model;
+        }
+
+        private Node otherNode(Node n) {
+            return n.equals(source) ? target : source;
+        }
+
+        public Node getSource() {
+            return source;
+        }
+
+        public Node getTarget() {
+            return target;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        /**
+         * @return a model with the properties that the relation has, or should be given
+         */
+        public RelationModel getModel() {
+            return model == null ? new RelationModel(stored) : model;
+        }
+    }
+
+    /**
+     * @param typeLookup - the function that gives the relation type model for a type name,
+     *                   e.g. from a cache
+     */
+    public TransitiveClosure(Function<String, RelationTypeModel> typeLookup) {
+        this.typeLookup = typeLookup;
+    }
+
+    // The relations of the reading, read from the database on first use
+    private List<Link> linksOf(Node n) {
+        return links.computeIfAbsent(n, x -> {
+            List<Link> found = new ArrayList<>();
+            for (Relationship r : x.getRelationships(ERelations.RELATED))
+                found.add(new Link(r));
+            return found;
+        });
+    }
+
+    private boolean related(Node a, Node b) {
+        for (Link l : linksOf(a))
+            if (l.otherNode(a).equals(b)) return true;
+        return false;
+    }
+
+    /**
+     * Find the group of readings that are joined to the given one by the given relation type,
+     * or by transitive types that are bound more closely.
+     *
+     * @param start - the reading to start from
+     * @param rtm   - the transitive relation type
+     * @return the group, including the start reading
+     */
+    public Set<Node> cluster(Node start, RelationTypeModel rtm) {
+        Set<Node> cluster = new LinkedHashSet<>();
+        ArrayDeque<Node> toVisit = new ArrayDeque<>();
+        cluster.add(start);
+        toVisit.add(start);
+        while (!toVisit.isEmpty()) {
+            Node n = toVisit.poll();
+            for (Link l : linksOf(n)) {
+                if (!l.type.equals(rtm.getName())) {
+                    RelationTypeModel othertm = typeLookup.apply(l.type);
+                    if (!othertm.getIs_transitive() || othertm.getBindlevel() >= rtm.getBindlevel())
+                        continue;
+                }
+                Node m = l.otherNode(n);
+                if (cluster.add(m)) toVisit.add(m);
+            }
+        }
+        return cluster;
+    }
+
+    /**
+     * Work out the relations that are missing from the group, and note them as though they
+     * had already been made.
+     *
+     * @param cluster - a group of readings found with {@link #cluster(Node, RelationTypeModel)}
+     * @param model   - the relation whose properties should be given to new relations
+     *                within the group
+     * @param rtm     - the relation type by which the group was found
+     * @return the relations to be made, in the order they were found
+     */
+    public List<Link> close(Set<Node> cluster, RelationModel model, RelationTypeModel rtm) {
+        List<Link> missing = new ArrayList<>();
+        List<Node> members = new ArrayList<>(cluster);
+        // Every reading in the group is related to every other...
+        for (int i = 0; i < members.size(); i++)
+            for (int j = i + 1; j < members.size(); j++)
+                if (!related(members.get(i), members.get(j)))
+                    missing.add(plan(members.get(i), members.get(j), model));
+
+        // ...and any reading more loosely related to one of them is related in the same way
+        // to all of them.
+        for (Node sibling : members) {
+            for (Link l : new ArrayList<>(linksOf(sibling))) {
+                RelationTypeModel othertm = typeLookup.apply(l.type);
+                if (othertm.getBindlevel() <= rtm.getBindlevel() || !othertm.getIs_transitive())
+                    continue;
+                Node cousin = l.otherNode(sibling);
+                RelationModel looser = null;
+                for (Node c : members) {
+                    if (c.equals(cousin) || related(cousin, c)) continue;
+                    if (looser == null) looser = l.getModel();
+                    missing.add(plan(cousin, c, looser));
+                }
+            }
+        }
+        return missing;
+    }
+
+    // Note a relation that is to be made
+    private Link plan(Node source, Node target, RelationModel model) {
+        Link l = new Link(source, target, model);
+        linksOf(source).add(l);
+        linksOf(target).add(l);
+        return l;
+    }
+}
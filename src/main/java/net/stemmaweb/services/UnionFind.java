@@ -0,0 +1,157 @@
+package net.stemmaweb.services;
+
+import java.util.*;
+
+/**
+ * A disjoint-set structure over long keys (typically node IDs), with path compression
+ * and union by size. Keys must be registered with add() before they can be joined;
+ * joins involving unknown keys are ignored. Keys are looked up in an open-addressing
+ * hash table of primitives, so that no boxed Longs are made along the way.
+ *
+ * @author tla
+ */
+public class UnionFind {
+
+    // The hash table from key to position: slots hold the position plus one, or 0 if empty
+    private long[] slotKeys;
+    private int[] slots;
+    private long[] keys;
+    private int[] parent;
+    private int[] size;
+    private int count = 0;
+
+    public UnionFind() {
+        this(16);
+    }
+
+    public UnionFind(int expectedSize) {
+        int capacity = Math.max(expectedSize, 1);
+        keys = new long[capacity];
+        parent = new int[capacity];
+        size = new int[capacity];
+        int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        slotKeys = new long[tableSize];
+        slots = new int[tableSize];
+    }
+
+    /**
+     * Register a key as a singleton set, if it is not already known.
+     *
+     * @param key - the key to add
+     */
+    public void add(long key) {
+        if (indexOf(key) >= 0) return;
+        if (count == keys.length) {
+            int capacity = keys.length * 2;
+            keys = Arrays.copyOf(keys, capacity);
+            parent = Arrays.copyOf(parent, capacity);
+            size = Arrays.copyOf(size, capacity);
+        }
+        keys[count] = key;
+        parent[count] = count;
+        size[count] = 1;
+        if ((count + 1) * 2 > slots.length)
+            rehash(slots.length * 2);
+        insert(key, count++);
+    }
+
+    /**
+     * @param key - the key to look for
+     * @return true if the key has been registered
+     */
+    public boolean contains(long key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * Join the sets containing the two given keys.
+     *
+     * @param a - the first key
+     * @param b - the second key
+     * @return true if two distinct sets were merged, false if they were already joined
+     *     or if either key is unknown
+     */
+    public boolean union(long a, long b) {
+        int ia = indexOf(a);
+        int ib = indexOf(b);
+        if (ia < 0 || ib < 0) return false;
+        int ra = root(ia);
+        int rb = root(ib);
+        if (ra == rb) return false;
+        if (size[ra] < size[rb]) {
+            int t = ra;
+            ra = rb;
+            rb = t;
+        }
+        parent[rb] = ra;
+        size[ra] += size[rb];
+        return true;
+    }
+
+    /**
+     * Return the representative key for the set containing the given key.
+     *
+     * @param key - the key to look up
+     * @return the representative key, or null if the key is unknown
+     */
+    public Long find(long key) {
+        int i = indexOf(key);
+        return i < 0 ? null : keys[root(i)];
+    }
+
+    /**
+     * Return the sets that have more than one member.
+     *
+     * @return a list of sets of keys
+     */
+    public List<Set<Long>> clusters() {
+        Map<Integer, Set<Long>> sets = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            int r = root(i);
+            if (size[r] > 1)
+                sets.computeIfAbsent(r, k -> new HashSet<>()).add(keys[i]);
+        }
+        return new ArrayList<>(sets.values());
+    }
+
+    // The position of the given key, or -1 if it is unknown
+    private int indexOf(long key) {
+        int mask = slots.length - 1;
+        for (int s = hash(key) & mask; slots[s] != 0; s = (s + 1) & mask)
+            if (slotKeys[s] == key) return slots[s] - 1;
+        return -1;
+    }
+
+    private void insert(long key, int position) {
+        int mask = slots.length - 1;
+        int s = hash(key) & mask;
+        while (slots[s] != 0) s = (s + 1) & mask;
+        slotKeys[s] = key;
+        slots[s] = position + 1;
+    }
+
+    private void rehash(int tableSize) {
+        slotKeys = new long[tableSize];
+        slots = new int[tableSize];
+        for (int i = 0; i < count; i++)
+            insert(keys[i], i);
+    }
+
+    // Node IDs are often sequential, so spread their bits before masking
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int root(int i) {
+        int r = i;
+        while (parent[r] != r) r = parent[r];
+        // Compress the path we just walked
+        while (parent[i] != r) {
+            int next = parent[i];
+            parent[i] = r;
+            i = next;
+        }
+        return r;
+    }
+}
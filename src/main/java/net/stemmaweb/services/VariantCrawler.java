@@ -1,5 +1,6 @@
 package net.stemmaweb.services;
 
+import net.stemmaweb.rest.ERelations;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.traversal.BranchState;
 import org.neo4j.graphdb.traversal.Evaluation;
@@ -13,18 +14,46 @@ public class VariantCrawler {
     private final Set<String> lemmaLinks;
     private final Set<Long> lemmaNodes;
     private final RelationshipType followType;
+    private final NormalizedSection normalized;
     private final Set<String> excludeWitnesses;
     // Hash by path string rather than path itself, in case the objects aren't equal
     private final Map<String, Map<String,Set<String>>> pathWitnesses;
+    // The witness dictionary of the tradition, looked up from the first link we see
+    private WitnessIndex witnessIndex;
 
     public VariantCrawler(List<Relationship> lp, RelationshipType rt, List<String> excludeWitnesses) {
         this.lemmaLinks = lp.stream().map(Relationship::toString).collect(Collectors.toSet());
         this.lemmaNodes = lp.stream().map(x -> x.getEndNode().getId()).collect(Collectors.toSet());
         this.excludeWitnesses = new HashSet<>(excludeWitnesses);
         this.followType = rt;
+        this.normalized = null;
         this.pathWitnesses = new HashMap<>();
     }
 
+    public VariantCrawler(List<Relationship> lp, NormalizedSection normalized, List<String> excludeWitnesses) {
+        this.lemmaLinks = lp.stream().map(Relationship::toString).collect(Collectors.toSet());
+        this.lemmaNodes = lp.stream().map(x -> x.getEndNode().getId()).collect(Collectors.toSet());
+        this.excludeWitnesses = new HashSet<>(excludeWitnesses);
+        this.followType = ERelations.SEQUENCE;
+        this.normalized = normalized;
+        this.pathWitnesses = new HashMap<>();
+    }
+
+    // Get the outgoing sequence links from the given node, normalized if need be.
+    private Iterable<Relationship> followLinks(Node n) {
+        return normalized == null
+                ? n.getRelationships(Direction.OUTGOING, followType)
+                : normalized.getSequences(n, Direction.OUTGOING);
+    }
+
+    private WitnessIndex indexFor(Relationship r) {
+        if (witnessIndex == null) {
+            witnessIndex = WitnessIndex.forLink(r);
+            if (witnessIndex == null) witnessIndex = new WitnessIndex(null);
+        }
+        return witnessIndex;
+    }
+
     public Evaluator variantListEvaluator() {
         return path -> {
             // We don't want to return zero-length paths
@@ -55,10 +84,10 @@ public class VariantCrawler {
             public Iterable<Relationship> expand(Path path, BranchState branchState) {
                 // If the path is zero-length, try all continuing paths and record their witnesses
                 if (path.length() == 0) {
-                    Iterable<Relationship> result = path.endNode().getRelationships(Direction.OUTGOING, followType);
+                    Iterable<Relationship> result = followLinks(path.endNode());
                     for (Relationship r: result) {
                         Map<String,Set<String>> pathWits = new HashMap<>();
-                        for (String layer : r.getPropertyKeys()) {
+                        for (String layer : WitnessIndex.witnessClasses(r)) {
                             List<String> followWits = Arrays.stream((String[]) r.getProperty(layer)).filter(
                                     x -> !excludeWitnesses.contains(x)).collect(Collectors.toList());
                             if (!followWits.isEmpty())
@@ -79,40 +108,37 @@ public class VariantCrawler {
                 // Now for each witness sigil in witsSoFar, find the relationship that continues it.
                 Map<String, Relationship> continuations = new HashMap<>();
                 Set<String> baseWits = witsSoFar.getOrDefault("witnesses", new HashSet<>());
-                for (Relationship r : path.endNode().getRelationships(Direction.OUTGOING, followType)) {
+                for (Relationship r : followLinks(path.endNode())) {
+                    // Test the witnesses against the link's bitmap rather than its sigil lists.
+                    WitnessIndex index = indexFor(r);
+                    long[] relBits = index.bitsOf(r);
                     // Do the base layer first.
-                    Set<String> relBaseWits = new HashSet<>(Arrays.asList(
-                            (String[]) r.getProperty("witnesses", new String[0])));
-                    for (String sig : baseWits.stream().filter(relBaseWits::contains).collect(Collectors.toList())) {
-                        continuations.put(sig, r);
+                    for (String sig : baseWits) {
+                        if (WitnessIndex.isSet(relBits, index.bit(sig, "witnesses")))
+                            continuations.put(sig, r);
                     }
                     // Now check whether this relationship continues any non-base witness paths.
                     for (String layer : witsSoFar.keySet()) {
                         if (layer.equals("witnesses")) continue;
-                        if (r.hasProperty(layer)) {
-                            // Get any layer witnesses that are directly continued
-                            Set<String> relLayerWits = new HashSet<>(Arrays.asList((String[]) r.getProperty(layer)));
-                            for (String sig : witsSoFar.get(layer).stream().filter(relLayerWits::contains)
-                                    .collect(Collectors.toList())) {
+                        // Get any layer witnesses that are directly continued
+                        for (String sig : witsSoFar.get(layer)) {
+                            if (WitnessIndex.isSet(relBits, index.bit(sig, layer)))
                                 continuations.put(String.format("%s|%s", sig, layer), r);
-                            }
                         }
                         // Get any layer witnesses that have reverted to the base witness, assuming a direct layer
                         // continuation has not been found
-                        for (String sig : witsSoFar.get(layer).stream().filter(relBaseWits::contains)
-                                .collect(Collectors.toList())) {
-                            String contKey = String.format("%s|%s", sig, layer);
-                            if (!continuations.containsKey(contKey)) continuations.put(contKey, r);
+                        for (String sig : witsSoFar.get(layer)) {
+                            if (WitnessIndex.isSet(relBits, index.bit(sig, "witnesses")))
+                                continuations.putIfAbsent(String.format("%s|%s", sig, layer), r);
                         }
                     }
 
                     // Now get any witnesses that have diverged into some layer from a base witness
-                    for (String layer : r.getPropertyKeys()) {
+                    for (String layer : WitnessIndex.witnessClasses(r)) {
                         if (layer.equals("witnesses")) continue;
-                        Set<String> relLayerWits = new HashSet<>(Arrays.asList((String[]) r.getProperty(layer)));
-                        for (String sig : relLayerWits.stream().filter(baseWits::contains).collect(Collectors.toList())) {
-                            String contKey = String.format("%s|%s", sig, layer);
-                            if (!continuations.containsKey(contKey)) continuations.put(contKey, r);
+                        for (String sig : baseWits) {
+                            if (WitnessIndex.isSet(relBits, index.bit(sig, layer)))
+                                continuations.putIfAbsent(String.format("%s|%s", sig, layer), r);
                         }
                     }
                 }
@@ -103,13 +103,28 @@ public class VariantGraphService {
      * @return          a list of sections, which is empty if the tradition doesn't exist
      */
     public static ArrayList<Node> getSectionNodes(String tradId, GraphDatabaseService db) {
+        return getSectionNodes(tradId, db, false);
+    }
+
+    /**
+     * Return the list of a tradition's sections, ordered by NEXT relationship
+     *
+     * @param tradId            the tradition whose sections to return
+     * @param db                the GraphDatabaseService where the tradition is stored
+     * @param includeImporting  whether to include sections that are still being imported
+     * @return                  a list of sections, which is empty if the tradition doesn't exist
+     */
+    public static ArrayList<Node> getSectionNodes(String tradId, GraphDatabaseService db, boolean includeImporting) {
         Node tradition = getTraditionNode(tradId, db);
         ArrayList<Node> sectionNodes = new ArrayList<>();
         if (tradition == null)
             return sectionNodes;
         ArrayList<Node> sections = DatabaseService.getRelated(tradition, ERelations.PART);
-        int size = sections.size();
         try (Transaction tx = db.beginTx()) {
+            // Sections that are still being imported don't count yet, unless we are the importer
+            if (!includeImporting)
+                sections.removeIf(ImportBatch::isImporting);
+            int size = sections.size();
             for(Node n: sections) {
                 if (!n.getRelationships(Direction.INCOMING, ERelations.NEXT)
                         .iterator()
@@ -121,7 +136,10 @@ public class VariantGraphService {
                             .uniqueness(Uniqueness.NODE_GLOBAL)
                             .traverse(n)
                             .nodes()
-                            .forEach(sectionNodes::add);
+                            .forEach(s -> {
+                                // The sequence runs on into a section that is still being imported
+                                if (includeImporting || !ImportBatch.isImporting(s)) sectionNodes.add(s);
+                            });
                     break;
                 }
             }
@@ -163,145 +181,50 @@ public class VariantGraphService {
     }
 
     /**
-     * Calculate the common readings within a section, either in normalized view or not
+     * Calculate the common readings within a section, and set the is_common property accordingly
      *
      * @param sectionNode - The section for which to perform the calculation
      */
     public static void calculateCommon(Node sectionNode) {
         GraphDatabaseService db = sectionNode.getGraphDatabase();
-        // Get an AlignmentModel for the given section, and go rank by rank to find
-        // the common nodes.
-        AlignmentModel am = new AlignmentModel(sectionNode);
-        Node startNode = VariantGraphService.getStartNode(String.valueOf(sectionNode.getId()), db);
+        Map<Long, Boolean> commonReadings = findCommon(new AlignmentModel(sectionNode));
         try (Transaction tx = db.beginTx()) {
-            // See which kind of flag we are setting
-            String propName = startNode.hasRelationship(ERelations.NSEQUENCE, Direction.OUTGOING) ? "ncommon" : "is_common";
-            // Go through the table rank by rank - if a given rank has only a single reading
-            // apart from lacunae, and no gaps, it is common
-            for (AtomicInteger i = new AtomicInteger(0); i.get() < am.getLength(); i.getAndIncrement()) {
-                List<ReadingModel> readingsAtRank = am.getAlignment().stream()
-                        .map(x -> x.getTokens().get(i.get())).collect(Collectors.toList());
-                HashSet<Long> distinct = new HashSet<>();
-                for (ReadingModel rm : readingsAtRank) {
-                    if (rm == null) distinct.add(0L);
-                    else if (!rm.getIs_lacuna()) distinct.add(Long.valueOf(rm.getId()));
-                }
-                // Set the commonality property. It is true if the size of the 'distinct' set is 1.
-                distinct.stream().filter(x -> x > 0)
-                        .forEach(x -> db.getNodeById(x).setProperty(propName, distinct.size() == 1));
-            }
+            commonReadings.forEach((k, v) -> db.getNodeById(k).setProperty("is_common", v));
             tx.success();
         }
     }
 
-
-    /*
-     * Methods for calcuating and removing shadow graphs - normalization and majority text
-     */
-
     /**
-     * Make a graph normalization sequence on the given section according to the given relation type,
-     * creating NSEQUENCE and REPRESENTS relationships between readings where appropriate, and return
-     * a map of each section node to its representative node.
+     * Calculate the common readings within a normalized view of a section, and note them in
+     * the view. The database is not touched.
      *
-     * @param sectionNode     The section to be normalized
-     * @param normalizeType   The (string) name of the type on which we are normalizing
-     * @return                A HashMap of nodes to their representatives
-     *
-     * @throws                Exception if clusters cannot be got, if the requested relation type doesn't
-     *                        exist, or if something goes wrong with the transaction
+     * @param normalized - The normalized section for which to perform the calculation
      */
-
-    public static HashMap<Node,Node> normalizeGraph(Node sectionNode, String normalizeType) throws Exception {
-        HashMap<Node,Node> representatives = new HashMap<>();
-        GraphDatabaseService db = sectionNode.getGraphDatabase();
-        // Make sure the relation type exists
-        Node tradition = getTraditionNode(sectionNode);
-        Node relType = new RelationTypeModel(normalizeType).lookup(tradition);
-        if (relType == null)
-            throw new Exception("Relation type " + normalizeType + " does not exist in this tradition");
-
+    static void calculateCommon(NormalizedSection normalized) {
+        GraphDatabaseService db = normalized.getSectionNode().getGraphDatabase();
+        Map<Long, Boolean> commonReadings = findCommon(new AlignmentModel(normalized));
         try (Transaction tx = db.beginTx()) {
-            Node sectionStart = sectionNode.getSingleRelationship(ERelations.COLLATION, Direction.OUTGOING).getEndNode();
-            // Get the list of all readings in this section
-            Set<Node> sectionNodes = returnTraditionSection(sectionNode).nodes().stream()
-                    .filter(x -> x.hasLabel(Label.label("READING"))).collect(Collectors.toSet());
-
-            // Find the normalisation clusters and nominate a representative for each
-            String tradId = tradition.getProperty("id").toString();
-            String sectionId = String.valueOf(sectionNode.getId());
-            for (Set<Node> cluster : RelationService.getCloselyRelatedClusters(
-                    tradId, sectionId, db, normalizeType)) {
-                if (cluster.size() == 0) continue;
-                Node representative = RelationService.findRepresentative(cluster);
-                if (representative == null)
-                    throw new Exception("No representative found for cluster");
-                // Set the representative for all cluster members.
-                for (Node n : cluster) {
-                    representatives.put(n, representative);
-                    if (!n.equals(representative))
-                        representative.createRelationshipTo(n, ERelations.REPRESENTS);
-                    if (!sectionNodes.remove(n))
-                        throw new Exception("Tried to make equivalence for node (" + n.getId()
-                                + ": " + n.getAllProperties().toString()
-                                + ") that was not in sectionNodes");
-                }
-            }
-
-            // All remaining un-clustered readings are represented by themselves
-            sectionNodes.forEach(x -> representatives.put(x, x));
-
-            // Make sure we didn't have any accidental recursion in representation
-            for (Node n : representatives.values()) {
-                if (n.hasRelationship(ERelations.REPRESENTS, Direction.INCOMING))
-                    throw new Exception("Recursive representation was created on node " + n.getId() + ": " + n.getAllProperties().toString());
-            }
-
-            // Now that we have done this, make the shadow sequence
-            for (Relationship r : db.traversalDescription().breadthFirst()
-                    .relationships(ERelations.SEQUENCE,Direction.OUTGOING)
-                    .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL).traverse(sectionStart).relationships()) {
-                Node repstart = representatives.getOrDefault(r.getStartNode(), r.getStartNode());
-                Node repend = representatives.getOrDefault(r.getEndNode(), r.getEndNode());
-                ReadingService.transferWitnesses(repstart, repend, r, ERelations.NSEQUENCE);
-            }
-            // and calculate the common readings.
-            calculateCommon(sectionNode);
+            commonReadings.forEach((k, v) -> normalized.setCommon(db.getNodeById(k), v));
             tx.success();
         }
-
-        return representatives;
-
     }
 
-    /**
-     * Clean up after performing normalizeGraph. Removes all NSEQUENCE and REPRESENTS relationships within a section.
-     *
-     * @param sectionNode  the section to clean up
-     * @throws Exception if anything was missed
-     */
-
-    public static void clearNormalization(Node sectionNode) throws Exception {
-        GraphDatabaseService db = sectionNode.getGraphDatabase();
-        try (Transaction tx = db.beginTx()) {
-            Node sectionStartNode = sectionNode.getSingleRelationship(ERelations.COLLATION, Direction.OUTGOING).getEndNode();
-            sectionStartNode.removeProperty("ncommon");
-            db.traversalDescription().breadthFirst()
-                    .relationships(ERelations.NSEQUENCE,Direction.OUTGOING)
-                    .relationships(ERelations.REPRESENTS, Direction.OUTGOING)
-                    .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL)
-                    .traverse(sectionStartNode).relationships()
-                    .forEach(x -> {
-                        x.getEndNode().removeProperty("ncommon");
-                        x.delete();
-                    });
-
-            // TEMPORARY: Check that we aren't polluting the graph DB
-            if (VariantGraphService.returnTraditionSection(sectionNode).relationships()
-                    .stream().anyMatch(x -> x.isType(ERelations.NSEQUENCE) || x.isType(ERelations.REPRESENTS)))
-                throw new Exception("Data consistency error on normalization cleanup of section " + sectionNode.getId());
-            tx.success();
+    // Go through the alignment table rank by rank to find the common nodes. If a given rank has
+    // only a single reading apart from lacunae, and no gaps, it is common.
+    private static Map<Long, Boolean> findCommon(AlignmentModel am) {
+        Map<Long, Boolean> result = new HashMap<>();
+        for (AtomicInteger i = new AtomicInteger(0); i.get() < am.getLength(); i.getAndIncrement()) {
+            List<ReadingModel> readingsAtRank = am.getAlignment().stream()
+                    .map(x -> x.getTokens().get(i.get())).collect(Collectors.toList());
+            HashSet<Long> distinct = new HashSet<>();
+            for (ReadingModel rm : readingsAtRank) {
+                if (rm == null) distinct.add(0L);
+                else if (!rm.getIs_lacuna()) distinct.add(Long.valueOf(rm.getId()));
+            }
+            // The commonality property is true if the size of the 'distinct' set is 1.
+            distinct.stream().filter(x -> x > 0).forEach(x -> result.put(x, distinct.size() == 1));
         }
+        return result;
     }
 
     /**
@@ -311,8 +234,21 @@ public class VariantGraphService {
      * @return an ordered List of READING nodes that make up the majority text
      */
     public static List<Node> calculateMajorityText(Node sectionNode) {
+        return calculateMajorityText(sectionNode, new AlignmentModel(sectionNode));
+    }
+
+    /**
+     * Return a list of nodes which constitutes the majority text for a normalized section.
+     *
+     * @param  normalized - The normalized section to calculate
+     * @return an ordered List of READING nodes that make up the majority text
+     */
+    public static List<Node> calculateMajorityText(NormalizedSection normalized) {
+        return calculateMajorityText(normalized.getSectionNode(), new AlignmentModel(normalized));
+    }
+
+    private static List<Node> calculateMajorityText(Node sectionNode, AlignmentModel am) {
         // Get the IDs of our majority readings by going through the alignment table rank by rank
-        AlignmentModel am = new AlignmentModel(sectionNode);
         ArrayList<Long> majorityReadings = new ArrayList<>();
         for (int rank = 1; rank <= am.getLength(); rank++) {
             int numNulls = 0;
@@ -459,7 +395,7 @@ public class VariantGraphService {
             return lr.getType().name().equals("PART")
                     ? Evaluation.EXCLUDE_AND_CONTINUE : Evaluation.EXCLUDE_AND_PRUNE;
         if (lr.getStartNode().hasLabel(Label.label("SECTION")))
-            return lr.getType().name().equals("HAS_COLLATION")
+            return lr.getType().name().equals("COLLATION")
                     ? Evaluation.EXCLUDE_AND_CONTINUE : Evaluation.EXCLUDE_AND_PRUNE;
         // By this point we should have got to the section start. Follow all readings, knowing that emendations
         // are also readings.
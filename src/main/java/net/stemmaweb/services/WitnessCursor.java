@@ -0,0 +1,179 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.rest.ERelations;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Walks a single witness through a section, one sequence link at a time. At each reading the
+ * cursor chooses the link to follow by the same rules as WitnessPath: if exactly one outgoing
+ * link carries the witness in one of the alternative layers, that link is taken; if more than
+ * one does, the way is ambiguous and the walk stops; otherwise the witness follows its main text.
+ * Should the main text branch, the first link is taken, as a depth-first traversal would.
+ * Readings are produced lazily, and no Path objects are made along the way.
+ * NOTE: for use in a transaction!
+ */
+public class WitnessCursor implements Iterator<Relationship> {
+    private final String sigil;
+    private final List<String> alternatives;
+    private final RelationshipType seqType;
+    private final NormalizedSection normalized;
+    private final Set<Node> visited = new HashSet<>();
+    private WitnessIndex witnessIndex;
+    private Node position;
+    private Relationship nextLink;
+    private boolean finished = false;
+
+    public WitnessCursor(Node startNode, String sigil, List<String> alternatives, RelationshipType seqType) {
+        this(startNode, sigil, alternatives, seqType, null);
+    }
+
+    // Follow the witness through a normalized view of the section, if one is given.
+    public WitnessCursor(Node startNode, String sigil, List<String> alternatives, NormalizedSection normalized) {
+        this(startNode, sigil, alternatives, ERelations.SEQUENCE, normalized);
+    }
+
+    public WitnessCursor(Node startNode, String sigil, List<String> alternatives) {
+        this(startNode, sigil, alternatives, ERelations.SEQUENCE, null);
+    }
+
+    public WitnessCursor(Node startNode, String sigil) {
+        this(startNode, sigil, new ArrayList<>(), ERelations.SEQUENCE, null);
+    }
+
+    private WitnessCursor(Node startNode, String sigil, List<String> alternatives,
+                          RelationshipType seqType, NormalizedSection normalized) {
+        this.sigil = sigil;
+        this.alternatives = alternatives == null ? new ArrayList<>() : alternatives;
+        this.seqType = seqType;
+        this.normalized = normalized;
+        this.position = startNode;
+        visited.add(startNode);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (nextLink == null && !finished) {
+            List<Relationship> links = new ArrayList<>();
+            (normalized == null
+                    ? position.getRelationships(Direction.OUTGOING, seqType)
+                    : normalized.getSequences(position, Direction.OUTGOING)).forEach(links::add);
+            List<Relationship> choice = chooseLinks(links, sigil, alternatives, indexFor(links));
+            // Stop if the way is ambiguous, or if it would take us back to a reading we have passed
+            if (choice.isEmpty() || visited.contains(choice.get(0).getEndNode()))
+                finished = true;
+            else
+                nextLink = choice.get(0);
+        }
+        return nextLink != null;
+    }
+
+    @Override
+    public Relationship next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        Relationship link = nextLink;
+        nextLink = null;
+        position = link.getEndNode();
+        visited.add(position);
+        return link;
+    }
+
+    /**
+     * @return the reading the cursor has most recently reached
+     */
+    public Node position() {
+        return position;
+    }
+
+    /**
+     * Walk the rest of the way, and return the readings reached, not including the one
+     * the cursor is on.
+     *
+     * @return the list of readings
+     */
+    public List<Node> readings() {
+        List<Node> result = new ArrayList<>();
+        while (hasNext()) result.add(next().getEndNode());
+        return result;
+    }
+
+    /**
+     * Walk the rest of the way, and return the links followed.
+     *
+     * @return the list of sequence links
+     */
+    public List<Relationship> links() {
+        List<Relationship> result = new ArrayList<>();
+        while (hasNext()) result.add(next());
+        return result;
+    }
+
+    /**
+     * Choose which of a reading's outgoing links a witness goes on by. If exactly one link
+     * carries the witness in one of the given alternative layers, that is the result; if more
+     * than one does, the result is empty. Otherwise the result is every link that carries
+     * the witness in its main text, in the order given.
+     *
+     * @param links        - the outgoing sequence links of the reading
+     * @param sigil        - the witness sigil
+     * @param alternatives - the layers to prefer over the main text, if any
+     * @param index        - the witness dictionary of the tradition
+     * @return the links to follow
+     */
+    public static List<Relationship> chooseLinks(Iterable<Relationship> links, String sigil,
+                                                 List<String> alternatives, WitnessIndex index) {
+        return chooseLinks(links, index::bitsOf, sigil, alternatives, index);
+    }
+
+    /**
+     * Choose among a reading's outgoing links as above, where the links are represented
+     * by some other object that can supply their witness bitmaps.
+     *
+     * @param links        - the outgoing sequence links of the reading
+     * @param bitsOf       - a function that returns the witness bitmap of a link
+     * @param sigil        - the witness sigil
+     * @param alternatives - the layers to prefer over the main text, if any
+     * @param index        - the witness dictionary of the tradition
+     * @param <T>          - the type that represents a link
+     * @return the links to follow
+     */
+    public static <T> List<T> chooseLinks(Iterable<T> links, Function<T, long[]> bitsOf, String sigil,
+                                          List<String> alternatives, WitnessIndex index) {
+        List<T> result = new ArrayList<>();
+        if (!alternatives.isEmpty()) {
+            T correct = null;
+            for (T r : links) {
+                long[] bits = bitsOf.apply(r);
+                for (String layer : alternatives)
+                    if (WitnessIndex.isSet(bits, index.bit(sigil, layer))) {
+                        if (correct != null) return result;
+                        correct = r;
+                    }
+            }
+            if (correct != null) {
+                result.add(correct);
+                return result;
+            }
+        }
+        int baseBit = index.bit(sigil, "witnesses");
+        for (T r : links)
+            if (WitnessIndex.isSet(bitsOf.apply(r), baseBit))
+                result.add(r);
+        return result;
+    }
+
+    // Look up the witness dictionary from the first link we see.
+    private WitnessIndex indexFor(List<Relationship> links) {
+        if (witnessIndex == null) {
+            if (links.isEmpty()) return new WitnessIndex(null);
+            witnessIndex = WitnessIndex.forLink(links.get(0));
+            if (witnessIndex == null) witnessIndex = new WitnessIndex(null);
+        }
+        return witnessIndex;
+    }
+}
@@ -0,0 +1,397 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.rest.Nodes;
+import org.neo4j.graphdb.*;
+import org.neo4j.kernel.api.KernelTransaction;
+import org.neo4j.kernel.impl.core.ThreadToStatementContextBridge;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+
+import java.util.*;
+
+/**
+ * A per-tradition dictionary that assigns a bit index to each witness sigil and to each
+ * sigil-and-layer combination. Each SEQUENCE relationship carries, alongside its sigil lists,
+ * a bitmap of the witnesses on it, so that traversals can test bits instead of searching
+ * through string arrays. The dictionary is kept on the tradition node; its entries are never
+ * reassigned, only appended to.
+ *
+ * @author tla
+ */
+public class WitnessIndex {
+
+    /** The property on the tradition node that holds the dictionary */
+    public static final String DICTIONARY_KEY = "witness_index";
+    /** The property on each SEQUENCE relationship that holds the witness bitmap */
+    public static final String BITMAP_KEY = "witness_bits";
+
+    private final Node traditionNode;
+    private final List<String> entries = new ArrayList<>();
+    private final Map<String, Integer> lookup = new HashMap<>();
+    private int stored;
+
+    /**
+     * Read the witness dictionary for the given tradition.
+     * NOTE: for use in a transaction!
+     *
+     * @param traditionNode - the tradition whose dictionary we want, or null for a dictionary
+     *                      that is only kept in memory
+     */
+    public WitnessIndex(Node traditionNode) {
+        this.traditionNode = traditionNode;
+        if (traditionNode != null)
+            for (String e : (String[]) traditionNode.getProperty(DICTIONARY_KEY, new String[0]))
+                addEntry(e);
+        stored = entries.size();
+    }
+
+    /**
+     * Find the witness dictionary that applies to the given sequence link, via the section of
+     * its start reading. Within a transaction, the dictionary of each tradition is read only
+     * once, and the same WitnessIndex is returned for every link in it.
+     * NOTE: for use in a transaction!
+     *
+     * @param link - a SEQUENCE relationship
+     * @return the dictionary, or null if the link is not (yet) part of a tradition
+     */
+    public static WitnessIndex forLink(Relationship link) {
+        Node reading = link.getStartNode();
+        if (!reading.hasProperty("section_id")) return null;
+        Long sectionId = (Long) reading.getProperty("section_id");
+        TransactionCache cache = TransactionCache.current(reading.getGraphDatabase());
+        WitnessIndex found = cache == null ? null : cache.bySection.get(sectionId);
+        if (found != null) return found;
+        try {
+            Node section = reading.getGraphDatabase().getNodeById(sectionId);
+            Relationship part = section.getSingleRelationship(ERelations.PART, Direction.INCOMING);
+            if (part == null) return null;
+            found = forTradition(part.getStartNode(), cache);
+            if (cache != null) cache.bySection.put(sectionId, found);
+            return found;
+        } catch (NotFoundException e) {
+            return null;
+        }
+    }
+
+    // The dictionary for the given tradition, shared with the rest of the transaction if there is one
+    private static WitnessIndex forTradition(Node traditionNode, TransactionCache cache) {
+        if (cache == null) return new WitnessIndex(traditionNode);
+        return cache.byTradition.computeIfAbsent(traditionNode.getId(), k -> new WitnessIndex(traditionNode));
+    }
+
+    /**
+     * @param key - a property key of a SEQUENCE relationship
+     * @return true if the property is a list of witness sigla, i.e. "witnesses" or a layer name
+     */
+    public static boolean isWitnessClass(String key) {
+        return !key.equals(BITMAP_KEY);
+    }
+
+    /**
+     * @param key - a property key
+     * @return true if the property belongs to the witness index, and so should not be exported
+     */
+    public static boolean isIndexProperty(String key) {
+        return key.equals(BITMAP_KEY) || key.equals(DICTIONARY_KEY);
+    }
+
+    /**
+     * @param link - a SEQUENCE relationship
+     * @return the witness classes ("witnesses" and any layers) that are present on the link
+     */
+    public static List<String> witnessClasses(Relationship link) {
+        List<String> result = new ArrayList<>();
+        for (String key : link.getPropertyKeys())
+            if (isWitnessClass(key)) result.add(key);
+        return result;
+    }
+
+    /**
+     * Return the bit index of the given witness in the given class, if it has one.
+     *
+     * @param sigil    - the witness sigil
+     * @param witClass - "witnesses" or the name of a layer
+     * @return the bit index, or -1 if the witness class has never been used in this tradition
+     */
+    public int bit(String sigil, String witClass) {
+        return lookup.getOrDefault(entryKey(sigil, witClass), -1);
+    }
+
+    /**
+     * @param bit - a bit index
+     * @return the sigil of the witness that the bit stands for
+     */
+    public String sigilOf(int bit) {
+        String e = entries.get(bit);
+        int sep = e.indexOf('|');
+        return sep < 0 ? e : e.substring(0, sep);
+    }
+
+    /**
+     * @param bit - a bit index
+     * @return the witness class, i.e. "witnesses" or a layer name, that the bit stands for
+     */
+    public String classOf(int bit) {
+        String e = entries.get(bit);
+        int sep = e.indexOf('|');
+        return sep < 0 ? "witnesses" : e.substring(sep + 1);
+    }
+
+    /**
+     * @return the number of bits that have been assigned
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Return the witness bitmap of the given link. If the link has no stored bitmap, e.g. because
+     * it is a virtual link in a normalized view, the bitmap is worked out from its sigil lists,
+     * without changing the dictionary in the database.
+     *
+     * @param link - a SEQUENCE (or NSEQUENCE) relationship
+     * @return the bitmap of witnesses on the link
+     */
+    public long[] bitsOf(Relationship link) {
+        if (link.hasProperty(BITMAP_KEY))
+            return (long[]) link.getProperty(BITMAP_KEY);
+        return computeBits(link);
+    }
+
+    /**
+     * Set the witness bitmap of the given link according to its sigil lists, adding any
+     * new witness classes to the dictionary.
+     * NOTE: for use in a transaction!
+     *
+     * @param link - the SEQUENCE relationship to update
+     */
+    public void update(Relationship link) {
+        long[] bits = computeBits(link);
+        if (traditionNode != null && entries.size() > stored && store())
+            bits = computeBits(link);
+        if (bits.length == 0)
+            link.removeProperty(BITMAP_KEY);
+        else
+            link.setProperty(BITMAP_KEY, bits);
+    }
+
+    /**
+     * Bring the witness bitmap of the given link up to date, if the link belongs to a tradition.
+     * NOTE: for use in a transaction!
+     *
+     * @param link - the SEQUENCE relationship to update
+     */
+    public static void refresh(Relationship link) {
+        WitnessIndex index = forLink(link);
+        if (index != null)
+            index.update(link);
+        else if (link.hasProperty(BITMAP_KEY))
+            link.removeProperty(BITMAP_KEY);
+    }
+
+    /**
+     * Set the witness bitmaps on all sequence links in the given section.
+     *
+     * @param sectionNode - the section to index
+     */
+    public static void indexSection(Node sectionNode) {
+        GraphDatabaseService db = sectionNode.getGraphDatabase();
+        try (Transaction tx = db.beginTx()) {
+            WitnessIndex index = forTradition(VariantGraphService.getTraditionNode(sectionNode),
+                    TransactionCache.current(db));
+            for (Relationship r : VariantGraphService.returnAllSequences(sectionNode).relationships())
+                if (r.isType(ERelations.SEQUENCE))
+                    index.update(r);
+            tx.success();
+        }
+    }
+
+    /**
+     * Set the witness bitmaps on all sequence links in the given section, as part of an import
+     * that is committed in batches.
+     * NOTE: for use in the import's scope, not in a transaction of its own!
+     *
+     * @param sectionNode - the section to index
+     * @param scope       - the scope of the import
+     */
+    public static void indexSection(Node sectionNode, ImportBatch.Scope scope) {
+        WitnessIndex index = new WitnessIndex(VariantGraphService.getTraditionNode(sectionNode));
+        // Collect the links first, since the traversal cannot outlive a commit
+        List<Relationship> sequences = new ArrayList<>();
+        for (Relationship r : VariantGraphService.returnAllSequences(sectionNode).relationships())
+            if (r.isType(ERelations.SEQUENCE))
+                sequences.add(r);
+        for (Relationship r : sequences) {
+            index.update(r);
+            scope.checkpoint();
+        }
+    }
+
+    /**
+     * @param bits - a witness bitmap
+     * @param bit  - a bit index, or -1
+     * @return true if the bit is set
+     */
+    public static boolean isSet(long[] bits, int bit) {
+        return bit >= 0 && (bit >> 6) < bits.length && (bits[bit >> 6] & (1L << bit)) != 0;
+    }
+
+    /**
+     * @param bits - a witness bitmap
+     * @return true if no bit is set
+     */
+    public static boolean isEmpty(long[] bits) {
+        for (long word : bits)
+            if (word != 0) return false;
+        return true;
+    }
+
+    /**
+     * Return a bitmap of every witness class that belongs to one of the given witnesses.
+     *
+     * @param sigla - the witness sigla
+     * @return the bitmap
+     */
+    public long[] bitsFor(Collection<String> sigla) {
+        long[] result = new long[0];
+        for (int i = 0; i < entries.size(); i++)
+            if (sigla.contains(sigilOf(i)))
+                result = set(result, i);
+        return result;
+    }
+
+    /**
+     * @param bits - a witness bitmap
+     * @param mask - another witness bitmap
+     * @return true if any bit is set in the first bitmap that is not set in the second
+     */
+    public static boolean hasBitsOutside(long[] bits, long[] mask) {
+        for (int i = 0; i < bits.length; i++)
+            if ((bits[i] & ~(i < mask.length ? mask[i] : 0L)) != 0) return true;
+        return false;
+    }
+
+    /**
+     * @param a - a witness bitmap
+     * @param b - another witness bitmap
+     * @return a new bitmap with the bits that are set in either
+     */
+    public static long[] union(long[] a, long[] b) {
+        long[] result = Arrays.copyOf(a, Math.max(a.length, b.length));
+        for (int i = 0; i < b.length; i++) result[i] |= b[i];
+        return result;
+    }
+
+    static long[] set(long[] bits, int bit) {
+        long[] result = bits.length > bit >> 6 ? bits : Arrays.copyOf(bits, (bit >> 6) + 1);
+        result[bit >> 6] |= 1L << bit;
+        return result;
+    }
+
+    // Work out the bitmap from the sigil lists, assigning bits to any witness classes
+    // we haven't seen before
+    private long[] computeBits(Relationship link) {
+        long[] bits = new long[0];
+        for (String witClass : link.getPropertyKeys()) {
+            if (!isWitnessClass(witClass)) continue;
+            for (String sigil : (String[]) link.getProperty(witClass)) {
+                Integer bit = lookup.get(entryKey(sigil, witClass));
+                if (bit == null) bit = addEntry(entryKey(sigil, witClass));
+                bits = set(bits, bit);
+            }
+        }
+        return bits;
+    }
+
+    // Save any new entries to the tradition node. We lock the node and re-read the dictionary
+    // first, in case another transaction has added entries since we read it; returns true
+    // if our new entries had to be renumbered as a result.
+    private boolean store() {
+        boolean renumbered = false;
+        try (Transaction tx = traditionNode.getGraphDatabase().beginTx()) {
+            tx.acquireWriteLock(traditionNode);
+            String[] current = (String[]) traditionNode.getProperty(DICTIONARY_KEY, new String[0]);
+            if (current.length != stored) {
+                List<String> ours = new ArrayList<>(entries.subList(stored, entries.size()));
+                entries.clear();
+                lookup.clear();
+                for (String e : current) addEntry(e);
+                ours.stream().filter(e -> !lookup.containsKey(e)).forEach(this::addEntry);
+                renumbered = true;
+            }
+            traditionNode.setProperty(DICTIONARY_KEY, entries.toArray(new String[0]));
+            stored = entries.size();
+            tx.success();
+        }
+        return renumbered;
+    }
+
+    private int addEntry(String entry) {
+        lookup.put(entry, entries.size());
+        entries.add(entry);
+        return entries.size() - 1;
+    }
+
+    // Sigla may not contain a '|', so it can safely separate the sigil from the layer name.
+    private static String entryKey(String sigil, String witClass) {
+        return witClass.equals("witnesses") ? sigil : sigil + "|" + witClass;
+    }
+
+    /**
+     * Build the dictionary and the bitmaps for every tradition in the database. This is a
+     * one-off migration for databases made before witness bitmaps were introduced.
+     *
+     * @param db - the GraphDatabaseService to migrate
+     */
+    static void indexAll(GraphDatabaseService db) {
+        List<Node> traditions = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            db.findNodes(Nodes.TRADITION).forEachRemaining(traditions::add);
+            tx.success();
+        }
+        for (Node t : traditions) {
+            List<Node> sections;
+            try (Transaction tx = db.beginTx()) {
+                sections = DatabaseService.getRelated(t, ERelations.PART);
+                tx.success();
+            }
+            sections.forEach(WitnessIndex::indexSection);
+        }
+    }
+
+    // The dictionaries that the current thread's transaction has read, so that a run of changes
+    // to the sequence links of a tradition reads and stores its dictionary through one
+    // WitnessIndex. The cache is dropped when the transaction closes; since the kernel reuses
+    // its transaction objects, we also check that it belongs to the transaction now open.
+    private static class TransactionCache {
+        private static final ThreadLocal<TransactionCache> open = new ThreadLocal<>();
+
+        private final KernelTransaction ktx;
+        private final long started;
+        private final Map<Long, WitnessIndex> bySection = new HashMap<>();
+        private final Map<Long, WitnessIndex> byTradition = new HashMap<>();
+
+        private TransactionCache(KernelTransaction ktx) {
+            this.ktx = ktx;
+            this.started = ktx.startTimeNanos();
+        }
+
+        // The cache for the transaction open on this thread, or null if there is none
+        static TransactionCache current(GraphDatabaseService db) {
+            KernelTransaction ktx = ((GraphDatabaseAPI) db).getDependencyResolver()
+                    .resolveDependency(ThreadToStatementContextBridge.class, DependencyResolver.SelectionStrategy.ONLY)
+                    .getKernelTransactionBoundToThisThread(false);
+            if (ktx == null || !ktx.isOpen()) return null;
+            TransactionCache cache = open.get();
+            if (cache == null || cache.ktx != ktx || cache.started != ktx.startTimeNanos()) {
+                TransactionCache created = new TransactionCache(ktx);
+                open.set(created);
+                ktx.registerCloseListener(txId -> {
+                    if (open.get() == created) open.remove();
+                });
+                cache = created;
+            }
+            return cache;
+        }
+    }
+}
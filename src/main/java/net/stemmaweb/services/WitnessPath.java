@@ -19,28 +19,33 @@ public class WitnessPath {
     private final String sigil;
     private final List<String> alternative;
     private final RelationshipType seqType;
+    private final NormalizedSection normalized;
+    private WitnessIndex witnessIndex;
 
     public WitnessPath (String sigil, List<String> alternative, RelationshipType seqType) {
         this.sigil = sigil;
         this.alternative = alternative;
         this.seqType = seqType;
+        this.normalized = null;
     }
 
-    public WitnessPath (String sigil, RelationshipType seqType) {
+    // Follow the witness through a normalized view of the section, if one is given.
+    public WitnessPath (String sigil, List<String> alternative, NormalizedSection normalized) {
         this.sigil = sigil;
-        this.alternative = new ArrayList<>();
-        this.seqType = seqType;
+        this.alternative = alternative;
+        this.seqType = ERelations.SEQUENCE;
+        this.normalized = normalized;
+    }
+
+    public WitnessPath (String sigil, RelationshipType seqType) {
+        this(sigil, new ArrayList<>(), seqType);
     }
 
     public WitnessPath (String sigil, List<String> alternative) {
-        this.sigil = sigil;
-        this.alternative = alternative;
-        this.seqType = ERelations.SEQUENCE;
+        this(sigil, alternative, ERelations.SEQUENCE);
     }
     public WitnessPath (String sigil) {
-        this.sigil = sigil;
-        this.alternative = new ArrayList<>();
-        this.seqType = ERelations.SEQUENCE;
+        this(sigil, new ArrayList<>(), ERelations.SEQUENCE);
     }
 
     public Evaluator getEvalForWitness () {
@@ -53,8 +58,11 @@ public class WitnessPath {
             Relationship correct = null;
             for (String layer : alternative) {
                 Node priorNode = path.lastRelationship().getStartNode();
-                for (Relationship r : priorNode.getRelationships(Direction.OUTGOING, seqType))
-                    if (r.hasProperty(layer) && witnessIn(r.getProperty(layer)))
+                Iterable<Relationship> nextLinks = normalized == null
+                        ? priorNode.getRelationships(Direction.OUTGOING, seqType)
+                        : normalized.getSequences(priorNode, Direction.OUTGOING);
+                for (Relationship r : nextLinks)
+                    if (witnessIn(r, layer))
                         if (correct != null) // There is more than one relevant path; cut the tree off.
                             return Evaluation.EXCLUDE_AND_PRUNE;
                         else
@@ -66,21 +74,20 @@ public class WitnessPath {
                         ? Evaluation.INCLUDE_AND_CONTINUE : Evaluation.EXCLUDE_AND_PRUNE;
 
             // Follow the main path in the absence of an alternative
-            if (path.lastRelationship().hasProperty("witnesses")
-                    && witnessIn(path.lastRelationship().getProperty("witnesses")))
+            if (witnessIn(path.lastRelationship(), "witnesses"))
                 return Evaluation.INCLUDE_AND_CONTINUE;
 
             return Evaluation.EXCLUDE_AND_PRUNE;
         };
     }
 
-    private Boolean witnessIn (Object property) {
-        String[] arr = (String []) property;
-        for (String str : arr) {
-            if (str.equals(sigil)) {
-                return true;
-            }
+    // Test the witness bit on the link; the dictionary is looked up from the first link we see.
+    private boolean witnessIn (Relationship link, String witClass) {
+        if (witnessIndex == null) {
+            witnessIndex = WitnessIndex.forLink(link);
+            if (witnessIndex == null) witnessIndex = new WitnessIndex(null);
         }
-        return false;
+        long[] bits = witnessIndex.bitsOf(link);
+        return WitnessIndex.isSet(bits, witnessIndex.bit(sigil, witClass));
     }
 }
@@ -0,0 +1,188 @@
+package net.stemmaweb.printer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the limits that the rendering service puts on dot, with a stub in place of the
+ * real program.
+ *
+ * @author tla
+ */
+public class GraphVizServiceTest {
+
+    private File workDir;
+    // Each run of a stub adds a line to this file
+    private File runLog;
+
+    @Before
+    public void setUp() throws Exception {
+        workDir = Files.createTempDirectory("graphviz").toFile();
+        runLog = new File(workDir, "runs.log");
+        assertTrue(new File(workDir, "running").mkdir());
+    }
+
+    // A stub that notes how many stubs are running alongside it, takes a while, and then
+    // draws its input
+    private String slowDot() throws Exception {
+        String running = new File(workDir, "running").getPath();
+        return StubGraphViz.write(workDir, String.format("touch %1$s/$$\nls %1$s | wc -l >> %2$s\n"
+                + "sleep 1\nrm %1$s/$$\n%3$s", running, runLog.getPath(), StubGraphViz.ECHO));
+    }
+
+    // A stub that never finishes, and says where to find it
+    private String hangingDot() throws Exception {
+        return StubGraphViz.write(workDir, String.format("echo $$ > %s\nexec sleep 60\n",
+                new File(workDir, "pid").getPath()));
+    }
+
+    private List<Integer> runs() throws Exception {
+        List<Integer> result = new ArrayList<>();
+        if (runLog.exists())
+            for (String line : Files.readAllLines(runLog.toPath()))
+                result.add(Integer.valueOf(line.trim()));
+        return result;
+    }
+
+    // Wait for the hanging stub to start, and return its process ID
+    private long startedProcess() throws Exception {
+        File pid = new File(workDir, "pid");
+        for (int i = 0; i < 100 && pid.length() == 0; i++)
+            Thread.sleep(50);
+        return Long.parseLong(new String(Files.readAllBytes(pid.toPath()), StandardCharsets.UTF_8).trim());
+    }
+
+    private static void assertKilled(long pid) throws Exception {
+        for (int i = 0; i < 100 && ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false); i++)
+            Thread.sleep(50);
+        assertFalse(ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false));
+    }
+
+    @Test
+    public void processLimitTest() throws Exception {
+        GraphVizService service = new GraphVizService(slowDot(), 2, 10000, 1024 * 1024);
+        ExecutorService callers = Executors.newFixedThreadPool(4);
+        List<Future<byte[]>> images = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            String dot = "digraph { " + i + " }";
+            images.add(callers.submit(() -> service.render(dot, "svg")));
+        }
+        for (int i = 0; i < 4; i++)
+            assertEquals("<svg>digraph { " + i + " }</svg>",
+                    new String(images.get(i).get(), StandardCharsets.UTF_8));
+        callers.shutdown();
+
+        // Every graph was drawn, but never more than two at once
+        List<Integer> runs = runs();
+        assertEquals(4, runs.size());
+        for (Integer r : runs)
+            assertTrue(r <= 2);
+    }
+
+    @Test
+    public void timeoutTest() throws Exception {
+        GraphVizService service = new GraphVizService(hangingDot(), 1, 1000, 1024 * 1024);
+        long start = System.currentTimeMillis();
+        try {
+            service.render("digraph { a }", "svg");
+            fail("Rendering should have timed out");
+        } catch (GraphVizService.RenderException e) {
+            assertEquals("Timed out rendering graph", e.getMessage());
+        }
+        assertTrue(System.currentTimeMillis() - start < 10000);
+        assertKilled(startedProcess());
+
+        // The renderer should be free again for the next graph
+        try {
+            service.render("digraph { b }", "svg");
+            fail("Rendering should have timed out");
+        } catch (GraphVizService.RenderException e) {
+            assertEquals("Timed out rendering graph", e.getMessage());
+        }
+    }
+
+    @Test
+    public void shutdownTest() throws Exception {
+        StubGraphViz.install(hangingDot());
+        GraphVizService service = GraphVizService.getInstance();
+        ExecutorService caller = Executors.newSingleThreadExecutor();
+        Future<byte[]> image = caller.submit(() -> service.render("digraph { a }", "svg"));
+        long dot = startedProcess();
+        GraphVizService.shutdown();
+        assertKilled(dot);
+        try {
+            image.get(5, TimeUnit.SECONDS);
+            fail("Rendering should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof GraphVizService.RenderException);
+        }
+        caller.shutdown();
+    }
+
+    @Test
+    public void cacheTest() throws Exception {
+        String dot = "digraph { a -> b }";
+        // Room in the cache for one image of this size, but not two
+        int imageSize = "<svg></svg>".length() + dot.length();
+        GraphVizService service = new GraphVizService(slowDot(), 2, 10000, imageSize + imageSize / 2);
+
+        byte[] first = service.render(dot, "svg");
+        assertSame(first, service.render(dot, "svg"));
+        assertEquals(1, runs().size());
+        // The same source in another format is another image, which pushes the first out
+        byte[] png = service.render(dot, "png");
+        assertEquals(2, runs().size());
+        byte[] again = service.render(dot, "svg");
+        assertNotSame(first, again);
+        assertArrayEquals(first, again);
+        assertEquals(3, runs().size());
+        // and is pushed out in its turn
+        assertNotSame(png, service.render(dot, "png"));
+        assertEquals(4, runs().size());
+
+        // An image too big for the cache is drawn every time
+        GraphVizService tiny = new GraphVizService(slowDot(), 2, 10000, 4);
+        tiny.render(dot, "svg");
+        tiny.render(dot, "svg");
+        assertEquals(6, runs().size());
+    }
+
+    @Test
+    public void sharedRenderTest() throws Exception {
+        GraphVizService service = new GraphVizService(slowDot(), 2, 10000, 1024 * 1024);
+        ExecutorService callers = Executors.newFixedThreadPool(3);
+        CountDownLatch ready = new CountDownLatch(3);
+        List<Future<byte[]>> images = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            images.add(callers.submit(() -> {
+                ready.countDown();
+                ready.await();
+                return service.render("digraph { a }", "svg");
+            }));
+        for (Future<byte[]> f : images)
+            assertEquals("<svg>digraph { a }</svg>", new String(f.get(), StandardCharsets.UTF_8));
+        callers.shutdown();
+        // The three requests came while the first was still being drawn, so dot ran only once
+        assertEquals(1, runs().size());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        GraphVizService.shutdown();
+        try (Stream<Path> files = Files.walk(workDir.toPath())) {
+            files.sorted((a, b) -> b.compareTo(a)).forEach(p -> assertTrue(p.toFile().delete()));
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package net.stemmaweb.printer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Stands in for the Graphviz dot program in the tests, so that they need not depend on
+ * whether it is installed. The stub is a shell script, which can be made to do whatever
+ * the test needs dot to do.
+ *
+ * @author tla
+ */
+public class StubGraphViz {
+
+    /** A dot that draws its input into an SVG document, unchanged */
+    public static final String ECHO = "printf '<svg>'\ncat\nprintf '</svg>'\n";
+
+    /**
+     * Write a stub dot program into the given directory.
+     *
+     * @param dir  - where to put it
+     * @param body - the shell commands it should run
+     * @return the path to the program
+     * @throws IOException if it could not be written
+     */
+    public static String write(File dir, String body) throws IOException {
+        File script = new File(dir, "dot");
+        Files.write(script.toPath(), ("#!/bin/sh\n" + body).getBytes(StandardCharsets.UTF_8));
+        if (!script.setExecutable(true))
+            throw new IOException("Could not make " + script + " executable");
+        return script.getPath();
+    }
+
+    /**
+     * Make the application render its images with the given program, or fail to render them
+     * at all if it is null. {@link GraphVizService#shutdown()} puts the real one back.
+     *
+     * @param dotExecutable - the program to use in place of dot
+     */
+    public static void install(String dotExecutable) {
+        GraphVizService.setInstance(new GraphVizService(dotExecutable, 2, 10000, 1024 * 1024));
+    }
+}
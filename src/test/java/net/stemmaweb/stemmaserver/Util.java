@@ -4,11 +4,13 @@ import com.alexmerz.graphviz.ParseException;
 import com.alexmerz.graphviz.Parser;
 import com.alexmerz.graphviz.objects.Edge;
 import com.alexmerz.graphviz.objects.Graph;
+import net.stemmaweb.model.JobModel;
 import net.stemmaweb.model.ReadingModel;
 import net.stemmaweb.model.SectionModel;
 import net.stemmaweb.rest.Nodes;
 import net.stemmaweb.rest.Root;
 import net.stemmaweb.services.DatabaseService;
+import net.stemmaweb.services.SchemaService;
 import org.apache.commons.io.IOUtils;
 import org.glassfish.jersey.client.ClientResponse;
 import org.glassfish.jersey.media.multipart.FormDataBodyPart;
@@ -180,6 +182,7 @@ public class Util {
     public static void setupTestDB(GraphDatabaseService db, String userId) {
         // Populate the test database with the root node and a user with id 1
         DatabaseService.createRootNode(db);
+        SchemaService.migrate(db);
         try(Transaction tx = db.beginTx()) {
             // Node rootNode = db.findNode(Nodes.ROOT, "name", "Root node");
             Node node = db.createNode(Nodes.USER);
@@ -214,7 +217,7 @@ public class Util {
         }
 
         return appRest.importGraphMl(tName, userId, "false", "Default",
-                tDir, empty, fType, input, fdcd);
+                tDir, empty, fType, input, fdcd, null, null);
     }
 
     public static Response createTraditionFromFileOrString(JerseyTest jerseyTest, String tName, String tDir,
@@ -348,4 +351,23 @@ public class Util {
         return sections.get(0);
     }
 
+    // Wait for the background job of a deletion to clear away what was deleted
+    public static JobModel waitForDeletion(JerseyTest jerseyTest, Response deleted) throws InterruptedException {
+        assertEquals(Response.Status.OK.getStatusCode(), deleted.getStatus());
+        return waitForDeletion(jerseyTest, getValueFromJson(deleted, "jobId"));
+    }
+
+    // Wait for the deletion job with the given ID to finish
+    public static JobModel waitForDeletion(JerseyTest jerseyTest, String jobId) throws InterruptedException {
+        JobModel job = null;
+        for (int i = 0; i < 300; i++) {
+            job = jerseyTest.target("/job/" + jobId).request().get(JobModel.class);
+            if (job.getPhase().equals("finished")) break;
+            Thread.sleep(100);
+        }
+        assertTrue(job != null && job.getPhase().equals("finished"));
+        assertEquals("succeeded", job.getStatus());
+        return job;
+    }
+
 }
@@ -0,0 +1,181 @@
+package net.stemmaweb.stemmaserver.benchmarktests;
+
+import com.carrotsearch.junitbenchmarks.BenchmarkOptions;
+import com.carrotsearch.junitbenchmarks.BenchmarkRule;
+import com.carrotsearch.junitbenchmarks.annotation.AxisRange;
+import com.carrotsearch.junitbenchmarks.annotation.BenchmarkMethodChart;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import net.stemmaweb.model.AlignmentModel;
+import net.stemmaweb.model.ReadingModel;
+import net.stemmaweb.model.RelationTypeModel;
+import net.stemmaweb.model.WitnessTokensModel;
+import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.services.*;
+import net.stemmaweb.stemmaserver.Util;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.traversal.Evaluators;
+import org.neo4j.graphdb.traversal.TraversalDescription;
+import org.neo4j.graphdb.traversal.Uniqueness;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import javax.ws.rs.core.Response;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the single-sweep construction of alignment tables against the per-witness
+ * traversals that AlignmentModel used to make, on the larger of our test traditions.
+ * This is not run as part of the ordinary test suite, but must be requested explicitly
+ * with -Dtest=AlignmentBenchmark.
+ *
+ * @author tla
+ */
+@AxisRange(min = 0, max = 5)
+@BenchmarkMethodChart(filePrefix = "benchmark/benchmark-alignment")
+@BenchmarkOptions(benchmarkRounds = 10, warmupRounds = 3)
+public class AlignmentBenchmark {
+
+    @Rule
+    public TestRule benchmarkRun = new BenchmarkRule();
+
+    private static GraphDatabaseService db;
+    private static final List<Node> sections = new ArrayList<>();
+    private static final List<NormalizedSection> normalizedSections = new ArrayList<>();
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        db = new GraphDatabaseServiceProvider(new TestGraphDatabaseFactory().newImpermanentDatabase()).getDatabase();
+        Util.setupTestDB(db, "user");
+        String[][] fixtures = {
+                {"src/TestFiles/Matthew-418.json", "cxjson"},
+                {"src/TestFiles/besoin.xml", "stemmaweb"},
+                {"src/TestFiles/florilegium_graphml.xml", "stemmaweb"},
+                {"src/TestFiles/milestone-591.zip", "graphml"}};
+        for (String[] f : fixtures) {
+            Response r = Util.createTraditionDirectly("Tradition", "LR", "user", f[0], f[1]);
+            assertEquals(Response.Status.CREATED.getStatusCode(), r.getStatus());
+            String tradId = Util.getValueFromJson(r, "tradId");
+            sections.addAll(VariantGraphService.getSectionNodes(tradId, db));
+        }
+        // Not all of these traditions have collated readings to normalize on
+        for (Node s : sections)
+            if (new RelationTypeModel("collated").lookup(VariantGraphService.getTraditionNode(s)) != null)
+                normalizedSections.add(new NormalizedSection(s, "collated"));
+
+        // Make sure we are comparing like with like
+        ObjectMapper mapper = new ObjectMapper();
+        for (Node s : sections)
+            assertEquals(mapper.writeValueAsString(perWitnessAlignment(s, null)),
+                    mapper.writeValueAsString(new AlignmentModel(s)));
+        for (NormalizedSection ns : normalizedSections)
+            assertEquals(mapper.writeValueAsString(perWitnessAlignment(ns.getSectionNode(), ns)),
+                    mapper.writeValueAsString(new AlignmentModel(ns)));
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        db.shutdown();
+    }
+
+    @Test
+    public void sweepAlignment() {
+        for (Node s : sections)
+            assertTrue(new AlignmentModel(s).getAlignment().size() > 0);
+    }
+
+    @Test
+    public void perWitnessAlignment() {
+        for (Node s : sections)
+            assertTrue(perWitnessAlignment(s, null).getAlignment().size() > 0);
+    }
+
+    @Test
+    public void sweepNormalizedAlignment() {
+        for (NormalizedSection ns : normalizedSections)
+            assertTrue(new AlignmentModel(ns).getAlignment().size() > 0);
+    }
+
+    @Test
+    public void perWitnessNormalizedAlignment() {
+        for (NormalizedSection ns : normalizedSections)
+            assertTrue(perWitnessAlignment(ns.getSectionNode(), ns).getAlignment().size() > 0);
+    }
+
+    @Test
+    public void majorityText() {
+        for (Node s : sections)
+            assertFalse(VariantGraphService.calculateMajorityText(s).isEmpty());
+    }
+
+    // The alignment table as it was made before, with a WitnessPath traversal for each witness layer.
+    private static AlignmentModel perWitnessAlignment(Node sectionNode, NormalizedSection normalized) {
+        AlignmentModel result = new AlignmentModel();
+        try (Transaction tx = db.beginTx()) {
+            String sectId = String.valueOf(sectionNode.getId());
+            Node traditionNode = VariantGraphService.getTraditionNode(sectionNode);
+            Node startNode = VariantGraphService.getStartNode(sectId, db);
+            long length = (long) VariantGraphService.getEndNode(sectId, db).getProperty("rank") - 1;
+            result.setLength(length);
+
+            TraversalDescription sequenceWalker = db.traversalDescription().depthFirst();
+            if (normalized == null)
+                sequenceWalker = sequenceWalker.relationships(ERelations.SEQUENCE, Direction.OUTGOING);
+            else
+                sequenceWalker = sequenceWalker.expand(normalized.sequenceExpander());
+            Iterable<Relationship> sequences = normalized == null
+                    ? sequenceWalker.evaluator(Evaluators.all())
+                        .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL).traverse(startNode).relationships()
+                    : normalized.getAllSequences();
+
+            List<WitnessTokensModel> rows = new ArrayList<>();
+            for (Node w : DatabaseService.getRelated(traditionNode, ERelations.HAS_WITNESS)) {
+                String sigil = w.getProperty("sigil").toString();
+                HashSet<String> layers = new HashSet<>();
+                layers.add("base");
+                for (Relationship seq : sequences)
+                    for (String layer : seq.getPropertyKeys())
+                        if (!layer.equals("witnesses") && WitnessIndex.isWitnessClass(layer)
+                                && Arrays.asList((String[]) seq.getProperty(layer)).contains(sigil))
+                            layers.add(layer);
+
+                for (String layer : layers) {
+                    List<String> alternatives = new ArrayList<>();
+                    if (!layer.equals("base")) alternatives.add(layer);
+                    ArrayList<ReadingModel> tokens = new ArrayList<>();
+                    for (Node r : sequenceWalker
+                            .evaluator(new WitnessPath(sigil, alternatives, normalized).getEvalForWitness())
+                            .uniqueness(Uniqueness.NODE_PATH)
+                            .traverse(startNode)
+                            .nodes()) {
+                        if (r.hasProperty("is_end")) continue;
+                        ReadingModel token = normalized == null
+                                ? new ReadingModel(r) : new ReadingModel(r, normalized);
+                        ReadingModel filler = token.getIs_lacuna() ? token : null;
+                        long currRankIndex = (long) r.getProperty("rank") - 1;
+                        for (int i = tokens.size(); i < currRankIndex; i++)
+                            tokens.add(filler);
+                        tokens.add(token);
+                    }
+                    if (tokens.size() == 0) continue;
+                    for (int i = tokens.size(); i < length; i++)
+                        tokens.add(null);
+                    WitnessTokensModel row = new WitnessTokensModel();
+                    row.setWitness(sigil);
+                    if (!layer.equals("base")) row.setLayer(layer);
+                    row.setTokens(tokens);
+                    rows.add(row);
+                }
+            }
+            rows.sort(Comparator.comparing(WitnessTokensModel::constructSigil));
+            rows.forEach(result::addWitness);
+            tx.success();
+        }
+        return result;
+    }
+}
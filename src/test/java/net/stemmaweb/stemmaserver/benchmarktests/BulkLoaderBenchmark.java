@@ -0,0 +1,145 @@
+package net.stemmaweb.stemmaserver.benchmarktests;
+
+import com.carrotsearch.junitbenchmarks.BenchmarkOptions;
+import com.carrotsearch.junitbenchmarks.BenchmarkRule;
+import com.carrotsearch.junitbenchmarks.annotation.AxisRange;
+import com.carrotsearch.junitbenchmarks.annotation.BenchmarkMethodChart;
+import net.stemmaweb.services.BulkLoader;
+import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.stemmaserver.Util;
+import org.glassfish.jersey.test.JerseyTest;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import javax.ws.rs.core.Response;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the bulk loader with what it replaces, namely uploading each file in turn to a
+ * running server. The loader reads the files with the same parsers that the server uses,
+ * so that what it saves is the HTTP round trip and the multipart handling for each file,
+ * along with whatever it gains by reading several files at once.
+ * This is not run as part of the ordinary test suite, but must be requested explicitly
+ * with -Dtest=BulkLoaderBenchmark.
+ *
+ * @author tla
+ */
+@AxisRange(min = 0, max = 10)
+@BenchmarkMethodChart(filePrefix = "benchmark/benchmark-bulk-loader")
+@BenchmarkOptions(benchmarkRounds = 5, warmupRounds = 2)
+public class BulkLoaderBenchmark {
+
+    @Rule
+    public TestRule benchmarkRun = new BenchmarkRule();
+
+    private static final String[] FIXTURES = {
+            "john.csv", "florilegium.csv", "armexample.xlsx", "m401-annotated.zip",
+            "milestone-591.zip", "Matthew-401.json", "florilegium_tei_ps.xml"};
+    private static final Map<String, String> FILETYPES = new HashMap<>();
+    static {
+        FILETYPES.put("csv", "csv");
+        FILETYPES.put("xlsx", "xlsx");
+        FILETYPES.put("zip", "graphml");
+        FILETYPES.put("json", "cxjson");
+        FILETYPES.put("xml", "teips");
+    }
+    // How many copies of each fixture go into the directory
+    private static final int COPIES = 3;
+
+    private static JerseyTest jerseyTest;
+    private static File inputDir;
+    private GraphDatabaseService db;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        jerseyTest = Util.setupJersey();
+
+        inputDir = Files.createTempDirectory("bulkbench").toFile();
+        for (int i = 0; i < COPIES; i++)
+            for (String f : FIXTURES)
+                Files.copy(new File("src/TestFiles", f).toPath(), new File(inputDir, i + "-" + f).toPath());
+
+        // Run each way of loading once beforehand, so that whichever is measured first is not
+        // the one to pay for warming up the parsers
+        BulkLoaderBenchmark warmup = new BulkLoaderBenchmark();
+        warmup.setUp();
+        warmup.serialUpload();
+        warmup.serialDirect();
+        warmup.bulkLoadOneThread();
+        warmup.tearDown();
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        File[] files = inputDir.listFiles();
+        if (files != null)
+            for (File f : files)
+                assertTrue(f.delete());
+        assertTrue(inputDir.delete());
+        jerseyTest.tearDown();
+    }
+
+    // Every round loads into an empty database, so that no round is slowed by what the
+    // rounds before it loaded
+    @Before
+    public void setUp() throws Exception {
+        db = new GraphDatabaseServiceProvider(new TestGraphDatabaseFactory().newImpermanentDatabase()).getDatabase();
+        Util.setupTestDB(db, "user");
+    }
+
+    @After
+    public void tearDown() {
+        db.shutdown();
+    }
+
+    @Test
+    public void serialUpload() {
+        File[] files = inputDir.listFiles();
+        assertNotNull(files);
+        Arrays.sort(files);
+        for (File f : files) {
+            String ext = f.getName().substring(f.getName().lastIndexOf('.') + 1);
+            Response r = Util.createTraditionFromFileOrString(jerseyTest, f.getName(), "LR", "user",
+                    f.getPath(), FILETYPES.get(ext));
+            assertEquals(f.getName(), Response.Status.CREATED.getStatusCode(), r.getStatus());
+        }
+    }
+
+    @Test
+    public void serialDirect() {
+        File[] files = inputDir.listFiles();
+        assertNotNull(files);
+        Arrays.sort(files);
+        for (File f : files) {
+            String ext = f.getName().substring(f.getName().lastIndexOf('.') + 1);
+            Response r = Util.createTraditionDirectly(f.getName(), "LR", "user", f.getPath(), FILETYPES.get(ext));
+            assertEquals(f.getName(), Response.Status.CREATED.getStatusCode(), r.getStatus());
+        }
+    }
+
+    @Test
+    public void bulkLoadOneThread() throws Exception {
+        for (Response r : new BulkLoader("user", null, 1, false).load(inputDir).values())
+            assertEquals(Response.Status.CREATED.getStatusCode(), r.getStatus());
+    }
+
+    @Test
+    public void bulkLoadAllThreads() throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (Response r : new BulkLoader("user", null, threads, false).load(inputDir).values())
+            assertEquals(Response.Status.CREATED.getStatusCode(), r.getStatus());
+    }
+}
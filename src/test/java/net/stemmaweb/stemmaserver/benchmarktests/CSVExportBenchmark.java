@@ -0,0 +1,129 @@
+package net.stemmaweb.stemmaserver.benchmarktests;
+
+import com.carrotsearch.junitbenchmarks.BenchmarkOptions;
+import com.carrotsearch.junitbenchmarks.BenchmarkRule;
+import com.carrotsearch.junitbenchmarks.annotation.AxisRange;
+import com.carrotsearch.junitbenchmarks.annotation.BenchmarkMethodChart;
+import com.opencsv.CSVWriterBuilder;
+import com.opencsv.ICSVWriter;
+import net.stemmaweb.exporter.TabularExporter;
+import net.stemmaweb.model.AlignmentModel;
+import net.stemmaweb.model.ReadingModel;
+import net.stemmaweb.model.WitnessTokensModel;
+import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.VariantGraphService;
+import net.stemmaweb.stemmaserver.Util;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the streamed CSV export against the table-then-buffer export that it replaced,
+ * on a synthetic tradition of 50 witnesses over 20,000 ranks, i.e. a table of a million cells.
+ * This is not run as part of the ordinary test suite, but must be requested explicitly
+ * with -Dtest=CSVExportBenchmark.
+ *
+ * @author tla
+ */
+@AxisRange(min = 0, max = 20)
+@BenchmarkMethodChart(filePrefix = "benchmark/benchmark-csv-export")
+@BenchmarkOptions(benchmarkRounds = 5, warmupRounds = 2)
+public class CSVExportBenchmark {
+
+    @Rule
+    public TestRule benchmarkRun = new BenchmarkRule();
+
+    private static final int WITNESSES = 50;
+    private static final int RANKS = 20000;
+
+    private static GraphDatabaseService db;
+    private static String tradId;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        db = new GraphDatabaseServiceProvider(new TestGraphDatabaseFactory().newImpermanentDatabase()).getDatabase();
+        Util.setupTestDB(db, "user");
+
+        // Make a collation where most witnesses agree at most ranks, with the odd variant
+        // and the odd omission.
+        Random random = new Random(42);
+        StringBuilder csv = new StringBuilder();
+        List<String> sigla = new ArrayList<>();
+        for (int w = 0; w < WITNESSES; w++) sigla.add("W" + w);
+        csv.append(String.join(",", sigla)).append("\n");
+        for (int r = 0; r < RANKS; r++) {
+            List<String> row = new ArrayList<>();
+            for (int w = 0; w < WITNESSES; w++) {
+                int roll = random.nextInt(20);
+                row.add(roll == 0 ? "" : roll < 3 ? "var" + r + "_" + roll : "word" + r);
+            }
+            csv.append(String.join(",", row)).append("\n");
+        }
+        Response r = Util.createTraditionDirectly("Synthetic", "LR", "user", csv.toString(), "csv");
+        assertEquals(Response.Status.CREATED.getStatusCode(), r.getStatus());
+        tradId = Util.getValueFromJson(r, "tradId");
+
+        // Make sure we are comparing like with like
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        writeStreamedCSV(streamed);
+        assertEquals(makeBufferedCSV(), streamed.toString(StandardCharsets.UTF_8));
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        db.shutdown();
+    }
+
+    @Test
+    public void streamedCSV() throws Exception {
+        writeStreamedCSV(OutputStream.nullOutputStream());
+    }
+
+    @Test
+    public void bufferedCSV() throws Exception {
+        assertFalse(makeBufferedCSV().isEmpty());
+    }
+
+    private static void writeStreamedCSV(OutputStream out) throws Exception {
+        Response r = new TabularExporter(db).exportAsCSV(tradId, ',', null, new ArrayList<>(), false);
+        assertEquals(Response.Status.OK.getStatusCode(), r.getStatus());
+        ((StreamingOutput) r.getEntity()).write(out);
+    }
+
+    // The CSV as it was made before, from the whole alignment table into a string buffer.
+    private static String makeBufferedCSV() throws Exception {
+        List<AlignmentModel> tables = new ArrayList<>();
+        for (Node s : VariantGraphService.getSectionNodes(tradId, db))
+            tables.add(new AlignmentModel(s));
+        AlignmentModel table = tables.get(0);
+        StringWriter sw = new StringWriter();
+        ICSVWriter writer = new CSVWriterBuilder(sw).build();
+        writer.writeNext(table.getAlignment().stream()
+                .map(WitnessTokensModel::constructSigil).toArray(String[]::new));
+        for (int i = 0; i < table.getLength(); i++) {
+            final int rank = i;
+            writer.writeNext(table.getAlignment().stream()
+                    .map(x -> {
+                        ReadingModel rm = x.getTokens().get(rank);
+                        return rm == null ? null : rm.normalized();
+                    }).toArray(String[]::new));
+        }
+        writer.close();
+        return sw.toString();
+    }
+}
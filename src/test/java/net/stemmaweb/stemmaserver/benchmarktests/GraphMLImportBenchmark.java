@@ -0,0 +1,115 @@
+package net.stemmaweb.stemmaserver.benchmarktests;
+
+import com.carrotsearch.junitbenchmarks.BenchmarkOptions;
+import com.carrotsearch.junitbenchmarks.BenchmarkRule;
+import com.carrotsearch.junitbenchmarks.annotation.AxisRange;
+import com.carrotsearch.junitbenchmarks.annotation.BenchmarkMethodChart;
+import net.stemmaweb.rest.Tradition;
+import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.stemmaserver.Util;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.test.TestGraphDatabaseFactory;
+import org.w3c.dom.Document;
+
+import javax.ws.rs.core.Response;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures the import of our GraphML zip files. The importer now reads each file as a stream
+ * of StAX events straight out of the zip, where before it had to unpack the zip into temporary
+ * files and load each of them into a DOM before it could create anything; the parsing side of
+ * the two approaches is compared here, along with the time for the whole import.
+ * This is not run as part of the ordinary test suite, but must be requested explicitly
+ * with -Dtest=GraphMLImportBenchmark.
+ *
+ * @author tla
+ */
+@AxisRange(min = 0, max = 5)
+@BenchmarkMethodChart(filePrefix = "benchmark/benchmark-graphml-import")
+@BenchmarkOptions(benchmarkRounds = 10, warmupRounds = 3)
+public class GraphMLImportBenchmark {
+
+    @Rule
+    public TestRule benchmarkRun = new BenchmarkRule();
+
+    private static final String[] FIXTURES = {
+            "src/TestFiles/milestone-591.zip",
+            "src/TestFiles/m401-annotated.zip",
+            "src/TestFiles/legend-graphml.zip"};
+
+    private static GraphDatabaseService db;
+    // The unpacked XML files, so that the parse benchmarks differ in the parsing alone
+    private static final List<LinkedHashMap<String, File>> unpacked = new ArrayList<>();
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        db = new GraphDatabaseServiceProvider(new TestGraphDatabaseFactory().newImpermanentDatabase()).getDatabase();
+        Util.setupTestDB(db, "user");
+        for (String f : FIXTURES)
+            try (InputStream in = new FileInputStream(f)) {
+                unpacked.add(net.stemmaweb.parser.Util.extractGraphMLZip(in));
+            }
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        for (LinkedHashMap<String, File> files : unpacked)
+            net.stemmaweb.parser.Util.cleanupExtractedZip(files);
+        db.shutdown();
+    }
+
+    @Test
+    public void streamingImport() {
+        for (String f : FIXTURES) {
+            Response r = Util.createTraditionDirectly("Tradition", "LR", "user", f, "graphml");
+            assertEquals(Response.Status.CREATED.getStatusCode(), r.getStatus());
+            // Clear it out again, so that every round imports into the same database
+            String tradId = Util.getValueFromJson(r, "tradId");
+            assertEquals(Response.Status.OK.getStatusCode(),
+                    new Tradition(tradId).deleteTraditionById().getStatus());
+        }
+    }
+
+    @Test
+    public void streamingParse() throws Exception {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        for (LinkedHashMap<String, File> files : unpacked)
+            for (File xml : files.values())
+                try (InputStream in = new FileInputStream(xml)) {
+                    XMLStreamReader reader = factory.createXMLStreamReader(in);
+                    int elements = 0;
+                    while (reader.hasNext())
+                        if (reader.next() == XMLStreamConstants.START_ELEMENT) elements++;
+                    reader.close();
+                    assertTrue(elements > 0);
+                }
+    }
+
+    // What the importer used to do before it could create anything: hold each file in
+    // memory as a DOM.
+    @Test
+    public void documentParse() throws Exception {
+        for (LinkedHashMap<String, File> files : unpacked)
+            for (File xml : files.values())
+                try (InputStream in = new FileInputStream(xml)) {
+                    Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(in);
+                    assertTrue(doc.getElementsByTagName("node").getLength() > 0);
+                }
+    }
+}
@@ -0,0 +1,159 @@
+package net.stemmaweb.stemmaserver.benchmarktests;
+
+import com.carrotsearch.junitbenchmarks.BenchmarkOptions;
+import com.carrotsearch.junitbenchmarks.BenchmarkRule;
+import net.stemmaweb.rest.Nodes;
+import net.stemmaweb.services.DatabaseService;
+import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.SchemaService;
+import org.junit.AfterClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.neo4j.graphdb.*;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the lookups that the schema indexes serve against the label scans that
+ * we had to do without them. Subclasses set up a database of a given size; none of
+ * these classes are run as part of the ordinary test suite, but must be requested
+ * explicitly, e.g. with -Dtest=SchemaIndexBenchmark1kNodes.
+ *
+ * @author tla
+ */
+@BenchmarkOptions(benchmarkRounds = 15, warmupRounds = 5)
+public abstract class SchemaIndexBenchmark {
+
+    @Rule
+    public TestRule benchmarkRun = new BenchmarkRule();
+
+    private static final int LOOKUPS = 100;
+    private static final int BATCH_SIZE = 10000;
+
+    static GraphDatabaseService db;
+    private static final List<String> traditionIds = new ArrayList<>();
+    private static final List<Long> sectionIds = new ArrayList<>();
+    private static final Random random = new Random(42);
+
+    /**
+     * Populate a fresh database with roughly the given number of nodes, spread across
+     * traditions, each with a user, a section, some witnesses, and its readings.
+     * The schema is migrated only after the data is in place, so that the time spent
+     * on index population is reported as well.
+     *
+     * @param nodeCount - the approximate number of nodes to create
+     */
+    static void initDatabase(int nodeCount) throws Exception {
+        db = new GraphDatabaseServiceProvider(new TestGraphDatabaseFactory().newImpermanentDatabase()).getDatabase();
+        DatabaseService.createRootNode(db);
+        traditionIds.clear();
+        sectionIds.clear();
+
+        int traditionCount = Math.max(10, nodeCount / 1000);
+        int readingsPerSection = Math.max(1, nodeCount / traditionCount - 8);
+        int pending = 0;
+        Transaction tx = db.beginTx();
+        try {
+            for (int i = 0; i < traditionCount; i++) {
+                String tradId = UUID.randomUUID().toString();
+                Node user = db.createNode(Nodes.USER);
+                user.setProperty("id", "user" + i);
+                Node tradition = db.createNode(Nodes.TRADITION);
+                tradition.setProperty("id", tradId);
+                tradition.setProperty("name", "Tradition " + i);
+                Node section = db.createNode(Nodes.SECTION);
+                section.setProperty("name", "section 1");
+                for (String sigil : new String[]{"A", "B", "C", "D", "E"}) {
+                    Node witness = db.createNode(Nodes.WITNESS);
+                    witness.setProperty("sigil", sigil);
+                }
+                traditionIds.add(tradId);
+                sectionIds.add(section.getId());
+                pending += 8;
+                for (int j = 0; j < readingsPerSection; j++) {
+                    Node reading = db.createNode(Nodes.READING);
+                    reading.setProperty("section_id", section.getId());
+                    reading.setProperty("rank", (long) j);
+                    reading.setProperty("text", "word" + j);
+                    if (++pending >= BATCH_SIZE) {
+                        tx.success();
+                        tx.close();
+                        tx = db.beginTx();
+                        pending = 0;
+                    }
+                }
+            }
+            tx.success();
+        } finally {
+            tx.close();
+        }
+        long start = System.currentTimeMillis();
+        SchemaService.migrate(db);
+        System.out.println(String.format("Schema migration over %d nodes took %d ms",
+                nodeCount, System.currentTimeMillis() - start));
+    }
+
+    @AfterClass
+    public static void shutdown() {
+        db.shutdown();
+    }
+
+    @Test
+    public void findTraditionIndexed() {
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < LOOKUPS; i++) {
+                String tradId = traditionIds.get(random.nextInt(traditionIds.size()));
+                assertNotNull(db.findNode(Nodes.TRADITION, "id", tradId));
+            }
+            tx.success();
+        }
+    }
+
+    @Test
+    public void findTraditionLabelScan() {
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < LOOKUPS; i++) {
+                String tradId = traditionIds.get(random.nextInt(traditionIds.size()));
+                Map<String, Object> params = new HashMap<>();
+                params.put("id", tradId);
+                Result r = db.execute("MATCH (t:TRADITION) USING SCAN t:TRADITION WHERE t.id = $id RETURN t", params);
+                assertTrue(r.hasNext());
+                r.close();
+            }
+            tx.success();
+        }
+    }
+
+    @Test
+    public void findSectionReadingsIndexed() {
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < LOOKUPS / 10; i++) {
+                Long sectionId = sectionIds.get(random.nextInt(sectionIds.size()));
+                ResourceIterator<Node> readings = db.findNodes(Nodes.READING, "section_id", sectionId);
+                assertTrue(readings.hasNext());
+                readings.forEachRemaining(x -> {});
+            }
+            tx.success();
+        }
+    }
+
+    @Test
+    public void findSectionReadingsLabelScan() {
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < LOOKUPS / 10; i++) {
+                Long sectionId = sectionIds.get(random.nextInt(sectionIds.size()));
+                Map<String, Object> params = new HashMap<>();
+                params.put("sid", sectionId);
+                Result r = db.execute(
+                        "MATCH (r:READING) USING SCAN r:READING WHERE r.section_id = $sid RETURN r", params);
+                assertTrue(r.hasNext());
+                r.forEachRemaining(x -> {});
+            }
+            tx.success();
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package net.stemmaweb.stemmaserver.benchmarktests;
+
+import com.carrotsearch.junitbenchmarks.annotation.AxisRange;
+import com.carrotsearch.junitbenchmarks.annotation.BenchmarkMethodChart;
+import org.junit.BeforeClass;
+
+/**
+ * Runs the schema index benchmarks against a database of about 1,000 nodes.
+ *
+ * @author tla
+ */
+@AxisRange(min = 0, max = 0.2)
+@BenchmarkMethodChart(filePrefix = "benchmark/benchmark-schema-1kNodes")
+public class SchemaIndexBenchmark1kNodes extends SchemaIndexBenchmark {
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        initDatabase(1000);
+    }
+}
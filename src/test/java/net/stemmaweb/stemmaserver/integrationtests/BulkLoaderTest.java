@@ -0,0 +1,79 @@
+package net.stemmaweb.stemmaserver.integrationtests;
+
+import net.stemmaweb.model.TraditionModel;
+import net.stemmaweb.rest.Root;
+import net.stemmaweb.services.BulkLoader;
+import net.stemmaweb.services.DatabaseService;
+import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.stemmaserver.Util;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import javax.ws.rs.core.Response;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the loading of a directory of tradition files without the server.
+ *
+ * @author tla
+ */
+public class BulkLoaderTest {
+
+    private GraphDatabaseService db;
+    private File inputDir;
+
+    @Before
+    public void setUp() throws Exception {
+        db = new GraphDatabaseServiceProvider(new TestGraphDatabaseFactory().newImpermanentDatabase()).getDatabase();
+        Util.setupTestDB(db, "1");
+
+        inputDir = Files.createTempDirectory("bulkload").toFile();
+        for (String f : Arrays.asList("m401-annotated.zip", "john.csv", "armexample.xlsx",
+                "armexample_bad.xlsx", "florilegium_tei_ps.xml", "simple.txt"))
+            Files.copy(new File("src/TestFiles", f).toPath(), new File(inputDir, f).toPath());
+    }
+
+    @Test
+    public void loadDirectoryTest() throws Exception {
+        LinkedHashMap<File, Response> results = new BulkLoader("loader", null, 2, false).load(inputDir);
+
+        // The text file should have been passed over, and the rest taken in name order
+        List<String> names = results.keySet().stream().map(File::getName).collect(Collectors.toList());
+        assertEquals(Arrays.asList("armexample.xlsx", "armexample_bad.xlsx", "florilegium_tei_ps.xml",
+                "john.csv", "m401-annotated.zip"), names);
+        for (File f : results.keySet()) {
+            int expected = f.getName().equals("armexample_bad.xlsx")
+                    ? Response.Status.INTERNAL_SERVER_ERROR.getStatusCode()
+                    : Response.Status.CREATED.getStatusCode();
+            assertEquals(f.getName(), expected, results.get(f).getStatus());
+        }
+
+        // The owner should have been created, and the good files should be there as traditions
+        assertTrue(DatabaseService.userExists("loader", db));
+        @SuppressWarnings("unchecked")
+        List<TraditionModel> traditions = (List<TraditionModel>) new Root().getAllTraditions(false).getEntity();
+        Set<String> loaded = traditions.stream().map(TraditionModel::getName).collect(Collectors.toSet());
+        assertEquals(4, traditions.size());
+        assertTrue(loaded.containsAll(Arrays.asList("armexample", "florilegium_tei_ps", "john")));
+        for (TraditionModel t : traditions)
+            assertEquals("loader", t.getOwner());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = inputDir.listFiles();
+        if (files != null)
+            for (File f : files)
+                assertTrue(f.delete());
+        assertTrue(inputDir.delete());
+        db.shutdown();
+    }
+}
@@ -7,6 +7,7 @@ import net.stemmaweb.model.WitnessModel;
 import net.stemmaweb.rest.ERelations;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
 import net.stemmaweb.services.VariantGraphService;
+import net.stemmaweb.services.WitnessIndex;
 import net.stemmaweb.stemmaserver.Util;
 
 import org.glassfish.jersey.media.multipart.FormDataMultiPart;
@@ -88,7 +89,7 @@ public class CollateXJsonInputTest extends TestCase {
             for (Relationship r : sequences) {
                 if (r.hasProperty("witnesses")) {
                     ArrayList<String> mainwits = new ArrayList<>(Arrays.asList((String[]) r.getProperty("witnesses")));
-                    for (String p : r.getPropertyKeys()) {
+                    for (String p : WitnessIndex.witnessClasses(r)) {
                         if (p.equals("witnesses")) continue;
                         for (String w : (String[]) r.getProperty(p)) {
                             if (mainwits.contains(w)) fail();
@@ -168,7 +169,7 @@ public class CollateXJsonInputTest extends TestCase {
         try (Transaction tx = db.beginTx()) {
             for (Relationship r : sTrav.relationships())
                 if (r.getType().equals(ERelations.SEQUENCE) && r.hasProperty("witnesses")) {
-                    Iterable<String> layers = r.getPropertyKeys();
+                    Iterable<String> layers = WitnessIndex.witnessClasses(r);
                     for (String w : (String[]) r.getProperty("witnesses"))
                         for (String l : layers)
                             if (!l.equals("witnesses")) {
@@ -259,6 +260,36 @@ public class CollateXJsonInputTest extends TestCase {
         assertEquals("Bad format: is this CollateX JSON input instead of output?", msg);
     }
 
+    public void testTableBeforeWitnesses() {
+        // The table can't be read row by row until we know the witnesses, but should still be read
+        String collation = "{\"table\":[[[{\"t\":\"when\",\"n\":\"when\"}],[{\"t\":\"when\"}]]," +
+                "[[{\"t\":\"april\"},{\"t\":\"'s\",\"join_prior\":true}],[]]]," +
+                "\"witnesses\":[\"A\",\"B\"]}";
+        Response jerseyResult = Util.createTraditionFromFileOrString(jerseyTest, "Backwards", "LR", "1",
+                collation, "cxjson");
+        assertEquals(Response.Status.CREATED.getStatusCode(), jerseyResult.getStatus());
+        String newTradId = Util.getValueFromJson(jerseyResult, "tradId");
+        String restPath = "/tradition/" + newTradId + "/witness/%s/text";
+        assertEquals("when april's", Util.getValueFromJson(
+                jerseyTest.target(String.format(restPath, "A")).request().get(), "text"));
+        assertEquals("when", Util.getValueFromJson(
+                jerseyTest.target(String.format(restPath, "B")).request().get(), "text"));
+
+        // The two "when" tokens differ only in what is kept as extra, so are the same reading
+        List<ReadingModel> readings = jerseyTest.target("/tradition/" + newTradId + "/readings")
+                .request().get(new GenericType<>() {});
+        assertEquals(4, readings.size());
+        ReadingModel when = readings.stream().filter(x -> "when".equals(x.getText())).findFirst().orElse(null);
+        assertNotNull(when);
+        assertTrue(when.getIs_common());
+        assertEquals("when", new JSONObject(when.getExtra()).getJSONObject("A").getString("n"));
+
+        // A truncated collation should leave nothing behind
+        jerseyResult = Util.createTraditionFromFileOrString(jerseyTest, "Broken", "LR", "1",
+                collation.substring(0, collation.length() / 2), "cxjson");
+        assertEquals(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(), jerseyResult.getStatus());
+    }
+
     /** For diagnostic use when parsing a section fails
     public void testSomething() throws Exception {
         String newSectId = Util.getValueFromJson(Util.addSectionToTradition(jerseyTest, tradId,
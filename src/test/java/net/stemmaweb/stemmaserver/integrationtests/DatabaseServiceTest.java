@@ -1,10 +1,13 @@
 package net.stemmaweb.stemmaserver.integrationtests;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 
 import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.rest.Nodes;
 import net.stemmaweb.services.DatabaseService;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.SchemaService;
 
 import net.stemmaweb.services.VariantGraphService;
 import net.stemmaweb.stemmaserver.Util;
@@ -14,6 +17,9 @@ import org.junit.Before;
 import org.junit.Test;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.schema.IndexDefinition;
+import org.neo4j.graphdb.schema.Schema;
 import org.neo4j.test.TestGraphDatabaseFactory;
 
 import javax.ws.rs.core.Response;
@@ -62,6 +68,41 @@ public class DatabaseServiceTest {
         assertTrue(DatabaseService.userExists(userId, db));
     }
 
+    @Test
+    public void schemaMigrationTest() {
+        assertEquals(SchemaService.targetVersion(), SchemaService.currentVersion(db));
+        HashSet<String> expected = new HashSet<>();
+        expected.add("TRADITION.id");
+        expected.add("USER.id");
+        expected.add("READING.section_id");
+        expected.add("WITNESS.sigil");
+        expected.add("READING.section_id,text");
+        expected.add("READING.section_id,normal_form");
+        try (Transaction tx = db.beginTx()) {
+            Schema schema = db.schema();
+            HashSet<String> found = new HashSet<>();
+            for (IndexDefinition idx : schema.getIndexes()) {
+                assertEquals(Schema.IndexState.ONLINE, schema.getIndexState(idx));
+                found.add(idx.getLabel().name() + "." + String.join(",", idx.getPropertyKeys()));
+            }
+            assertEquals(expected, found);
+            assertTrue(schema.getConstraints(Nodes.TRADITION).iterator().hasNext());
+            assertTrue(schema.getConstraints(Nodes.USER).iterator().hasNext());
+            assertFalse(schema.getConstraints(Nodes.WITNESS).iterator().hasNext());
+            tx.success();
+        }
+
+        // Running the migration again should change nothing
+        SchemaService.migrate(db);
+        assertEquals(SchemaService.targetVersion(), SchemaService.currentVersion(db));
+        try (Transaction tx = db.beginTx()) {
+            int count = 0;
+            for (IndexDefinition ignored : db.schema().getIndexes()) count++;
+            assertEquals(expected.size(), count);
+            tx.success();
+        }
+    }
+
     /*
      * Shut down the database
      */
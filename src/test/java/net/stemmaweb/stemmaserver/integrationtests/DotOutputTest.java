@@ -1,5 +1,7 @@
 package net.stemmaweb.stemmaserver.integrationtests;
 
+import net.stemmaweb.exporter.DotExporter;
+import net.stemmaweb.model.DisplayOptionModel;
 import net.stemmaweb.model.GraphModel;
 import net.stemmaweb.model.ProposedEmendationModel;
 import net.stemmaweb.model.ReadingModel;
@@ -410,6 +412,29 @@ public class DotOutputTest {
         assertTrue(dotOutput.contains("եկն"));
     }
 
+    @Test
+    public void testDotStringMatchesStream() throws Exception {
+        // The dot that is streamed to the response should be what internal callers get as a string
+        DisplayOptionModel dm = new DisplayOptionModel(true, true, false, false, null, new ArrayList<>());
+        String streamed = jerseyTest.target("/tradition/" + msTradId + "/dot")
+                .queryParam("include_relations", "true")
+                .queryParam("show_normal", "true")
+                .request().get(String.class);
+        assertEquals(new DotExporter(db).getDot(msTradId, null, dm), streamed);
+
+        SectionModel section = Util.getSingleSection(jerseyTest, msTradId);
+        Response resp = jerseyTest.target("/tradition/" + msTradId + "/section/" + section.getId() + "/dot")
+                .request().get();
+        assertEquals(Response.Status.OK.getStatusCode(), resp.getStatus());
+        assertEquals(new DotExporter(db).getDot(msTradId, section.getId(), new DisplayOptionModel(
+                false, false, false, false, null, new ArrayList<>())), resp.readEntity(String.class));
+
+        // A section from another tradition should be refused before anything is streamed
+        SectionModel otherSection = Util.getSingleSection(jerseyTest, tradId);
+        resp = new DotExporter(db).writeNeo4J(msTradId, otherSection.getId(), dm);
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), resp.getStatus());
+    }
+
     @After
     public void tearDown() throws Exception {
         db.shutdown();
@@ -4,10 +4,13 @@ import junit.framework.TestCase;
 import net.stemmaweb.model.*;
 import net.stemmaweb.rest.Nodes;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.ImportBatch;
 import net.stemmaweb.services.ReadingService;
 import net.stemmaweb.services.VariantGraphService;
 import net.stemmaweb.stemmaserver.Util;
 
+import org.glassfish.jersey.media.multipart.FormDataBodyPart;
+import org.glassfish.jersey.media.multipart.FormDataMultiPart;
 import org.glassfish.jersey.test.JerseyTest;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
@@ -78,6 +81,69 @@ public class GraphMLInputOutputTest extends TestCase {
         }
     }
 
+    public void testZipOutputSectionOrder() throws Exception {
+        // Add a few more sections, so that several are made at once
+        for (int i = 3; i < 7; i++)
+            Util.addSectionToTradition(jerseyTest, multiTradId, "src/TestFiles/lf2.xml",
+                    "stemmaweb", "section " + i);
+        List<SectionModel> sections = jerseyTest.target("/tradition/" + multiTradId + "/sections")
+                .request().get(new GenericType<>() {});
+        assertEquals(6, sections.size());
+
+        // The zip should have the tradition file first, and then each section in order
+        Response r = jerseyTest.target("/tradition/" + multiTradId + "/graphml")
+                .request("application/zip").get();
+        assertEquals(Response.Status.OK.getStatusCode(), r.getStatus());
+        List<String> expected = new ArrayList<>(Collections.singletonList("tradition.xml"));
+        sections.forEach(x -> expected.add(String.format("section-%s.xml", x.getId())));
+        List<String> found = new ArrayList<>();
+        try (java.util.zip.ZipInputStream zis = new java.util.zip.ZipInputStream(r.readEntity(InputStream.class))) {
+            java.util.zip.ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null)
+                found.add(entry.getName());
+        }
+        assertEquals(expected, found);
+    }
+
+    public void testZipInputSectionOrder() {
+        // Add a few more sections, so that several are read in at once
+        for (int i = 3; i < 7; i++)
+            Util.addSectionToTradition(jerseyTest, multiTradId, "src/TestFiles/lf2.xml",
+                    "stemmaweb", "section " + i);
+        Response r = jerseyTest.target("/tradition/" + multiTradId + "/graphml")
+                .request("application/zip").get();
+        assertEquals(Response.Status.OK.getStatusCode(), r.getStatus());
+        String inputFile = Util.saveGraphMLTempfile(r);
+        List<String> witnesses = jerseyTest.target("/tradition/" + multiTradId + "/witnesses")
+                .request().get(new GenericType<List<WitnessModel>>() {})
+                .stream().map(WitnessModel::getSigil).sorted().collect(Collectors.toList());
+
+        r = Util.createTraditionFromFileOrString(jerseyTest, "Copied tradition", "LR",
+                "me@example.org", inputFile, "graphml");
+        assertEquals(Response.Status.CREATED.getStatusCode(), r.getStatus());
+        String newTradId = Util.getValueFromJson(r, "tradId");
+
+        // The sections should come back in the order they were exported
+        List<String> names = jerseyTest.target("/tradition/" + newTradId + "/sections")
+                .request().get(new GenericType<List<SectionModel>>() {})
+                .stream().map(SectionModel::getName).collect(Collectors.toList());
+        List<String> expected = new ArrayList<>(Arrays.asList("DEFAULT", "section 2"));
+        for (int i = 3; i < 7; i++) expected.add("section " + i);
+        assertEquals(expected, names);
+
+        // with the same witnesses
+        List<String> newWitnesses = jerseyTest.target("/tradition/" + newTradId + "/witnesses")
+                .request().get(new GenericType<List<WitnessModel>>() {})
+                .stream().map(WitnessModel::getSigil).sorted().collect(Collectors.toList());
+        assertEquals(witnesses, newWitnesses);
+
+        // and nothing should be left flagged as importing
+        try (Transaction tx = db.beginTx()) {
+            assertTrue(db.getAllNodes().stream().noneMatch(ImportBatch::isImporting));
+            tx.success();
+        }
+    }
+
     public void testZipInputExistingTradition() {
         Response r = jerseyTest.target("/tradition/" + tradId + "/graphml")
                 .request("application/zip").get();
@@ -523,6 +589,93 @@ public class GraphMLInputOutputTest extends TestCase {
         assertEquals(1, sections.size());
     }
 
+    public void testZipInputBatched() throws Exception {
+        // Import the same file in a single transaction and in small batches
+        Response r = Util.createTraditionFromFileOrString(jerseyTest, "Matthew 401", "LR",
+                "me@example.org", "src/TestFiles/m401-annotated.zip", "graphml");
+        assertEquals(Response.Status.CREATED.getStatusCode(), r.getStatus());
+        String wholeId = Util.getValueFromJson(r, "tradId");
+
+        FormDataMultiPart form = new FormDataMultiPart();
+        form.field("filetype", "graphml");
+        form.field("name", "Matthew 401 in batches");
+        form.field("userId", "me@example.org");
+        form.field("batch", "25");
+        form.bodyPart(new FormDataBodyPart("file", new FileInputStream("src/TestFiles/m401-annotated.zip"),
+                MediaType.APPLICATION_OCTET_STREAM_TYPE));
+        r = jerseyTest.target("/tradition").request().post(Entity.entity(form, MediaType.MULTIPART_FORM_DATA_TYPE));
+        assertEquals(Response.Status.CREATED.getStatusCode(), r.getStatus());
+        String batchedId = Util.getValueFromJson(r, "tradId");
+        assertNotEquals(wholeId, batchedId);
+
+        // The two should have the same sections, readings, and witness texts
+        List<SectionModel> wholeSections = jerseyTest.target("/tradition/" + wholeId + "/sections")
+                .request().get(new GenericType<>() {});
+        List<SectionModel> batchedSections = jerseyTest.target("/tradition/" + batchedId + "/sections")
+                .request().get(new GenericType<>() {});
+        assertEquals(wholeSections.size(), batchedSections.size());
+        List<ReadingModel> wholeReadings = jerseyTest.target("/tradition/" + wholeId + "/readings")
+                .request().get(new GenericType<>() {});
+        List<ReadingModel> batchedReadings = jerseyTest.target("/tradition/" + batchedId + "/readings")
+                .request().get(new GenericType<>() {});
+        assertEquals(wholeReadings.size(), batchedReadings.size());
+        List<WitnessModel> wits = jerseyTest.target("/tradition/" + wholeId + "/witnesses")
+                .request().get(new GenericType<>() {});
+        String restPath = "/tradition/%s/witness/%s/text";
+        for (WitnessModel w : wits)
+            assertEquals(
+                    Util.getValueFromJson(jerseyTest.target(String.format(restPath, wholeId, w.getSigil())).request().get(), "text"),
+                    Util.getValueFromJson(jerseyTest.target(String.format(restPath, batchedId, w.getSigil())).request().get(), "text"));
+
+        // Nothing should be left flagged as importing
+        try (Transaction tx = db.beginTx()) {
+            assertTrue(db.getAllNodes().stream().noneMatch(ImportBatch::isImporting));
+            tx.success();
+        }
+    }
+
+    public void testBadInputBatched() throws Exception {
+        long nodeCount;
+        try (Transaction tx = db.beginTx()) {
+            nodeCount = db.getAllNodes().stream().count();
+            tx.success();
+        }
+        List<SectionModel> sections = jerseyTest.target("/tradition/" + multiTradId + "/sections")
+                .request().get(new GenericType<>() {});
+
+        // Send only the first half of a section file, in batches small enough that some of it
+        // will have been committed before the parse fails
+        String xml = new String(Files.readAllBytes(new File("src/TestFiles/lf2.xml").toPath()));
+        FormDataMultiPart form = new FormDataMultiPart();
+        form.field("filetype", "stemmaweb");
+        form.field("name", "broken section");
+        form.field("batch", "5");
+        form.bodyPart(new FormDataBodyPart("file", xml.substring(0, xml.length() / 2),
+                MediaType.APPLICATION_OCTET_STREAM_TYPE));
+        Response r = jerseyTest.target("/tradition/" + multiTradId + "/section")
+                .request().post(Entity.entity(form, MediaType.MULTIPART_FORM_DATA_TYPE));
+        assertNotEquals(Response.Status.CREATED.getStatusCode(), r.getStatus());
+
+        // All of it should have been taken away again
+        try (Transaction tx = db.beginTx()) {
+            assertEquals(nodeCount, db.getAllNodes().stream().count());
+            tx.success();
+        }
+        List<SectionModel> after = jerseyTest.target("/tradition/" + multiTradId + "/sections")
+                .request().get(new GenericType<>() {});
+        assertEquals(sections.size(), after.size());
+
+        // A nonsensical batch size should be refused
+        form = new FormDataMultiPart();
+        form.field("filetype", "stemmaweb");
+        form.field("name", "another section");
+        form.field("batch", "many");
+        form.bodyPart(new FormDataBodyPart("file", xml, MediaType.APPLICATION_OCTET_STREAM_TYPE));
+        r = jerseyTest.target("/tradition/" + multiTradId + "/section")
+                .request().post(Entity.entity(form, MediaType.MULTIPART_FORM_DATA_TYPE));
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), r.getStatus());
+    }
+
 /*
     public void testZipArbitraryTradition() {
         // Import the given tradition file and check that it works
@@ -11,7 +11,9 @@ import javax.ws.rs.core.Response.Status;
 
 import net.stemmaweb.model.GraphModel;
 import net.stemmaweb.model.ReadingModel;
+import net.stemmaweb.model.RelationBatchModel;
 import net.stemmaweb.model.RelationModel;
+import net.stemmaweb.model.RelationTypeModel;
 import net.stemmaweb.model.TextSequenceModel;
 import net.stemmaweb.rest.*;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
@@ -521,6 +523,116 @@ public class RelationTest {
         }
     }
 
+    @Test
+    public void createRelationshipBatchTest() {
+        List<RelationModel> batch = new ArrayList<>();
+        // This one can be made, and will move three readings including the end node...
+        RelationModel rootTeh = new RelationModel();
+        rootTeh.setSource(readingLookup.get("root/18"));
+        rootTeh.setTarget(readingLookup.get("teh/16"));
+        rootTeh.setType("grammatical");
+        batch.add(rootTeh);
+        // ...after which this one can't be made
+        RelationModel rootThe = new RelationModel();
+        rootThe.setSource(readingLookup.get("root/18"));
+        rootThe.setTarget(readingLookup.get("the/17"));
+        rootThe.setType("grammatical");
+        batch.add(rootThe);
+        // Nor can these
+        RelationModel badScope = new RelationModel();
+        badScope.setSource(readingLookup.get("april/2"));
+        badScope.setTarget(readingLookup.get("showers/5"));
+        badScope.setType("repetition");
+        badScope.setScope("everywhere");
+        batch.add(badScope);
+        RelationModel noReading = new RelationModel();
+        noReading.setSource(readingLookup.get("april/2"));
+        noReading.setTarget("1337");
+        noReading.setType("repetition");
+        batch.add(noReading);
+        // But this one can
+        RelationModel aprilShowers = new RelationModel();
+        aprilShowers.setSource(readingLookup.get("april/2"));
+        aprilShowers.setTarget(readingLookup.get("showers/5"));
+        aprilShowers.setType("repetition");
+        batch.add(aprilShowers);
+        // These can't be made either, and their types are new to the tradition
+        RelationModel rootTheUncertain = new RelationModel();
+        rootTheUncertain.setSource(readingLookup.get("root/18"));
+        rootTheUncertain.setTarget(readingLookup.get("the/17"));
+        rootTheUncertain.setType("uncertain");
+        batch.add(rootTheUncertain);
+        RelationModel noReadingLexical = new RelationModel();
+        noReadingLexical.setSource(readingLookup.get("april/2"));
+        noReadingLexical.setTarget("1337");
+        noReadingLexical.setType("lexical");
+        batch.add(noReadingLexical);
+
+        Response response = jerseyTest
+                .target("/tradition/" + tradId + "/relation/batch")
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.json(batch));
+        assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+        RelationBatchModel result = response.readEntity(RelationBatchModel.class);
+        assertEquals(2, result.getRelations().size());
+        HashMap<String, Long> rankChange = new HashMap<>();
+        rankChange.put("teh", 18L);
+        rankChange.put("rood", 19L);
+        rankChange.put("#END#", 20L);
+        assertEquals(3, result.getReadings().size());
+        for (ReadingModel r : result.getReadings())
+            assertEquals(rankChange.get(r.getText()), r.getRank());
+
+        assertEquals(5, result.getConflicts().size());
+        RelationBatchModel.Conflict c = result.getConflicts().get(0);
+        assertEquals(1, c.getIndex());
+        assertEquals(Status.CONFLICT.getStatusCode(), c.getStatus());
+        assertEquals("This relation creation is not allowed, it would result in a cyclic graph.", c.getError());
+        assertEquals(rootThe.getTarget(), c.getRelation().getTarget());
+        c = result.getConflicts().get(1);
+        assertEquals(2, c.getIndex());
+        assertEquals(Status.BAD_REQUEST.getStatusCode(), c.getStatus());
+        c = result.getConflicts().get(2);
+        assertEquals(3, c.getIndex());
+        assertEquals(Status.NOT_FOUND.getStatusCode(), c.getStatus());
+        c = result.getConflicts().get(3);
+        assertEquals(5, c.getIndex());
+        assertEquals(Status.CONFLICT.getStatusCode(), c.getStatus());
+        c = result.getConflicts().get(4);
+        assertEquals(6, c.getIndex());
+        assertEquals(Status.NOT_FOUND.getStatusCode(), c.getStatus());
+
+        // Check that the ranks were written, and that the conflicting relation was not made
+        try (Transaction tx = db.beginTx()) {
+            assertEquals(18L, db.getNodeById(Long.valueOf(rootTeh.getTarget())).getProperty("rank"));
+            assertFalse(db.getNodeById(Long.valueOf(rootThe.getTarget()))
+                    .getRelationships(ERelations.RELATED).iterator().hasNext());
+            tx.success();
+        }
+        // ...and that only the types of the relations made were created
+        List<String> typeNames = jerseyTest.target("/tradition/" + tradId + "/relationtypes")
+                .request()
+                .get(new GenericType<List<RelationTypeModel>>() {})
+                .stream().map(RelationTypeModel::getName).collect(Collectors.toList());
+        assertTrue(typeNames.contains("grammatical"));
+        assertTrue(typeNames.contains("repetition"));
+        assertFalse(typeNames.contains("uncertain"));
+        assertFalse(typeNames.contains("lexical"));
+
+        // Sending the same batch again should make nothing new
+        response = jerseyTest
+                .target("/tradition/" + tradId + "/relation/batch")
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.json(batch));
+        assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+        result = response.readEntity(RelationBatchModel.class);
+        assertEquals(0, result.getRelations().size());
+        assertEquals(0, result.getReadings().size());
+        assertEquals(7, result.getConflicts().size());
+        assertEquals(Status.NOT_MODIFIED.getStatusCode(), result.getConflicts().get(0).getStatus());
+        assertEquals(Status.NOT_MODIFIED.getStatusCode(), result.getConflicts().get(4).getStatus());
+    }
+
     @Test
     public void createRelationshipTestWithCyclicConstraint() {
         RelationModel relationship = new RelationModel();
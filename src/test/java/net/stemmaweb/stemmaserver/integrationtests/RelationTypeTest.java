@@ -2,6 +2,7 @@ package net.stemmaweb.stemmaserver.integrationtests;
 
 import junit.framework.TestCase;
 import net.stemmaweb.model.*;
+import net.stemmaweb.rest.RelationType;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
 import net.stemmaweb.stemmaserver.Util;
 
@@ -16,10 +17,15 @@ import javax.ws.rs.client.Entity;
 import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 public class RelationTypeTest extends TestCase {
     private GraphDatabaseService db;
@@ -235,6 +241,63 @@ public class RelationTypeTest extends TestCase {
         }
     }
 
+    public void testScopeAcrossSections() {
+        String legeiAcute = readingLookup.getOrDefault("λέγει/1", "17");
+        String legei = readingLookup.getOrDefault("λεγει/1", "17");
+        String auTw = readingLookup.getOrDefault("αυΤω/3", "17");
+        String autwi = readingLookup.getOrDefault("αὐτῷ/3", "17");
+        String firstSection = jerseyTest.target("/reading/" + legei)
+                .request()
+                .get(new GenericType<ReadingModel>() {}).getSection();
+
+        // Add the same text again as a second section
+        String secondSection = Util.getValueFromJson(Util.addSectionToTradition(jerseyTest, tradId,
+                "src/TestFiles/john.csv", "csv", "section 2"), "sectionId");
+        assertNotNull(secondSection);
+
+        // A section-scope relation should only be made in the first section
+        RelationModel newRel = new RelationModel();
+        newRel.setSource(legeiAcute);
+        newRel.setTarget(legei);
+        newRel.setType("grammatical");
+        newRel.setScope("section");
+        Response jerseyResult = jerseyTest.target("/tradition/" + tradId + "/relation")
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.json(newRel));
+        assertEquals(Response.Status.CREATED.getStatusCode(), jerseyResult.getStatus());
+        GraphModel result = jerseyResult.readEntity(new GenericType<GraphModel>() {});
+        assertFalse(result.getRelations().isEmpty());
+        for (RelationModel rm : result.getRelations()) {
+            assertEquals(firstSection, sectionOf(rm.getSource()));
+            assertEquals(firstSection, sectionOf(rm.getTarget()));
+        }
+
+        // A tradition-scope relation should be made alike in both sections
+        newRel.setSource(auTw);
+        newRel.setTarget(autwi);
+        newRel.setType("lexical");
+        newRel.setScope("tradition");
+        jerseyResult = jerseyTest.target("/tradition/" + tradId + "/relation")
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.json(newRel));
+        assertEquals(Response.Status.CREATED.getStatusCode(), jerseyResult.getStatus());
+        result = jerseyResult.readEntity(new GenericType<GraphModel>() {});
+        HashMap<String, Integer> perSection = new HashMap<>();
+        for (RelationModel rm : result.getRelations()) {
+            String section = sectionOf(rm.getSource());
+            assertEquals(section, sectionOf(rm.getTarget()));
+            perSection.merge(section, 1, Integer::sum);
+        }
+        assertEquals(2, perSection.size());
+        assertEquals(perSection.get(firstSection), perSection.get(secondSection));
+    }
+
+    private String sectionOf(String readingId) {
+        return jerseyTest.target("/reading/" + readingId)
+                .request()
+                .get(new GenericType<ReadingModel>() {}).getSection();
+    }
+
     public void testSimpleTransitivity() {
         String legeiAcute = readingLookup.getOrDefault("λέγει/1", "17");
         String legei = readingLookup.getOrDefault("λεγει/1", "17");
@@ -454,6 +517,65 @@ public class RelationTypeTest extends TestCase {
         }
     }
 
+    public void testBatchTransitivityReRanking() {
+        // Make the same relations as above, but all at once
+        String eurisko22 = readingLookup.getOrDefault("εὑρίσκω/22", "17");
+        String euricko22 = readingLookup.getOrDefault("ε̣υριϲκω/22", "17");
+        String euricko24 = readingLookup.getOrDefault("ευριϲκω/24", "17");
+        String eurecko24 = readingLookup.getOrDefault("ευρηϲκω/24", "17");
+
+        for (RelationModel rm : jerseyTest.target("/tradition/" + tradId + "/relations")
+                .request().get(new GenericType<List<RelationModel>>() {})) {
+            if (rm.getType().equals("collated")) {
+                Response rd = jerseyTest.target("/tradition/" + tradId + "/relation/remove")
+                        .request(MediaType.APPLICATION_JSON).post(Entity.json(rm));
+                assertEquals(Response.Status.OK.getStatusCode(), rd.getStatus());
+            }
+        }
+        Response jerseyResult = jerseyTest.target("/tradition/" + tradId + "/initRanks")
+                .request()
+                .get();
+        assertEquals("success", Util.getValueFromJson(jerseyResult, "result"));
+
+        List<RelationModel> batch = new ArrayList<>();
+        String[][] pairs = {{eurisko22, euricko22, "orthographic"}, {euricko24, eurecko24, "spelling"},
+                {euricko24, eurisko22, "orthographic"}};
+        for (String[] p : pairs) {
+            RelationModel newRel = new RelationModel();
+            newRel.setSource(p[0]);
+            newRel.setTarget(p[1]);
+            newRel.setScope("local");
+            newRel.setType(p[2]);
+            batch.add(newRel);
+        }
+        jerseyResult = jerseyTest.target("/tradition/" + tradId + "/relation/batch")
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.json(batch));
+        assertEquals(Response.Status.CREATED.getStatusCode(), jerseyResult.getStatus());
+        RelationBatchModel result = jerseyResult.readEntity(RelationBatchModel.class);
+        assertEquals(0, result.getConflicts().size());
+        // The three we asked for, plus one orthographic and two spelling relations to close the group
+        assertEquals(6, result.getRelations().size());
+        assertEquals(8, result.getReadings().size());
+        HashSet<String> expectedLinks = new HashSet<>();
+        expectedLinks.add(String.format("%s -> %s: orthographic", eurisko22, euricko22));
+        expectedLinks.add(String.format("%s -> %s: spelling", euricko24, eurecko24));
+        expectedLinks.add(String.format("%s -> %s: orthographic", euricko24, eurisko22));
+        expectedLinks.add(String.format("%s -> %s: orthographic", euricko24, euricko22));
+        expectedLinks.add(String.format("%s -> %s: spelling", eurecko24, eurisko22));
+        expectedLinks.add(String.format("%s -> %s: spelling", eurecko24, euricko22));
+        checkExpectedRelations(result.getRelations().stream().map(RelationModel::getId)
+                .collect(Collectors.toCollection(HashSet::new)), expectedLinks);
+
+        try (Transaction tx = db.beginTx()) {
+            for (String nid : Arrays.asList(eurisko22, euricko22, euricko24, eurecko24)) {
+                Node n = db.getNodeById(Long.parseLong(nid));
+                assertEquals(24L, n.getProperty("rank"));
+            }
+            tx.success();
+        }
+    }
+
     public void testRelTypeDelete() {
         String legeiAcute = readingLookup.getOrDefault("λέγει/1", "17");
         String legei = readingLookup.getOrDefault("λεγει/1", "17");
@@ -510,6 +632,89 @@ public class RelationTypeTest extends TestCase {
         assertEquals(Response.Status.NOT_FOUND.getStatusCode(), jerseyResult.getStatus());
     }
 
+    public void testRelTypeUpdate() {
+        String legeiAcute = readingLookup.getOrDefault("λέγει/1", "17");
+        String legei = readingLookup.getOrDefault("λεγει/1", "17");
+
+        // Make a relationship type that is not a colocation
+        RelationTypeModel rtm = new RelationTypeModel();
+        rtm.setName("accents");
+        rtm.setDescription("Readings are the same but for diacriticals");
+        rtm.setIs_colocation(false);
+        Response jerseyResult = jerseyTest.target("/tradition/" + tradId + "/relationtype/accents")
+                .request(MediaType.APPLICATION_JSON)
+                .put(Entity.json(rtm));
+        assertEquals(Response.Status.CREATED.getStatusCode(), jerseyResult.getStatus());
+
+        // It can't be used between readings at the same rank
+        RelationModel newRel = new RelationModel();
+        newRel.setSource(legeiAcute);
+        newRel.setTarget(legei);
+        newRel.setScope("local");
+        newRel.setType("accents");
+        jerseyResult = jerseyTest.target("/tradition/" + tradId + "/relation")
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.json(newRel));
+        assertEquals(Response.Status.CONFLICT.getStatusCode(), jerseyResult.getStatus());
+
+        // Now make it a colocation, and try again
+        rtm.setIs_colocation(true);
+        jerseyResult = jerseyTest.target("/tradition/" + tradId + "/relationtype/accents")
+                .request(MediaType.APPLICATION_JSON)
+                .put(Entity.json(rtm));
+        assertEquals(Response.Status.OK.getStatusCode(), jerseyResult.getStatus());
+        RelationTypeModel updated = jerseyTest.target("/tradition/" + tradId + "/relationtype/accents")
+                .request().get(RelationTypeModel.class);
+        assertTrue(updated.getIs_colocation());
+
+        jerseyResult = jerseyTest.target("/tradition/" + tradId + "/relation")
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.json(newRel));
+        assertEquals(Response.Status.CREATED.getStatusCode(), jerseyResult.getStatus());
+    }
+
+    public void testRelTypeSeenAfterCommit() throws Exception {
+        RelationTypeModel rtm = new RelationTypeModel();
+        rtm.setName("quotation");
+        rtm.setDescription("One reading quotes the other");
+        CountDownLatch created = new CountDownLatch(1);
+        CountDownLatch checked = new CountDownLatch(1);
+        List<Integer> ownView = new ArrayList<>();
+
+        // Create the type in a transaction that stays open until we have looked from outside
+        Thread writer = new Thread(() -> {
+            try (Transaction tx = db.beginTx()) {
+                ownView.add(new RelationType(tradId, "quotation").create(rtm).getStatus());
+                ownView.add(new RelationType(tradId, "quotation").getRelationType().getStatus());
+                created.countDown();
+                checked.await();
+                tx.success();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        writer.start();
+        assertTrue(created.await(30, TimeUnit.SECONDS));
+        // The writer sees its own type...
+        assertEquals(Arrays.asList(Response.Status.CREATED.getStatusCode(), Response.Status.OK.getStatusCode()),
+                ownView);
+        // ...but nobody else does yet
+        Response jerseyResult = jerseyTest.target("/tradition/" + tradId + "/relationtype/quotation")
+                .request().get();
+        assertEquals(Response.Status.NO_CONTENT.getStatusCode(), jerseyResult.getStatus());
+        List<RelationTypeModel> allRelTypes = jerseyTest.target("/tradition/" + tradId + "/relationtypes")
+                .request()
+                .get(new GenericType<>() {});
+        assertFalse(allRelTypes.stream().anyMatch(x -> x.getName().equals("quotation")));
+
+        checked.countDown();
+        writer.join(30000);
+        assertFalse(writer.isAlive());
+        RelationTypeModel quot = jerseyTest.target("/tradition/" + tradId + "/relationtype/quotation")
+                .request().get(RelationTypeModel.class);
+        assertEquals("One reading quotes the other", quot.getDescription());
+    }
+
     public void tearDown() throws Exception {
         db.shutdown();
         jerseyTest.tearDown();
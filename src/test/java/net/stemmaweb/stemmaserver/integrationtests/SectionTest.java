@@ -354,6 +354,11 @@ public class SectionTest extends TestCase {
                 .request()
                 .get();
         assertEquals(Response.Status.NOT_FOUND.getStatusCode(), jerseyResult.getStatus());
+        jerseyResult = jerseyTest
+                .target("/tradition/" + tradId + "/section/" + florIds.get(0) + "/svg")
+                .request()
+                .get();
+        assertEquals(Response.Status.NOT_FOUND.getStatusCode(), jerseyResult.getStatus());
     }
 
     public void testSectionOrderAfterSelf () {
@@ -946,6 +951,39 @@ public class SectionTest extends TestCase {
                 identicalReadings.get(1).getText());
     }
 
+    public void testIdenticalReadingsToEnd() {
+        Response jerseyResult = Util.createTraditionFromFileOrString(jerseyTest, "Tradition", "LR",
+                "user@example.com","src/TestFiles/ReadingstestTradition.xml", "stemmaweb");
+        assertEquals(Response.Status.CREATED.getStatusCode(), jerseyResult.getStatus());
+        String testTradId = Util.getValueFromJson(jerseyResult, "tradId");
+        List<SectionModel> testSections = jerseyTest.target("/tradition/" + testTradId + "/sections")
+                .request()
+                .get(new GenericType<>() {});
+        String testSectId = testSections.get(0).getId();
+        long endRank;
+        try (Transaction tx = db.beginTx()) {
+            endRank = (Long) VariantGraphService.getEndNode(testSectId, db).getProperty("rank");
+            tx.success();
+        }
+
+        // Asking for readings up to the "end" should be the same as asking up to the end rank
+        for (String request : Arrays.asList("identicalreadings", "mergeablereadings")) {
+            List<List<ReadingModel>> toEnd = jerseyTest
+                    .target("/tradition/" + testTradId + "/section/" + testSectId + "/" + request + "/start/end")
+                    .request()
+                    .get(new GenericType<>() {});
+            List<List<ReadingModel>> toEndRank = jerseyTest
+                    .target("/tradition/" + testTradId + "/section/" + testSectId + "/" + request + "/1/" + endRank)
+                    .request()
+                    .get(new GenericType<>() {});
+            assertFalse(toEnd.isEmpty());
+            assertEquals(toEndRank.stream().map(x -> x.stream().map(ReadingModel::getId).collect(Collectors.toList()))
+                            .collect(Collectors.toList()),
+                    toEnd.stream().map(x -> x.stream().map(ReadingModel::getId).collect(Collectors.toList()))
+                            .collect(Collectors.toList()));
+        }
+    }
+
     public void testIdenticalReadingsNoResult() {
         Response response = jerseyTest
                 .target("/tradition/" + tradId + "/section/" + firstSectId + "/identicalreadings/10/15")
@@ -1294,7 +1332,7 @@ public class SectionTest extends TestCase {
                 && x.getId().equals(stuffCreated.get("place"))));
     }
 
-    public void testDeleteSectionWithAnnotations() {
+    public void testDeleteSectionWithAnnotations() throws Exception {
         // Set up some annotations across sections
         HashMap<String,String> stuffCreated = setupComplexAnnotation();
 
@@ -1309,7 +1347,11 @@ public class SectionTest extends TestCase {
                 .target("/tradition/" + tradId + "/section/" + stuffCreated.get("section1"))
                 .request()
                 .delete();
-        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        // Its annotation should go at once, not when the section's contents are cleared away
+        assertEquals(Response.Status.NOT_FOUND.getStatusCode(), jerseyTest
+                .target("/tradition/" + tradId + "/annotation/" + stuffCreated.get("ref1"))
+                .request().get().getStatus());
+        Util.waitForDeletion(jerseyTest, response);
 
         // Section 2 should be unaffected
         response = jerseyTest
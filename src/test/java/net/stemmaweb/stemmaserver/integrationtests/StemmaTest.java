@@ -1,5 +1,6 @@
 package net.stemmaweb.stemmaserver.integrationtests;
 
+import java.io.File;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
@@ -17,6 +18,8 @@ import net.stemmaweb.rest.ERelations;
 import net.stemmaweb.rest.Root;
 import net.stemmaweb.services.DatabaseService;
 import net.stemmaweb.parser.DotParser;
+import net.stemmaweb.printer.GraphVizService;
+import net.stemmaweb.printer.StubGraphViz;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
 import net.stemmaweb.services.VariantGraphService;
 import net.stemmaweb.stemmaserver.JerseyTestServerFactory;
@@ -137,6 +140,49 @@ public class StemmaTest {
         assertEquals(expectedResponse.getStatus(), resp.getStatus());
     }
 
+    @Test
+    public void getStemmaSvgTest() throws Exception {
+        Response resp = jerseyTest
+                .target("/tradition/" + tradId + "/stemma/nonexistent/svg")
+                .request()
+                .get();
+        assertEquals(Response.Status.NOT_FOUND.getStatusCode(), resp.getStatus());
+
+        // Draw the stemma with a stand-in for dot, which puts the dot source into the image
+        File dotDir = Files.createTempDirectory("graphviz").toFile();
+        File dot = new File(StubGraphViz.write(dotDir, StubGraphViz.ECHO));
+        try {
+            StubGraphViz.install(dot.getPath());
+            resp = jerseyTest
+                    .target("/tradition/" + tradId + "/stemma/stemma/svg")
+                    .request()
+                    .get();
+            assertEquals(Response.Status.OK.getStatusCode(), resp.getStatus());
+            String svg = resp.readEntity(String.class);
+            assertTrue(svg.startsWith("<svg>"));
+            assertTrue(svg.contains("digraph"));
+            // A second request should be served the same image
+            String again = jerseyTest
+                    .target("/tradition/" + tradId + "/stemma/stemma/svg")
+                    .request()
+                    .get(String.class);
+            assertEquals(svg, again);
+
+            // Without dot, we should get an error
+            StubGraphViz.install(null);
+            resp = jerseyTest
+                    .target("/tradition/" + tradId + "/stemma/stemma/svg")
+                    .request()
+                    .get();
+            assertEquals(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(), resp.getStatus());
+            assertNotNull(Util.getValueFromJson(resp, "error"));
+        } finally {
+            GraphVizService.shutdown();
+            assertTrue(dot.delete());
+            assertTrue(dotDir.delete());
+        }
+    }
+
     @Test
 	public void getStemmaTest() {
         String stemmaTitle = "stemma";
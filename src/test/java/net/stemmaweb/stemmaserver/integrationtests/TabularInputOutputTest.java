@@ -1,5 +1,6 @@
 package net.stemmaweb.stemmaserver.integrationtests;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.opencsv.CSVParser;
 import com.opencsv.CSVParserBuilder;
 import com.opencsv.CSVReader;
@@ -213,6 +214,42 @@ public class TabularInputOutputTest extends TestCase {
         assertTrue(allReadings.stream().anyMatch(x -> x.getText().equals("այսոսիկ")));
     }
 
+    public void testParseExcelGapsAndNumbers() throws Exception {
+        // Make a spreadsheet whose rows leave out a cell, and have numbers in them
+        java.io.File xlsx = java.io.File.createTempFile("gaps", ".xlsx");
+        try (org.apache.poi.xssf.usermodel.XSSFWorkbook wb = new org.apache.poi.xssf.usermodel.XSSFWorkbook()) {
+            org.apache.poi.ss.usermodel.Sheet sheet = wb.createSheet();
+            String[] header = {"A", "B", "C"};
+            org.apache.poi.ss.usermodel.Row row = sheet.createRow(0);
+            for (int i = 0; i < header.length; i++)
+                row.createCell(i).setCellValue(header[i]);
+            row = sheet.createRow(1);
+            for (int i = 0; i < 3; i++) row.createCell(i).setCellValue("the");
+            row = sheet.createRow(2);
+            row.createCell(0).setCellValue("quick");
+            row.createCell(2).setCellValue("slow");
+            row = sheet.createRow(3);
+            for (int i = 0; i < 3; i++) row.createCell(i).setCellValue(3);
+            try (java.io.OutputStream out = new java.io.FileOutputStream(xlsx)) {
+                wb.write(out);
+            }
+        }
+        Response response = Util.createTraditionFromFileOrString(jerseyTest, "Gaps", "LR", "1",
+                xlsx.getPath(), "xlsx");
+        assertTrue(xlsx.delete());
+        assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+        String tradId = Util.getValueFromJson(response, "tradId");
+
+        // Each cell should have stayed in its own column
+        String restPath = "/tradition/" + tradId + "/witness/%s/text";
+        assertEquals("the quick 3", Util.getValueFromJson(
+                jerseyTest.target(String.format(restPath, "A")).request().get(), "text"));
+        assertEquals("the 3", Util.getValueFromJson(
+                jerseyTest.target(String.format(restPath, "B")).request().get(), "text"));
+        assertEquals("the slow 3", Util.getValueFromJson(
+                jerseyTest.target(String.format(restPath, "C")).request().get(), "text"));
+    }
+
     // testOutputJSON
     public void testJSONExport() {
         // Set up some data
@@ -408,6 +445,154 @@ public class TabularInputOutputTest extends TestCase {
         assertTrue(relatedIds.containsAll(representedIds));
     }
 
+    public void testStreamedJSONExport() throws Exception {
+        Response response = Util.createTraditionFromFileOrString(jerseyTest, "Legend", "LR", "1",
+                "src/TestFiles/lf2.xml", "stemmaweb");
+        assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+        String legendId = Util.getValueFromJson(response, "tradId");
+        Util.addSectionToTradition(jerseyTest, legendId, "src/TestFiles/legendfrag.xml",
+                "stemmaweb", "section 2");
+        response = Util.createTraditionFromFileOrString(jerseyTest, "Florilegium", "LR", "1",
+                "src/TestFiles/florilegium_tei_ps.xml", "teips");
+        assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+        String florId = Util.getValueFromJson(response, "tradId");
+
+        // The streamed alignment should be the same as the one built in memory, whether we have
+        // sections that lack witnesses, witness layers, or a normalization.
+        compareStreamedJSON(jerseyTest.target("/tradition/" + legendId + "/json"));
+        compareStreamedJSON(jerseyTest.target("/tradition/" + legendId + "/json").queryParam("conflate", "collated"));
+        compareStreamedJSON(jerseyTest.target("/tradition/" + florId + "/json"));
+        compareStreamedJSON(jerseyTest.target("/tradition/" + florId + "/json").queryParam("exclude_layers", "true"));
+        List<SectionModel> legendSections = jerseyTest.target("/tradition/" + legendId + "/sections")
+                .request().get(new GenericType<>() {});
+        compareStreamedJSON(jerseyTest.target("/tradition/" + legendId + "/section/"
+                + legendSections.get(1).getId() + "/json"));
+
+        // Brief tokens should line up with the full ones
+        AlignmentModel full = jerseyTest.target("/tradition/" + florId + "/json")
+                .request().get(AlignmentModel.class);
+        response = jerseyTest.target("/tradition/" + florId + "/json")
+                .queryParam("brief", "true").request().get();
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        JSONObject brief = new JSONObject(response.readEntity(String.class));
+        assertEquals(full.getLength(), brief.getLong("length"));
+        JSONArray briefRows = brief.getJSONArray("alignment");
+        assertEquals(full.getAlignment().size(), briefRows.length());
+        List<String> briefKeys = Arrays.asList("id", "text", "normal_form", "is_lacuna", "is_lemma",
+                "is_nonsense", "is_emendation", "join_next", "join_prior");
+        for (int i = 0; i < briefRows.length(); i++) {
+            WitnessTokensModel fullRow = full.getAlignment().get(i);
+            JSONObject briefRow = briefRows.getJSONObject(i);
+            assertEquals(fullRow.constructSigil(), briefRow.has("layer")
+                    ? String.format("%s (%s)", briefRow.getString("witness"), briefRow.getString("layer"))
+                    : briefRow.getString("witness"));
+            JSONArray briefTokens = briefRow.getJSONArray("tokens");
+            assertEquals(fullRow.getTokens().size(), briefTokens.length());
+            for (int j = 0; j < briefTokens.length(); j++) {
+                ReadingModel rm = fullRow.getTokens().get(j);
+                if (rm == null) {
+                    assertTrue(briefTokens.isNull(j));
+                    continue;
+                }
+                JSONObject token = briefTokens.getJSONObject(j);
+                assertEquals(rm.getId(), token.getString("id"));
+                assertEquals(rm.getText(), token.getString("text"));
+                assertEquals(rm.getIs_lacuna(), (Boolean) token.optBoolean("is_lacuna"));
+                for (String key : token.keySet())
+                    assertTrue(briefKeys.contains(key));
+            }
+        }
+
+        // A bad section should be caught before anything is streamed
+        response = jerseyTest.target("/tradition/" + florId + "/json")
+                .queryParam("section", "12345678").queryParam("stream", "true").request().get();
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+    }
+
+    private void compareStreamedJSON(WebTarget target) throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        Response built = target.request().get();
+        assertEquals(Response.Status.OK.getStatusCode(), built.getStatus());
+        Response streamed = target.queryParam("stream", "true").request().get();
+        assertEquals(Response.Status.OK.getStatusCode(), streamed.getStatus());
+        assertEquals(mapper.readTree(built.readEntity(String.class)),
+                mapper.readTree(streamed.readEntity(String.class)));
+    }
+
+    public void testStreamedExportParity() throws Exception {
+        Response response = Util.createTraditionFromFileOrString(jerseyTest, "Sapientia", "LR", "1",
+                "src/TestFiles/Sapientia.xml", "stemmaweb");
+        assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+        String sapId = Util.getValueFromJson(response, "tradId");
+
+        // Conflating on transposition folds together readings at different ranks, so that in the
+        // normalized view a witness can branch, or come back to a reading it has passed. The
+        // streamed CSV and TSV tables should follow it just as the one built in memory does.
+        for (String conflate : Arrays.asList(null, "transposition")) {
+            WebTarget json = jerseyTest.target("/tradition/" + sapId + "/json");
+            if (conflate != null) json = json.queryParam("conflate", conflate);
+            AlignmentModel built = json.request().get(AlignmentModel.class);
+            compareStreamedCSV(built, sapId, conflate, ',');
+            compareStreamedCSV(built, sapId, conflate, '\t');
+        }
+    }
+
+    public void testStreamedJSONParity() throws Exception {
+        Response response = Util.createTraditionFromFileOrString(jerseyTest, "Sapientia", "LR", "1",
+                "src/TestFiles/Sapientia.xml", "stemmaweb");
+        assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+        String sapId = Util.getValueFromJson(response, "tradId");
+
+        // Put a lacuna into two of the witnesses, partway through the text
+        List<WitnessModel> witnesses = jerseyTest.target("/tradition/" + sapId + "/witnesses")
+                .request().get(new GenericType<>() {});
+        for (int i = 0; i < 2; i++) {
+            String sigil = witnesses.get(i).getSigil();
+            List<ReadingModel> readings = jerseyTest.target("/tradition/" + sapId + "/witness/" + sigil + "/readings")
+                    .request().get(new GenericType<>() {});
+            response = jerseyTest.target("/reading/" + readings.get(10 * (i + 1)).getId() + "/lacunaAfter")
+                    .queryParam("witness", sigil)
+                    .request()
+                    .post(Entity.text(null));
+            assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        }
+
+        // The streamed alignment should be the same as the built one, both as it is and with
+        // the transpositions folded together
+        for (String conflate : Arrays.asList(null, "transposition")) {
+            WebTarget json = jerseyTest.target("/tradition/" + sapId + "/json");
+            if (conflate != null) json = json.queryParam("conflate", conflate);
+            AlignmentModel built = json.request().get(AlignmentModel.class);
+            assertTrue(built.getAlignment().stream().anyMatch(x -> x.getTokens().stream()
+                    .anyMatch(t -> t != null && t.getIs_lacuna())));
+            compareStreamedJSON(json);
+            compareStreamedJSON(json.queryParam("exclude_layers", "true"));
+        }
+    }
+
+    // The streamed CSV or TSV should hold the text of each token of the alignment built in memory
+    private void compareStreamedCSV(AlignmentModel built, String tradId, String conflate, char separator)
+            throws Exception {
+        WebTarget target = jerseyTest.target("/tradition/" + tradId + (separator == ',' ? "/csv" : "/tsv"));
+        if (conflate != null) target = target.queryParam("conflate", conflate);
+        Response response = target.request().get();
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        CSVReader rdr = new CSVReaderBuilder(new StringReader(response.readEntity(String.class)))
+                .withCSVParser(new CSVParserBuilder().withSeparator(separator).build())
+                .build();
+        List<String> sigla = built.getAlignment().stream()
+                .map(WitnessTokensModel::constructSigil).collect(Collectors.toList());
+        assertEquals(sigla, Arrays.asList(rdr.readNext()));
+        List<String[]> rows = rdr.readAll();
+        assertEquals(built.getLength(), rows.size());
+        for (int i = 0; i < rows.size(); i++)
+            for (int w = 0; w < sigla.size(); w++) {
+                ReadingModel token = built.getAlignment().get(w).getTokens().get(i);
+                assertEquals(String.format("%s at row %d", sigla.get(w), i),
+                        token == null ? "" : token.normalized(), rows.get(i)[w]);
+            }
+    }
+
     public void testCSVExport() throws Exception {
         Response response = Util.createTraditionFromFileOrString(jerseyTest, "Plaetzchen", "LR", "1",
                 "src/TestFiles/plaetzchen_cx.xml", "collatex");
@@ -17,16 +17,21 @@ import net.stemmaweb.model.*;
 import net.stemmaweb.rest.ERelations;
 import net.stemmaweb.rest.Nodes;
 import net.stemmaweb.rest.Root;
+import net.stemmaweb.services.DeletionService;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.ImportBatch;
 import net.stemmaweb.services.VariantGraphService;
 import net.stemmaweb.stemmaserver.JerseyTestServerFactory;
 
 import net.stemmaweb.stemmaserver.Util;
 
+import org.glassfish.jersey.media.multipart.FormDataBodyPart;
+import org.glassfish.jersey.media.multipart.FormDataMultiPart;
 import org.glassfish.jersey.test.JerseyTest;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
@@ -440,7 +445,7 @@ public class TraditionTest {
      * Test that all the nodes of a tradition have been removed
      */
     @Test
-    public void deleteTraditionCompletelyTest() {
+    public void deleteTraditionCompletelyTest() throws Exception {
         // create a new user
         UserModel userModel = new UserModel();
         userModel.setId("user@example.org");
@@ -530,7 +535,9 @@ public class TraditionTest {
                 .target("/tradition/" + florId)
                 .request()
                 .delete();
-        assertEquals(Response.Status.OK.getStatusCode(), jerseyResponse.getStatus());
+        JobModel job = Util.waitForDeletion(jerseyTest, jerseyResponse);
+        assertEquals(florId, job.getTraditionId());
+        assertTrue(job.getDeleted() > 200);
 
         // nodes should be back to original number
         numNodes.set(0);
@@ -573,6 +580,181 @@ public class TraditionTest {
         }
     }
 
+    // Upload a file to the given target, to be imported in the background
+    private Response postAsync(String target, FormDataMultiPart form, String fName) throws IOException {
+        form.field("async", "true");
+        form.bodyPart(new FormDataBodyPart("file", Files.newInputStream(Paths.get(fName)),
+                MediaType.APPLICATION_OCTET_STREAM_TYPE));
+        return jerseyTest.target(target).request().post(Entity.entity(form, MediaType.MULTIPART_FORM_DATA_TYPE));
+    }
+
+    // Follow the given import job until it is done
+    private JobModel waitForJob(Response accepted) throws InterruptedException {
+        assertEquals(Status.ACCEPTED.getStatusCode(), accepted.getStatus());
+        String jobId = Util.getValueFromJson(accepted, "jobId");
+        JobModel job = null;
+        for (int i = 0; i < 300; i++) {
+            job = jerseyTest.target("/job/" + jobId).request().get(JobModel.class);
+            assertEquals(jobId, job.getId());
+            if (job.getPhase().equals("finished")) break;
+            Thread.sleep(100);
+        }
+        assertNotNull(job);
+        assertEquals("finished", job.getPhase());
+        return job;
+    }
+
+    @Test
+    public void asyncImportTest() throws Exception {
+        FormDataMultiPart form = new FormDataMultiPart();
+        form.field("filetype", "stemmaweb");
+        form.field("name", "Background tradition");
+        form.field("userId", "1");
+        JobModel job = waitForJob(postAsync("/tradition", form, "src/TestFiles/testTradition.xml"));
+        assertEquals("succeeded", job.getStatus());
+        assertEquals(job.getBytesTotal(), job.getBytesRead());
+        assertTrue(job.getCreated() > 0);
+        String newTradId = job.getTraditionId();
+        assertNotNull(newTradId);
+        assertNotEquals(tradId, newTradId);
+
+        // The tradition should be just like the one we imported directly
+        TraditionModel tm = jerseyTest.target("/tradition/" + newTradId).request().get(TraditionModel.class);
+        assertEquals("Background tradition", tm.getName());
+        List<ReadingModel> ours = jerseyTest.target("/tradition/" + tradId + "/readings")
+                .request().get(new GenericType<>() {});
+        List<ReadingModel> theirs = jerseyTest.target("/tradition/" + newTradId + "/readings")
+                .request().get(new GenericType<>() {});
+        assertEquals(ours.size(), theirs.size());
+        List<TraditionModel> traditions = jerseyTest.target("/traditions").request().get(new GenericType<>() {});
+        assertEquals(2, traditions.size());
+
+        // Now add a section in the background too
+        form = new FormDataMultiPart();
+        form.field("filetype", "stemmaweb");
+        form.field("name", "section 2");
+        job = waitForJob(postAsync("/tradition/" + newTradId + "/section", form, "src/TestFiles/testTradition.xml"));
+        assertEquals("succeeded", job.getStatus());
+        assertNotNull(job.getSectionId());
+        List<SectionModel> sections = jerseyTest.target("/tradition/" + newTradId + "/sections")
+                .request().get(new GenericType<>() {});
+        assertEquals(2, sections.size());
+        assertEquals(job.getSectionId(), sections.get(1).getId());
+    }
+
+    @Test
+    public void asyncImportFailureTest() throws Exception {
+        FormDataMultiPart form = new FormDataMultiPart();
+        form.field("filetype", "stemmaweb");
+        form.field("name", "Broken tradition");
+        form.field("userId", "1");
+        JobModel job = waitForJob(postAsync("/tradition", form, "src/TestFiles/john.csv"));
+        assertEquals("failed", job.getStatus());
+        assertNotNull(job.getError());
+
+        // The half-made tradition should be gone again
+        Response r = jerseyTest.target("/tradition/" + job.getTraditionId()).request().get();
+        assertEquals(Status.NOT_FOUND.getStatusCode(), r.getStatus());
+        List<TraditionModel> traditions = jerseyTest.target("/traditions").request().get(new GenericType<>() {});
+        assertEquals(1, traditions.size());
+
+        // An unknown job should not be found
+        r = jerseyTest.target("/job/no-such-job").request().get();
+        assertEquals(Status.NOT_FOUND.getStatusCode(), r.getStatus());
+    }
+
+    @Test
+    public void resumeDeletionTest() throws Exception {
+        long nodeCount;
+        try (Transaction tx = db.beginTx()) {
+            nodeCount = db.getAllNodes().stream().count();
+            tx.success();
+        }
+        String doomedId = createTraditionFromFile("Doomed", "src/TestFiles/testTradition.xml", "1");
+
+        // Mark the tradition as deleted, as if the server had stopped before it could be removed
+        try (Transaction tx = db.beginTx()) {
+            db.execute("MATCH (:USER)-[o:OWNS_TRADITION]->(t:TRADITION {id:'" + doomedId + "'}) "
+                    + "DELETE o REMOVE t:TRADITION SET t:DELETED");
+            tx.success();
+        }
+        Response r = jerseyTest.target("/tradition/" + doomedId).request().get();
+        assertEquals(Status.NOT_FOUND.getStatusCode(), r.getStatus());
+        List<TraditionModel> traditions = jerseyTest.target("/traditions").request().get(new GenericType<>() {});
+        assertEquals(1, traditions.size());
+        assertEquals(tradId, traditions.get(0).getId());
+
+        // ...and as if it had stopped after the first batch of readings had been purged
+        int purged = 0;
+        try (Transaction tx = db.beginTx()) {
+            Node doomed = db.findNode(Nodes.DELETED, "id", doomedId);
+            Node section = doomed.getSingleRelationship(ERelations.PART, Direction.OUTGOING).getEndNode();
+            List<Node> readings = new ArrayList<>();
+            db.findNodes(Nodes.READING, "section_id", section.getId()).forEachRemaining(readings::add);
+            for (Node reading : readings.subList(0, readings.size() / 2)) {
+                reading.getRelationships().forEach(Relationship::delete);
+                reading.delete();
+                purged++;
+            }
+            tx.success();
+        }
+        assertTrue(purged > 0);
+
+        // Taking it up again should clear it away
+        List<DeletionService.Job> resumed = DeletionService.getInstance().resume(db);
+        assertEquals(1, resumed.size());
+        assertEquals(doomedId, resumed.get(0).getTraditionId());
+        Util.waitForDeletion(jerseyTest, resumed.get(0).getId());
+        try (Transaction tx = db.beginTx()) {
+            assertEquals(nodeCount, db.getAllNodes().stream().count());
+            assertFalse(db.findNodes(Nodes.DELETED).hasNext());
+            tx.success();
+        }
+    }
+
+    @Test
+    public void discardUnfinishedImportTest() throws Exception {
+        long nodeCount;
+        try (Transaction tx = db.beginTx()) {
+            nodeCount = db.getAllNodes().stream().count();
+            tx.success();
+        }
+        String unfinishedId = createTraditionFromFile("Unfinished", "src/TestFiles/testTradition.xml", "1");
+        String sectId = Util.getValueFromJson(Util.addSectionToTradition(jerseyTest, tradId,
+                "src/TestFiles/testTradition.xml", "stemmaweb", "section 2"), "sectionId");
+
+        // Flag them as they would be if the server had stopped in the middle of their imports
+        try (Transaction tx = db.beginTx()) {
+            db.findNode(Nodes.TRADITION, "id", unfinishedId).setProperty(ImportBatch.IMPORTING, true);
+            db.getNodeById(Long.parseLong(sectId)).setProperty(ImportBatch.IMPORTING, true);
+            tx.success();
+        }
+        List<TraditionModel> traditions = jerseyTest.target("/traditions").request().get(new GenericType<>() {});
+        assertEquals(1, traditions.size());
+        traditions = jerseyTest.target("/user/1/traditions").request().get(new GenericType<>() {});
+        assertEquals(1, traditions.size());
+        assertEquals(tradId, traditions.get(0).getId());
+        List<SectionModel> sections = jerseyTest.target("/tradition/" + tradId + "/sections")
+                .request().get(new GenericType<>() {});
+        assertEquals(1, sections.size());
+
+        // On the next start they should be cleared away
+        List<DeletionService.Job> discarded = ImportBatch.discardUnfinished(db);
+        assertEquals(2, discarded.size());
+        assertEquals(unfinishedId, discarded.get(0).getTraditionId());
+        assertEquals(Long.valueOf(sectId), discarded.get(1).getSectionId());
+        for (DeletionService.Job job : discarded)
+            Util.waitForDeletion(jerseyTest, job.getId());
+        try (Transaction tx = db.beginTx()) {
+            assertEquals(nodeCount, db.getAllNodes().stream().count());
+            assertFalse(db.findNodes(Nodes.DELETED).hasNext());
+            tx.success();
+        }
+        Response r = jerseyTest.target("/tradition/" + tradId + "/section/" + sectId).request().get();
+        assertEquals(Status.NOT_FOUND.getStatusCode(), r.getStatus());
+        assertTrue(ImportBatch.discardUnfinished(db).isEmpty());
+    }
+
     /*
      * Shut down the jersey server
      *
@@ -1,23 +1,35 @@
 package net.stemmaweb.stemmaserver.integrationtests;
 
+import net.stemmaweb.model.AlignmentModel;
+import net.stemmaweb.model.ReadingModel;
 import net.stemmaweb.model.RelationModel;
+import net.stemmaweb.model.WitnessTokensModel;
 import net.stemmaweb.rest.ERelations;
 import net.stemmaweb.rest.Nodes;
 import net.stemmaweb.rest.Relation;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.NormalizedSection;
+import net.stemmaweb.services.RankIndex;
+import net.stemmaweb.services.ReadingService;
 import net.stemmaweb.services.VariantGraphService;
+import net.stemmaweb.services.WitnessIndex;
 import net.stemmaweb.stemmaserver.Util;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.traversal.Uniqueness;
 import org.neo4j.test.TestGraphDatabaseFactory;
 
 import javax.ws.rs.core.Response;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 import static org.junit.Assert.*;
@@ -98,36 +110,66 @@ public class VariantGraphServiceTest {
                 "tradId"
         );
         ArrayList<Node> sections = VariantGraphService.getSectionNodes(newTradId, db);
+        long relCount;
         try (Transaction tx = db.beginTx()) {
-            HashMap<Node,Node> representatives = VariantGraphService.normalizeGraph(sections.get(0), "collated");
+            relCount = db.getAllRelationships().stream().count();
+            tx.success();
+        }
+        try (Transaction tx = db.beginTx()) {
+            NormalizedSection normalized = new NormalizedSection(sections.get(0), "collated");
+            HashMap<Node,Node> representatives = normalized.getRepresentatives();
             for (Node n : representatives.keySet()) {
-                // If it is represented by itself, it should have an NSEQUENCE both in and out; if not, not.
+                // If it is represented by itself, it should have a normalized sequence both in and out; if not, not.
                 if (!n.hasProperty("is_end"))
-                    assertEquals(n.equals(representatives.get(n)), n.hasRelationship(ERelations.NSEQUENCE, Direction.OUTGOING));
+                    assertEquals(n.equals(representatives.get(n)), !normalized.getSequences(n, Direction.OUTGOING).isEmpty());
                 if (!n.hasProperty("is_start"))
-                    assertEquals(n.equals(representatives.get(n)), n.hasRelationship(ERelations.NSEQUENCE, Direction.INCOMING));
-                // If it's at rank 6, it should have a REPRESENTS link
+                    assertEquals(n.equals(representatives.get(n)), !normalized.getSequences(n, Direction.INCOMING).isEmpty());
+                // If it's at rank 6, it should be part of a representation
                 if (n.getProperty("rank").equals(6L)) {
-                    Direction d = n.getProperty("text").equals("weljellensä") ? Direction.OUTGOING : Direction.INCOMING;
-                    assertTrue(n.hasRelationship(ERelations.REPRESENTS, d));
+                    if (n.getProperty("text").equals("weljellensä"))
+                        assertFalse(normalized.getRepresented(n).isEmpty());
+                    else
+                        assertNotEquals(n, normalized.getRepresentative(n));
                 } else if (n.getProperty("rank").equals(9L)) {
-                    Direction d = n.getProperty("text").equals("Hämehen") ? Direction.OUTGOING : Direction.INCOMING;
-                    assertTrue(n.hasRelationship(ERelations.REPRESENTS, d));
+                    if (n.getProperty("text").equals("Hämehen"))
+                        assertFalse(normalized.getRepresented(n).isEmpty());
+                    else
+                        assertNotEquals(n, normalized.getRepresentative(n));
                 }
             }
+
+            // The normalized links should have IDs of their own, and a link should equal
+            // the one made between the same readings by another normalization
+            List<Relationship> links = normalized.getAllSequences();
+            assertTrue(links.stream().allMatch(x -> x.getId() < 0));
+            assertEquals(links.size(), links.stream().map(Relationship::getId).distinct().count());
+            NormalizedSection again = new NormalizedSection(sections.get(0), "collated");
+            assertEquals(new HashSet<>(links), new HashSet<>(again.getAllSequences()));
+
+            // Walking the normalized links backward from the end should reach every reading
+            // that walking them forward from the start does
+            Node startNode = VariantGraphService.getStartNode(String.valueOf(sections.get(0).getId()), db);
+            Node endNode = VariantGraphService.getEndNode(String.valueOf(sections.get(0).getId()), db);
+            Set<Node> forward = db.traversalDescription().expand(normalized.sequenceExpander())
+                    .uniqueness(Uniqueness.NODE_GLOBAL).traverse(startNode).nodes().stream()
+                    .collect(Collectors.toSet());
+            Set<Node> backward = db.traversalDescription().expand(normalized.sequenceExpander().reverse())
+                    .uniqueness(Uniqueness.NODE_GLOBAL).traverse(endNode).nodes().stream()
+                    .collect(Collectors.toSet());
+            assertTrue(forward.contains(endNode));
+            assertEquals(forward, backward);
             tx.success();
         } catch (Exception e) {
             fail();
         }
 
-        // Now clear the normalization and make sure we didn't fail.
+        // Now make sure that we didn't touch the database.
         try (Transaction tx = db.beginTx()) {
-            VariantGraphService.clearNormalization(sections.get(0));
+            assertEquals(relCount, db.getAllRelationships().stream().count());
             assertTrue(db.getAllRelationships().stream().noneMatch(x -> x.isType(ERelations.NSEQUENCE)));
             assertTrue(db.getAllRelationships().stream().noneMatch(x -> x.isType(ERelations.REPRESENTS)));
+            assertTrue(db.getAllNodes().stream().noneMatch(x -> x.hasProperty("ncommon")));
             tx.success();
-        } catch (Exception e) {
-            fail();
         }
 
     }
@@ -171,8 +213,8 @@ public class VariantGraphServiceTest {
             Relation relRest = new Relation(newTradId);
             Response r = relRest.create(rm);
             assertEquals(Response.Status.CREATED.getStatusCode(), r.getStatus());
-            VariantGraphService.normalizeGraph(sections.get(0), "collated"); // TODO not sure this has an effect??
-            List<Node> majorityReadings = VariantGraphService.calculateMajorityText(sections.get(0));
+            List<Node> majorityReadings = VariantGraphService.calculateMajorityText(
+                    new NormalizedSection(sections.get(0), "collated"));
             List<String> words = majorityReadings.stream()
                     .filter(x -> !x.hasProperty("is_start") && !x.hasProperty("is_end"))
                     .map(x -> x.getProperty("text").toString())
@@ -184,6 +226,138 @@ public class VariantGraphServiceTest {
         }
     }
 
+    @Test
+    public void witnessBitmapTest() {
+        Node sectionNode = VariantGraphService.getSectionNodes(traditionId, db).get(0);
+        checkWitnessBitmaps(sectionNode);
+
+        // Throw away the index and rebuild it, as the migration would
+        try (Transaction tx = db.beginTx()) {
+            VariantGraphService.getTraditionNode(traditionId, db).removeProperty(WitnessIndex.DICTIONARY_KEY);
+            for (Relationship r : VariantGraphService.returnAllSequences(sectionNode).relationships())
+                r.removeProperty(WitnessIndex.BITMAP_KEY);
+            tx.success();
+        }
+        WitnessIndex.indexSection(sectionNode);
+        checkWitnessBitmaps(sectionNode);
+    }
+
+    @Test
+    public void witnessIndexCacheTest() {
+        Node sectionNode = VariantGraphService.getSectionNodes(traditionId, db).get(0);
+        List<Relationship> links;
+        WitnessIndex first;
+        // Within a transaction, every link of the tradition should share one dictionary
+        try (Transaction tx = db.beginTx()) {
+            links = VariantGraphService.returnAllSequences(sectionNode).relationships().stream()
+                    .filter(x -> x.isType(ERelations.SEQUENCE)).collect(Collectors.toList());
+            first = WitnessIndex.forLink(links.get(0));
+            for (Relationship r : links)
+                assertSame(first, WitnessIndex.forLink(r));
+            tx.success();
+        }
+
+        // A change that is rolled back should leave nothing behind in the next transaction
+        Relationship link = links.get(1);
+        try (Transaction tx = db.beginTx()) {
+            WitnessIndex index = WitnessIndex.forLink(link);
+            assertNotSame(first, index);
+            ReadingService.addWitnessLink(link.getStartNode(), link.getEndNode(), "D", "witnesses");
+            assertTrue(index.bit("D", "witnesses") >= 0);
+            assertSame(index, WitnessIndex.forLink(link));
+            tx.failure();
+        }
+        try (Transaction tx = db.beginTx()) {
+            assertEquals(-1, WitnessIndex.forLink(link).bit("D", "witnesses"));
+            tx.success();
+        }
+
+        // and a change that is committed should be stored with the right bits
+        try (Transaction tx = db.beginTx()) {
+            ReadingService.addWitnessLink(link.getStartNode(), link.getEndNode(), "D", "witnesses");
+            tx.success();
+        }
+        checkWitnessBitmaps(sectionNode);
+        try (Transaction tx = db.beginTx()) {
+            WitnessIndex index = WitnessIndex.forLink(link);
+            assertTrue(WitnessIndex.isSet(index.bitsOf(link), index.bit("D", "witnesses")));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void rankIndexTest() {
+        Node sectionNode = VariantGraphService.getSectionNodes(traditionId, db).get(0);
+        Node moved;
+        try (Transaction tx = db.beginTx()) {
+            List<Node> expected = VariantGraphService.returnTraditionSection(sectionNode).nodes().stream()
+                    .filter(x -> x.hasLabel(Nodes.READING)).distinct()
+                    .filter(x -> (Long) x.getProperty("rank") >= 3 && (Long) x.getProperty("rank") <= 5)
+                    .collect(Collectors.toList());
+            List<Node> found = RankIndex.forSection(sectionNode).readingsBetween(3, 5);
+            assertEquals(expected.size(), found.size());
+            assertTrue(found.containsAll(expected));
+            moved = found.get(0);
+            tx.success();
+        }
+
+        // A committed change of rank should be reflected in the index
+        try (Transaction tx = db.beginTx()) {
+            moved.setProperty("rank", 100L);
+            tx.success();
+        }
+        try (Transaction tx = db.beginTx()) {
+            assertFalse(RankIndex.forSection(sectionNode).readingsBetween(3, 5).contains(moved));
+            assertEquals(Collections.singletonList(moved), RankIndex.forSection(sectionNode).readingsBetween(100, 100));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void alignmentTokensTest() {
+        Node sectionNode = VariantGraphService.getSectionNodes(traditionId, db).get(0);
+        AlignmentModel table = new AlignmentModel(sectionNode);
+        // Every cell should have a token of its own, even where the witnesses share a reading
+        Set<ReadingModel> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<ReadingModel> shared = new ArrayList<>();
+        for (WitnessTokensModel row : table.getAlignment())
+            for (ReadingModel token : row.getTokens()) {
+                if (token == null) continue;
+                assertTrue(seen.add(token));
+                if (token.getId().equals(table.getAlignment().get(0).getTokens().get(0).getId()))
+                    shared.add(token);
+            }
+        assertTrue(shared.size() > 1);
+        // so that a change to one token leaves the others as they were
+        String text = shared.get(1).getText();
+        shared.get(0).setText("changed");
+        shared.get(0).getWitnesses().clear();
+        assertEquals(text, shared.get(1).getText());
+        assertFalse(shared.get(1).getWitnesses().isEmpty());
+    }
+
+    // Every sequence link should have a bitmap that matches its sigil lists
+    private void checkWitnessBitmaps(Node sectionNode) {
+        try (Transaction tx = db.beginTx()) {
+            WitnessIndex index = new WitnessIndex(VariantGraphService.getTraditionNode(traditionId, db));
+            assertTrue(index.size() >= 3);
+            for (Relationship r : VariantGraphService.returnAllSequences(sectionNode).relationships()) {
+                if (!r.isType(ERelations.SEQUENCE)) continue;
+                assertTrue(r.hasProperty(WitnessIndex.BITMAP_KEY));
+                long[] bits = index.bitsOf(r);
+                int count = 0;
+                for (String witClass : WitnessIndex.witnessClasses(r))
+                    for (String sigil : (String[]) r.getProperty(witClass)) {
+                        assertTrue(WitnessIndex.isSet(bits, index.bit(sigil, witClass)));
+                        count++;
+                    }
+                for (long word : bits) count -= Long.bitCount(word);
+                assertEquals(0, count);
+            }
+            tx.success();
+        }
+    }
+
     // clearMajorityTest()
 
     // returnEntireTraditionTest()